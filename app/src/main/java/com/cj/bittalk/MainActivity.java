@@ -8,12 +8,21 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.pm.PackageManager;
+import android.database.Cursor;
 import android.graphics.Rect;
+import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
+import android.provider.OpenableColumns;
 import android.text.TextUtils;
 import android.view.KeyEvent;
 import android.view.LayoutInflater;
+import android.view.Menu;
+import android.view.MenuItem;
 import android.view.View;
 import android.view.ViewTreeObserver;
 import android.view.WindowManager;
@@ -37,21 +46,37 @@ import androidx.recyclerview.widget.RecyclerView;
 
 import com.google.android.material.button.MaterialButton;
 import com.google.android.material.dialog.MaterialAlertDialogBuilder;
+import com.google.android.material.snackbar.Snackbar;
 import com.cj.bittalk.adapters.DeviceAdapter;
 import com.cj.bittalk.adapters.MessageAdapter;
 import com.cj.bittalk.databinding.ActivityMainBinding;
+import com.cj.bittalk.discovery.DeviceRegistry;
+import com.cj.bittalk.history.HistoryStore;
+import com.cj.bittalk.mesh.MeshRelay;
 import com.cj.bittalk.model.Device;
 import com.cj.bittalk.model.Message;
 import com.cj.bittalk.services.BluetoothService;
+import com.cj.bittalk.services.Delivery;
+import com.cj.bittalk.services.LinkStats;
+import com.cj.bittalk.transfer.FileTransfer;
+import com.cj.bittalk.transfer.TransferManager;
 
-import java.nio.charset.StandardCharsets;
+import java.io.File;
+import java.io.FileNotFoundException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
 
 public class MainActivity extends AppCompatActivity implements BluetoothService.BluetoothConnectionListener {
     private static final String TAG = "MainActivity";
     private static final int REQUEST_PERMISSIONS = 1;
+    private static final long LINK_STATS_REFRESH_MILLIS = 2000;
+    private static final long METRICS_REFRESH_MILLIS = 1000;
+    private static final int SEARCH_LIMIT = 200;
 
     private ActivityMainBinding binding;
     private BluetoothAdapter bluetoothAdapter;
@@ -59,11 +84,24 @@ public class MainActivity extends AppCompatActivity implements BluetoothService.
     private MessageAdapter messageAdapter;
     private DeviceAdapter deviceAdapter;
     private AlertDialog deviceDialog;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    // Outlives the device dialog, so reopening it shows the last scan's results
+    private DeviceRegistry deviceRegistry;
+    private String connectedDeviceName;
+    private boolean transferInProgress;
+    private HistoryStore historyStore;
+    // Peer whose history is on screen, kept while a dropped link is redialled
+    private String historyPeer;
+    // Last device picked in the device dialog, shown once it is connected
+    private String chosenPeer;
 
     private LinearLayout emptyStateLayout;
     private MaterialButton disconnectButton;
     private MaterialButton getStartedButton;
 
+    // Outgoing transfer id to the content URI it streams from, used for the sent bubble's preview
+    private final Map<Long, Uri> outgoingAttachments = new HashMap<>();
+
     private final ActivityResultLauncher<Intent> enableBluetoothLauncher =
             registerForActivityResult(new ActivityResultContracts.StartActivityForResult(), result -> {
                 if (result.getResultCode() == RESULT_OK) {
@@ -74,6 +112,72 @@ public class MainActivity extends AppCompatActivity implements BluetoothService.
                 }
             });
 
+    private final ActivityResultLauncher<String> pickAttachmentLauncher =
+            registerForActivityResult(new ActivityResultContracts.GetContent(), uri -> {
+                if (uri != null) {
+                    sendAttachment(uri);
+                }
+            });
+
+    private final TransferManager.TransferListener transferListener = new TransferManager.TransferListener() {
+        @Override
+        public void onTransferProgress(FileTransfer transfer) {
+            runOnUiThread(() -> {
+                transferInProgress = true;
+                binding.toolbar.setSubtitle(String.format(Locale.getDefault(),
+                        "%s %s %d%% · %d KB/s",
+                        transfer.isIncoming() ? "Receiving" : "Sending",
+                        transfer.getName(),
+                        transfer.getProgressPercent(),
+                        transfer.getBytesPerSecond() / 1024));
+            });
+        }
+
+        @Override
+        public void onTransferCompleted(FileTransfer transfer) {
+            runOnUiThread(() -> {
+                transferInProgress = false;
+                binding.toolbar.setSubtitle("Connected");
+                Message message = new Message(transfer.getName(), !transfer.isIncoming());
+                if (transfer.isIncoming()) {
+                    message.setAttachmentUri(Uri.fromFile(transfer.getFile()).toString());
+                } else {
+                    Uri uri = outgoingAttachments.remove(transfer.getId());
+                    if (uri != null) {
+                        message.setAttachmentUri(uri.toString());
+                    }
+                }
+                String peer = transfer.getPeerAddress();
+                if (peer.equals(historyPeer)) {
+                    messageAdapter.addMessage(message);
+                    binding.messagesRecyclerView.smoothScrollToPosition(messageAdapter.getItemCount() - 1);
+                } else {
+                    historyStore.append(peer, message);
+                }
+            });
+        }
+
+        @Override
+        public void onTransferFailed(FileTransfer transfer) {
+            runOnUiThread(() -> {
+                outgoingAttachments.remove(transfer.getId());
+                transferInProgress = false;
+                binding.toolbar.setSubtitle("Connected");
+                Toast.makeText(MainActivity.this, "Transfer of " + transfer.getName() + " failed",
+                        Toast.LENGTH_SHORT).show();
+            });
+        }
+    };
+
+    // Shows RTT and throughput of the link in the toolbar while connected
+    private final Runnable linkStatsUpdater = new Runnable() {
+        @Override
+        public void run() {
+            showLinkQuality();
+            binding.toolbar.postDelayed(this, LINK_STATS_REFRESH_MILLIS);
+        }
+    };
+
     private final BroadcastReceiver bluetoothReceiver = new BroadcastReceiver() {
         @RequiresPermission(Manifest.permission.BLUETOOTH_CONNECT)
         @Override
@@ -81,10 +185,9 @@ public class MainActivity extends AppCompatActivity implements BluetoothService.
             String action = intent.getAction();
             if (BluetoothDevice.ACTION_FOUND.equals(action)) {
                 BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
-                if (device != null && deviceAdapter != null) {
-                    if (hasBluetoothPermission()) {
-                        deviceAdapter.addDevice(new Device(device));
-                    }
+                if (device != null && hasBluetoothPermission()) {
+                    deviceRegistry.onSighted(new Device(device),
+                            intent.getShortExtra(BluetoothDevice.EXTRA_RSSI, Short.MIN_VALUE));
                 }
             } else if (BluetoothAdapter.ACTION_DISCOVERY_FINISHED.equals(action)) {
                 if (deviceDialog != null && deviceDialog.isShowing()) {
@@ -109,6 +212,13 @@ public class MainActivity extends AppCompatActivity implements BluetoothService.
                         WindowManager.LayoutParams.SOFT_INPUT_STATE_HIDDEN
         );
 
+        historyStore = new HistoryStore(new File(getFilesDir(), "history"));
+        deviceRegistry = new DeviceRegistry(mainHandler::postDelayed, SystemClock::elapsedRealtime);
+        // Registered once for the activity's lifetime, not per dialog
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(BluetoothDevice.ACTION_FOUND);
+        filter.addAction(BluetoothAdapter.ACTION_DISCOVERY_FINISHED);
+        registerReceiver(bluetoothReceiver, filter);
         setupViews();
         checkPermissions();
     }
@@ -131,6 +241,7 @@ public class MainActivity extends AppCompatActivity implements BluetoothService.
 
         // Setup send button
         binding.sendButton.setOnClickListener(v -> sendMessage());
+        binding.attachButton.setOnClickListener(v -> pickAttachmentLauncher.launch("*/*"));
         binding.deviceSelectionFab.setOnClickListener(v -> showDeviceSelectionDialog());
 
         // Setup disconnect button
@@ -224,7 +335,7 @@ public class MainActivity extends AppCompatActivity implements BluetoothService.
     private void showDisconnectDialog() {
         new MaterialAlertDialogBuilder(this)
                 .setTitle("Disconnect")
-                .setMessage("Are you sure you want to disconnect? Your chat history will be cleared.")
+                .setMessage("Are you sure you want to disconnect?")
                 .setPositiveButton("Disconnect", (dialog, which) -> {
                     disconnect();
                 })
@@ -237,8 +348,10 @@ public class MainActivity extends AppCompatActivity implements BluetoothService.
             bluetoothService.stop();
         }
 
-        // Clear messages
+        // Clear the screen, the history stays on disk and comes back on the next connect
         messageAdapter.clearMessages();
+        historyPeer = null;
+        chosenPeer = null;
 
         // Reset UI
         showEmptyState();
@@ -332,6 +445,7 @@ public class MainActivity extends AppCompatActivity implements BluetoothService.
                 enableBluetoothLauncher.launch(enableIntent);
             } else {
                 bluetoothService = new BluetoothService(this, this);
+                bluetoothService.getTransferManager().setListener(transferListener);
                 bluetoothService.start();
             }
         } catch (SecurityException e) {
@@ -368,13 +482,10 @@ public class MainActivity extends AppCompatActivity implements BluetoothService.
                 .setNegativeButton("Cancel", (dialog, which) -> dialog.dismiss())
                 .setPositiveButton("Scan", (dialog, which) -> startDiscovery())
                 .create();
+        deviceDialog.setOnDismissListener(dialog -> deviceRegistry.setListener(null));
 
+        deviceRegistry.setListener(deviceAdapter::setDevices);
         deviceDialog.show();
-
-        IntentFilter filter = new IntentFilter();
-        filter.addAction(BluetoothDevice.ACTION_FOUND);
-        filter.addAction(BluetoothAdapter.ACTION_DISCOVERY_FINISHED);
-        registerReceiver(bluetoothReceiver, filter);
     }
 
     private void loadPairedDevices() {
@@ -384,11 +495,11 @@ public class MainActivity extends AppCompatActivity implements BluetoothService.
 
         try {
             Set<BluetoothDevice> pairedDevices = bluetoothAdapter.getBondedDevices();
-            deviceAdapter.clearDevices();
-
+            List<Device> bonded = new ArrayList<>(pairedDevices.size());
             for (BluetoothDevice device : pairedDevices) {
-                deviceAdapter.addDevice(new Device(device));
+                bonded.add(new Device(device));
             }
+            deviceRegistry.onBonded(bonded);
         } catch (SecurityException e) {
             Toast.makeText(this, "Bluetooth permission required", Toast.LENGTH_SHORT).show();
         }
@@ -418,19 +529,43 @@ public class MainActivity extends AppCompatActivity implements BluetoothService.
         }
     }
 
+    // Picking a device that is already connected just switches the chat to it
     private void connectToDevice(Device device) {
         if (bluetoothService != null) {
+            chosenPeer = device.getAddress();
             bluetoothService.connect(device.getBluetoothDevice());
+            loadHistory();
         }
     }
 
     private void sendMessage() {
         String message = binding.messageInput.getText().toString().trim();
-        if (!TextUtils.isEmpty(message) && bluetoothService != null
-                && bluetoothService.getState() == BluetoothService.STATE_CONNECTED) {
+        // While a dropped peer is being redialled the message waits in the outbox
+        int state = bluetoothService != null ? bluetoothService.getState() : BluetoothService.STATE_NONE;
+        if (!TextUtils.isEmpty(message) && historyPeer != null
+                && (state == BluetoothService.STATE_CONNECTED || state == BluetoothService.STATE_CONNECTING)) {
+
+            // Shown right away, the ticks follow the delivery: written, then acknowledged by the peer
+            Message sent = new Message(message, true);
+            sent.setStatus(Message.Status.SENDING);
+            messageAdapter.addMessage(sent);
+            binding.messagesRecyclerView.smoothScrollToPosition(messageAdapter.getItemCount() - 1);
 
-            byte[] send = message.getBytes(StandardCharsets.UTF_8);
-            bluetoothService.write(send);
+            // A node only reached through the mesh gets it flooded like any broadcast
+            Delivery delivery = MeshRelay.isNodeAddress(historyPeer)
+                    ? bluetoothService.sendTracked(message)
+                    : bluetoothService.sendTracked(historyPeer, message);
+            delivery.written().whenComplete((result, e) -> runOnUiThread(() -> {
+                if (e != null) {
+                    updateStatus(sent, Message.Status.FAILED);
+                    Toast.makeText(this, "Message not sent", Toast.LENGTH_SHORT).show();
+                } else if (sent.getStatus() == Message.Status.SENDING) {
+                    updateStatus(sent, Message.Status.SENT);
+                }
+            }));
+            // A peer that predates acknowledgements leaves it at sent
+            delivery.acknowledged().thenRun(() -> runOnUiThread(() ->
+                    updateStatus(sent, Message.Status.DELIVERED)));
             binding.messageInput.setText("");
 
             // Hide keyboard after sending
@@ -442,9 +577,168 @@ public class MainActivity extends AppCompatActivity implements BluetoothService.
         }
     }
 
+    private void updateStatus(Message message, Message.Status status) {
+        message.setStatus(status);
+        messageAdapter.updateMessage(message);
+    }
+
+    private void sendAttachment(Uri uri) {
+        if (bluetoothService == null || historyPeer == null
+                || bluetoothService.getState(historyPeer) != BluetoothService.STATE_CONNECTED) {
+            return;
+        }
+
+        String name = "attachment";
+        long size = -1;
+        try (Cursor cursor = getContentResolver().query(uri, null, null, null, null)) {
+            if (cursor != null && cursor.moveToFirst()) {
+                int nameIndex = cursor.getColumnIndex(OpenableColumns.DISPLAY_NAME);
+                int sizeIndex = cursor.getColumnIndex(OpenableColumns.SIZE);
+                if (nameIndex >= 0 && !cursor.isNull(nameIndex)) {
+                    name = cursor.getString(nameIndex);
+                }
+                if (sizeIndex >= 0 && !cursor.isNull(sizeIndex)) {
+                    size = cursor.getLong(sizeIndex);
+                }
+            }
+        }
+        if (size < 0) {
+            Toast.makeText(this, "Cannot send this file", Toast.LENGTH_SHORT).show();
+            return;
+        }
+
+        // The channel is reopened on resume, so the source reads from the URI rather than a held stream
+        TransferManager.Source source = () -> {
+            ParcelFileDescriptor pfd = getContentResolver().openFileDescriptor(uri, "r");
+            if (pfd == null) {
+                throw new FileNotFoundException(uri.toString());
+            }
+            return new ParcelFileDescriptor.AutoCloseInputStream(pfd).getChannel();
+        };
+        FileTransfer transfer = bluetoothService.getTransferManager().sendFile(historyPeer, name, size, source);
+        outgoingAttachments.put(transfer.getId(), uri);
+    }
+
+    private void showLinkQuality() {
+        if (bluetoothService == null || transferInProgress) {
+            return;
+        }
+        if (historyPeer == null) {
+            return;
+        }
+        LinkStats stats = bluetoothService.getLinkStats(historyPeer);
+        if (stats == null || !stats.hasRtt()) {
+            return;
+        }
+        binding.toolbar.setSubtitle(String.format(Locale.getDefault(),
+                "Connected to %s · %.0f ms ±%.0f · %d KB/s",
+                connectedDeviceName != null ? connectedDeviceName : historyPeer,
+                stats.rttMillis,
+                stats.jitterMillis,
+                (stats.bytesPerSecondIn + stats.bytesPerSecondOut) / 1024));
+    }
+
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        getMenuInflater().inflate(R.menu.menu_main, menu);
+        return true;
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(@NonNull MenuItem item) {
+        if (item.getItemId() == R.id.action_search) {
+            showSearchDialog();
+            return true;
+        }
+        if (item.getItemId() == R.id.action_link_metrics) {
+            showMetricsDialog();
+            return true;
+        }
+        return super.onOptionsItemSelected(item);
+    }
+
+    // Debug screen: live link counters and latency histograms, shareable as plain text from field devices
+    private void showMetricsDialog() {
+        if (bluetoothService == null) {
+            return;
+        }
+        View dialogView = LayoutInflater.from(this).inflate(R.layout.dialog_metrics, null);
+        TextView metricsText = dialogView.findViewById(R.id.metricsText);
+        metricsText.setText(bluetoothService.snapshotMetrics().toString());
+        bluetoothService.setMetricsListener(snapshot -> metricsText.setText(snapshot.toString()),
+                METRICS_REFRESH_MILLIS);
+
+        new MaterialAlertDialogBuilder(this)
+                .setTitle(R.string.link_metrics)
+                .setView(dialogView)
+                .setPositiveButton("Share", (dialog, which) -> {
+                    Intent share = new Intent(Intent.ACTION_SEND);
+                    share.setType("text/plain");
+                    share.putExtra(Intent.EXTRA_SUBJECT, "BitTalk link metrics");
+                    share.putExtra(Intent.EXTRA_TEXT, metricsText.getText().toString());
+                    startActivity(Intent.createChooser(share, "Export metrics"));
+                })
+                .setNegativeButton("Close", null)
+                .setOnDismissListener(dialog -> {
+                    if (bluetoothService != null) {
+                        bluetoothService.setMetricsListener(null, 0);
+                    }
+                })
+                .show();
+    }
+
+    // Searches the open chat's history on the disk thread, then jumps to the newest match
+    private void showSearchDialog() {
+        if (historyPeer == null) {
+            Toast.makeText(this, "Connect to a device to search its messages", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        View dialogView = LayoutInflater.from(this).inflate(R.layout.dialog_search, null);
+        TextView searchInput = dialogView.findViewById(R.id.searchInput);
+        new MaterialAlertDialogBuilder(this)
+                .setTitle(R.string.search_messages)
+                .setView(dialogView)
+                .setPositiveButton("Find", (dialog, which) -> {
+                    String query = searchInput.getText().toString().trim();
+                    if (!query.isEmpty()) {
+                        searchHistory(query);
+                    }
+                })
+                .setNegativeButton("Cancel", null)
+                .show();
+    }
+
+    private void searchHistory(String query) {
+        historyStore.search(historyPeer, query, SEARCH_LIMIT).whenComplete((hits, e) -> runOnUiThread(() -> {
+            if (e != null || hits.length == 0) {
+                Toast.makeText(this, "No messages found", Toast.LENGTH_SHORT).show();
+            } else {
+                showSearchHit(hits, 0);
+            }
+        }));
+    }
+
+    // Only the page around the hit is read, the list loads the rest as it scrolls
+    private void showSearchHit(long[] hits, int hit) {
+        int position = messageAdapter.positionOf(hits[hit]);
+        if (position < 0) {
+            return;
+        }
+        binding.messagesRecyclerView.scrollToPosition(position);
+        String label = String.format(Locale.getDefault(), "Match %d of %d", hit + 1, hits.length);
+        if (hit + 1 < hits.length) {
+            Snackbar.make(binding.getRoot(), label, Snackbar.LENGTH_INDEFINITE)
+                    .setAction("Older", v -> showSearchHit(hits, hit + 1))
+                    .show();
+        } else {
+            Snackbar.make(binding.getRoot(), label, Snackbar.LENGTH_LONG).show();
+        }
+    }
+
     private void setInputEnabled(boolean enabled) {
         binding.messageInput.setEnabled(enabled);
         binding.sendButton.setEnabled(enabled);
+        binding.attachButton.setEnabled(enabled);
         binding.messageInput.setHint(enabled ? "Type a message" : "Not connected");
     }
 
@@ -488,20 +782,26 @@ public class MainActivity extends AppCompatActivity implements BluetoothService.
             switch (state) {
                 case BluetoothService.STATE_CONNECTED:
                     binding.toolbar.setSubtitle("Connected");
+                    binding.toolbar.removeCallbacks(linkStatsUpdater);
+                    binding.toolbar.postDelayed(linkStatsUpdater, LINK_STATS_REFRESH_MILLIS);
                     hideEmptyState();
                     setInputEnabled(true);
                     if (disconnectButton != null) {
                         disconnectButton.setVisibility(View.VISIBLE);
                     }
+                    loadHistory();
                     break;
 
                 case BluetoothService.STATE_CONNECTING:
+                    binding.toolbar.removeCallbacks(linkStatsUpdater);
                     binding.toolbar.setSubtitle("Connecting...");
-                    setInputEnabled(false);
+                    // Keep typing while a dropped link is redialled, messages go to the outbox
+                    setInputEnabled(messageAdapter.getItemCount() > 0);
                     break;
 
                 case BluetoothService.STATE_LISTEN:
                 case BluetoothService.STATE_NONE:
+                    binding.toolbar.removeCallbacks(linkStatsUpdater);
                     binding.toolbar.setSubtitle("Not connected");
                     showEmptyState();
                     setInputEnabled(false);
@@ -515,20 +815,64 @@ public class MainActivity extends AppCompatActivity implements BluetoothService.
 
     @Override
     public void onMessageReceived(String message) {
-        runOnUiThread(() -> {
-            messageAdapter.addMessage(new Message(message, false));
+        showReceived(Collections.singletonList(message));
+    }
+
+    // Once per frame and peer, so the burst lands as one insert and one scroll
+    @Override
+    public void onMessagesReceived(String address, List<String> messages) {
+        if (historyPeer == null) {
+            loadHistory();
+        }
+        if (address.equals(historyPeer)) {
+            showReceived(messages);
+            return;
+        }
+        // Another peer's chat is not on screen, its messages go straight to its history
+        for (int i = 0; i < messages.size(); i++) {
+            historyStore.append(address, new Message(messages.get(i), false));
+        }
+        Snackbar.make(binding.getRoot(), "New message from " + address, Snackbar.LENGTH_LONG)
+                .setAction("Show", v -> showPeer(address))
+                .show();
+    }
+
+    // Time labels and text layout are prepared off the main thread, binding the rows just sets them
+    private void showReceived(List<String> messages) {
+        messageAdapter.prepareReceived(messages).thenAccept(received -> runOnUiThread(() -> {
+            messageAdapter.addMessages(received);
             // Auto scroll to new message
             binding.messagesRecyclerView.smoothScrollToPosition(messageAdapter.getItemCount() - 1);
-        });
+        }));
+    }
+
+    // Shows the chosen peer once it is connected, otherwise stays on the open chat or opens the first peer's
+    private void loadHistory() {
+        List<String> addresses = bluetoothService.getConnectedAddresses();
+        String peer;
+        if (chosenPeer != null && addresses.contains(chosenPeer)) {
+            peer = chosenPeer;
+        } else if (historyPeer != null || addresses.isEmpty()) {
+            return;
+        } else {
+            peer = addresses.get(0);
+        }
+        if (!peer.equals(historyPeer)) {
+            showPeer(peer);
+        }
+    }
+
+    // Puts the peer's history above the live messages, which are stored with it from now on
+    private void showPeer(String peer) {
+        messageAdapter.clearMessages();
+        historyPeer = peer;
+        messageAdapter.bindHistory(historyStore.source(peer)).thenRun(() ->
+                binding.messagesRecyclerView.scrollToPosition(messageAdapter.getItemCount() - 1));
     }
 
     @Override
     public void onMessageSent(String message) {
-        runOnUiThread(() -> {
-            messageAdapter.addMessage(new Message(message, true));
-            // Auto scroll to new message
-            binding.messagesRecyclerView.smoothScrollToPosition(messageAdapter.getItemCount() - 1);
-        });
+        // sendMessage() already shows the message and tracks its delivery
     }
 
     @Override
@@ -541,21 +885,19 @@ public class MainActivity extends AppCompatActivity implements BluetoothService.
     @Override
     public void onDeviceConnected(String deviceName) {
         runOnUiThread(() -> {
+            connectedDeviceName = deviceName;
             binding.toolbar.setSubtitle("Connected to " + deviceName);
+            // Not a chat row: rows are stored and indexed with the history, this would repeat on every redial
             Toast.makeText(this, "Connected to " + deviceName, Toast.LENGTH_SHORT).show();
-            // Show a welcome message in chat
-            Message welcomeMsg = new Message(
-                    "Connected to " + deviceName + ". You can now start chatting!",
-                    false
-            );
-            welcomeMsg.setSystemMessage(true);
-            messageAdapter.addMessage(welcomeMsg);
         });
     }
 
     @Override
     protected void onDestroy() {
         super.onDestroy();
+        binding.toolbar.removeCallbacks(linkStatsUpdater);
+        deviceRegistry.setListener(null);
+        mainHandler.removeCallbacksAndMessages(null);
 
         try {
             unregisterReceiver(bluetoothReceiver);
@@ -564,8 +906,10 @@ public class MainActivity extends AppCompatActivity implements BluetoothService.
         }
 
         if (bluetoothService != null) {
+            bluetoothService.setMetricsListener(null, 0);
             bluetoothService.stop();
         }
+        historyStore.close();
 
         if (bluetoothAdapter != null) {
             try {
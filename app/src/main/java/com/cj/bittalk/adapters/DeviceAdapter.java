@@ -6,14 +6,37 @@ import android.view.ViewGroup;
 import android.widget.ImageView;
 import android.widget.TextView;
 import androidx.annotation.NonNull;
+import androidx.recyclerview.widget.AsyncListDiffer;
+import androidx.recyclerview.widget.DiffUtil;
 import androidx.recyclerview.widget.RecyclerView;
 import com.cj.bittalk.R;
 import com.cj.bittalk.model.Device;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
+/**
+ * Device rows, keyed by address. Every change submits a new list; the
+ * difference to what is shown is computed on a background thread and only
+ * the resulting inserts, moves and changes reach the RecyclerView.
+ */
 public class DeviceAdapter extends RecyclerView.Adapter<DeviceAdapter.DeviceViewHolder> {
-    private List<Device> devices = new ArrayList<>();
+    private static final DiffUtil.ItemCallback<Device> DIFF = new DiffUtil.ItemCallback<Device>() {
+        @Override
+        public boolean areItemsTheSame(@NonNull Device oldItem, @NonNull Device newItem) {
+            return oldItem.getAddress().equals(newItem.getAddress());
+        }
+
+        @Override
+        public boolean areContentsTheSame(@NonNull Device oldItem, @NonNull Device newItem) {
+            return oldItem.getName().equals(newItem.getName()) && oldItem.isPaired() == newItem.isPaired()
+                    && oldItem.getRssi() == newItem.getRssi();
+        }
+    };
+
+    private final AsyncListDiffer<Device> differ = new AsyncListDiffer<>(this, DIFF);
+    // Last list submitted; the differ's current list lags behind it until the diff is done
+    private List<Device> devices = Collections.emptyList();
     private OnDeviceClickListener listener;
 
     public interface OnDeviceClickListener {
@@ -22,6 +45,12 @@ public class DeviceAdapter extends RecyclerView.Adapter<DeviceAdapter.DeviceView
 
     public DeviceAdapter(OnDeviceClickListener listener) {
         this.listener = listener;
+        setHasStableIds(true);
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return differ.getCurrentList().get(position).getStableId();
     }
 
     @NonNull
@@ -34,7 +63,7 @@ public class DeviceAdapter extends RecyclerView.Adapter<DeviceAdapter.DeviceView
 
     @Override
     public void onBindViewHolder(@NonNull DeviceViewHolder holder, int position) {
-        Device device = devices.get(position);
+        Device device = differ.getCurrentList().get(position);
         holder.bind(device);
         holder.itemView.setOnClickListener(v -> {
             if (listener != null) {
@@ -45,24 +74,34 @@ public class DeviceAdapter extends RecyclerView.Adapter<DeviceAdapter.DeviceView
 
     @Override
     public int getItemCount() {
-        return devices.size();
+        return differ.getCurrentList().size();
     }
 
     public void setDevices(List<Device> devices) {
-        this.devices = devices;
-        notifyDataSetChanged();
+        submit(new ArrayList<>(devices));
     }
 
+    // A device seen again replaces its row, e.g. with the name the scan found
     public void addDevice(Device device) {
-        if (!devices.contains(device)) {
-            devices.add(device);
-            notifyItemInserted(devices.size() - 1);
+        List<Device> next = new ArrayList<>(devices);
+        for (int i = 0; i < next.size(); i++) {
+            if (next.get(i).getAddress().equals(device.getAddress())) {
+                next.set(i, device);
+                submit(next);
+                return;
+            }
         }
+        next.add(device);
+        submit(next);
     }
 
     public void clearDevices() {
-        devices.clear();
-        notifyDataSetChanged();
+        submit(Collections.emptyList());
+    }
+
+    private void submit(List<Device> next) {
+        devices = next;
+        differ.submitList(next);
     }
 
     static class DeviceViewHolder extends RecyclerView.ViewHolder {
@@ -82,7 +121,11 @@ public class DeviceAdapter extends RecyclerView.Adapter<DeviceAdapter.DeviceView
         void bind(Device device) {
             deviceName.setText(device.getName());
             deviceAddress.setText(device.getAddress());
-            deviceStatus.setText(device.isPaired() ? "Paired" : "Available");
+            String status = device.isPaired() ? "Paired" : "Available";
+            if (device.getRssi() != Device.RSSI_UNKNOWN) {
+                status += " · " + device.getRssi() + " dBm";
+            }
+            deviceStatus.setText(status);
             deviceStatus.setTextColor(device.isPaired() ?
                     itemView.getContext().getColor(R.color.secondary) :
                     itemView.getContext().getColor(R.color.gray_medium));
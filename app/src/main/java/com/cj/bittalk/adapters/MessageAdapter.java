@@ -1,32 +1,94 @@
 package com.cj.bittalk.adapters;
 
+import android.os.Handler;
+import android.os.Looper;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.ImageView;
 import android.widget.TextView;
 import androidx.annotation.NonNull;
+import androidx.core.text.PrecomputedTextCompat;
+import androidx.core.widget.TextViewCompat;
 import androidx.recyclerview.widget.RecyclerView;
 
+import com.bumptech.glide.Glide;
 import com.cj.bittalk.R;
+import com.cj.bittalk.history.HistorySource;
+import com.cj.bittalk.history.HistoryWindow;
 import com.cj.bittalk.model.Message;
-import java.util.ArrayList;
+import java.net.URLConnection;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
+/**
+ * Chat rows backed by a HistoryWindow: the list scrolls over the peer's whole
+ * history while only the pages around what is on screen stay in memory. The
+ * window reports exactly which rows were inserted, changed or removed, so
+ * there is nothing to diff and no full rebind.
+ */
 public class MessageAdapter extends RecyclerView.Adapter<MessageAdapter.MessageViewHolder> {
     private static final int VIEW_TYPE_SENT = 1;
     private static final int VIEW_TYPE_RECEIVED = 2;
+    private static final int PAGE_SIZE = 50;
+    private static final int MAX_PAGES = 6;
 
-    private List<Message> messages = new ArrayList<>();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final MessagePreparer preparer = new MessagePreparer();
+    private final HistoryWindow window = new HistoryWindow(PAGE_SIZE, MAX_PAGES, mainHandler::post,
+            new HistoryWindow.Listener() {
+                @Override
+                public void onInserted(int position, int count) {
+                    notifyItemRangeInserted(position, count);
+                }
+
+                @Override
+                public void onChanged(int position, int count) {
+                    notifyItemRangeChanged(position, count);
+                }
+
+                @Override
+                public void onRemoved(int position, int count) {
+                    notifyItemRangeRemoved(position, count);
+                }
+            });
+
+    public MessageAdapter() {
+        setHasStableIds(true);
+    }
+
+    // Shows the peer's history above what is on screen and keeps new messages in it
+    public CompletableFuture<Void> bindHistory(HistorySource source) {
+        return window.bind(source);
+    }
+
+    /**
+     * Turns received texts into messages that are ready to bind, off the main
+     * thread; add them with addMessages() once the future completes.
+     */
+    public CompletableFuture<List<Message>> prepareReceived(List<String> texts) {
+        return preparer.prepareReceived(texts);
+    }
+
+    // Row of a search hit, its page is read once the row is shown
+    public int positionOf(long messageIndex) {
+        return window.positionOf(messageIndex);
+    }
 
     public void clearMessages() {
-        messages.clear();
-        notifyDataSetChanged();
+        window.unbind();
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return window.getItemId(position);
     }
 
     @Override
     public int getItemViewType(int position) {
-        Message message = messages.get(position);
-        return message.isSent() ? VIEW_TYPE_SENT : VIEW_TYPE_RECEIVED;
+        // Rows still being read show as empty received ones
+        Message message = window.get(position);
+        return message != null && message.isSent() ? VIEW_TYPE_SENT : VIEW_TYPE_RECEIVED;
     }
 
     @NonNull
@@ -40,43 +102,125 @@ public class MessageAdapter extends RecyclerView.Adapter<MessageAdapter.MessageV
             view = LayoutInflater.from(parent.getContext())
                     .inflate(R.layout.item_message_received, parent, false);
         }
-        return new MessageViewHolder(view);
+        MessageViewHolder holder = new MessageViewHolder(view);
+        if (viewType == VIEW_TYPE_RECEIVED && !preparer.hasTextParams()) {
+            preparer.setTextParams(TextViewCompat.getTextMetricsParams(holder.messageText));
+        }
+        return holder;
     }
 
     @Override
     public void onBindViewHolder(@NonNull MessageViewHolder holder, int position) {
-        Message message = messages.get(position);
-        holder.bind(message);
+        Message message = window.get(position);
+        if (message != null) {
+            holder.bind(message);
+        } else {
+            holder.bindPlaceholder();
+        }
     }
 
     @Override
     public int getItemCount() {
-        return messages.size();
+        return window.size();
     }
 
+    // New messages are stored with the history once it is bound
     public void addMessage(Message message) {
-        messages.add(message);
-        notifyItemInserted(messages.size() - 1);
+        window.append(message);
     }
 
-    public void setMessages(List<Message> messages) {
-        this.messages = messages;
-        notifyDataSetChanged();
+    public void addMessages(List<Message> newMessages) {
+        window.appendAll(newMessages);
+    }
+
+    // Rebinds a message whose delivery status changed, if its page is still in memory
+    public void updateMessage(Message message) {
+        int position = window.indexOf(message);
+        if (position >= 0) {
+            notifyItemChanged(position);
+        }
     }
 
     static class MessageViewHolder extends RecyclerView.ViewHolder {
         private final TextView messageText;
         private final TextView messageTime;
+        private final TextView messageStatus;
+        private final ImageView messageImage;
+        // Skips clearing Glide on every bind of a plain text row
+        private boolean showingImage;
 
         MessageViewHolder(@NonNull View itemView) {
             super(itemView);
             messageText = itemView.findViewById(R.id.messageText);
             messageTime = itemView.findViewById(R.id.messageTime);
+            // Only sent messages have a status
+            messageStatus = itemView.findViewById(R.id.messageStatus);
+            messageImage = itemView.findViewById(R.id.messageImage);
         }
 
+        // Prepared messages bind without formatting or laying out anything here
         void bind(Message message) {
-            messageText.setText(message.getText());
+            CharSequence text = message.getLayoutText();
+            if (text instanceof PrecomputedTextCompat) {
+                try {
+                    TextViewCompat.setPrecomputedText(messageText, (PrecomputedTextCompat) text);
+                } catch (IllegalArgumentException e) {
+                    // Laid out with other metrics, e.g. before the font scale changed
+                    messageText.setText(message.getText());
+                }
+            } else {
+                messageText.setText(text);
+            }
             messageTime.setText(message.getFormattedTime());
+            if (messageStatus != null) {
+                messageStatus.setText(statusMark(message.getStatus()));
+            }
+
+            // Attachment messages carry the file name as their text, content URIs have no extension
+            String attachment = message.getAttachmentUri();
+            if (attachment != null && isImage(message.getText())) {
+                showingImage = true;
+                messageImage.setVisibility(View.VISIBLE);
+                Glide.with(messageImage).load(attachment).into(messageImage);
+            } else {
+                clearImage();
+            }
+        }
+
+        void bindPlaceholder() {
+            messageText.setText("");
+            messageTime.setText("");
+            if (messageStatus != null) {
+                messageStatus.setText("");
+            }
+            clearImage();
+        }
+
+        private void clearImage() {
+            if (showingImage) {
+                // Recycled holders may still carry a request for another row's image
+                showingImage = false;
+                Glide.with(messageImage).clear(messageImage);
+                messageImage.setVisibility(View.GONE);
+            }
+        }
+
+        private static String statusMark(Message.Status status) {
+            switch (status) {
+                case SENDING:
+                    return "\u2022";
+                case DELIVERED:
+                    return "\u2713\u2713";
+                case FAILED:
+                    return "!";
+                default:
+                    return "\u2713";
+            }
+        }
+
+        private static boolean isImage(String name) {
+            String type = URLConnection.guessContentTypeFromName(name);
+            return type != null && type.startsWith("image/");
         }
     }
 }
\ No newline at end of file
@@ -0,0 +1,57 @@
+package com.cj.bittalk.adapters;
+
+import androidx.core.text.PrecomputedTextCompat;
+
+import com.cj.bittalk.model.Message;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Gets incoming messages ready to bind on a background thread: the time label
+ * is formatted and the text measured and laid out with the metrics of a
+ * received row, so binding only hands finished objects to the views. One
+ * thread, so batches come out in the order they went in.
+ */
+class MessagePreparer {
+    private final ThreadPoolExecutor executor;
+    // Taken from the first received row; until then only the label is prepared
+    private volatile PrecomputedTextCompat.Params textParams;
+
+    MessagePreparer() {
+        executor = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable -> {
+            Thread thread = new Thread(runnable, "bt-layout");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    boolean hasTextParams() {
+        return textParams != null;
+    }
+
+    void setTextParams(PrecomputedTextCompat.Params params) {
+        textParams = params;
+    }
+
+    CompletableFuture<List<Message>> prepareReceived(List<String> texts) {
+        return CompletableFuture.supplyAsync(() -> {
+            PrecomputedTextCompat.Params params = textParams;
+            List<Message> messages = new ArrayList<>(texts.size());
+            for (int i = 0; i < texts.size(); i++) {
+                Message message = new Message(texts.get(i), false);
+                message.getFormattedTime();
+                if (params != null) {
+                    message.setLayoutText(PrecomputedTextCompat.create(message.getText(), params));
+                }
+                messages.add(message);
+            }
+            return messages;
+        }, executor);
+    }
+}
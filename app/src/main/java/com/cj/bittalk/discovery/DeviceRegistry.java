@@ -0,0 +1,194 @@
+package com.cj.bittalk.discovery;
+
+import com.cj.bittalk.model.Device;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+/**
+ * Every device found by scans or bonded, keyed by MAC address. A device seen
+ * again is merged into its entry with the new RSSI and time instead of being
+ * added twice. Unbonded devices not seen for ttlMillis are dropped, so the
+ * registry can outlive the device dialog and show the last scan right away.
+ *
+ * The listener gets a fresh list at most once per minIntervalMillis, however
+ * many broadcasts arrived in between. Confined to the thread the scheduler
+ * runs tasks on, normally the main thread.
+ */
+public class DeviceRegistry {
+    public static final long DEFAULT_TTL_MILLIS = 2 * 60 * 1000;
+    public static final long DEFAULT_MIN_INTERVAL_MILLIS = 300;
+
+    /** Runs task once, after delayMillis, on the registry's thread. */
+    public interface Scheduler {
+        void schedule(Runnable task, long delayMillis);
+    }
+
+    public interface Listener {
+        // Bonded devices first, the rest in the order they were found
+        void onDevicesChanged(List<Device> devices);
+    }
+
+    private final Scheduler scheduler;
+    private final LongSupplier clock;
+    private final long ttlMillis;
+    private final long minIntervalMillis;
+    private final Map<String, Device> devices = new LinkedHashMap<>();
+    private final Runnable publish = this::publish;
+    private Listener listener;
+    private boolean publishScheduled;
+    private long lastPublishMillis;
+    private long expiryScheduledAt = Long.MAX_VALUE;
+
+    public DeviceRegistry(Scheduler scheduler, LongSupplier clock) {
+        this(scheduler, clock, DEFAULT_TTL_MILLIS, DEFAULT_MIN_INTERVAL_MILLIS);
+    }
+
+    public DeviceRegistry(Scheduler scheduler, LongSupplier clock, long ttlMillis, long minIntervalMillis) {
+        this.scheduler = scheduler;
+        this.clock = clock;
+        this.ttlMillis = ttlMillis;
+        this.minIntervalMillis = minIntervalMillis;
+        lastPublishMillis = clock.getAsLong() - minIntervalMillis;
+    }
+
+    // Delivers what is known right away, then the coalesced updates; null to stop
+    public void setListener(Listener listener) {
+        this.listener = listener;
+        if (listener != null) {
+            publish();
+        }
+    }
+
+    // A scan result; rssi is Device.RSSI_UNKNOWN if the broadcast had none
+    public void onSighted(Device device, int rssi) {
+        long now = clock.getAsLong();
+        Device merged = merge(device, device.isPaired());
+        if (rssi != Device.RSSI_UNKNOWN) {
+            merged.setRssi(rssi);
+        }
+        merged.setLastSeenMillis(now);
+        changed();
+    }
+
+    // The bonded devices as the adapter reports them now; bonds that are gone turn into plain sightings
+    public void onBonded(Collection<Device> bonded) {
+        long now = clock.getAsLong();
+        for (Map.Entry<String, Device> entry : devices.entrySet()) {
+            Device known = entry.getValue();
+            if (known.isPaired() && !bonded.contains(known)) {
+                Device unpaired = new Device(known.getAddress(), known.getName(), false, known.getBluetoothDevice());
+                unpaired.setRssi(known.getRssi());
+                unpaired.setLastSeenMillis(now);
+                entry.setValue(unpaired);
+            }
+        }
+        for (Device device : bonded) {
+            merge(device, true).setLastSeenMillis(now);
+        }
+        changed();
+    }
+
+    public int size() {
+        return devices.size();
+    }
+
+    public List<Device> getDevices() {
+        expire(clock.getAsLong());
+        List<Device> list = new ArrayList<>(devices.size());
+        for (Device device : devices.values()) {
+            if (device.isPaired()) {
+                list.add(device);
+            }
+        }
+        for (Device device : devices.values()) {
+            if (!device.isPaired()) {
+                list.add(device);
+            }
+        }
+        return list;
+    }
+
+    private static String key(String address) {
+        return address.toUpperCase(Locale.ROOT);
+    }
+
+    /**
+     * Replaces the entry with a new Device carrying both what was known and
+     * what was just reported, so a published list never changes under the
+     * adapter and its diff sees the update.
+     */
+    private Device merge(Device device, boolean paired) {
+        String key = key(device.getAddress());
+        Device known = devices.get(key);
+        Device merged;
+        if (known == null) {
+            merged = new Device(device.getAddress(), device.getName(), paired, device.getBluetoothDevice());
+        } else {
+            String name = device.getName() != null && !"Unknown Device".equals(device.getName())
+                    ? device.getName() : known.getName();
+            merged = new Device(known.getAddress(), name, paired || known.isPaired(),
+                    device.getBluetoothDevice() != null ? device.getBluetoothDevice() : known.getBluetoothDevice());
+            merged.setRssi(known.getRssi());
+            merged.setLastSeenMillis(known.getLastSeenMillis());
+        }
+        devices.put(key, merged);
+        return merged;
+    }
+
+    private void changed() {
+        if (listener == null || publishScheduled) {
+            return;
+        }
+        publishScheduled = true;
+        long wait = Math.max(0, lastPublishMillis + minIntervalMillis - clock.getAsLong());
+        scheduler.schedule(publish, wait);
+    }
+
+    private void publish() {
+        publishScheduled = false;
+        if (listener == null) {
+            return;
+        }
+        lastPublishMillis = clock.getAsLong();
+        listener.onDevicesChanged(getDevices());
+        scheduleExpiry();
+    }
+
+    private void expire(long now) {
+        Iterator<Device> entries = devices.values().iterator();
+        while (entries.hasNext()) {
+            Device device = entries.next();
+            if (!device.isPaired() && now - device.getLastSeenMillis() >= ttlMillis) {
+                entries.remove();
+            }
+        }
+    }
+
+    // Publishes again when the oldest sighting runs out, so stale rows leave the list on their own
+    private void scheduleExpiry() {
+        long oldest = Long.MAX_VALUE;
+        for (Device device : devices.values()) {
+            if (!device.isPaired()) {
+                oldest = Math.min(oldest, device.getLastSeenMillis());
+            }
+        }
+        if (oldest == Long.MAX_VALUE) {
+            return;
+        }
+        long expiresAt = oldest + ttlMillis;
+        if (expiresAt < expiryScheduledAt) {
+            expiryScheduledAt = expiresAt;
+            scheduler.schedule(() -> {
+                expiryScheduledAt = Long.MAX_VALUE;
+                changed();
+            }, Math.max(0, expiresAt - clock.getAsLong()));
+        }
+    }
+}
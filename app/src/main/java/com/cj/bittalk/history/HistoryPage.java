@@ -0,0 +1,41 @@
+package com.cj.bittalk.history;
+
+import com.cj.bittalk.model.Message;
+import com.cj.bittalk.model.MessageColumns;
+
+import java.util.List;
+
+/**
+ * A run of consecutive messages of one peer. Messages are numbered from 0 in
+ * the order they were appended; expired ones leave a gap before firstIndex.
+ */
+public class HistoryPage {
+    // Number of the first message in messages
+    public final long start;
+    public final List<Message> messages;
+    // Set when read from disk; messages is then a view over it
+    public final MessageColumns rows;
+    // Oldest message still kept, and one past the newest
+    public final long firstIndex;
+    public final long endIndex;
+
+    public HistoryPage(long start, List<Message> messages, long firstIndex, long endIndex) {
+        this.start = start;
+        this.messages = messages;
+        this.rows = null;
+        this.firstIndex = firstIndex;
+        this.endIndex = endIndex;
+    }
+
+    public HistoryPage(long start, MessageColumns rows, long firstIndex, long endIndex) {
+        this.start = start;
+        this.messages = rows.asList();
+        this.rows = rows;
+        this.firstIndex = firstIndex;
+        this.endIndex = endIndex;
+    }
+
+    public boolean hasOlder() {
+        return start > firstIndex;
+    }
+}
@@ -0,0 +1,214 @@
+package com.cj.bittalk.history;
+
+import android.util.Log;
+
+import com.cj.bittalk.model.MessageColumns;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * History of one peer: a directory of segments keyed by the number of their
+ * first message. Only the newest segment is appended to; it is sealed once
+ * it reaches the segment size and older ones are deleted whole when they
+ * expire. Apart from the lock-free append queue, all state is confined to the
+ * HistoryStore disk thread.
+ */
+class HistoryPartition {
+    private static final String TAG = "HistoryPartition";
+
+    static final class Append {
+        final byte[] record;
+        final long timestamp;
+        final String text;
+        final CompletableFuture<Void> stored = new CompletableFuture<>();
+
+        Append(byte[] record, long timestamp, String text) {
+            this.record = record;
+            this.timestamp = timestamp;
+            this.text = text;
+        }
+    }
+
+    final String address;
+    final ConcurrentLinkedQueue<Append> appends = new ConcurrentLinkedQueue<>();
+    final AtomicBoolean appendScheduled = new AtomicBoolean();
+
+    private final File directory;
+    private final TreeMap<Long, HistorySegment> segments = new TreeMap<>();
+    private final SearchIndex search;
+    private HistorySegment active;
+
+    HistoryPartition(File root, String address) {
+        this.address = address;
+        directory = new File(root, fileName(address));
+        search = new SearchIndex(directory, SearchIndex.COMPACT_THRESHOLD_BYTES);
+    }
+
+    static String fileName(String address) {
+        StringBuilder name = new StringBuilder(address.length());
+        for (int i = 0; i < address.length(); i++) {
+            char c = address.charAt(i);
+            name.append(Character.isLetterOrDigit(c) || c == '-' ? c : '_');
+        }
+        return name.toString();
+    }
+
+    // Loads the segment list on first use; only the tail of each segment is read
+    void open() throws IOException {
+        if (active != null) {
+            return;
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create " + directory);
+        }
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                long baseIndex = HistorySegment.parseBaseIndex(file.getName());
+                if (baseIndex >= 0) {
+                    segments.put(baseIndex, HistorySegment.load(directory, baseIndex));
+                }
+            }
+        }
+        if (segments.isEmpty()) {
+            active = HistorySegment.create(directory, 0);
+            segments.put(0L, active);
+        } else {
+            active = segments.lastEntry().getValue();
+            active.openForAppend();
+        }
+    }
+
+    long firstIndex() {
+        return segments.firstKey();
+    }
+
+    long endIndex() {
+        return active.endIndex();
+    }
+
+    /** Writes everything queued, rolling to a new segment when the active one is full. */
+    void writeAppends(ByteBuffer scratch, long segmentBytes, List<Append> written) throws IOException {
+        open();
+        long flushed = active.size;
+        Append append;
+        while ((append = appends.poll()) != null) {
+            byte[] record = append.record;
+            if (active.count > 0 && active.size + record.length > segmentBytes) {
+                flush(scratch, flushed);
+                roll();
+                flushed = active.size;
+            }
+            if (scratch.remaining() < record.length) {
+                flush(scratch, flushed);
+                flushed = active.size;
+            }
+            long offset = active.size;
+            if (record.length > scratch.capacity()) {
+                active.write(ByteBuffer.wrap(record), offset);
+                flushed = offset + record.length;
+            } else {
+                scratch.put(record);
+            }
+            active.onAppended(offset, record.length, append.timestamp);
+            if (append.text != null) {
+                search.add(active.endIndex() - 1, append.text);
+            }
+            written.add(append);
+        }
+        flush(scratch, flushed);
+        search.flush();
+        search.compact(firstIndex());
+    }
+
+    private void flush(ByteBuffer scratch, long position) throws IOException {
+        scratch.flip();
+        active.write(scratch, position);
+        scratch.clear();
+    }
+
+    private void roll() throws IOException {
+        active.seal();
+        active = HistorySegment.create(directory, active.endIndex());
+        segments.put(active.baseIndex, active);
+    }
+
+    /** Reads up to count messages starting at from, which is clamped to what is kept. */
+    HistoryPage read(long from, int count) throws IOException {
+        open();
+        long first = firstIndex();
+        long end = endIndex();
+        long start = Math.max(first, Math.min(from, end));
+        MessageColumns rows = new MessageColumns((int) Math.min(count, end - start));
+        Map.Entry<Long, HistorySegment> entry = segments.floorEntry(start);
+        long next = start;
+        while (entry != null && rows.size() < count && next < end) {
+            HistorySegment segment = entry.getValue();
+            segment.read(next, count - rows.size(), rows);
+            next = start + rows.size();
+            entry = segments.higherEntry(entry.getKey());
+        }
+        return new HistoryPage(start, rows, first, end);
+    }
+
+    // Numbers of matching messages, newest first, see SearchIndex.search()
+    long[] search(String query, int limit) throws IOException {
+        open();
+        return search.search(query, firstIndex(), endIndex(), limit);
+    }
+
+    /**
+     * Deletes the oldest segments beyond maxSegments, and sealed ones whose
+     * newest message is older than expireBefore. The active segment stays.
+     */
+    void expire(int maxSegments, long expireBefore) {
+        while (segments.size() > 1) {
+            HistorySegment oldest = segments.firstEntry().getValue();
+            if (segments.size() <= maxSegments && oldest.lastTimestamp >= expireBefore) {
+                break;
+            }
+            segments.pollFirstEntry();
+            oldest.delete();
+        }
+    }
+
+    // Drops every message; numbering carries on so pages already handed out stay valid
+    void clear() throws IOException {
+        open();
+        long end = endIndex();
+        for (HistorySegment segment : segments.values()) {
+            segment.delete();
+        }
+        segments.clear();
+        active = HistorySegment.create(directory, end);
+        segments.put(end, active);
+        search.clear();
+    }
+
+    void sync() throws IOException {
+        if (active != null) {
+            active.sync();
+            search.sync();
+        }
+    }
+
+    void close() {
+        if (active != null) {
+            try {
+                active.sync();
+            } catch (IOException e) {
+                Log.e(TAG, "Could not sync history of " + address, e);
+            }
+            active.close();
+            search.close();
+        }
+    }
+}
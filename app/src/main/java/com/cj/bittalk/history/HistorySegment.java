@@ -0,0 +1,306 @@
+package com.cj.bittalk.history;
+
+import android.util.Log;
+
+import com.cj.bittalk.model.Message;
+import com.cj.bittalk.model.MessageColumns;
+import com.cj.bittalk.model.TimeLabels;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * One append-only file of a peer's history, named after the number of its
+ * first message. Records are [length:4][timestamp:8][flags:1][text:UTF-8 with
+ * length:4][attachment:UTF-8 with length:4, -1 if none]. Every INDEX_INTERVAL-th
+ * record's offset goes into a side .idx file, so a read seeks to the nearest
+ * indexed record and skips at most INDEX_INTERVAL - 1 headers.
+ *
+ * Confined to the HistoryStore disk thread.
+ */
+final class HistorySegment {
+    private static final String TAG = "HistorySegment";
+    static final int INDEX_INTERVAL = 32;
+    static final int RECORD_HEADER_SIZE = 4;
+    private static final int FLAG_SENT = 0x01;
+    private static final int FLAG_SYSTEM = 0x02;
+
+    final long baseIndex;
+    private final File logFile;
+    private final File indexFile;
+    // Open only while this is the segment being appended to
+    private FileChannel channel;
+    private FileChannel indexChannel;
+    private final ByteBuffer indexEntry = ByteBuffer.allocate(8);
+    private long[] sparse = new long[16];
+    private int sparseCount;
+    long size;
+    int count;
+    long lastTimestamp;
+    boolean dirty;
+
+    private HistorySegment(File directory, long baseIndex) {
+        this.baseIndex = baseIndex;
+        String name = String.format(Locale.US, "%020d", baseIndex);
+        logFile = new File(directory, name + ".log");
+        indexFile = new File(directory, name + ".idx");
+    }
+
+    static long parseBaseIndex(String fileName) {
+        if (!fileName.endsWith(".log")) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(fileName.substring(0, fileName.length() - 4));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    static HistorySegment create(File directory, long baseIndex) throws IOException {
+        HistorySegment segment = new HistorySegment(directory, baseIndex);
+        segment.openForAppend();
+        segment.channel.truncate(0);
+        segment.indexChannel.truncate(0);
+        return segment;
+    }
+
+    /**
+     * Loads the sparse index and walks the records after its last entry to
+     * count them, dropping a torn record left by a crash.
+     */
+    static HistorySegment load(File directory, long baseIndex) throws IOException {
+        HistorySegment segment = new HistorySegment(directory, baseIndex);
+        try (FileChannel log = new RandomAccessFile(segment.logFile, "rw").getChannel()) {
+            long end = log.size();
+            if (segment.indexFile.exists()) {
+                try (FileChannel index = new RandomAccessFile(segment.indexFile, "r").getChannel()) {
+                    ByteBuffer entries = ByteBuffer.allocate((int) (index.size() / 8 * 8));
+                    while (entries.hasRemaining() && index.read(entries, entries.position()) > 0) {
+                        // Keep reading
+                    }
+                    entries.flip();
+                    while (entries.remaining() >= 8) {
+                        long offset = entries.getLong();
+                        if (offset >= end) {
+                            break;
+                        }
+                        segment.addSparse(offset);
+                    }
+                }
+            }
+            long offset = segment.sparseCount > 0 ? segment.sparse[segment.sparseCount - 1] : 0;
+            int counted = segment.sparseCount > 0 ? (segment.sparseCount - 1) * INDEX_INTERVAL : 0;
+            ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE + 8);
+            while (offset + header.capacity() <= end) {
+                header.clear();
+                readFully(log, header, offset);
+                int length = header.getInt(0);
+                long next = offset + RECORD_HEADER_SIZE + length;
+                if (length < 8 || next > end) {
+                    break;
+                }
+                if (counted % INDEX_INTERVAL == 0 && counted / INDEX_INTERVAL >= segment.sparseCount) {
+                    segment.addSparse(offset);
+                }
+                segment.lastTimestamp = header.getLong(RECORD_HEADER_SIZE);
+                offset = next;
+                counted++;
+            }
+            if (segment.sparseCount > 0 && segment.sparse[segment.sparseCount - 1] >= offset) {
+                // The indexed record itself was torn
+                segment.sparseCount--;
+            }
+            if (offset < end) {
+                Log.w(TAG, "Truncating " + segment.logFile + " at " + offset);
+                log.truncate(offset);
+                log.force(false);
+            }
+            segment.size = offset;
+            segment.count = counted;
+        }
+        segment.rewriteIndex();
+        return segment;
+    }
+
+    static byte[] encode(Message message) {
+        byte[] text = message.getText() != null
+                ? message.getText().getBytes(StandardCharsets.UTF_8) : new byte[0];
+        byte[] attachment = message.getAttachmentUri() != null
+                ? message.getAttachmentUri().getBytes(StandardCharsets.UTF_8) : null;
+        int length = 8 + 1 + 4 + text.length + 4 + (attachment != null ? attachment.length : 0);
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + length);
+        record.putInt(length);
+        record.putLong(message.getTimestamp());
+        record.put((byte) ((message.isSent() ? FLAG_SENT : 0) | (message.isSystemMessage() ? FLAG_SYSTEM : 0)));
+        record.putInt(text.length).put(text);
+        if (attachment != null) {
+            record.putInt(attachment.length).put(attachment);
+        } else {
+            record.putInt(-1);
+        }
+        return record.array();
+    }
+
+    // Text is copied as it is, it is only decoded for rows that get shown
+    private static void decode(ByteBuffer record, MessageColumns out) {
+        byte[] bytes = record.array();
+        long timestamp = record.getLong();
+        int flags = record.get();
+        int textLength = record.getInt();
+        int textOffset = record.position();
+        record.position(textOffset + textLength);
+        int attachmentLength = record.getInt();
+        String attachment = null;
+        if (attachmentLength >= 0) {
+            attachment = new String(bytes, record.position(), attachmentLength, StandardCharsets.UTF_8);
+        }
+        out.add(timestamp, (flags & FLAG_SENT) != 0, (flags & FLAG_SYSTEM) != 0,
+                bytes, textOffset, textLength, attachment);
+        // Still on the disk thread, so the row's label is cached when it is bound
+        TimeLabels.format(timestamp);
+    }
+
+    long endIndex() {
+        return baseIndex + count;
+    }
+
+    void openForAppend() throws IOException {
+        if (channel == null) {
+            channel = new RandomAccessFile(logFile, "rw").getChannel();
+            indexChannel = new RandomAccessFile(indexFile, "rw").getChannel();
+        }
+    }
+
+    // Called for each record in order; offset is where the record starts
+    void onAppended(long offset, int recordSize, long timestamp) throws IOException {
+        if (count % INDEX_INTERVAL == 0) {
+            addSparse(offset);
+            indexEntry.clear();
+            indexEntry.putLong(offset).flip();
+            while (indexEntry.hasRemaining()) {
+                indexChannel.write(indexEntry, (long) (sparseCount - 1) * 8 + indexEntry.position());
+            }
+        }
+        size = offset + recordSize;
+        count++;
+        lastTimestamp = timestamp;
+        dirty = true;
+    }
+
+    void write(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    /** Reads up to max messages starting at message number from, appending them to out. */
+    void read(long from, int max, MessageColumns out) throws IOException {
+        if (from < baseIndex || from >= endIndex() || max <= 0) {
+            return;
+        }
+        int relative = (int) (from - baseIndex);
+        long offset = sparse[relative / INDEX_INTERVAL];
+        int skip = relative % INDEX_INTERVAL;
+        boolean temporary = channel == null;
+        FileChannel log = temporary ? new RandomAccessFile(logFile, "r").getChannel() : channel;
+        try {
+            ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+            ByteBuffer record = ByteBuffer.allocate(256);
+            for (int i = 0; i < skip; i++) {
+                header.clear();
+                readFully(log, header, offset);
+                offset += RECORD_HEADER_SIZE + header.getInt(0);
+            }
+            int wanted = (int) Math.min(max, endIndex() - from);
+            for (int i = 0; i < wanted; i++) {
+                header.clear();
+                readFully(log, header, offset);
+                int length = header.getInt(0);
+                if (record.capacity() < length) {
+                    record = ByteBuffer.allocate(Math.max(length, record.capacity() * 2));
+                }
+                record.clear().limit(length);
+                readFully(log, record, offset + RECORD_HEADER_SIZE);
+                record.flip();
+                decode(record, out);
+                offset += RECORD_HEADER_SIZE + length;
+            }
+        } finally {
+            if (temporary) {
+                log.close();
+            }
+        }
+    }
+
+    void sync() throws IOException {
+        if (dirty && channel != null) {
+            channel.force(false);
+            indexChannel.force(false);
+            dirty = false;
+        }
+    }
+
+    // Stops appending here, a new segment takes over
+    void seal() throws IOException {
+        sync();
+        close();
+    }
+
+    void close() {
+        try {
+            if (channel != null) {
+                channel.close();
+                indexChannel.close();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Could not close " + logFile, e);
+        }
+        channel = null;
+        indexChannel = null;
+    }
+
+    void delete() {
+        close();
+        if (!logFile.delete() || (indexFile.exists() && !indexFile.delete())) {
+            Log.w(TAG, "Could not delete " + logFile);
+        }
+    }
+
+    private void addSparse(long offset) {
+        if (sparseCount == sparse.length) {
+            sparse = Arrays.copyOf(sparse, sparseCount * 2);
+        }
+        sparse[sparseCount++] = offset;
+    }
+
+    // Brings the .idx file in line with what load() found, e.g. after a torn write
+    private void rewriteIndex() throws IOException {
+        try (FileChannel index = new RandomAccessFile(indexFile, "rw").getChannel()) {
+            ByteBuffer entries = ByteBuffer.allocate(sparseCount * 8);
+            for (int i = 0; i < sparseCount; i++) {
+                entries.putLong(sparse[i]);
+            }
+            entries.flip();
+            long position = 0;
+            while (entries.hasRemaining()) {
+                position += index.write(entries, position);
+            }
+            index.truncate(position);
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Truncated history record");
+            }
+        }
+    }
+}
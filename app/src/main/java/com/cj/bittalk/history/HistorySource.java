@@ -0,0 +1,14 @@
+package com.cj.bittalk.history;
+
+import com.cj.bittalk.model.Message;
+
+import java.util.concurrent.CompletableFuture;
+
+/** The history of one peer, as HistoryWindow pages through it. */
+public interface HistorySource {
+    CompletableFuture<HistoryPage> readLast(int count);
+
+    CompletableFuture<HistoryPage> readPage(long from, int count);
+
+    CompletableFuture<Void> append(Message message);
+}
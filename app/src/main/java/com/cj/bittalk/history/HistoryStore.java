@@ -0,0 +1,249 @@
+package com.cj.bittalk.history;
+
+import android.util.Log;
+
+import com.cj.bittalk.model.Message;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Persistent chat history, partitioned by peer address.
+ *
+ * Each peer has a directory of append-only segment files with a sparse
+ * offset index, so the last page or any page further back is read without
+ * scanning. append() only links the message into a lock-free queue; a single
+ * disk thread writes batches, fsyncs at most every SYNC_INTERVAL_MILLIS and
+ * deletes segments past the retention limits. Reads run on the same thread,
+ * so they see every message appended before them. Each peer also has a
+ * SearchIndex over its messages, kept up to date as they are appended.
+ */
+public class HistoryStore {
+    private static final String TAG = "HistoryStore";
+
+    public static final long SYNC_INTERVAL_MILLIS = 200;
+    public static final long DEFAULT_SEGMENT_BYTES = 256 * 1024;
+    public static final int DEFAULT_MAX_SEGMENTS = 64;
+    public static final long DEFAULT_MAX_AGE_MILLIS = TimeUnit.DAYS.toMillis(90);
+    private static final int SCRATCH_SIZE = 16 * 1024;
+
+    private final File directory;
+    private final long segmentBytes;
+    private final int maxSegments;
+    private final long maxAgeMillis;
+    private final Map<String, HistoryPartition> partitions = new ConcurrentHashMap<>();
+    private final ScheduledThreadPoolExecutor diskExecutor;
+    private final ByteBuffer scratch = ByteBuffer.allocate(SCRATCH_SIZE);
+    private final List<HistoryPartition.Append> written = new ArrayList<>();
+    private boolean syncScheduled;
+
+    public HistoryStore(File directory) {
+        this(directory, DEFAULT_SEGMENT_BYTES, DEFAULT_MAX_SEGMENTS, DEFAULT_MAX_AGE_MILLIS);
+    }
+
+    public HistoryStore(File directory, long segmentBytes, int maxSegments, long maxAgeMillis) {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.maxSegments = maxSegments;
+        this.maxAgeMillis = maxAgeMillis;
+        diskExecutor = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "bt-history");
+            thread.setDaemon(true);
+            return thread;
+        });
+        diskExecutor.setKeepAliveTime(30, TimeUnit.SECONDS);
+        diskExecutor.allowCoreThreadTimeOut(true);
+        // A pending sync would otherwise run after close() on the closed files
+        diskExecutor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+    }
+
+    /**
+     * Adds a message to the peer's history. Never blocks; the future completes
+     * once the message is in the file, which is fsynced shortly after.
+     */
+    public CompletableFuture<Void> append(String address, Message message) {
+        HistoryPartition partition = partition(address);
+        HistoryPartition.Append append =
+                new HistoryPartition.Append(HistorySegment.encode(message), message.getTimestamp(), message.getText());
+        partition.appends.offer(append);
+        if (partition.appendScheduled.compareAndSet(false, true)) {
+            diskExecutor.execute(() -> writeAppends(partition));
+        }
+        return append.stored;
+    }
+
+    // The newest count messages of the peer, oldest first
+    public CompletableFuture<HistoryPage> readLast(String address, int count) {
+        HistoryPartition partition = partition(address);
+        return read(partition, () -> partition.read(Math.max(0, partition.endIndex() - count), count));
+    }
+
+    // Up to count messages starting at message number from, oldest first
+    public CompletableFuture<HistoryPage> readPage(String address, long from, int count) {
+        HistoryPartition partition = partition(address);
+        return read(partition, () -> partition.read(from, count));
+    }
+
+    // The count messages just before message number end, e.g. the page above one on screen
+    public CompletableFuture<HistoryPage> readBefore(String address, long end, int count) {
+        HistoryPartition partition = partition(address);
+        return read(partition, () -> {
+            long from = Math.max(partition.firstIndex(), end - count);
+            return partition.read(from, (int) Math.max(0, end - from));
+        });
+    }
+
+    /**
+     * Numbers of the peer's messages that have a word starting with each word
+     * of the query, newest first. Runs on the disk thread; the first search of
+     * a peer loads its index.
+     */
+    public CompletableFuture<long[]> search(String address, String query, int limit) {
+        HistoryPartition partition = partition(address);
+        CompletableFuture<long[]> hits = new CompletableFuture<>();
+        diskExecutor.execute(() -> {
+            try {
+                hits.complete(partition.search(query, limit));
+            } catch (IOException e) {
+                Log.e(TAG, "Could not search history of " + address, e);
+                hits.completeExceptionally(e);
+            }
+        });
+        return hits;
+    }
+
+    // The peer's history as a HistorySource, e.g. for a HistoryWindow
+    public HistorySource source(String address) {
+        return new HistorySource() {
+            @Override
+            public CompletableFuture<HistoryPage> readLast(int count) {
+                return HistoryStore.this.readLast(address, count);
+            }
+
+            @Override
+            public CompletableFuture<HistoryPage> readPage(long from, int count) {
+                return HistoryStore.this.readPage(address, from, count);
+            }
+
+            @Override
+            public CompletableFuture<Void> append(Message message) {
+                return HistoryStore.this.append(address, message);
+            }
+        };
+    }
+
+    public CompletableFuture<Void> clear(String address) {
+        HistoryPartition partition = partition(address);
+        CompletableFuture<Void> cleared = new CompletableFuture<>();
+        diskExecutor.execute(() -> {
+            try {
+                partition.clear();
+                cleared.complete(null);
+            } catch (IOException e) {
+                Log.e(TAG, "Could not clear history of " + address, e);
+                cleared.completeExceptionally(e);
+            }
+        });
+        return cleared;
+    }
+
+    // Forces everything written so far to disk; the future completes on the disk thread
+    public CompletableFuture<Void> sync() {
+        CompletableFuture<Void> synced = new CompletableFuture<>();
+        diskExecutor.execute(() -> {
+            syncAll();
+            synced.complete(null);
+        });
+        return synced;
+    }
+
+    // The final sync happens here, a sync still scheduled is dropped
+    public void close() {
+        diskExecutor.execute(() -> {
+            syncAll();
+            for (HistoryPartition partition : partitions.values()) {
+                partition.close();
+            }
+        });
+        diskExecutor.shutdown();
+    }
+
+    private HistoryPartition partition(String address) {
+        return partitions.computeIfAbsent(HistoryPartition.fileName(address),
+                name -> new HistoryPartition(directory, address));
+    }
+
+    private interface Read {
+        HistoryPage run() throws IOException;
+    }
+
+    private CompletableFuture<HistoryPage> read(HistoryPartition partition, Read read) {
+        CompletableFuture<HistoryPage> page = new CompletableFuture<>();
+        diskExecutor.execute(() -> {
+            try {
+                partition.open();
+                page.complete(read.run());
+            } catch (IOException e) {
+                Log.e(TAG, "Could not read history of " + partition.address, e);
+                page.completeExceptionally(e);
+            }
+        });
+        return page;
+    }
+
+    private void writeAppends(HistoryPartition partition) {
+        partition.appendScheduled.set(false);
+        IOException failure = null;
+        try {
+            partition.writeAppends(scratch, segmentBytes, written);
+            partition.expire(maxSegments, System.currentTimeMillis() - maxAgeMillis);
+        } catch (IOException e) {
+            Log.e(TAG, "Could not append to history of " + partition.address, e);
+            failure = e;
+            scratch.clear();
+        }
+        for (int i = 0; i < written.size(); i++) {
+            if (failure == null) {
+                written.get(i).stored.complete(null);
+            } else {
+                written.get(i).stored.completeExceptionally(failure);
+            }
+        }
+        written.clear();
+        if (failure != null) {
+            // Whatever did not make it into the file is lost
+            HistoryPartition.Append append;
+            while ((append = partition.appends.poll()) != null) {
+                append.stored.completeExceptionally(failure);
+            }
+        }
+        scheduleSync();
+    }
+
+    private void scheduleSync() {
+        // After close() the close task syncs what is left
+        if (!syncScheduled && !diskExecutor.isShutdown()) {
+            syncScheduled = true;
+            diskExecutor.schedule(this::syncAll, SYNC_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void syncAll() {
+        syncScheduled = false;
+        for (HistoryPartition partition : partitions.values()) {
+            try {
+                partition.sync();
+            } catch (IOException e) {
+                Log.e(TAG, "Could not sync history of " + partition.address, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,339 @@
+package com.cj.bittalk.history;
+
+import android.util.Log;
+
+import com.cj.bittalk.model.Message;
+import com.cj.bittalk.model.MessageColumns;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+/**
+ * Positions over a peer's whole history for a list that scrolls through all
+ * of it, with only fixed-size pages around the last position asked for held
+ * in memory. Pages are read from the HistorySource as the list gets near
+ * them and dropped once it scrolls away, keeping at most maxPages; rows
+ * not loaded yet are null. Until a source is bound messages are kept in
+ * memory only, bind() then stores them after the peer's history.
+ *
+ * Confined to one thread, normally the main thread; the source's results are
+ * handed back through callbackExecutor.
+ */
+public class HistoryWindow {
+    private static final String TAG = "HistoryWindow";
+
+    public interface Listener {
+        void onInserted(int position, int count);
+
+        void onChanged(int position, int count);
+
+        void onRemoved(int position, int count);
+    }
+
+    // Rows are kept in columns; Message objects only exist for rows shown or added live
+    private static final class Page {
+        final MessageColumns rows;
+        Message[] views;
+        // Read from the source, slots still empty were expired
+        boolean loaded;
+        boolean loading;
+
+        Page(int size, boolean loaded) {
+            rows = new MessageColumns(size);
+            this.loaded = loaded;
+        }
+
+        Message get(int slot, int size) {
+            if (views != null && views[slot] != null) {
+                return views[slot];
+            }
+            if (!rows.has(slot)) {
+                return null;
+            }
+            if (views == null) {
+                views = new Message[size];
+            }
+            // Kept, so the row stays the same object while the page is in memory
+            views[slot] = rows.view(slot);
+            return views[slot];
+        }
+
+        void put(int slot, Message message, int size) {
+            rows.set(slot, message);
+            if (views == null) {
+                views = new Message[size];
+            }
+            views[slot] = message;
+        }
+
+        void fill(int slot, HistoryPage result, int i, int size) {
+            if (result.rows != null) {
+                rows.copy(result.rows, i, slot);
+            } else {
+                put(slot, result.messages.get(i), size);
+            }
+        }
+    }
+
+    private final int pageSize;
+    private final int maxPages;
+    private final Executor callbackExecutor;
+    private final Listener listener;
+    private final Map<Long, Page> pages = new HashMap<>();
+    private HistorySource source;
+    // Drops results meant for an earlier bind
+    private int generation;
+    private long firstIndex;
+    private long endIndex;
+    private long focusPage;
+
+    public HistoryWindow(int pageSize, int maxPages, Executor callbackExecutor, Listener listener) {
+        if (maxPages < 4) {
+            throw new IllegalArgumentException("maxPages must cover a page either side of the focus and the newest");
+        }
+        this.pageSize = pageSize;
+        this.maxPages = maxPages;
+        this.callbackExecutor = callbackExecutor;
+        this.listener = listener;
+    }
+
+    public int size() {
+        return (int) (endIndex - firstIndex);
+    }
+
+    public boolean isBound() {
+        return source != null;
+    }
+
+    /**
+     * A stable id for the row: the message's number in the peer's history, the
+     * same whether its page is in memory or not. Rows added before bind() are
+     * numbered from -1 down until they are stored.
+     */
+    public long getItemId(int position) {
+        return source != null ? firstIndex + position : -1 - position;
+    }
+
+    // Row of the message with this number in the history, -1 if it is not in the list
+    public int positionOf(long index) {
+        if (source == null || index < firstIndex || index >= endIndex) {
+            return -1;
+        }
+        return (int) (index - firstIndex);
+    }
+
+    // Pages held in memory, at most maxPages once bound
+    public int getLoadedPageCount() {
+        return pages.size();
+    }
+
+    /**
+     * The message at position, or null while its page is being read. Moves
+     * the window there, so call it for the rows actually being shown.
+     */
+    public Message get(int position) {
+        long index = firstIndex + position;
+        long pageNumber = index / pageSize;
+        if (pageNumber != focusPage) {
+            focusPage = pageNumber;
+            evict();
+        }
+        load(pageNumber);
+        // Read ahead either way, scrolling up should find the next page on its way
+        load(pageNumber - 1);
+        load(pageNumber + 1);
+        Page page = pages.get(pageNumber);
+        return page != null ? page.get((int) (index % pageSize), pageSize) : null;
+    }
+
+    // Position of a message still in memory, or -1
+    public int indexOf(Message message) {
+        for (Map.Entry<Long, Page> entry : pages.entrySet()) {
+            Message[] messages = entry.getValue().views;
+            if (messages == null) {
+                continue;
+            }
+            for (int i = messages.length - 1; i >= 0; i--) {
+                if (messages[i] == message) {
+                    return (int) (entry.getKey() * pageSize + i - firstIndex);
+                }
+            }
+        }
+        return -1;
+    }
+
+    public void append(Message message) {
+        put(message);
+        if (source != null) {
+            source.append(message);
+            evict();
+        }
+        listener.onInserted(size() - 1, 1);
+    }
+
+    public void appendAll(List<Message> messages) {
+        for (int i = 0; i < messages.size(); i++) {
+            put(messages.get(i));
+            if (source != null) {
+                source.append(messages.get(i));
+            }
+        }
+        if (source != null) {
+            evict();
+        }
+        listener.onInserted(size() - messages.size(), messages.size());
+    }
+
+    /**
+     * Switches to the peer's history: its last page is read, then messages
+     * added in the meantime are stored after it. The future completes on the
+     * callback thread once the rows are in place.
+     */
+    public CompletableFuture<Void> bind(HistorySource source) {
+        int bindGeneration = ++generation;
+        CompletableFuture<Void> bound = new CompletableFuture<>();
+        source.readLast(pageSize).whenComplete((page, e) -> callbackExecutor.execute(() -> {
+            if (bindGeneration != generation) {
+                bound.cancel(false);
+                return;
+            }
+            if (e != null) {
+                Log.e(TAG, "Could not read history, keeping messages in memory", e);
+                bound.completeExceptionally(e);
+                return;
+            }
+            onBound(source, page);
+            bound.complete(null);
+        }));
+        return bound;
+    }
+
+    // Back to an empty, unbound window; the history stays in the source
+    public void unbind() {
+        int removed = size();
+        generation++;
+        source = null;
+        pages.clear();
+        firstIndex = 0;
+        endIndex = 0;
+        focusPage = 0;
+        if (removed > 0) {
+            listener.onRemoved(0, removed);
+        }
+    }
+
+    private void onBound(HistorySource source, HistoryPage page) {
+        List<Message> unsaved = new ArrayList<>(size());
+        for (long index = firstIndex; index < endIndex; index++) {
+            Page held = pages.get(index / pageSize);
+            unsaved.add(held.get((int) (index % pageSize), pageSize));
+        }
+        pages.clear();
+        this.source = source;
+        firstIndex = page.firstIndex;
+        endIndex = page.start;
+        for (int i = 0; i < page.messages.size(); i++) {
+            long index = endIndex++;
+            pageFor(index).fill((int) (index % pageSize), page, i, pageSize);
+        }
+        for (int i = 0; i < unsaved.size(); i++) {
+            Message message = unsaved.get(i);
+            put(message);
+            source.append(message);
+        }
+        focusPage = Math.max(0, endIndex - 1) / pageSize;
+        // The history goes above the rows on screen, which are renumbered and so rebound
+        int inserted = size() - unsaved.size();
+        if (inserted > 0) {
+            listener.onInserted(0, inserted);
+        }
+        if (!unsaved.isEmpty()) {
+            listener.onChanged(inserted, unsaved.size());
+        }
+    }
+
+    private void put(Message message) {
+        long index = endIndex++;
+        pageFor(index).put((int) (index % pageSize), message, pageSize);
+    }
+
+    private Page pageFor(long index) {
+        long pageNumber = index / pageSize;
+        Page page = pages.get(pageNumber);
+        if (page == null) {
+            // A page that starts here has nothing to read, one started earlier may
+            boolean complete = index % pageSize == 0 || index == firstIndex || source == null;
+            page = new Page(pageSize, complete);
+            pages.put(pageNumber, page);
+        }
+        return page;
+    }
+
+    private void load(long pageNumber) {
+        long start = pageNumber * pageSize;
+        if (source == null || pageNumber < 0 || start >= endIndex || start + pageSize <= firstIndex) {
+            return;
+        }
+        Page page = pages.get(pageNumber);
+        if (page == null) {
+            page = new Page(pageSize, false);
+            pages.put(pageNumber, page);
+        } else if (page.loaded || page.loading) {
+            return;
+        }
+        page.loading = true;
+        int loadGeneration = generation;
+        source.readPage(start, pageSize).whenComplete((result, e) -> callbackExecutor.execute(() ->
+                onLoaded(loadGeneration, pageNumber, result, e)));
+    }
+
+    private void onLoaded(int loadGeneration, long pageNumber, HistoryPage result, Throwable e) {
+        Page page = pages.get(pageNumber);
+        if (loadGeneration != generation || page == null) {
+            // Unbound or scrolled away meanwhile
+            return;
+        }
+        page.loading = false;
+        if (e != null) {
+            // Tried again when the rows are next shown
+            Log.w(TAG, "Could not read history page " + pageNumber, e);
+            return;
+        }
+        page.loaded = true;
+        long start = pageNumber * pageSize;
+        for (int i = 0; i < result.messages.size(); i++) {
+            int slot = (int) (result.start - start) + i;
+            // Rows already in memory are newer copies, e.g. with a delivery status
+            if (slot < pageSize && !page.rows.has(slot)) {
+                page.fill(slot, result, i, pageSize);
+            }
+        }
+        long from = Math.max(start, firstIndex);
+        long to = Math.min(start + pageSize, endIndex);
+        if (to > from) {
+            listener.onChanged((int) (from - firstIndex), (int) (to - from));
+        }
+    }
+
+    private void evict() {
+        if (source == null) {
+            return;
+        }
+        // The focus page and reach pages either side, plus the newest
+        long reach = (maxPages - 2) / 2;
+        long newest = (endIndex - 1) / pageSize;
+        Iterator<Map.Entry<Long, Page>> entries = pages.entrySet().iterator();
+        while (entries.hasNext()) {
+            long pageNumber = entries.next().getKey();
+            // The newest page stays too, new messages land there
+            if (Math.abs(pageNumber - focusPage) > reach && pageNumber != newest) {
+                entries.remove();
+            }
+        }
+    }
+}
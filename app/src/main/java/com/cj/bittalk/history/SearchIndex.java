@@ -0,0 +1,406 @@
+package com.cj.bittalk.history;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.text.Normalizer;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Inverted index over one peer's history: normalized token to the numbers of
+ * the messages containing it, as delta-encoded varints. Every message adds a
+ * [length:4][index:8][tokens:UTF-8, space separated] record to a journal; the
+ * index itself is only built, from the last snapshot plus the journal after
+ * it, when it is first searched. Once the journal grows past compactBytes the
+ * index is written out as a new snapshot, without messages that expired.
+ *
+ * Confined to the HistoryStore disk thread.
+ */
+final class SearchIndex {
+    private static final String TAG = "SearchIndex";
+    static final int MAX_TOKEN_LENGTH = 32;
+    static final long COMPACT_THRESHOLD_BYTES = 256 * 1024;
+    private static final int RECORD_HEADER_SIZE = 4;
+
+    // Message numbers in increasing order, each stored as the varint gap to the previous one
+    static final class Postings {
+        private byte[] data = new byte[8];
+        private int size;
+        private int count;
+        private long last = -1;
+
+        void add(long index) {
+            if (index <= last) {
+                return;
+            }
+            long delta = index - last;
+            if (size + 10 > data.length) {
+                data = Arrays.copyOf(data, data.length * 2);
+            }
+            while ((delta & ~0x7FL) != 0) {
+                data[size++] = (byte) ((delta & 0x7F) | 0x80);
+                delta >>>= 7;
+            }
+            data[size++] = (byte) delta;
+            last = index;
+            count++;
+        }
+
+        int count() {
+            return count;
+        }
+
+        // Appends the decoded numbers to out from position at, returns the new end
+        int decode(long[] out, int at) {
+            long value = -1;
+            int position = 0;
+            while (position < size) {
+                long delta = 0;
+                int shift = 0;
+                byte b;
+                do {
+                    b = data[position++];
+                    delta |= (long) (b & 0x7F) << shift;
+                    shift += 7;
+                } while ((b & 0x80) != 0);
+                value += delta;
+                out[at++] = value;
+            }
+            return at;
+        }
+    }
+
+    private final File journalFile;
+    private final File snapshotFile;
+    private final long compactBytes;
+    private final TreeMap<String, Postings> postings = new TreeMap<>();
+    private final Set<String> tokens = new LinkedHashSet<>();
+    private final StringBuilder token = new StringBuilder();
+    private FileChannel journal;
+    private long journalSize;
+    private ByteBuffer scratch = ByteBuffer.allocate(4096);
+    private boolean loaded;
+    private boolean dirty;
+
+    SearchIndex(File directory, long compactBytes) {
+        journalFile = new File(directory, "search.journal");
+        snapshotFile = new File(directory, "search.snapshot");
+        this.compactBytes = compactBytes;
+    }
+
+    /**
+     * Lower-cased letter and digit runs with accents stripped, so "Café" and
+     * "cafe" find each other. Long tokens are cut at MAX_TOKEN_LENGTH.
+     */
+    void tokenize(String text, Set<String> out) {
+        String normalized = Normalizer.normalize(text, Normalizer.Form.NFD);
+        token.setLength(0);
+        for (int i = 0; i < normalized.length(); ) {
+            int c = normalized.codePointAt(i);
+            i += Character.charCount(c);
+            if (Character.getType(c) == Character.NON_SPACING_MARK) {
+                continue;
+            }
+            if (Character.isLetterOrDigit(c)) {
+                if (token.length() < MAX_TOKEN_LENGTH) {
+                    token.appendCodePoint(Character.toLowerCase(c));
+                }
+            } else if (token.length() > 0) {
+                out.add(token.toString());
+                token.setLength(0);
+            }
+        }
+        if (token.length() > 0) {
+            out.add(token.toString());
+        }
+    }
+
+    // Queues the message's tokens for the journal; flush() writes them
+    void add(long index, String text) throws IOException {
+        tokens.clear();
+        tokenize(text, tokens);
+        if (tokens.isEmpty()) {
+            return;
+        }
+        token.setLength(0);
+        for (String t : tokens) {
+            if (token.length() > 0) {
+                token.append(' ');
+            }
+            token.append(t);
+        }
+        byte[] joined = token.toString().getBytes(StandardCharsets.UTF_8);
+        int recordSize = RECORD_HEADER_SIZE + 8 + joined.length;
+        if (scratch.remaining() < recordSize) {
+            flush();
+            if (scratch.capacity() < recordSize) {
+                scratch = ByteBuffer.allocate(recordSize);
+            }
+        }
+        scratch.putInt(8 + joined.length).putLong(index).put(joined);
+        if (loaded) {
+            for (String t : tokens) {
+                posting(t).add(index);
+            }
+        }
+    }
+
+    void flush() throws IOException {
+        if (scratch.position() == 0) {
+            return;
+        }
+        openJournal();
+        scratch.flip();
+        while (scratch.hasRemaining()) {
+            journalSize += journal.write(scratch, journalSize);
+        }
+        scratch.clear();
+        dirty = true;
+    }
+
+    /**
+     * Numbers of the messages in [firstIndex, endIndex) that have, for every
+     * word of the query, a token starting with it; newest first, at most limit.
+     */
+    long[] search(String query, long firstIndex, long endIndex, int limit) throws IOException {
+        load();
+        Set<String> terms = new LinkedHashSet<>();
+        tokenize(query, terms);
+        long[] matches = null;
+        for (String term : terms) {
+            long[] found = matching(term);
+            matches = matches == null ? found : intersect(matches, found);
+            if (matches.length == 0) {
+                break;
+            }
+        }
+        if (matches == null) {
+            return new long[0];
+        }
+        long[] hits = new long[Math.min(limit, matches.length)];
+        int count = 0;
+        for (int i = matches.length - 1; i >= 0 && count < hits.length; i--) {
+            if (matches[i] >= firstIndex && matches[i] < endIndex) {
+                hits[count++] = matches[i];
+            }
+        }
+        return Arrays.copyOf(hits, count);
+    }
+
+    // Writes a snapshot once the journal is past compactBytes, dropping messages before firstIndex
+    void compact(long firstIndex) throws IOException {
+        if (journalSize + scratch.position() < compactBytes) {
+            return;
+        }
+        flush();
+        load();
+        long[] ids = new long[16];
+        Iterator<Map.Entry<String, Postings>> entries = postings.entrySet().iterator();
+        while (entries.hasNext()) {
+            Map.Entry<String, Postings> entry = entries.next();
+            Postings old = entry.getValue();
+            if (old.last < firstIndex) {
+                entries.remove();
+                continue;
+            }
+            if (ids.length < old.count()) {
+                ids = new long[Math.max(old.count(), ids.length * 2)];
+            }
+            int end = old.decode(ids, 0);
+            if (ids[0] < firstIndex) {
+                Postings pruned = new Postings();
+                for (int i = 0; i < end; i++) {
+                    if (ids[i] >= firstIndex) {
+                        pruned.add(ids[i]);
+                    }
+                }
+                entry.setValue(pruned);
+            }
+        }
+
+        File tmp = new File(snapshotFile.getPath() + ".tmp");
+        try (FileOutputStream file = new FileOutputStream(tmp);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file))) {
+            out.writeInt(postings.size());
+            for (Map.Entry<String, Postings> entry : postings.entrySet()) {
+                Postings pruned = entry.getValue();
+                out.writeUTF(entry.getKey());
+                out.writeInt(pruned.count);
+                out.writeLong(pruned.last);
+                out.writeInt(pruned.size);
+                out.write(pruned.data, 0, pruned.size);
+            }
+            out.flush();
+            file.getFD().sync();
+        }
+        if (!tmp.renameTo(snapshotFile)) {
+            throw new IOException("Could not replace " + snapshotFile);
+        }
+        // A crash before this replays journal records the snapshot has, adding them again is a no-op
+        journal.truncate(0);
+        journal.force(false);
+        journalSize = 0;
+        dirty = false;
+    }
+
+    void sync() throws IOException {
+        if (dirty) {
+            journal.force(false);
+            dirty = false;
+        }
+    }
+
+    // Forgets everything, e.g. when the history is cleared
+    void clear() throws IOException {
+        scratch.clear();
+        postings.clear();
+        loaded = true;
+        openJournal();
+        journal.truncate(0);
+        journalSize = 0;
+        if (snapshotFile.exists() && !snapshotFile.delete()) {
+            throw new IOException("Could not delete " + snapshotFile);
+        }
+    }
+
+    void close() {
+        try {
+            flush();
+            sync();
+            if (journal != null) {
+                journal.close();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Could not close " + journalFile, e);
+        }
+        journal = null;
+    }
+
+    private Postings posting(String token) {
+        Postings posting = postings.get(token);
+        if (posting == null) {
+            posting = new Postings();
+            postings.put(token, posting);
+        }
+        return posting;
+    }
+
+    // Numbers of messages with a token starting with prefix, ascending and without repeats
+    private long[] matching(String prefix) {
+        Map<String, Postings> range = postings.subMap(prefix, true, prefix + Character.MAX_VALUE, true);
+        int total = 0;
+        for (Postings posting : range.values()) {
+            total += posting.count();
+        }
+        long[] ids = new long[total];
+        int end = 0;
+        for (Postings posting : range.values()) {
+            end = posting.decode(ids, end);
+        }
+        if (range.size() > 1) {
+            Arrays.sort(ids);
+            int unique = 0;
+            for (int i = 0; i < ids.length; i++) {
+                if (unique == 0 || ids[i] != ids[unique - 1]) {
+                    ids[unique++] = ids[i];
+                }
+            }
+            ids = Arrays.copyOf(ids, unique);
+        }
+        return ids;
+    }
+
+    private static long[] intersect(long[] a, long[] b) {
+        long[] both = new long[Math.min(a.length, b.length)];
+        int i = 0;
+        int j = 0;
+        int count = 0;
+        while (i < a.length && j < b.length) {
+            if (a[i] < b[j]) {
+                i++;
+            } else if (a[i] > b[j]) {
+                j++;
+            } else {
+                both[count++] = a[i];
+                i++;
+                j++;
+            }
+        }
+        return Arrays.copyOf(both, count);
+    }
+
+    private void openJournal() throws IOException {
+        if (journal == null) {
+            journal = new RandomAccessFile(journalFile, "rw").getChannel();
+            journalSize = journal.size();
+        }
+    }
+
+    // Reads the snapshot, then replays the journal after it and cuts off a torn record
+    private void load() throws IOException {
+        if (loaded) {
+            return;
+        }
+        flush();
+        if (snapshotFile.exists()) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(snapshotFile)))) {
+                int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    String key = in.readUTF();
+                    Postings posting = new Postings();
+                    posting.count = in.readInt();
+                    posting.last = in.readLong();
+                    posting.size = in.readInt();
+                    posting.data = new byte[Math.max(8, posting.size)];
+                    in.readFully(posting.data, 0, posting.size);
+                    postings.put(key, posting);
+                }
+            }
+        }
+        openJournal();
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+        long offset = 0;
+        while (offset + RECORD_HEADER_SIZE <= journalSize) {
+            header.clear();
+            while (header.hasRemaining()) {
+                journal.read(header, offset + header.position());
+            }
+            int length = header.getInt(0);
+            if (length < 8 || offset + RECORD_HEADER_SIZE + length > journalSize) {
+                break;
+            }
+            ByteBuffer record = ByteBuffer.allocate(length);
+            while (record.hasRemaining()) {
+                journal.read(record, offset + RECORD_HEADER_SIZE + record.position());
+            }
+            long index = record.getLong(0);
+            String joined = new String(record.array(), 8, length - 8, StandardCharsets.UTF_8);
+            for (String t : joined.split(" ")) {
+                posting(t).add(index);
+            }
+            offset += RECORD_HEADER_SIZE + length;
+        }
+        if (offset < journalSize) {
+            Log.w(TAG, "Truncating " + journalFile + " at " + offset);
+            journal.truncate(offset);
+            journalSize = offset;
+        }
+        loaded = true;
+    }
+}
@@ -0,0 +1,144 @@
+package com.cj.bittalk.mesh;
+
+import com.cj.bittalk.protocol.RelayFrames;
+
+import java.net.ProtocolException;
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Floods chat messages through the mesh. Every message carries a random id,
+ * the id of the node it started at and a hop budget. A node delivers and
+ * passes on each message the first time it sees it, to every link but the
+ * one it came from, and drops it once the budget is used up. Seen messages
+ * are remembered in a fixed-size rotating Bloom filter. A miss there is
+ * certain, so a new message only has its id recorded in an exact ring of the
+ * recent ids; a hit, which copies arriving around loops mostly are, is only
+ * taken as a duplicate once that ring confirms it. A false positive costs a
+ * lookup but never a message. Memory never grows.
+ *
+ * Messages are delivered as coming from the node that wrote them: its link's
+ * address if it is a direct peer, nodeAddress(origin) otherwise.
+ */
+public class MeshRelay {
+    public static final int DEFAULT_TTL = 8;
+
+    private static final String NODE_ADDRESS_PREFIX = "mesh:";
+
+    // 64 Kibit per generation, 7 hashes: about 0.07% false positives at 4096 messages per
+    // generation, 0.14% for a lookup, which checks both
+    private static final int SEEN_BITS = 1 << 16;
+    private static final int SEEN_HASHES = 7;
+    private static final int SEEN_CAPACITY = 4096;
+    // Everything the two generations can still answer for
+    private static final int RECENT_CAPACITY = 2 * SEEN_CAPACITY;
+
+    // How MeshRelay reaches the connections, implemented by BluetoothService
+    public interface Links {
+        // origin is the node id of the writer, fromAddress the link it came in on
+        void deliver(long origin, String fromAddress, byte[] message, int offset, int length);
+
+        // Sends the frame to every relaying link except one, returns how many it went to
+        int forward(byte[] frame, String exceptAddress);
+    }
+
+    private final Links links;
+    private final long nodeId;
+    private final SecureRandom random = new SecureRandom();
+    // Both guarded by seen
+    private final RotatingBloomFilter seen;
+    private final RecentKeys recent;
+    private volatile int ttl = DEFAULT_TTL;
+
+    private final AtomicLong originated = new AtomicLong();
+    private final AtomicLong delivered = new AtomicLong();
+    private final AtomicLong forwarded = new AtomicLong();
+    private final AtomicLong droppedDuplicate = new AtomicLong();
+    private final AtomicLong droppedTtl = new AtomicLong();
+
+    public MeshRelay(Links links) {
+        this(links, new RotatingBloomFilter(SEEN_BITS, SEEN_HASHES, SEEN_CAPACITY), new RecentKeys(RECENT_CAPACITY));
+    }
+
+    MeshRelay(Links links, RotatingBloomFilter seen, RecentKeys recent) {
+        this.links = links;
+        this.seen = seen;
+        this.recent = recent;
+        this.nodeId = random.nextLong();
+    }
+
+    public long getNodeId() {
+        return nodeId;
+    }
+
+    // Address that messages from a node without a link of its own are delivered under
+    public static String nodeAddress(long node) {
+        return NODE_ADDRESS_PREFIX + Long.toHexString(node);
+    }
+
+    public static boolean isNodeAddress(String address) {
+        return address.startsWith(NODE_ADDRESS_PREFIX);
+    }
+
+    // Hop budget of messages started here, from 1 (direct peers only) to 255
+    public void setTtl(int ttl) {
+        if (ttl < 1 || ttl > 255) {
+            throw new IllegalArgumentException("ttl out of range: " + ttl);
+        }
+        this.ttl = ttl;
+    }
+
+    /** Wraps a message started on this node; the same frame can go to every link. */
+    public byte[] originate(byte[] message) {
+        long messageId = random.nextLong();
+        synchronized (seen) {
+            seen.add(messageId, nodeId);
+        }
+        originated.incrementAndGet();
+        return RelayFrames.relay(messageId, nodeId, ttl, message, 0, message.length);
+    }
+
+    // Called on the reader thread of the link the frame came in on
+    public void onRelay(String fromAddress, byte[] payload, int offset, int length) throws ProtocolException {
+        long messageId = RelayFrames.messageId(payload, offset, length);
+        long origin = RelayFrames.origin(payload, offset, length);
+        int remaining = RelayFrames.ttl(payload, offset, length);
+
+        boolean first;
+        synchronized (seen) {
+            if (origin == nodeId) {
+                first = false;
+            } else if (seen.add(messageId, origin)) {
+                // Never seen, so the exact ring only records it
+                recent.add(messageId, origin);
+                first = true;
+            } else {
+                // Possibly a false positive, only the exact set can tell
+                first = !recent.contains(messageId, origin);
+                if (first) {
+                    recent.add(messageId, origin);
+                }
+            }
+        }
+        if (!first) {
+            droppedDuplicate.incrementAndGet();
+            return;
+        }
+
+        // Passed on before local delivery, so the next hop is not held up by the UI
+        if (remaining <= 1) {
+            droppedTtl.incrementAndGet();
+        } else {
+            byte[] frame = RelayFrames.forward(payload, offset, length, remaining - 1);
+            forwarded.addAndGet(links.forward(frame, fromAddress));
+        }
+        delivered.incrementAndGet();
+        links.deliver(origin, fromAddress, payload, offset + RelayFrames.HEADER_SIZE,
+                length - RelayFrames.HEADER_SIZE);
+    }
+
+    public RelayStats getStats() {
+        return new RelayStats(originated.get(), delivered.get(), forwarded.get(),
+                droppedDuplicate.get(), droppedTtl.get());
+    }
+}
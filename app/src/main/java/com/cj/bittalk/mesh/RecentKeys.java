@@ -0,0 +1,93 @@
+package com.cj.bittalk.mesh;
+
+/**
+ * Exact record of the last capacity 128-bit keys added. Keys live in a ring,
+ * the oldest is overwritten once it is full, and an open-addressed table of
+ * ring slots answers lookups. add() does not look first: a key added twice
+ * takes two slots and is remembered until the later one is overwritten.
+ * Nothing is allocated after construction.
+ *
+ * Not thread-safe.
+ */
+final class RecentKeys {
+    private final long[] highs;
+    private final long[] lows;
+    // Ring slot + 1 of the key hashed here, 0 if free; at most half full
+    private final int[] table;
+    private final int mask;
+    private int next;
+    private int size;
+
+    RecentKeys(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        highs = new long[capacity];
+        lows = new long[capacity];
+        table = new int[Integer.highestOneBit(capacity) << 2];
+        mask = table.length - 1;
+    }
+
+    boolean contains(long high, long low) {
+        return find(high, low) >= 0;
+    }
+
+    // Adds the key, forgetting the oldest one if full
+    void add(long high, long low) {
+        if (size == highs.length) {
+            remove(next);
+        } else {
+            size++;
+        }
+        highs[next] = high;
+        lows[next] = low;
+        int index = home(high, low);
+        while (table[index] != 0) {
+            index = (index + 1) & mask;
+        }
+        table[index] = next + 1;
+        next = next + 1 == highs.length ? 0 : next + 1;
+    }
+
+    // Table index of a copy of the key, or -1
+    private int find(long high, long low) {
+        int index = home(high, low);
+        int slot;
+        while ((slot = table[index]) != 0) {
+            if (highs[slot - 1] == high && lows[slot - 1] == low) {
+                return index;
+            }
+            index = (index + 1) & mask;
+        }
+        return -1;
+    }
+
+    // Frees the table entry of a ring slot, moving later entries of its probe run back into the gap
+    private void remove(int slot) {
+        // By slot rather than key, another copy of the key may come first
+        int gap = home(highs[slot], lows[slot]);
+        while (table[gap] != slot + 1) {
+            gap = (gap + 1) & mask;
+        }
+        int index = gap;
+        while (true) {
+            index = (index + 1) & mask;
+            int moved = table[index];
+            if (moved == 0) {
+                break;
+            }
+            int home = home(highs[moved - 1], lows[moved - 1]);
+            // The entry may fill the gap unless its home lies cyclically in (gap, index]
+            boolean stays = gap <= index ? gap < home && home <= index : gap < home || home <= index;
+            if (!stays) {
+                table[gap] = moved;
+                gap = index;
+            }
+        }
+        table[gap] = 0;
+    }
+
+    private int home(long high, long low) {
+        return (int) RotatingBloomFilter.mix(high ^ RotatingBloomFilter.mix(low)) & mask;
+    }
+}
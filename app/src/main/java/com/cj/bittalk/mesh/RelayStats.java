@@ -0,0 +1,21 @@
+package com.cj.bittalk.mesh;
+
+/**
+ * Snapshot of the relay counters of one node. Forwarded counts copies, so a
+ * frame passed on to three links counts three times.
+ */
+public class RelayStats {
+    public final long originated;
+    public final long delivered;
+    public final long forwarded;
+    public final long droppedDuplicate;
+    public final long droppedTtl;
+
+    RelayStats(long originated, long delivered, long forwarded, long droppedDuplicate, long droppedTtl) {
+        this.originated = originated;
+        this.delivered = delivered;
+        this.forwarded = forwarded;
+        this.droppedDuplicate = droppedDuplicate;
+        this.droppedTtl = droppedTtl;
+    }
+}
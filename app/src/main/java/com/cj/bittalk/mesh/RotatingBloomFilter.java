@@ -0,0 +1,77 @@
+package com.cj.bittalk.mesh;
+
+import java.util.Arrays;
+
+/**
+ * Fixed-size set of recently seen 128-bit keys that may answer "seen" for a
+ * key it never got, but never "not seen" for one it did within the last
+ * capacity to 2 * capacity insertions. Two Bloom filters take turns: keys go
+ * into the current one, lookups check both, and once the current one holds
+ * capacity keys the older one is cleared and becomes current.
+ *
+ * Not thread-safe.
+ */
+final class RotatingBloomFilter {
+    private final int hashes;
+    private final int capacity;
+    private final int mask;
+    private long[] current;
+    private long[] previous;
+    private int count;
+
+    RotatingBloomFilter(int bits, int hashes, int capacity) {
+        if (Integer.bitCount(bits) != 1 || bits < 64) {
+            throw new IllegalArgumentException("bits must be a power of two >= 64: " + bits);
+        }
+        this.hashes = hashes;
+        this.capacity = capacity;
+        this.mask = bits - 1;
+        current = new long[bits / 64];
+        previous = new long[bits / 64];
+    }
+
+    boolean mightContain(long high, long low) {
+        long h1 = mix(high ^ mix(low));
+        long h2 = mix(h1 ^ 0x9E3779B97F4A7C15L) | 1;
+        return contains(current, h1, h2) || contains(previous, h1, h2);
+    }
+
+    // Adds the key, returns false if it was (probably) there already
+    boolean add(long high, long low) {
+        long h1 = mix(high ^ mix(low));
+        long h2 = mix(h1 ^ 0x9E3779B97F4A7C15L) | 1;
+        if (contains(current, h1, h2) || contains(previous, h1, h2)) {
+            return false;
+        }
+        if (count >= capacity) {
+            long[] recycled = previous;
+            Arrays.fill(recycled, 0);
+            previous = current;
+            current = recycled;
+            count = 0;
+        }
+        for (int i = 0; i < hashes; i++) {
+            int bit = (int) ((h1 + i * h2) & mask);
+            current[bit >>> 6] |= 1L << bit;
+        }
+        count++;
+        return true;
+    }
+
+    private boolean contains(long[] filter, long h1, long h2) {
+        for (int i = 0; i < hashes; i++) {
+            int bit = (int) ((h1 + i * h2) & mask);
+            if ((filter[bit >>> 6] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // SplitMix64 finalizer
+    static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+}
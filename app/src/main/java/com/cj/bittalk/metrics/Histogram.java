@@ -0,0 +1,55 @@
+package com.cj.bittalk.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latency distribution over fixed buckets. Recording is lock-free and does not
+ * allocate, so it can sit on the reader and writer threads; the last bucket
+ * collects everything above the highest bound.
+ */
+public final class Histogram {
+    private final String name;
+    private final long[] boundsNanos;
+    private final AtomicLongArray counts;
+    private final AtomicLong sumNanos = new AtomicLong();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    // Upper bounds of the buckets in milliseconds, ascending
+    public Histogram(String name, long... boundsMillis) {
+        this.name = name;
+        boundsNanos = new long[boundsMillis.length];
+        for (int i = 0; i < boundsMillis.length; i++) {
+            if (i > 0 && boundsMillis[i] <= boundsMillis[i - 1]) {
+                throw new IllegalArgumentException("Bounds must ascend: " + boundsMillis[i]);
+            }
+            boundsNanos[i] = TimeUnit.MILLISECONDS.toNanos(boundsMillis[i]);
+        }
+        counts = new AtomicLongArray(boundsMillis.length + 1);
+    }
+
+    public void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        int bucket = 0;
+        while (bucket < boundsNanos.length && nanos > boundsNanos[bucket]) {
+            bucket++;
+        }
+        counts.incrementAndGet(bucket);
+        sumNanos.addAndGet(nanos);
+        long max;
+        while (nanos > (max = maxNanos.get()) && !maxNanos.compareAndSet(max, nanos)) {
+            // Lost the race to a concurrent record, try again
+        }
+    }
+
+    public HistogramSnapshot snapshot() {
+        long[] bucketCounts = new long[counts.length()];
+        for (int i = 0; i < bucketCounts.length; i++) {
+            bucketCounts[i] = counts.get(i);
+        }
+        return new HistogramSnapshot(name, boundsNanos, bucketCounts, sumNanos.get(), maxNanos.get());
+    }
+}
@@ -0,0 +1,67 @@
+package com.cj.bittalk.metrics;
+
+import java.util.Locale;
+
+/**
+ * Copy of a Histogram at one point in time. Percentiles are reported as the
+ * upper bound of the bucket they fall in, or the maximum for the last bucket.
+ */
+public class HistogramSnapshot {
+    public final String name;
+    public final long count;
+    public final long sumNanos;
+    public final long maxNanos;
+    private final long[] boundsNanos;
+    private final long[] counts;
+
+    HistogramSnapshot(String name, long[] boundsNanos, long[] counts, long sumNanos, long maxNanos) {
+        this.name = name;
+        this.boundsNanos = boundsNanos;
+        this.counts = counts;
+        this.sumNanos = sumNanos;
+        this.maxNanos = maxNanos;
+        long total = 0;
+        for (long bucket : counts) {
+            total += bucket;
+        }
+        this.count = total;
+    }
+
+    public int getBucketCount() {
+        return counts.length;
+    }
+
+    public long getBucket(int index) {
+        return counts[index];
+    }
+
+    public double getMeanMillis() {
+        return count == 0 ? 0 : sumNanos / (double) count / 1e6;
+    }
+
+    public double getMaxMillis() {
+        return maxNanos / 1e6;
+    }
+
+    // quantile in [0, 1], e.g. 0.99
+    public double getPercentileMillis(double quantile) {
+        if (count == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(quantile * count);
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank && seen > 0) {
+                return i < boundsNanos.length ? Math.min(boundsNanos[i], maxNanos) / 1e6 : getMaxMillis();
+            }
+        }
+        return getMaxMillis();
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "%s: n=%d mean=%.1fms p50<=%.1fms p99<=%.1fms max=%.1fms",
+                name, count, getMeanMillis(), getPercentileMillis(0.5), getPercentileMillis(0.99), getMaxMillis());
+    }
+}
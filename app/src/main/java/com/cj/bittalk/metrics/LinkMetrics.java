@@ -0,0 +1,37 @@
+package com.cj.bittalk.metrics;
+
+/**
+ * Counters and latency histograms of every link a BluetoothService runs, kept
+ * for the lifetime of the service. The hot paths only bump counters and
+ * record into preallocated buckets; snapshots are taken on demand.
+ */
+public final class LinkMetrics {
+    /** Receives a snapshot at a fixed period, on the service's callback executor. */
+    public interface Listener {
+        void onMetrics(MetricsSnapshot snapshot);
+    }
+
+    private static final long[] LATENCY_BOUNDS_MILLIS = {1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000};
+    private static final long[] CONNECT_BOUNDS_MILLIS = {50, 100, 250, 500, 1000, 2000, 5000, 10000, 30000};
+
+    // Header and payload bytes as they cross the socket, after compression and encryption
+    public final Counter bytesIn = new Counter();
+    public final Counter bytesOut = new Counter();
+    public final Counter framesIn = new Counter();
+    public final Counter framesOut = new Counter();
+    public final Counter writeErrors = new Counter();
+    public final Counter reconnects = new Counter();
+    // From handing a chat frame to the writer to the socket accepting it
+    public final Histogram sendLatency = new Histogram("send", LATENCY_BOUNDS_MILLIS);
+    // From decoding a chat message to the listener having it on the UI thread
+    public final Histogram receiveToRender = new Histogram("receive-to-render", LATENCY_BOUNDS_MILLIS);
+    // From starting a dial to the link being up
+    public final Histogram connectTime = new Histogram("connect", CONNECT_BOUNDS_MILLIS);
+
+    // queueDepth is sampled by the caller, it is a gauge over the live writers
+    public MetricsSnapshot snapshot(int queueDepth) {
+        return new MetricsSnapshot(System.currentTimeMillis(), bytesIn.get(), bytesOut.get(), framesIn.get(),
+                framesOut.get(), writeErrors.get(), reconnects.get(), queueDepth,
+                sendLatency.snapshot(), receiveToRender.snapshot(), connectTime.snapshot());
+    }
+}
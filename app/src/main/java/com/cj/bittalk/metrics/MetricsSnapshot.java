@@ -0,0 +1,42 @@
+package com.cj.bittalk.metrics;
+
+import java.util.Locale;
+
+/** Copy of LinkMetrics at one point in time; toString() is the export format. */
+public class MetricsSnapshot {
+    public final long timestampMillis;
+    public final long bytesIn;
+    public final long bytesOut;
+    public final long framesIn;
+    public final long framesOut;
+    public final long writeErrors;
+    public final long reconnects;
+    public final int queueDepth;
+    public final HistogramSnapshot sendLatency;
+    public final HistogramSnapshot receiveToRender;
+    public final HistogramSnapshot connectTime;
+
+    MetricsSnapshot(long timestampMillis, long bytesIn, long bytesOut, long framesIn, long framesOut,
+                    long writeErrors, long reconnects, int queueDepth, HistogramSnapshot sendLatency,
+                    HistogramSnapshot receiveToRender, HistogramSnapshot connectTime) {
+        this.timestampMillis = timestampMillis;
+        this.bytesIn = bytesIn;
+        this.bytesOut = bytesOut;
+        this.framesIn = framesIn;
+        this.framesOut = framesOut;
+        this.writeErrors = writeErrors;
+        this.reconnects = reconnects;
+        this.queueDepth = queueDepth;
+        this.sendLatency = sendLatency;
+        this.receiveToRender = receiveToRender;
+        this.connectTime = connectTime;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US,
+                "time=%d%nbytes in=%d out=%d%nframes in=%d out=%d%nwrite errors=%d%nreconnects=%d%nqueue depth=%d%n%s%n%s%n%s",
+                timestampMillis, bytesIn, bytesOut, framesIn, framesOut, writeErrors, reconnects, queueDepth,
+                sendLatency, receiveToRender, connectTime);
+    }
+}
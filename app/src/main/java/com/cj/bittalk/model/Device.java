@@ -5,11 +5,19 @@ import android.bluetooth.BluetoothDevice;
 
 import androidx.annotation.RequiresPermission;
 
+import java.util.Locale;
+
 public class Device {
+    /** getRssi() before the device was seen by a scan. */
+    public static final int RSSI_UNKNOWN = Short.MIN_VALUE;
+
     private String name;
     private String address;
     private boolean isPaired;
     private BluetoothDevice bluetoothDevice;
+    private int rssi = RSSI_UNKNOWN;
+    // On the DeviceRegistry clock
+    private long lastSeenMillis;
 
     @RequiresPermission(Manifest.permission.BLUETOOTH_CONNECT)
     public Device(BluetoothDevice bluetoothDevice) {
@@ -19,6 +27,13 @@ public class Device {
         this.isPaired = bluetoothDevice.getBondState() == BluetoothDevice.BOND_BONDED;
     }
 
+    public Device(String address, String name, boolean paired, BluetoothDevice bluetoothDevice) {
+        this.address = address;
+        this.name = name;
+        this.isPaired = paired;
+        this.bluetoothDevice = bluetoothDevice;
+    }
+
     // Getters and setters
     public String getName() {
         return name;
@@ -44,6 +59,32 @@ public class Device {
         isPaired = paired;
     }
 
+    // The 48-bit address as a number, so list rows keep their id across scans
+    public long getStableId() {
+        try {
+            return Long.parseLong(address.replace(":", ""), 16);
+        } catch (NumberFormatException e) {
+            // Not a MAC address; negative so it cannot collide with one
+            return address.hashCode() | Long.MIN_VALUE;
+        }
+    }
+
+    public int getRssi() {
+        return rssi;
+    }
+
+    public void setRssi(int rssi) {
+        this.rssi = rssi;
+    }
+
+    public long getLastSeenMillis() {
+        return lastSeenMillis;
+    }
+
+    public void setLastSeenMillis(long lastSeenMillis) {
+        this.lastSeenMillis = lastSeenMillis;
+    }
+
     public BluetoothDevice getBluetoothDevice() {
         return bluetoothDevice;
     }
@@ -51,4 +92,15 @@ public class Device {
     public void setBluetoothDevice(BluetoothDevice bluetoothDevice) {
         this.bluetoothDevice = bluetoothDevice;
     }
-}
\ No newline at end of file
+
+    // The same device whatever else a sighting reported about it
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof Device && address.equalsIgnoreCase(((Device) o).address);
+    }
+
+    @Override
+    public int hashCode() {
+        return address.toUpperCase(Locale.ROOT).hashCode();
+    }
+}
@@ -1,14 +1,26 @@
 package com.cj.bittalk.model;
 
-import java.text.SimpleDateFormat;
-import java.util.Date;
-import java.util.Locale;
-
 public class Message {
+    /** Progress of a sent message, shown as ticks next to its time. */
+    public enum Status {
+        SENDING,
+        SENT,
+        DELIVERED,
+        FAILED
+    }
+
     private String text;
     private boolean isSent;
     private boolean isSystemMessage = false;
     private long timestamp;
+    private String attachmentUri;
+    private Status status = Status.SENT;
+    // Prepared for binding, see getFormattedTime() and getLayoutText()
+    private String formattedTime;
+    private CharSequence layoutText;
+    // Set for views over a MessageColumns row, text stays there until asked for
+    private MessageColumns columns;
+    private int row;
 
     public Message(String text, boolean isSent) {
         this.text = text;
@@ -16,6 +28,15 @@ public class Message {
         this.timestamp = System.currentTimeMillis();
     }
 
+    Message(MessageColumns columns, int row) {
+        this.columns = columns;
+        this.row = row;
+        this.isSent = columns.isSent(row);
+        this.isSystemMessage = columns.isSystem(row);
+        this.timestamp = columns.timestamp(row);
+        this.attachmentUri = columns.attachment(row);
+    }
+
     public boolean isSystemMessage() {
         return isSystemMessage;
     }
@@ -25,11 +46,26 @@ public class Message {
     }
 
     public String getText() {
+        if (text == null && columns != null) {
+            text = columns.text(row);
+            columns = null;
+        }
         return text;
     }
 
     public void setText(String text) {
         this.text = text;
+        columns = null;
+        layoutText = null;
+    }
+
+    // The text as the list shows it, laid out in advance if someone set that
+    public CharSequence getLayoutText() {
+        return layoutText != null ? layoutText : getText();
+    }
+
+    public void setLayoutText(CharSequence layoutText) {
+        this.layoutText = layoutText;
     }
 
     public boolean isSent() {
@@ -46,10 +82,30 @@ public class Message {
 
     public void setTimestamp(long timestamp) {
         this.timestamp = timestamp;
+        formattedTime = null;
+    }
+
+    public String getAttachmentUri() {
+        return attachmentUri;
+    }
+
+    public void setAttachmentUri(String attachmentUri) {
+        this.attachmentUri = attachmentUri;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    public void setStatus(Status status) {
+        this.status = status;
     }
 
+    // Formatted once, call it off the main thread to have it ready before the row is bound
     public String getFormattedTime() {
-        SimpleDateFormat sdf = new SimpleDateFormat("HH:mm", Locale.getDefault());
-        return sdf.format(new Date(timestamp));
+        if (formattedTime == null) {
+            formattedTime = TimeLabels.format(timestamp);
+        }
+        return formattedTime;
     }
 }
\ No newline at end of file
@@ -0,0 +1,167 @@
+package com.cj.bittalk.model;
+
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Messages stored column by column: timestamps in a long[], the sent and
+ * system flags two bits a row, and text as UTF-8 in one growing byte arena.
+ * A row costs its text plus about 17 bytes, against a Message with its String
+ * at several times that. Rows can be filled in any order, since a page is read
+ * around messages that are already there. view() hands out a Message that
+ * decodes its text only when asked.
+ */
+public final class MessageColumns {
+    private static final int FLAG_PRESENT = 0x01;
+    private static final int FLAG_SENT = 0x02;
+    private static final int FLAG_SYSTEM = 0x04;
+    private static final int FLAG_BITS = 4;
+    private static final int ROWS_PER_WORD = 64 / FLAG_BITS;
+
+    private long[] timestamps;
+    private long[] flags;
+    private int[] textOffsets;
+    private int[] textLengths;
+    private byte[] arena;
+    private int arenaSize;
+    // Attachments are rare, so their column only exists once a row has one
+    private String[] attachments;
+    private int size;
+
+    public MessageColumns(int rowCapacity) {
+        this(rowCapacity, rowCapacity * 32);
+    }
+
+    public MessageColumns(int rowCapacity, int arenaCapacity) {
+        rowCapacity = Math.max(1, rowCapacity);
+        timestamps = new long[rowCapacity];
+        flags = new long[(rowCapacity + ROWS_PER_WORD - 1) / ROWS_PER_WORD];
+        textOffsets = new int[rowCapacity];
+        textLengths = new int[rowCapacity];
+        arena = new byte[Math.max(16, arenaCapacity)];
+    }
+
+    // One past the highest row set
+    public int size() {
+        return size;
+    }
+
+    public boolean has(int row) {
+        return row < size && (flagsOf(row) & FLAG_PRESENT) != 0;
+    }
+
+    public void set(int row, long timestamp, boolean sent, boolean system,
+                    byte[] text, int offset, int length, String attachment) {
+        ensureRows(row + 1);
+        if (arenaSize + length > arena.length) {
+            arena = Arrays.copyOf(arena, Math.max(arena.length * 2, arenaSize + length));
+        }
+        System.arraycopy(text, offset, arena, arenaSize, length);
+        textOffsets[row] = arenaSize;
+        textLengths[row] = length;
+        arenaSize += length;
+        timestamps[row] = timestamp;
+        setFlags(row, FLAG_PRESENT | (sent ? FLAG_SENT : 0) | (system ? FLAG_SYSTEM : 0));
+        if (attachment != null) {
+            if (attachments == null) {
+                attachments = new String[timestamps.length];
+            }
+            attachments[row] = attachment;
+        } else if (attachments != null) {
+            attachments[row] = null;
+        }
+        size = Math.max(size, row + 1);
+    }
+
+    public void set(int row, Message message) {
+        String text = message.getText();
+        byte[] bytes = text != null ? text.getBytes(StandardCharsets.UTF_8) : new byte[0];
+        set(row, message.getTimestamp(), message.isSent(), message.isSystemMessage(),
+                bytes, 0, bytes.length, message.getAttachmentUri());
+    }
+
+    public int add(long timestamp, boolean sent, boolean system,
+                   byte[] text, int offset, int length, String attachment) {
+        int row = size;
+        set(row, timestamp, sent, system, text, offset, length, attachment);
+        return row;
+    }
+
+    // Copies a row of another store without decoding its text
+    public void copy(MessageColumns from, int fromRow, int row) {
+        set(row, from.timestamps[fromRow], from.isSent(fromRow), from.isSystem(fromRow),
+                from.arena, from.textOffsets[fromRow], from.textLengths[fromRow], from.attachment(fromRow));
+    }
+
+    public long timestamp(int row) {
+        return timestamps[row];
+    }
+
+    public boolean isSent(int row) {
+        return (flagsOf(row) & FLAG_SENT) != 0;
+    }
+
+    public boolean isSystem(int row) {
+        return (flagsOf(row) & FLAG_SYSTEM) != 0;
+    }
+
+    public String attachment(int row) {
+        return attachments != null ? attachments[row] : null;
+    }
+
+    public String text(int row) {
+        return new String(arena, textOffsets[row], textLengths[row], StandardCharsets.UTF_8);
+    }
+
+    // A new Message over the row, its text is decoded on first use
+    public Message view(int row) {
+        return new Message(this, row);
+    }
+
+    // The rows as Messages, a new view on every get()
+    public List<Message> asList() {
+        return new AbstractList<Message>() {
+            @Override
+            public Message get(int index) {
+                return view(index);
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    // Bytes held by the arrays, for comparing against a list of Messages
+    public long footprintBytes() {
+        return timestamps.length * 8L + flags.length * 8L + textOffsets.length * 8L + arena.length
+                + (attachments != null ? attachments.length * 4L : 0);
+    }
+
+    private int flagsOf(int row) {
+        return (int) (flags[row / ROWS_PER_WORD] >>> ((row % ROWS_PER_WORD) * FLAG_BITS)) & 0xF;
+    }
+
+    private void setFlags(int row, int value) {
+        int shift = (row % ROWS_PER_WORD) * FLAG_BITS;
+        int word = row / ROWS_PER_WORD;
+        flags[word] = (flags[word] & ~(0xFL << shift)) | ((long) value << shift);
+    }
+
+    private void ensureRows(int rows) {
+        if (rows <= timestamps.length) {
+            return;
+        }
+        int capacity = Math.max(rows, timestamps.length * 2);
+        timestamps = Arrays.copyOf(timestamps, capacity);
+        flags = Arrays.copyOf(flags, (capacity + ROWS_PER_WORD - 1) / ROWS_PER_WORD);
+        textOffsets = Arrays.copyOf(textOffsets, capacity);
+        textLengths = Arrays.copyOf(textLengths, capacity);
+        if (attachments != null) {
+            attachments = Arrays.copyOf(attachments, capacity);
+        }
+    }
+}
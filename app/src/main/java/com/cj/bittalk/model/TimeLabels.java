@@ -0,0 +1,50 @@
+package com.cj.bittalk.model;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * "HH:mm" labels for message times. Chat rows mostly share a handful of
+ * minutes, so labels are cached per minute in a small direct-mapped table
+ * and only a miss formats, with a formatter per thread.
+ */
+public final class TimeLabels {
+    private static final long MINUTE_MILLIS = 60 * 1000;
+    // Power of two, slots are picked by the low bits of the minute
+    private static final int CACHE_SIZE = 256;
+
+    // Immutable, so slots can be read and replaced without locking
+    private static final class Entry {
+        final long minute;
+        final String label;
+
+        Entry(long minute, String label) {
+            this.minute = minute;
+            this.label = label;
+        }
+    }
+
+    private static final Entry[] cache = new Entry[CACHE_SIZE];
+    private static final ThreadLocal<SimpleDateFormat> format = new ThreadLocal<SimpleDateFormat>() {
+        @Override
+        protected SimpleDateFormat initialValue() {
+            return new SimpleDateFormat("HH:mm", Locale.getDefault());
+        }
+    };
+
+    private TimeLabels() {
+    }
+
+    public static String format(long timestamp) {
+        long minute = Math.floorDiv(timestamp, MINUTE_MILLIS);
+        int slot = (int) (minute & (CACHE_SIZE - 1));
+        Entry entry = cache[slot];
+        if (entry != null && entry.minute == minute) {
+            return entry.label;
+        }
+        String label = format.get().format(new Date(timestamp));
+        cache[slot] = new Entry(minute, label);
+        return label;
+    }
+}
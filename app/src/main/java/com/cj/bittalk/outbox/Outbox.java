@@ -0,0 +1,274 @@
+package com.cj.bittalk.outbox;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Store-and-forward queue for peers that are out of range.
+ *
+ * Every destination has its own append-only file. enqueue() only links the
+ * entry into a lock-free queue; a single disk thread appends it, fsyncs at
+ * most every SYNC_INTERVAL_MILLIS, and streams the file to the peer in order
+ * once draining is started for it. Entries are dropped from the front of the
+ * file only once the Sink confirms the peer has them.
+ */
+public class Outbox {
+    private static final String TAG = "Outbox";
+
+    public static final long SYNC_INTERVAL_MILLIS = 200;
+    static final int MAX_IN_FLIGHT = 64;
+    static final long COMPACT_THRESHOLD_BYTES = 256 * 1024;
+    static final long RETRY_DELAY_MILLIS = 1000;
+    private static final int SCRATCH_SIZE = 16 * 1024;
+
+    /**
+     * Delivers one entry, implemented by BluetoothService; receipt is null if
+     * nobody waits for it. The future completes once the peer has the entry,
+     * which for a peer that acknowledges means its ACK, and fails if it never
+     * will; the entry and everything after it are then sent again.
+     */
+    public interface Sink {
+        CompletableFuture<Void> send(String address, byte[] payload, CompletableFuture<Void> receipt);
+    }
+
+    private final File directory;
+    private final Sink sink;
+    private final Map<String, OutboxLog> logs = new ConcurrentHashMap<>();
+    private final ScheduledThreadPoolExecutor diskExecutor;
+    private final ByteBuffer scratch = ByteBuffer.allocate(SCRATCH_SIZE);
+    private final List<OutboxLog.Append> written = new ArrayList<>();
+    private boolean syncScheduled;
+
+    public Outbox(File directory, Sink sink) {
+        this.directory = directory;
+        this.sink = sink;
+        diskExecutor = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "bt-outbox");
+            thread.setDaemon(true);
+            return thread;
+        });
+        diskExecutor.setKeepAliveTime(30, TimeUnit.SECONDS);
+        diskExecutor.allowCoreThreadTimeOut(true);
+        // A pending sync would otherwise run after close() on the closed files
+        diskExecutor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+
+        // Pick up what an earlier run could not deliver
+        diskExecutor.execute(() -> {
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                Log.e(TAG, "Could not create " + directory);
+                return;
+            }
+            File[] heads = directory.listFiles((dir, name) -> name.endsWith(".head"));
+            if (heads == null) {
+                return;
+            }
+            for (File head : heads) {
+                String address = OutboxLog.readAddress(head);
+                if (address != null) {
+                    openQuietly(log(address));
+                }
+            }
+        });
+    }
+
+    /**
+     * Queues a payload for the peer. Never blocks; the future completes once
+     * the entry is in the file, which is fsynced shortly after.
+     */
+    public CompletableFuture<Void> enqueue(String address, byte[] payload) {
+        return enqueue(address, payload, null);
+    }
+
+    /**
+     * Like enqueue(address, payload), and hands receipt to the Sink along with
+     * the entry. Receipts live in memory only, after a restart entries go out
+     * without one.
+     */
+    public CompletableFuture<Void> enqueue(String address, byte[] payload, CompletableFuture<Void> receipt) {
+        OutboxLog log = log(address);
+        OutboxLog.Append append = new OutboxLog.Append(payload, receipt);
+        log.pending.incrementAndGet();
+        log.appends.offer(append);
+        if (log.appendScheduled.compareAndSet(false, true)) {
+            diskExecutor.execute(() -> writeAppends(log));
+        }
+        return append.stored;
+    }
+
+    // True while entries for the peer are waiting, new messages must then queue behind them
+    public boolean hasPending(String address) {
+        OutboxLog log = logs.get(OutboxLog.fileName(address));
+        return log != null && (!log.loaded || log.pending.get() > 0);
+    }
+
+    public int getPendingCount(String address) {
+        OutboxLog log = logs.get(OutboxLog.fileName(address));
+        return log != null ? log.pending.get() : 0;
+    }
+
+    // Streams the queue to the peer, in order, until stopDraining() or a failed send
+    public void startDraining(String address) {
+        OutboxLog log = log(address);
+        // Entries still in flight either get confirmed or fail and are sent again
+        diskExecutor.execute(() -> {
+            log.draining = true;
+            drain(log);
+        });
+    }
+
+    public void stopDraining(String address) {
+        OutboxLog log = logs.get(OutboxLog.fileName(address));
+        if (log != null) {
+            diskExecutor.execute(() -> log.draining = false);
+        }
+    }
+
+    // Forces everything written so far to disk; the future completes on the disk thread
+    public CompletableFuture<Void> sync() {
+        CompletableFuture<Void> synced = new CompletableFuture<>();
+        diskExecutor.execute(() -> {
+            syncAll();
+            synced.complete(null);
+        });
+        return synced;
+    }
+
+    // The final sync happens here, a sync still scheduled is dropped
+    public void close() {
+        diskExecutor.execute(() -> {
+            syncAll();
+            for (OutboxLog log : logs.values()) {
+                log.close();
+            }
+        });
+        diskExecutor.shutdown();
+    }
+
+    // Keyed by file name, the same name the log has on disk
+    private OutboxLog log(String address) {
+        return logs.computeIfAbsent(OutboxLog.fileName(address), name -> new OutboxLog(directory, address));
+    }
+
+    private void openQuietly(OutboxLog log) {
+        try {
+            log.open();
+        } catch (IOException e) {
+            Log.e(TAG, "Could not open outbox of " + log.address, e);
+        }
+    }
+
+    private void writeAppends(OutboxLog log) {
+        log.appendScheduled.set(false);
+        IOException failure = null;
+        try {
+            log.writeAppends(scratch, written);
+        } catch (IOException e) {
+            Log.e(TAG, "Could not append to outbox of " + log.address, e);
+            failure = e;
+            scratch.clear();
+        }
+        for (int i = 0; i < written.size(); i++) {
+            written.get(i).stored.complete(null);
+        }
+        written.clear();
+        if (failure != null) {
+            // Whatever did not make it into the file is lost
+            OutboxLog.Append append;
+            while ((append = log.appends.poll()) != null) {
+                log.pending.decrementAndGet();
+                append.stored.completeExceptionally(failure);
+                if (append.receipt != null) {
+                    append.receipt.completeExceptionally(failure);
+                }
+            }
+        }
+        scheduleSync();
+        drain(log);
+    }
+
+    private void drain(OutboxLog log) {
+        try {
+            log.open();
+            while (log.draining && log.inFlight < MAX_IN_FLIGHT && log.hasUnsent()) {
+                long index = log.sendIndex;
+                long start = log.sendOffset;
+                byte[] payload = log.readNext();
+                long end = log.sendOffset;
+                int generation = log.generation;
+                log.inFlight++;
+                CompletableFuture<Void> sent = sink.send(log.address, payload, log.receipts.get(index));
+                sent.whenComplete((result, e) ->
+                        diskExecutor.execute(() -> onSent(log, generation, start, end, index, e)));
+                if (sent.isCompletedExceptionally()) {
+                    // Rejected outright, e.g. a full writer queue; sending on could reorder entries
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Could not read outbox of " + log.address, e);
+            log.draining = false;
+        }
+    }
+
+    private void onSent(OutboxLog log, int generation, long start, long end, long index, Throwable failure) {
+        log.inFlight--;
+        if (failure != null) {
+            // Resend from the failed entry, later failures of what went out with it are then moot
+            if (generation == log.generation && index < log.sendIndex) {
+                Log.w(TAG, "Send to " + log.address + " failed, retrying: " + failure);
+                log.generation++;
+                log.sendOffset = start;
+                log.sendIndex = index;
+                diskExecutor.schedule(() -> drain(log), RETRY_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+            }
+            return;
+        }
+        // Confirmations come in order; one for an entry that is due to be sent again is ignored
+        if (index >= log.headIndex && index < log.sendIndex) {
+            log.headOffset = end;
+            log.headDirty = true;
+            // The receipt has gone out with the entry, the Sink completes it from here
+            for (long i = log.headIndex; i <= index; i++) {
+                log.receipts.remove(i);
+            }
+            log.pending.addAndGet((int) (log.headIndex - index - 1));
+            log.headIndex = index + 1;
+            scheduleSync();
+        }
+        try {
+            log.compact(COMPACT_THRESHOLD_BYTES);
+        } catch (IOException e) {
+            Log.e(TAG, "Could not compact outbox of " + log.address, e);
+        }
+        drain(log);
+    }
+
+    private void scheduleSync() {
+        // After close() the close task syncs what is left
+        if (!syncScheduled && !diskExecutor.isShutdown()) {
+            syncScheduled = true;
+            diskExecutor.schedule(this::syncAll, SYNC_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void syncAll() {
+        syncScheduled = false;
+        for (OutboxLog log : logs.values()) {
+            try {
+                log.sync();
+            } catch (IOException e) {
+                Log.e(TAG, "Could not sync outbox of " + log.address, e);
+            }
+        }
+    }
+}
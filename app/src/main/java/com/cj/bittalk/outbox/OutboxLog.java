@@ -0,0 +1,286 @@
+package com.cj.bittalk.outbox;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Append-only queue file of one destination. Records are [length:4][payload]
+ * and everything before headOffset has been delivered; the head is kept in a
+ * small side file as [headOffset:8][address:UTF], so leftovers can be matched
+ * to their peer after a restart. Apart from the lock-free append queue and the pending
+ * counter, all state is confined to the Outbox disk thread.
+ */
+class OutboxLog {
+    private static final String TAG = "OutboxLog";
+    private static final int RECORD_HEADER_SIZE = 4;
+
+    static final class Append {
+        final byte[] payload;
+        final CompletableFuture<Void> receipt;
+        final CompletableFuture<Void> stored = new CompletableFuture<>();
+
+        Append(byte[] payload, CompletableFuture<Void> receipt) {
+            this.payload = payload;
+            this.receipt = receipt;
+        }
+    }
+
+    final String address;
+    final ConcurrentLinkedQueue<Append> appends = new ConcurrentLinkedQueue<>();
+    final AtomicBoolean appendScheduled = new AtomicBoolean();
+    // Entries accepted but not yet delivered, including those still in appends
+    final AtomicInteger pending = new AtomicInteger();
+    volatile boolean loaded;
+
+    private final File logFile;
+    private final File headFile;
+    private FileChannel channel;
+    private long endOffset;
+    long headOffset;
+    long sendOffset;
+    boolean dirty;
+    boolean headDirty;
+    boolean draining;
+    int generation;
+    int inFlight;
+    // Records are also numbered in memory, compaction moves offsets but not these
+    long headIndex;
+    long sendIndex;
+    private long endIndex;
+    // Receipts of records appended by this run, keyed by record number
+    final Map<Long, CompletableFuture<Void>> receipts = new HashMap<>();
+
+    OutboxLog(File directory, String address) {
+        this.address = address;
+        String name = fileName(address);
+        logFile = new File(directory, name + ".log");
+        headFile = new File(directory, name + ".head");
+    }
+
+    // The peer a head file belongs to, or null if it is unreadable
+    static String readAddress(File headFile) {
+        try (RandomAccessFile head = new RandomAccessFile(headFile, "r")) {
+            head.readLong();
+            return head.readUTF();
+        } catch (IOException e) {
+            Log.w(TAG, "Ignoring unreadable " + headFile, e);
+            return null;
+        }
+    }
+
+    static String fileName(String address) {
+        StringBuilder name = new StringBuilder(address.length());
+        for (int i = 0; i < address.length(); i++) {
+            char c = address.charAt(i);
+            name.append(Character.isLetterOrDigit(c) || c == '-' ? c : '_');
+        }
+        return name.toString();
+    }
+
+    // Opens the file on first use and counts what an earlier run left behind
+    void open() throws IOException {
+        if (channel != null) {
+            return;
+        }
+        channel = new RandomAccessFile(logFile, "rw").getChannel();
+        endOffset = channel.size();
+        headOffset = readHead();
+        if (headOffset > endOffset) {
+            headOffset = 0;
+        }
+        if (!headFile.exists()) {
+            writeHead();
+        }
+
+        int records = 0;
+        long offset = headOffset;
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+        while (offset + RECORD_HEADER_SIZE <= endOffset) {
+            header.clear();
+            channel.read(header, offset);
+            long next = offset + RECORD_HEADER_SIZE + header.getInt(0);
+            if (next > endOffset || header.getInt(0) < 0) {
+                break;
+            }
+            offset = next;
+            records++;
+        }
+        if (offset < endOffset) {
+            // A torn append from a crash, drop it
+            Log.w(TAG, "Truncating " + logFile + " at " + offset);
+            channel.truncate(offset);
+            endOffset = offset;
+        }
+        sendOffset = headOffset;
+        endIndex = records;
+        pending.addAndGet(records);
+        loaded = true;
+    }
+
+    private long readHead() throws IOException {
+        if (!headFile.exists()) {
+            return 0;
+        }
+        try (RandomAccessFile head = new RandomAccessFile(headFile, "r")) {
+            return head.length() >= 8 ? head.readLong() : 0;
+        }
+    }
+
+    void writeHead() throws IOException {
+        try (RandomAccessFile head = new RandomAccessFile(headFile, "rw")) {
+            head.setLength(0);
+            head.writeLong(headOffset);
+            head.writeUTF(address);
+            head.getChannel().force(false);
+        }
+        headDirty = false;
+    }
+
+    // Writes every queued append in one go, the caller completes the futures
+    void writeAppends(ByteBuffer scratch, List<Append> written) throws IOException {
+        open();
+        Append append;
+        while ((append = appends.poll()) != null) {
+            int size = RECORD_HEADER_SIZE + append.payload.length;
+            if (scratch.remaining() < size) {
+                flushScratch(scratch);
+                if (scratch.capacity() < size) {
+                    // Oversized record, write it directly
+                    ByteBuffer record = ByteBuffer.allocate(size);
+                    record.putInt(append.payload.length).put(append.payload).flip();
+                    writeFully(record);
+                    appended(append, written);
+                    continue;
+                }
+            }
+            scratch.putInt(append.payload.length).put(append.payload);
+            appended(append, written);
+        }
+        flushScratch(scratch);
+        dirty = true;
+    }
+
+    private void appended(Append append, List<Append> written) {
+        if (append.receipt != null) {
+            receipts.put(endIndex, append.receipt);
+        }
+        endIndex++;
+        written.add(append);
+    }
+
+    private void flushScratch(ByteBuffer scratch) throws IOException {
+        scratch.flip();
+        writeFully(scratch);
+        scratch.clear();
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            endOffset += channel.write(buffer, endOffset);
+        }
+    }
+
+    boolean hasUnsent() {
+        return sendOffset < endOffset;
+    }
+
+    // Reads the record at sendOffset and moves past it
+    byte[] readNext() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+        readFully(header, sendOffset);
+        byte[] payload = new byte[header.getInt(0)];
+        readFully(ByteBuffer.wrap(payload), sendOffset + RECORD_HEADER_SIZE);
+        sendOffset += RECORD_HEADER_SIZE + payload.length;
+        sendIndex++;
+        return payload;
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read < 0) {
+                throw new IOException("Truncated outbox record in " + logFile);
+            }
+        }
+    }
+
+    void sync() throws IOException {
+        if (dirty && channel != null) {
+            channel.force(false);
+            dirty = false;
+        }
+        if (headDirty) {
+            writeHead();
+        }
+    }
+
+    /**
+     * Drops delivered records once nothing is in flight. The head is reset
+     * before the data moves, so a crash in between re-delivers rather than
+     * loses entries.
+     */
+    void compact(long thresholdBytes) throws IOException {
+        if (channel == null || inFlight > 0 || headOffset == 0) {
+            return;
+        }
+        if (headOffset == endOffset) {
+            long delivered = headOffset;
+            headOffset = 0;
+            writeHead();
+            channel.truncate(0);
+            endOffset = 0;
+            sendOffset = 0;
+            Log.d(TAG, "Emptied outbox of " + address + ", " + delivered + " bytes delivered");
+            return;
+        }
+        if (headOffset < thresholdBytes) {
+            return;
+        }
+
+        File tmp = new File(logFile.getPath() + ".tmp");
+        try (FileChannel copy = new RandomAccessFile(tmp, "rw").getChannel()) {
+            copy.truncate(0);
+            long position = headOffset;
+            while (position < endOffset) {
+                position += channel.transferTo(position, endOffset - position, copy);
+            }
+            copy.force(false);
+        }
+        long shift = headOffset;
+        headOffset = 0;
+        writeHead();
+        channel.close();
+        channel = null;
+        if (!tmp.renameTo(logFile)) {
+            throw new IOException("Could not replace " + logFile);
+        }
+        channel = new RandomAccessFile(logFile, "rw").getChannel();
+        endOffset = channel.size();
+        sendOffset = Math.max(0, sendOffset - shift);
+    }
+
+    void close() {
+        if (channel == null) {
+            return;
+        }
+        try {
+            sync();
+            channel.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Could not close " + logFile, e);
+        }
+        channel = null;
+    }
+}
@@ -0,0 +1,32 @@
+package com.cj.bittalk.protocol;
+
+/**
+ * Snapshot of the compression counters of one connection. Raw bytes are
+ * payload sizes before compression, wire bytes what was actually transferred.
+ */
+public class CompressionStats {
+    public final boolean enabled;
+    public final long rawBytesOut;
+    public final long wireBytesOut;
+    public final long compressedFramesOut;
+    public final long rawBytesIn;
+    public final long wireBytesIn;
+
+    public CompressionStats(FrameCompressor compressor, FrameDecompressor decompressor) {
+        enabled = compressor.isEnabled();
+        rawBytesOut = compressor.getRawBytes();
+        wireBytesOut = compressor.getWireBytes();
+        compressedFramesOut = compressor.getCompressedFrames();
+        rawBytesIn = decompressor.getRawBytes();
+        wireBytesIn = decompressor.getWireBytes();
+    }
+
+    // Fraction of outgoing payload bytes saved by compression
+    public double getSavingsOut() {
+        return rawBytesOut == 0 ? 0 : 1.0 - (double) wireBytesOut / rawBytesOut;
+    }
+
+    public double getSavingsIn() {
+        return rawBytesIn == 0 ? 0 : 1.0 - (double) wireBytesIn / rawBytesIn;
+    }
+}
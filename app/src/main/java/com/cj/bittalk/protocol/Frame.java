@@ -0,0 +1,59 @@
+package com.cj.bittalk.protocol;
+
+/**
+ * Wire format shared by both ends of a connection.
+ *
+ * Every frame is a 6 byte header followed by the payload:
+ * [type:1][flags:1][length:4, big-endian][payload:length]
+ */
+public final class Frame {
+    public static final int HEADER_SIZE = 6;
+    public static final int MAX_PAYLOAD_LENGTH = 64 * 1024;
+    // An encrypted payload also carries its authentication tag
+    public static final int MAX_WIRE_PAYLOAD_LENGTH = MAX_PAYLOAD_LENGTH + FrameCipher.TAG_SIZE;
+
+    // Frame types
+    public static final int TYPE_MESSAGE = 0x01;
+    public static final int TYPE_HELLO = 0x02;
+
+    // Heartbeat: a PING carries the sender's 8 byte timestamp, the PONG echoes it back
+    public static final int TYPE_PING = 0x03;
+    public static final int TYPE_PONG = 0x04;
+
+    // Chat message flooded through the mesh, see RelayFrames
+    public static final int TYPE_RELAY = 0x05;
+
+    // Cumulative acknowledgement: [sequence:4], the last sequenced frame received in order
+    public static final int TYPE_ACK = 0x06;
+
+    // File transfer frames, see TransferFrames
+    public static final int TYPE_FILE_OFFER = 0x10;
+    public static final int TYPE_FILE_RESUME = 0x11;
+    public static final int TYPE_FILE_CHUNK = 0x12;
+    public static final int TYPE_FILE_ACK = 0x13;
+    public static final int TYPE_FILE_CANCEL = 0x14;
+
+    // Frame flags
+    public static final int FLAG_COMPRESSED = 0x01;
+    public static final int FLAG_ENCRYPTED = 0x02;
+    // The payload starts with the sender's [sequence:4], see TYPE_ACK
+    public static final int FLAG_SEQUENCED = 0x04;
+    public static final int SEQUENCE_SIZE = 4;
+
+    private Frame() {
+    }
+
+    // Control frames are small and always sent as-is
+    public static boolean isCompressible(int type) {
+        return type == TYPE_MESSAGE || type == TYPE_RELAY;
+    }
+
+    public static void writeHeader(byte[] dst, int offset, int type, int flags, int length) {
+        dst[offset] = (byte) type;
+        dst[offset + 1] = (byte) flags;
+        dst[offset + 2] = (byte) (length >>> 24);
+        dst[offset + 3] = (byte) (length >>> 16);
+        dst[offset + 4] = (byte) (length >>> 8);
+        dst[offset + 5] = (byte) length;
+    }
+}
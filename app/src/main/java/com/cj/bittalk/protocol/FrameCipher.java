@@ -0,0 +1,95 @@
+package com.cj.bittalk.protocol;
+
+import java.net.ProtocolException;
+import java.security.GeneralSecurityException;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * AES-GCM for one direction of one connection. Owned by a single thread: the
+ * writer for the sending side, the reader for the receiving side. The Cipher,
+ * key, nonce and output buffers are reused for every frame. The one thing
+ * that is not is the GCMParameterSpec: JCE takes the nonce only through an
+ * immutable spec, so every frame needs a new one, a small short-lived object.
+ *
+ * Nonces are a frame counter that both ends keep in step, so they are never
+ * sent. Each direction has its own key, which keeps the two counters from
+ * ever producing the same (key, nonce) pair. The frame type and flags are
+ * authenticated along with the payload, so neither can be altered on the way
+ * without the frame failing authentication.
+ */
+public class FrameCipher {
+    public static final int TAG_SIZE = 16;
+    private static final int NONCE_SIZE = 12;
+
+    private final Cipher cipher;
+    private final SecretKeySpec key;
+    private final int mode;
+    private final byte[] nonce = new byte[NONCE_SIZE];
+    private final byte[] associatedData = new byte[2];
+    private final byte[] output = new byte[Frame.MAX_WIRE_PAYLOAD_LENGTH];
+    private long counter;
+
+    private FrameCipher(byte[] key, int mode) throws GeneralSecurityException {
+        this.cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        this.key = new SecretKeySpec(key, "AES");
+        this.mode = mode;
+    }
+
+    public static FrameCipher encryptor(byte[] key) throws GeneralSecurityException {
+        return new FrameCipher(key, Cipher.ENCRYPT_MODE);
+    }
+
+    public static FrameCipher decryptor(byte[] key) throws GeneralSecurityException {
+        return new FrameCipher(key, Cipher.DECRYPT_MODE);
+    }
+
+    /**
+     * Encrypts into getOutput() and returns the length, payload plus tag.
+     * flags are the header flags the frame goes out with, FLAG_ENCRYPTED included.
+     */
+    public int encrypt(int type, int flags, byte[] payload, int offset, int length) {
+        try {
+            return process(type, flags, payload, offset, length);
+        } catch (GeneralSecurityException e) {
+            // Only a broken provider gets here, the key and nonce sizes are fixed
+            throw new IllegalStateException("Encryption failed", e);
+        }
+    }
+
+    /** Decrypts into getOutput() and returns the plaintext length. */
+    public int decrypt(int type, int flags, byte[] payload, int offset, int length) throws ProtocolException {
+        if (length < TAG_SIZE) {
+            throw new ProtocolException("Encrypted frame too short");
+        }
+        try {
+            return process(type, flags, payload, offset, length);
+        } catch (AEADBadTagException e) {
+            throw new ProtocolException("Frame failed authentication");
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Decryption failed", e);
+        }
+    }
+
+    private int process(int type, int flags, byte[] payload, int offset, int length)
+            throws GeneralSecurityException {
+        long n = counter++;
+        for (int i = NONCE_SIZE - 1; i >= NONCE_SIZE - 8; i--) {
+            nonce[i] = (byte) n;
+            n >>>= 8;
+        }
+        // Copies the nonce, so the array can be refilled for the next frame
+        cipher.init(mode, key, new GCMParameterSpec(TAG_SIZE * 8, nonce));
+        associatedData[0] = (byte) type;
+        associatedData[1] = (byte) flags;
+        cipher.updateAAD(associatedData);
+        return cipher.doFinal(payload, offset, length, output, 0);
+    }
+
+    public byte[] getOutput() {
+        return output;
+    }
+}
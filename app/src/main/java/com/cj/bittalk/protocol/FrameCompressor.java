@@ -0,0 +1,86 @@
+package com.cj.bittalk.protocol;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+
+/**
+ * Deflates outgoing payloads for one connection. Owned by that connection's
+ * writer thread: the Deflater and the output buffer are reused for every
+ * frame. Payloads below the threshold, or that do not shrink, are sent raw.
+ */
+public class FrameCompressor {
+    public static final int DEFAULT_THRESHOLD = 64;
+
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+    private final byte[] output = new byte[Frame.MAX_PAYLOAD_LENGTH];
+    private final int threshold;
+    private volatile boolean enabled;
+
+    private final AtomicLong rawBytes = new AtomicLong();
+    private final AtomicLong wireBytes = new AtomicLong();
+    private final AtomicLong compressedFrames = new AtomicLong();
+
+    public FrameCompressor() {
+        this(DEFAULT_THRESHOLD);
+    }
+
+    public FrameCompressor(int threshold) {
+        this.threshold = threshold;
+    }
+
+    // Switched on once both ends have agreed on compression
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Compresses the payload into getOutput(). Returns the compressed length,
+     * or -1 if the payload should be sent uncompressed.
+     */
+    public int compress(byte[] payload, int offset, int length) {
+        rawBytes.addAndGet(length);
+        if (!enabled || length < threshold) {
+            wireBytes.addAndGet(length);
+            return -1;
+        }
+
+        deflater.reset();
+        deflater.setInput(payload, offset, length);
+        deflater.finish();
+        // Output must end up strictly smaller than the input to be worth it
+        int compressed = deflater.deflate(output, 0, length - 1);
+        if (!deflater.finished()) {
+            wireBytes.addAndGet(length);
+            return -1;
+        }
+        wireBytes.addAndGet(compressed);
+        compressedFrames.incrementAndGet();
+        return compressed;
+    }
+
+    public byte[] getOutput() {
+        return output;
+    }
+
+    // Payload bytes handed to compress()
+    public long getRawBytes() {
+        return rawBytes.get();
+    }
+
+    // Payload bytes that actually went on the wire
+    public long getWireBytes() {
+        return wireBytes.get();
+    }
+
+    public long getCompressedFrames() {
+        return compressedFrames.get();
+    }
+
+    public void close() {
+        deflater.end();
+    }
+}
@@ -0,0 +1,120 @@
+package com.cj.bittalk.protocol;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ProtocolException;
+
+/**
+ * Streaming decoder that reads straight into a ring buffer and hands out every
+ * complete frame it contains, however the underlying stream splits the bytes.
+ *
+ * Payloads are passed as a view (array, offset, length) that is only valid for
+ * the duration of the callback. Frames that wrap around the end of the ring are
+ * copied into a reusable scratch buffer, everything else is handed out in place.
+ */
+public class FrameDecoder {
+
+    public interface FrameListener {
+        void onFrame(int type, int flags, byte[] payload, int offset, int length) throws IOException;
+    }
+
+    private final byte[] ring;
+    private final int mask;
+    private final byte[] scratch = new byte[Frame.MAX_WIRE_PAYLOAD_LENGTH];
+    private final FrameListener listener;
+
+    // Monotonic positions, masked on access
+    private long readPos;
+    private long writePos;
+
+    public FrameDecoder(FrameListener listener) {
+        this(listener, Integer.highestOneBit(Frame.HEADER_SIZE + Frame.MAX_WIRE_PAYLOAD_LENGTH) << 1);
+    }
+
+    FrameDecoder(FrameListener listener, int capacity) {
+        if (Integer.bitCount(capacity) != 1 || capacity < Frame.HEADER_SIZE + Frame.MAX_WIRE_PAYLOAD_LENGTH) {
+            throw new IllegalArgumentException("capacity must be a power of two that fits a full frame");
+        }
+        this.ring = new byte[capacity];
+        this.mask = capacity - 1;
+        this.listener = listener;
+    }
+
+    /**
+     * Performs a single read from the stream and dispatches all frames that are
+     * now complete. Returns the number of bytes read, or -1 at end of stream.
+     */
+    public int readFrom(InputStream in) throws IOException {
+        int used = (int) (writePos - readPos);
+        int start = (int) (writePos & mask);
+        int contiguous = Math.min(ring.length - start, ring.length - used);
+
+        int bytes = in.read(ring, start, contiguous);
+        if (bytes < 0) {
+            return bytes;
+        }
+        writePos += bytes;
+        drain();
+        return bytes;
+    }
+
+    /**
+     * Feeds bytes that were obtained elsewhere, e.g. in tests or benchmarks.
+     */
+    public void feed(byte[] src, int offset, int length) throws IOException {
+        while (length > 0) {
+            int used = (int) (writePos - readPos);
+            int start = (int) (writePos & mask);
+            int chunk = Math.min(length, Math.min(ring.length - start, ring.length - used));
+            System.arraycopy(src, offset, ring, start, chunk);
+            writePos += chunk;
+            offset += chunk;
+            length -= chunk;
+            drain();
+        }
+    }
+
+    public int buffered() {
+        return (int) (writePos - readPos);
+    }
+
+    private void drain() throws IOException {
+        while (writePos - readPos >= Frame.HEADER_SIZE) {
+            int type = byteAt(readPos) & 0xFF;
+            int flags = byteAt(readPos + 1) & 0xFF;
+            int length = ((byteAt(readPos + 2) & 0xFF) << 24)
+                    | ((byteAt(readPos + 3) & 0xFF) << 16)
+                    | ((byteAt(readPos + 4) & 0xFF) << 8)
+                    | (byteAt(readPos + 5) & 0xFF);
+
+            if (length < 0 || length > Frame.MAX_WIRE_PAYLOAD_LENGTH) {
+                throw new ProtocolException("Invalid frame length " + length);
+            }
+            if (writePos - readPos < Frame.HEADER_SIZE + length) {
+                break;
+            }
+
+            int payloadStart = (int) ((readPos + Frame.HEADER_SIZE) & mask);
+            if (payloadStart + length <= ring.length) {
+                listener.onFrame(type, flags, ring, payloadStart, length);
+            } else {
+                // Payload wraps around the end of the ring
+                int first = ring.length - payloadStart;
+                System.arraycopy(ring, payloadStart, scratch, 0, first);
+                System.arraycopy(ring, 0, scratch, first, length - first);
+                listener.onFrame(type, flags, scratch, 0, length);
+            }
+            readPos += Frame.HEADER_SIZE + length;
+        }
+
+        // Rewind when empty so the next read gets the whole ring contiguously
+        if (readPos == writePos) {
+            readPos = 0;
+            writePos = 0;
+        }
+    }
+
+    private byte byteAt(long position) {
+        return ring[(int) (position & mask)];
+    }
+}
@@ -0,0 +1,60 @@
+package com.cj.bittalk.protocol;
+
+import java.net.ProtocolException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Inflates compressed payloads for one connection. Owned by that connection's
+ * reader thread, with the Inflater and the output buffer reused per frame.
+ */
+public class FrameDecompressor {
+    private final Inflater inflater = new Inflater(true);
+    private final byte[] output = new byte[Frame.MAX_PAYLOAD_LENGTH];
+
+    private final AtomicLong rawBytes = new AtomicLong();
+    private final AtomicLong wireBytes = new AtomicLong();
+
+    // Counts a payload that arrived uncompressed
+    public void recordUncompressed(int length) {
+        rawBytes.addAndGet(length);
+        wireBytes.addAndGet(length);
+    }
+
+    /**
+     * Inflates the payload into getOutput() and returns the inflated length.
+     */
+    public int decompress(byte[] payload, int offset, int length) throws ProtocolException {
+        inflater.reset();
+        inflater.setInput(payload, offset, length);
+        int inflated;
+        try {
+            inflated = inflater.inflate(output);
+        } catch (DataFormatException e) {
+            throw new ProtocolException("Corrupt compressed frame: " + e.getMessage());
+        }
+        if (!inflater.finished()) {
+            throw new ProtocolException("Compressed frame exceeds maximum payload length");
+        }
+        rawBytes.addAndGet(inflated);
+        wireBytes.addAndGet(length);
+        return inflated;
+    }
+
+    public byte[] getOutput() {
+        return output;
+    }
+
+    public long getRawBytes() {
+        return rawBytes.get();
+    }
+
+    public long getWireBytes() {
+        return wireBytes.get();
+    }
+
+    public void close() {
+        inflater.end();
+    }
+}
@@ -0,0 +1,127 @@
+package com.cj.bittalk.protocol;
+
+import java.net.ProtocolException;
+import java.util.Arrays;
+
+/**
+ * HELLO frame exchanged by both ends right after connecting. Each side
+ * advertises what it supports and a feature is used only if both do.
+ *
+ * Payload: [version:1][capabilities:1][publicKey:32][stream:8][node:8]
+ *
+ * The X25519 public key is only present when CAP_ENCRYPT is advertised, the
+ * stream id that numbers the sender's sequenced frames only with CAP_ACK,
+ * and the sender's mesh node id only with CAP_RELAY.
+ */
+public final class Handshake {
+    public static final int VERSION = 1;
+
+    // Capability bits
+    public static final int CAP_DEFLATE = 0x01;
+    public static final int CAP_HEARTBEAT = 0x02;
+    public static final int CAP_RELAY = 0x04;
+    public static final int CAP_ENCRYPT = 0x08;
+    public static final int CAP_ACK = 0x10;
+
+    public static final int LOCAL_CAPABILITIES = CAP_DEFLATE | CAP_HEARTBEAT | CAP_RELAY | CAP_ENCRYPT | CAP_ACK;
+
+    private static final int STREAM_SIZE = 8;
+    private static final int NODE_SIZE = 8;
+
+    private Handshake() {
+    }
+
+    public static byte[] encode(int capabilities) {
+        return encode(capabilities, null, 0);
+    }
+
+    public static byte[] encode(int capabilities, byte[] publicKey) {
+        return encode(capabilities, publicKey, 0);
+    }
+
+    public static byte[] encode(int capabilities, byte[] publicKey, long stream) {
+        return encode(capabilities, publicKey, stream, 0);
+    }
+
+    // CAP_ENCRYPT follows publicKey being non-null; the stream id is written if CAP_ACK is set, the node if CAP_RELAY
+    public static byte[] encode(int capabilities, byte[] publicKey, long stream, long node) {
+        capabilities = publicKey != null ? capabilities | CAP_ENCRYPT : capabilities & ~CAP_ENCRYPT;
+        boolean acks = (capabilities & CAP_ACK) != 0;
+        boolean relays = (capabilities & CAP_RELAY) != 0;
+        byte[] hello = new byte[2 + (publicKey != null ? publicKey.length : 0) + (acks ? STREAM_SIZE : 0)
+                + (relays ? NODE_SIZE : 0)];
+        hello[0] = (byte) VERSION;
+        hello[1] = (byte) capabilities;
+        int offset = 2;
+        if (publicKey != null) {
+            System.arraycopy(publicKey, 0, hello, offset, publicKey.length);
+            offset += publicKey.length;
+        }
+        if (acks) {
+            offset = putLong(hello, offset, stream);
+        }
+        if (relays) {
+            putLong(hello, offset, node);
+        }
+        return hello;
+    }
+
+    // Returns the peer's capabilities; later versions may append fields, which are ignored
+    public static int parseCapabilities(byte[] payload, int offset, int length) throws ProtocolException {
+        if (length < 2) {
+            throw new ProtocolException("Truncated HELLO");
+        }
+        return payload[offset + 1] & 0xFF;
+    }
+
+    // The peer's X25519 public key, or null if it did not send one
+    public static byte[] parsePublicKey(byte[] payload, int offset, int length) throws ProtocolException {
+        int capabilities = parseCapabilities(payload, offset, length);
+        if ((capabilities & CAP_ENCRYPT) == 0) {
+            return null;
+        }
+        if (length < 2 + X25519.KEY_SIZE) {
+            throw new ProtocolException("HELLO without a public key");
+        }
+        return Arrays.copyOfRange(payload, offset + 2, offset + 2 + X25519.KEY_SIZE);
+    }
+
+    // The id of the peer's sequence stream; only meaningful if it advertised CAP_ACK
+    public static long parseStream(byte[] payload, int offset, int length) throws ProtocolException {
+        int capabilities = parseCapabilities(payload, offset, length);
+        int position = 2 + ((capabilities & CAP_ENCRYPT) != 0 ? X25519.KEY_SIZE : 0);
+        if ((capabilities & CAP_ACK) == 0) {
+            return 0;
+        }
+        if (length < position + STREAM_SIZE) {
+            throw new ProtocolException("HELLO without a stream id");
+        }
+        return getLong(payload, offset + position);
+    }
+
+    // The peer's mesh node id, or 0 if it does not relay or predates node ids
+    public static long parseNode(byte[] payload, int offset, int length) throws ProtocolException {
+        int capabilities = parseCapabilities(payload, offset, length);
+        int position = 2 + ((capabilities & CAP_ENCRYPT) != 0 ? X25519.KEY_SIZE : 0)
+                + ((capabilities & CAP_ACK) != 0 ? STREAM_SIZE : 0);
+        if ((capabilities & CAP_RELAY) == 0 || length < position + NODE_SIZE) {
+            return 0;
+        }
+        return getLong(payload, offset + position);
+    }
+
+    private static int putLong(byte[] buffer, int offset, long value) {
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            buffer[offset++] = (byte) (value >>> shift);
+        }
+        return offset;
+    }
+
+    private static long getLong(byte[] buffer, int offset) {
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = (value << 8) | (buffer[offset + i] & 0xFF);
+        }
+        return value;
+    }
+}
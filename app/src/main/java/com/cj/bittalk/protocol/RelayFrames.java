@@ -0,0 +1,57 @@
+package com.cj.bittalk.protocol;
+
+import java.net.ProtocolException;
+
+/**
+ * Payload layout of RELAY frames, chat messages flooded through the mesh.
+ * All integers are big-endian.
+ *
+ * RELAY: [messageId:8][origin:8][ttl:1][message:UTF-8]
+ *
+ * messageId and origin together identify the message on every hop; ttl is
+ * the number of hops it may still travel and goes down by one per hop.
+ */
+public final class RelayFrames {
+    public static final int HEADER_SIZE = 17;
+
+    private RelayFrames() {
+    }
+
+    public static byte[] relay(long messageId, long origin, int ttl, byte[] body, int offset, int length) {
+        byte[] payload = new byte[HEADER_SIZE + length];
+        TransferFrames.putLong(payload, 0, messageId);
+        TransferFrames.putLong(payload, 8, origin);
+        payload[16] = (byte) ttl;
+        System.arraycopy(body, offset, payload, HEADER_SIZE, length);
+        return payload;
+    }
+
+    // Copy of a received frame to pass on, with the given remaining ttl
+    public static byte[] forward(byte[] payload, int offset, int length, int ttl) {
+        byte[] copy = new byte[length];
+        System.arraycopy(payload, offset, copy, 0, length);
+        copy[16] = (byte) ttl;
+        return copy;
+    }
+
+    public static long messageId(byte[] payload, int offset, int length) throws ProtocolException {
+        require(length);
+        return TransferFrames.getLong(payload, offset);
+    }
+
+    public static long origin(byte[] payload, int offset, int length) throws ProtocolException {
+        require(length);
+        return TransferFrames.getLong(payload, offset + 8);
+    }
+
+    public static int ttl(byte[] payload, int offset, int length) throws ProtocolException {
+        require(length);
+        return payload[offset + 16] & 0xFF;
+    }
+
+    private static void require(int length) throws ProtocolException {
+        if (length < HEADER_SIZE) {
+            throw new ProtocolException("Truncated relay frame");
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package com.cj.bittalk.protocol;
+
+import java.net.ProtocolException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Key agreement of one connection. Each end makes an ephemeral X25519 key
+ * pair and sends the public half in its HELLO. The shared secret goes through
+ * HKDF-SHA256, salted with both public keys, into one AES-256 key per
+ * direction: the end with the smaller public key sends with the first.
+ *
+ * Nothing here authenticates the peer, so this protects against listeners,
+ * not against an active man in the middle.
+ */
+public class SecureChannel {
+    private static final byte[] INFO = "BitTalk frame keys v1".getBytes(StandardCharsets.US_ASCII);
+    private static final int KEY_SIZE = 32;
+
+    private final byte[] privateKey;
+    private final byte[] publicKey;
+    private FrameCipher encryptor;
+    private FrameCipher decryptor;
+
+    public SecureChannel(SecureRandom random) {
+        privateKey = X25519.generatePrivateKey(random);
+        publicKey = X25519.publicKey(privateKey);
+    }
+
+    public byte[] getPublicKey() {
+        return publicKey.clone();
+    }
+
+    // Derives both directions' ciphers from the peer's public key
+    public void establish(byte[] peerPublicKey) throws ProtocolException {
+        if (peerPublicKey.length != X25519.KEY_SIZE || Arrays.equals(peerPublicKey, publicKey)) {
+            throw new ProtocolException("Invalid peer key");
+        }
+        byte[] secret = X25519.sharedSecret(privateKey, peerPublicKey);
+        if (isZero(secret)) {
+            throw new ProtocolException("Peer key is a low-order point");
+        }
+
+        boolean first = compare(publicKey, peerPublicKey) < 0;
+        byte[] salt = new byte[2 * X25519.KEY_SIZE];
+        System.arraycopy(first ? publicKey : peerPublicKey, 0, salt, 0, X25519.KEY_SIZE);
+        System.arraycopy(first ? peerPublicKey : publicKey, 0, salt, X25519.KEY_SIZE, X25519.KEY_SIZE);
+
+        try {
+            byte[] keys = hkdf(salt, secret, 2 * KEY_SIZE);
+            byte[] firstKey = Arrays.copyOfRange(keys, 0, KEY_SIZE);
+            byte[] secondKey = Arrays.copyOfRange(keys, KEY_SIZE, 2 * KEY_SIZE);
+            encryptor = FrameCipher.encryptor(first ? firstKey : secondKey);
+            decryptor = FrameCipher.decryptor(first ? secondKey : firstKey);
+            Arrays.fill(keys, (byte) 0);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("AES-GCM or HmacSHA256 unavailable", e);
+        } finally {
+            Arrays.fill(secret, (byte) 0);
+        }
+    }
+
+    public FrameCipher getEncryptor() {
+        return encryptor;
+    }
+
+    public FrameCipher getDecryptor() {
+        return decryptor;
+    }
+
+    // RFC 5869, extract then expand
+    static byte[] hkdf(byte[] salt, byte[] inputKey, int length) throws GeneralSecurityException {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(salt, "HmacSHA256"));
+        byte[] pseudoRandomKey = mac.doFinal(inputKey);
+
+        mac.init(new SecretKeySpec(pseudoRandomKey, "HmacSHA256"));
+        byte[] out = new byte[length];
+        byte[] block = new byte[0];
+        for (int i = 1, written = 0; written < length; i++) {
+            mac.update(block);
+            mac.update(INFO);
+            mac.update((byte) i);
+            block = mac.doFinal();
+            int n = Math.min(block.length, length - written);
+            System.arraycopy(block, 0, out, written, n);
+            written += n;
+        }
+        return out;
+    }
+
+    private static int compare(byte[] a, byte[] b) {
+        for (int i = 0; i < a.length; i++) {
+            int diff = (a[i] & 0xFF) - (b[i] & 0xFF);
+            if (diff != 0) {
+                return diff;
+            }
+        }
+        return 0;
+    }
+
+    private static boolean isZero(byte[] bytes) {
+        int bits = 0;
+        for (byte b : bytes) {
+            bits |= b;
+        }
+        return bits == 0;
+    }
+}
@@ -0,0 +1,86 @@
+package com.cj.bittalk.protocol;
+
+import java.net.ProtocolException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Payload layouts of the file transfer frames. All integers are big-endian.
+ *
+ * OFFER:  [id:8][size:8][nameLength:2][name:UTF-8]
+ * RESUME: [id:8][offset:8]   receiver asks for data from offset onwards
+ * CHUNK:  [id:8][offset:8][data]
+ * ACK:    [id:8][offset:8]   everything before offset is on the receiver's disk
+ * CANCEL: [id:8]
+ */
+public final class TransferFrames {
+    public static final int CHUNK_HEADER_SIZE = 16;
+
+    private TransferFrames() {
+    }
+
+    public static byte[] offer(long id, long size, String name) {
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        int nameLength = Math.min(nameBytes.length, 0xFFFF);
+        byte[] payload = new byte[18 + nameLength];
+        putLong(payload, 0, id);
+        putLong(payload, 8, size);
+        payload[16] = (byte) (nameLength >>> 8);
+        payload[17] = (byte) nameLength;
+        System.arraycopy(nameBytes, 0, payload, 18, nameLength);
+        return payload;
+    }
+
+    public static String offerName(byte[] payload, int offset, int length) throws ProtocolException {
+        require(length, 18);
+        int nameLength = ((payload[offset + 16] & 0xFF) << 8) | (payload[offset + 17] & 0xFF);
+        require(length, 18 + nameLength);
+        return new String(payload, offset + 18, nameLength, StandardCharsets.UTF_8);
+    }
+
+    // RESUME, ACK and CANCEL share the [id][offset] layout
+    public static byte[] idAndOffset(long id, long position) {
+        byte[] payload = new byte[16];
+        putLong(payload, 0, id);
+        putLong(payload, 8, position);
+        return payload;
+    }
+
+    public static byte[] cancel(long id) {
+        byte[] payload = new byte[8];
+        putLong(payload, 0, id);
+        return payload;
+    }
+
+    // Reads the id common to every transfer frame
+    public static long id(byte[] payload, int offset, int length) throws ProtocolException {
+        require(length, 8);
+        return getLong(payload, offset);
+    }
+
+    // Reads the size of an OFFER or the offset of RESUME, ACK and CHUNK
+    public static long position(byte[] payload, int offset, int length) throws ProtocolException {
+        require(length, 16);
+        return getLong(payload, offset + 8);
+    }
+
+    public static void putLong(byte[] dst, int offset, long value) {
+        for (int i = 7; i >= 0; i--) {
+            dst[offset + i] = (byte) value;
+            value >>>= 8;
+        }
+    }
+
+    public static long getLong(byte[] src, int offset) {
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = (value << 8) | (src[offset + i] & 0xFF);
+        }
+        return value;
+    }
+
+    private static void require(int length, int needed) throws ProtocolException {
+        if (length < needed) {
+            throw new ProtocolException("Truncated transfer frame");
+        }
+    }
+}
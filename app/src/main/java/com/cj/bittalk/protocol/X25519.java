@@ -0,0 +1,110 @@
+package com.cj.bittalk.protocol;
+
+import java.math.BigInteger;
+import java.security.SecureRandom;
+
+/**
+ * X25519 key agreement (RFC 7748), for API levels whose providers lack it.
+ *
+ * The Montgomery ladder runs on BigInteger, which takes a few milliseconds
+ * and is not constant-time. It runs once per connection on fresh ephemeral
+ * keys, so there is no long-lived secret for timing to leak.
+ */
+public final class X25519 {
+    public static final int KEY_SIZE = 32;
+
+    private static final BigInteger P = BigInteger.ONE.shiftLeft(255).subtract(BigInteger.valueOf(19));
+    private static final BigInteger A24 = BigInteger.valueOf(121665);
+    private static final byte[] BASE_POINT = new byte[KEY_SIZE];
+
+    static {
+        BASE_POINT[0] = 9;
+    }
+
+    private X25519() {
+    }
+
+    public static byte[] generatePrivateKey(SecureRandom random) {
+        byte[] key = new byte[KEY_SIZE];
+        random.nextBytes(key);
+        return key;
+    }
+
+    public static byte[] publicKey(byte[] privateKey) {
+        return scalarMult(privateKey, BASE_POINT);
+    }
+
+    // The shared secret; all zeros if the peer sent a low-order point
+    public static byte[] sharedSecret(byte[] privateKey, byte[] peerPublicKey) {
+        return scalarMult(privateKey, peerPublicKey);
+    }
+
+    static byte[] scalarMult(byte[] scalar, byte[] uCoordinate) {
+        byte[] k = scalar.clone();
+        k[0] &= (byte) 248;
+        k[31] &= 127;
+        k[31] |= 64;
+        BigInteger kInt = decodeLittleEndian(k);
+
+        byte[] u = uCoordinate.clone();
+        u[31] &= 127;
+        BigInteger x1 = decodeLittleEndian(u).mod(P);
+
+        BigInteger x2 = BigInteger.ONE;
+        BigInteger z2 = BigInteger.ZERO;
+        BigInteger x3 = x1;
+        BigInteger z3 = BigInteger.ONE;
+        boolean swap = false;
+
+        for (int t = 254; t >= 0; t--) {
+            boolean bit = kInt.testBit(t);
+            if (swap != bit) {
+                BigInteger tmp = x2;
+                x2 = x3;
+                x3 = tmp;
+                tmp = z2;
+                z2 = z3;
+                z3 = tmp;
+            }
+            swap = bit;
+
+            BigInteger a = x2.add(z2);
+            BigInteger aa = a.multiply(a).mod(P);
+            BigInteger b = x2.subtract(z2);
+            BigInteger bb = b.multiply(b).mod(P);
+            BigInteger e = aa.subtract(bb);
+            BigInteger c = x3.add(z3);
+            BigInteger d = x3.subtract(z3);
+            BigInteger da = d.multiply(a).mod(P);
+            BigInteger cb = c.multiply(b).mod(P);
+            BigInteger sum = da.add(cb);
+            BigInteger diff = da.subtract(cb);
+            x3 = sum.multiply(sum).mod(P);
+            z3 = x1.multiply(diff.multiply(diff)).mod(P);
+            x2 = aa.multiply(bb).mod(P);
+            z2 = e.multiply(aa.add(A24.multiply(e))).mod(P);
+        }
+        if (swap) {
+            x2 = x3;
+            z2 = z3;
+        }
+        return encodeLittleEndian(x2.multiply(z2.modPow(P.subtract(BigInteger.valueOf(2)), P)).mod(P));
+    }
+
+    private static BigInteger decodeLittleEndian(byte[] bytes) {
+        byte[] bigEndian = new byte[bytes.length];
+        for (int i = 0; i < bytes.length; i++) {
+            bigEndian[bytes.length - 1 - i] = bytes[i];
+        }
+        return new BigInteger(1, bigEndian);
+    }
+
+    private static byte[] encodeLittleEndian(BigInteger value) {
+        byte[] bigEndian = value.toByteArray();
+        byte[] out = new byte[KEY_SIZE];
+        for (int i = 0; i < KEY_SIZE && i < bigEndian.length; i++) {
+            out[i] = bigEndian[bigEndian.length - 1 - i];
+        }
+        return out;
+    }
+}
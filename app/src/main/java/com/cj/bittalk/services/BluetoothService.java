@@ -3,33 +3,119 @@ package com.cj.bittalk.services;
 import android.Manifest;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothServerSocket;
-import android.bluetooth.BluetoothSocket;
 import android.content.Context;
 import android.os.Handler;
 import android.os.Looper;
 import android.util.Log;
+import android.view.Choreographer;
 
 import androidx.annotation.RequiresPermission;
 
+import com.cj.bittalk.mesh.MeshRelay;
+import com.cj.bittalk.metrics.LinkMetrics;
+import com.cj.bittalk.metrics.MetricsSnapshot;
+import com.cj.bittalk.outbox.Outbox;
+import com.cj.bittalk.protocol.CompressionStats;
+import com.cj.bittalk.protocol.Frame;
+import com.cj.bittalk.protocol.FrameCipher;
+import com.cj.bittalk.protocol.FrameCompressor;
+import com.cj.bittalk.protocol.FrameDecoder;
+import com.cj.bittalk.protocol.FrameDecompressor;
+import com.cj.bittalk.protocol.Handshake;
+import com.cj.bittalk.protocol.SecureChannel;
+import com.cj.bittalk.transfer.TransferManager;
+import com.cj.bittalk.transport.RfcommTransport;
+import com.cj.bittalk.transport.Transport;
+import com.cj.bittalk.transport.TransportServerSocket;
+import com.cj.bittalk.transport.TransportSocket;
+
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.net.ProtocolException;
 import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * Manages up to MAX_SESSIONS concurrent connections, keyed by remote address.
+ * The accept loop keeps running while sessions are connected, and every
+ * session has its own reader, writer, state and listener.
+ */
 public class BluetoothService {
     private static final String TAG = "BluetoothService";
     private static final String APP_NAME = "BitTalk";
     private static final UUID MY_UUID = UUID.fromString("fa87c0d0-afac-11de-8a39-0800200c9a66");
 
-    private final BluetoothAdapter bluetoothAdapter;
-    private final Handler handler;
-    private AcceptThread acceptThread;
-    private ConnectThread connectThread;
-    private ConnectedThread connectedThread;
-    private int state;
-    private BluetoothConnectionListener listener;
+    // Classic Bluetooth controllers support up to 7 active links
+    public static final int MAX_SESSIONS = 7;
+
+    // An idle link is pinged this often, and declared dead after this many pings go unanswered
+    public static final long HEARTBEAT_INTERVAL_MILLIS = 3000;
+    public static final int MAX_MISSED_PINGS = 3;
+    // A receiver acknowledges every ACK_EVERY sequenced frames, or ACK_DELAY_MILLIS after the first it owes
+    public static final int ACK_EVERY = 16;
+    public static final long ACK_DELAY_MILLIS = 40;
+    // Frames left unacknowledged by an earlier link are resent at most this many at a time,
+    // and retried after RESEND_RETRY_MILLIS when the writer has no room for them
+    private static final int RESEND_WINDOW = 64;
+    private static final long RESEND_RETRY_MILLIS = 20;
+
+    // Sizing of the I/O pool: the blocking loops take one thread for accept plus two per session,
+    // a connect or read task and a write task. SPARE_IO_THREADS on top are for one-shot work and
+    // for a redial that starts while a dropped session's loops are still winding down, so neither
+    // has to wait for a session to close. Idle threads die off, the spares cost nothing unused.
+    private static final int SPARE_IO_THREADS = 4;
+    private static final int IO_THREADS = 1 + 2 * MAX_SESSIONS + SPARE_IO_THREADS;
+
+    private final Transport transport;
+    private final Executor callbackExecutor;
+    private final MessageBatcher inboundMessages;
+    private final IoExecutor ioExecutor = new IoExecutor("bt-io", IO_THREADS);
+    private final TransferManager transferManager;
+    private final MeshRelay meshRelay;
+    private volatile Outbox outbox;
+    // Modified under the service lock, read without it on the send path
+    private final Map<String, Session> sessions = new ConcurrentHashMap<>();
+    private AcceptTask acceptTask;
+
+    // Peers we dialled ourselves; they are redialled with backoff when their link drops.
+    // Changed under the service lock, read without it when queueing broadcasts.
+    private final Map<String, Reconnect> reconnects = new ConcurrentHashMap<>();
+    // Runs reconnect backoff and connection heartbeats
+    private final ScheduledThreadPoolExecutor timer;
+    private ReconnectPolicy reconnectPolicy = ReconnectPolicy.DEFAULT;
+    private long heartbeatIntervalMillis = HEARTBEAT_INTERVAL_MILLIS;
+    private int maxMissedPings = MAX_MISSED_PINGS;
+    private boolean encryptionEnabled = true;
+    private final SecureRandom random = new SecureRandom();
+    // Sequence state per peer, kept across reconnects so only unacknowledged frames are resent
+    private final Map<String, DeliveryTracker> deliveries = new ConcurrentHashMap<>();
+    private final LinkMetrics metrics = new LinkMetrics();
+    private ScheduledFuture<?> metricsReporter;
+    private long reconnectAttempts;
+    private long reconnectCount;
+    private long reconnectGiveUps;
+    private long lastReconnectLatencyMillis;
+    private long totalReconnectLatencyMillis;
+    private boolean stopped = true;
+    private final ConnectionState state = new ConnectionState(ConnectionState.SERVICE_TRANSITIONS);
+    private volatile BluetoothConnectionListener listener;
 
     // Constants that indicate the current connection state
     public static final int STATE_NONE = 0;
@@ -40,197 +126,832 @@ public class BluetoothService {
     public interface BluetoothConnectionListener {
         void onStateChanged(int state);
         void onMessageReceived(String message);
+
+        /** Messages that arrived since the last frame, in order. */
+        default void onMessagesReceived(List<String> messages) {
+            for (String message : messages) {
+                onMessageReceived(message);
+            }
+        }
+
+        /** Like onMessagesReceived(messages), for listeners that keep peers apart. */
+        default void onMessagesReceived(String address, List<String> messages) {
+            onMessagesReceived(messages);
+        }
         void onMessageSent(String message);
         void onConnectionFailed();
         void onDeviceConnected(String deviceName);
     }
 
     public BluetoothService(Context context, BluetoothConnectionListener listener) {
-        bluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
-        handler = new Handler(Looper.getMainLooper());
-        state = STATE_NONE;
-        this.listener = listener;
+        this(new RfcommTransport(BluetoothAdapter.getDefaultAdapter(), APP_NAME, MY_UUID),
+                new Handler(Looper.getMainLooper()), listener);
+        transferManager.setDownloadDirectory(new File(context.getFilesDir(), "attachments"));
+        setOutboxDirectory(new File(context.getFilesDir(), "outbox"));
+    }
+
+    private BluetoothService(Transport transport, Handler mainHandler, BluetoothConnectionListener listener) {
+        // Received messages are drained on the next vsync, the Choreographer itself lives on the main thread
+        this(transport, mainHandler::post, drain -> mainHandler.post(() ->
+                Choreographer.getInstance().postFrameCallback(frameTimeNanos -> drain.run())), listener);
+    }
+
+    // Listener callbacks are delivered through callbackExecutor, which is the main thread on a device
+    public BluetoothService(Transport transport, Executor callbackExecutor, BluetoothConnectionListener listener) {
+        this(transport, callbackExecutor, callbackExecutor::execute, listener);
     }
 
-    private synchronized void setState(int state) {
-        Log.d(TAG, "setState() " + this.state + " -> " + state);
-        this.state = state;
+    BluetoothService(Transport transport, Executor callbackExecutor,
+                     MessageBatcher.FrameScheduler frameScheduler, BluetoothConnectionListener listener) {
+        this.transport = transport;
+        this.callbackExecutor = callbackExecutor;
+        inboundMessages = new MessageBatcher(frameScheduler, metrics.receiveToRender);
+        timer = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "bt-timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        timer.setKeepAliveTime(30, TimeUnit.SECONDS);
+        timer.allowCoreThreadTimeOut(true);
+        timer.setRemoveOnCancelPolicy(true);
+        this.listener = listener;
+        transferManager = new TransferManager(new TransferManager.FrameSink() {
+            @Override
+            public CompletableFuture<Void> sendFrame(String address, int type, byte[] payload, int offset, int length) {
+                return BluetoothService.this.sendFrame(address, type, payload, offset, length);
+            }
+
+            @Override
+            public boolean isConnected(String address) {
+                return getState(address) == STATE_CONNECTED;
+            }
+        }, callbackExecutor);
+        meshRelay = new MeshRelay(new MeshRelay.Links() {
+            @Override
+            public void deliver(long origin, String fromAddress, byte[] message, int offset, int length) {
+                String address = addressOfNode(origin);
+                Session session = sessions.get(address);
+                BluetoothConnectionListener target = session != null ? session.listener : listener;
+                if (target != null) {
+                    inboundMessages.offer(target, address, new String(message, offset, length, StandardCharsets.UTF_8));
+                }
+            }
 
-        handler.post(() -> {
-            if (listener != null) {
-                listener.onStateChanged(state);
+            @Override
+            public int forward(byte[] frame, String exceptAddress) {
+                int links = 0;
+                for (Session session : sessions.values()) {
+                    ConnectedTask task = session.connectedTask();
+                    if (task != null && task.peerRelays() && !session.address.equals(exceptAddress)) {
+                        task.writeChat(Frame.TYPE_RELAY, frame, null);
+                        links++;
+                    }
+                }
+                return links;
             }
         });
     }
 
-    public synchronized int getState() {
-        return state;
+    // Recomputes the overall state from the accept loop and the sessions
+    private synchronized void updateState() {
+        int newState = acceptTask != null ? STATE_LISTEN : STATE_NONE;
+        for (Session session : sessions.values()) {
+            newState = Math.max(newState, session.state.get());
+        }
+        for (Reconnect reconnect : reconnects.values()) {
+            if (reconnect.lostAtNanos != 0) {
+                // A dropped peer that is being redialled still counts as connecting
+                newState = Math.max(newState, STATE_CONNECTING);
+            }
+        }
+        if (newState != state.get() && state.moveTo(newState)) {
+            state.publish(callbackExecutor, notified -> {
+                BluetoothConnectionListener serviceListener = listener;
+                if (serviceListener != null) {
+                    serviceListener.onStateChanged(notified);
+                }
+            });
+        }
     }
 
-    @RequiresPermission(Manifest.permission.BLUETOOTH_CONNECT)
-    public synchronized void start() {
-        Log.d(TAG, "start");
+    // Lock-free, safe to call from any thread
+    public int getState() {
+        return state.get();
+    }
 
-        // Cancel any thread attempting to make a connection
-        if (connectThread != null) {
-            connectThread.cancel();
-            connectThread = null;
+    // Sends files over the connected sessions and receives them into the download directory
+    public TransferManager getTransferManager() {
+        return transferManager;
+    }
+
+    // Messages for peers that are not connected are kept here until they are; without it they fail
+    public synchronized void setOutboxDirectory(File directory) {
+        if (outbox != null) {
+            outbox.close();
         }
+        outbox = new Outbox(directory, (address, payload, receipt) -> {
+            Session session = sessions.get(address);
+            ConnectedTask task = session != null ? session.connectedTask() : null;
+            return task != null ? task.deliverChat(Frame.TYPE_MESSAGE, payload, receipt) : notConnected();
+        });
+    }
+
+    // Floods broadcasts through peers that relay, and counts what it forwarded or dropped
+    public MeshRelay getMeshRelay() {
+        return meshRelay;
+    }
 
-        // Cancel any thread currently running a connection
-        if (connectedThread != null) {
-            connectedThread.cancel();
-            connectedThread = null;
+    public Outbox getOutbox() {
+        return outbox;
+    }
+
+    // Exposes live task counts and queued/running time of the I/O pool
+    public IoExecutor getIoExecutor() {
+        return ioExecutor;
+    }
+
+    // The link to a mesh node if it is a direct peer, otherwise the address its relayed messages go under
+    private String addressOfNode(long node) {
+        for (Session session : sessions.values()) {
+            ConnectedTask task = session.connectedTask();
+            if (task != null && node != 0 && task.peerNode() == node) {
+                return session.address;
+            }
         }
+        return MeshRelay.nodeAddress(node);
+    }
 
-        setState(STATE_LISTEN);
+    public int getState(String address) {
+        Session session = sessions.get(address);
+        return session != null ? session.state.get() : STATE_NONE;
+    }
 
-        // Start the thread to listen on a BluetoothServerSocket
-        if (acceptThread == null) {
-            acceptThread = new AcceptThread();
-            acceptThread.start();
+    public List<String> getConnectedAddresses() {
+        List<String> addresses = new ArrayList<>();
+        for (Session session : sessions.values()) {
+            if (session.state.get() == STATE_CONNECTED) {
+                addresses.add(session.address);
+            }
         }
+        return addresses;
     }
 
-    public synchronized void connect(BluetoothDevice device) {
-        Log.d(TAG, "connect to: " + device);
+    // Compression counters of a connected peer, or null if there is no such session
+    public synchronized CompressionStats getCompressionStats(String address) {
+        Session session = sessions.get(address);
+        if (session == null || session.connectedTask == null) {
+            return null;
+        }
+        return session.connectedTask.getCompressionStats();
+    }
+
+    // Applies to connections established from now on
+    public synchronized void setHeartbeat(long intervalMillis, int maxMissedPings) {
+        this.heartbeatIntervalMillis = intervalMillis;
+        this.maxMissedPings = maxMissedPings;
+    }
+
+    // Applies to connections established from now on; both ends must allow it
+    public synchronized void setEncryptionEnabled(boolean encryptionEnabled) {
+        this.encryptionEnabled = encryptionEnabled;
+    }
 
-        // Cancel any thread attempting to make a connection
-        if (state == STATE_CONNECTING) {
-            if (connectThread != null) {
-                connectThread.cancel();
-                connectThread = null;
+    // Whether frames to and from a connected peer are encrypted
+    public synchronized boolean isEncrypted(String address) {
+        Session session = sessions.get(address);
+        return session != null && session.connectedTask != null && session.connectedTask.isEncrypted();
+    }
+
+    // Acknowledgement counters of a peer, or null if nothing was ever sent to or received from it
+    public DeliveryStats getDeliveryStats(String address) {
+        DeliveryTracker tracker = deliveries.get(address);
+        return tracker != null ? tracker.snapshot() : null;
+    }
+
+    // RTT, jitter and throughput of a connected peer, or null if there is no such session
+    public synchronized LinkStats getLinkStats(String address) {
+        Session session = sessions.get(address);
+        if (session == null || session.connectedTask == null) {
+            return null;
+        }
+        return session.connectedTask.getLinkStats();
+    }
+
+    // Queue depth and enqueue-to-socket latency per priority class of a connected peer, or null
+    public synchronized List<StreamStats> getStreamStats(String address) {
+        Session session = sessions.get(address);
+        if (session == null || session.connectedTask == null) {
+            return null;
+        }
+        return session.connectedTask.mmWriter.getStreamStats();
+    }
+
+    // Pass null to stop redialling peers whose link dropped
+    public synchronized void setReconnectPolicy(ReconnectPolicy reconnectPolicy) {
+        this.reconnectPolicy = reconnectPolicy;
+    }
+
+    public synchronized ReconnectStats getReconnectStats() {
+        return new ReconnectStats(reconnectAttempts, reconnectCount, reconnectGiveUps,
+                lastReconnectLatencyMillis, totalReconnectLatencyMillis);
+    }
+
+    // Counters and latency histograms of all links, recorded for the lifetime of the service
+    public LinkMetrics getMetrics() {
+        return metrics;
+    }
+
+    public MetricsSnapshot snapshotMetrics() {
+        int queueDepth = 0;
+        for (Session session : sessions.values()) {
+            ConnectedTask task = session.connectedTask;
+            if (task != null) {
+                queueDepth += task.mmWriter.queueDepth();
             }
         }
+        return metrics.snapshot(queueDepth);
+    }
 
-        // Cancel any thread currently running a connection
-        if (connectedThread != null) {
-            connectedThread.cancel();
-            connectedThread = null;
+    // Reports a snapshot every periodMillis on the callback executor; pass null to stop
+    public synchronized void setMetricsListener(LinkMetrics.Listener metricsListener, long periodMillis) {
+        if (metricsReporter != null) {
+            metricsReporter.cancel(false);
+            metricsReporter = null;
         }
+        if (metricsListener != null) {
+            metricsReporter = timer.scheduleWithFixedDelay(() -> {
+                MetricsSnapshot snapshot = snapshotMetrics();
+                callbackExecutor.execute(() -> metricsListener.onMetrics(snapshot));
+            }, 0, periodMillis, TimeUnit.MILLISECONDS);
+        }
+    }
 
-        // Start the thread to connect with the given device
-        connectThread = new ConnectThread(device);
-        connectThread.start();
-        setState(STATE_CONNECTING);
+    // Routes callbacks for one peer to its own listener instead of the service listener
+    public synchronized void setSessionListener(String address, BluetoothConnectionListener sessionListener) {
+        Session session = sessions.get(address);
+        if (session != null) {
+            session.listener = sessionListener;
+        }
     }
 
     @RequiresPermission(Manifest.permission.BLUETOOTH_CONNECT)
-    public synchronized void connected(BluetoothSocket socket, BluetoothDevice device) {
-        Log.d(TAG, "connected");
+    public synchronized void start() {
+        Log.d(TAG, "start");
+        stopped = false;
 
-        // Cancel the thread that completed the connection
-        if (connectThread != null) {
-            connectThread.cancel();
-            connectThread = null;
+        // Cancel all connections and connection attempts
+        for (Session session : new ArrayList<>(sessions.values())) {
+            session.cancel();
+        }
+        sessions.clear();
+        cancelReconnects();
+        for (String address : deliveries.keySet()) {
+            discardDeliveries(address);
         }
 
-        // Cancel any thread currently running a connection
-        if (connectedThread != null) {
-            connectedThread.cancel();
-            connectedThread = null;
+        // Start listening on a server socket
+        if (acceptTask == null) {
+            startAccepting();
         }
+        updateState();
+    }
 
-        // Cancel the accept thread because we only want to connect to one device
-        if (acceptThread != null) {
-            acceptThread.cancel();
-            acceptThread = null;
+    @RequiresPermission(Manifest.permission.BLUETOOTH_CONNECT)
+    private synchronized void startAccepting() {
+        acceptTask = new AcceptTask();
+        if (!ioExecutor.submit(acceptTask)) {
+            acceptTask.cancel();
+            acceptTask = null;
         }
+    }
 
-        // Start the thread to manage the connection and perform transmissions
-        connectedThread = new ConnectedThread(socket);
-        connectedThread.start();
+    public void connect(BluetoothDevice device) {
+        connect(device.getAddress());
+    }
+
+    public void connect(String address) {
+        connect(address, null);
+    }
+
+    public synchronized void connect(String address, BluetoothConnectionListener sessionListener) {
+        Log.d(TAG, "connect to: " + address);
+        stopped = false;
+        if (dial(address, sessionListener) == null) {
+            notifyConnectionFailed(sessionListener != null ? sessionListener : listener);
+        }
+    }
+
+    // Starts a connect attempt, or returns null if there is no link left for it
+    private synchronized Session dial(String address, BluetoothConnectionListener sessionListener) {
+        Session session = sessions.get(address);
+        if (session != null && session.state.get() == STATE_CONNECTED) {
+            // Already talking to this peer
+            if (sessionListener != null) {
+                session.listener = sessionListener;
+            }
+            return session;
+        }
+
+        // Cancel any previous attempt to reach the same peer
+        if (session != null) {
+            session.cancel();
+            sessions.remove(address);
+        }
+        if (sessions.size() >= MAX_SESSIONS) {
+            Log.w(TAG, "Too many sessions, not connecting to " + address);
+            return null;
+        }
+
+        // Start the task to connect with the given device
+        session = new Session(address, sessionListener != null ? sessionListener : listener);
+        session.outgoing = true;
+        session.dialStartedNanos = System.nanoTime();
+        session.state.moveTo(STATE_CONNECTING);
+        sessions.put(address, session);
+        session.connectTask = new ConnectTask(session);
+        session.notifyState();
+        if (!ioExecutor.submit(session.connectTask)) {
+            session.connectTask.cancel();
+            connectionFailed(session);
+            return session;
+        }
+        updateState();
+        return session;
+    }
+
+    @RequiresPermission(Manifest.permission.BLUETOOTH_CONNECT)
+    public synchronized void connected(TransportSocket socket) {
+        connected(socket, null);
+    }
+
+    private synchronized void connected(TransportSocket socket, Session session) {
+        String address = socket.getRemoteAddress();
+        Log.d(TAG, "connected " + address);
+
+        Session existing = sessions.get(address);
+        if (session == null) {
+            // Incoming connection: an attempt of our own to the same peer gives way to it
+            if (existing != null && existing.state.get() == STATE_CONNECTED) {
+                Log.w(TAG, "Already connected to " + address + ", closing new socket");
+                closeQuietly(socket);
+                return;
+            }
+            session = new Session(address, existing != null ? existing.listener : listener);
+        }
+        if (existing != null && existing != session) {
+            if (existing.state.get() == STATE_CONNECTED) {
+                // The peer got through to us first, keep the healthy link
+                Log.w(TAG, "Already connected to " + address + ", closing dialled socket");
+                closeQuietly(socket);
+                return;
+            }
+            existing.cancel();
+        }
+        sessions.put(address, session);
+
+        // Start the tasks that manage the connection and perform transmissions
+        session.connectTask = null;
+        session.connectedTask = new ConnectedTask(session, socket);
+        if (!session.connectedTask.start()) {
+            session.connectedTask.cancel();
+            connectionLost(session);
+            return;
+        }
 
         // Send the name of the connected device back to the UI Activity
-        String deviceName = device.getName();
-        handler.post(() -> {
-            if (listener != null) {
-                listener.onDeviceConnected(deviceName);
+        String deviceName = socket.getRemoteName();
+        BluetoothConnectionListener sessionListener = session.listener;
+        callbackExecutor.execute(() -> {
+            if (sessionListener != null) {
+                sessionListener.onDeviceConnected(deviceName);
             }
         });
 
-        setState(STATE_CONNECTED);
+        session.state.moveTo(STATE_CONNECTED);
+        session.notifyState();
+        if (session.dialStartedNanos != 0) {
+            metrics.connectTime.record(System.nanoTime() - session.dialStartedNanos);
+        }
+
+        Reconnect reconnect = reconnects.get(address);
+        if (reconnect != null) {
+            reconnected(reconnect);
+        } else if (session.outgoing) {
+            reconnects.put(address, new Reconnect(address));
+        }
+        updateState();
+
+        // Deliver what was queued while the peer was away, then resume interrupted file transfers
+        if (outbox != null) {
+            outbox.startDraining(address);
+        }
+        transferManager.onSessionOpened(address);
+    }
+
+    public synchronized void disconnect(String address) {
+        Reconnect reconnect = reconnects.remove(address);
+        if (reconnect != null) {
+            reconnect.cancel();
+        }
+        discardDeliveries(address);
+        Session session = sessions.remove(address);
+        if (session != null) {
+            session.cancel();
+            updateState();
+        }
     }
 
     public synchronized void stop() {
         Log.d(TAG, "stop");
+        stopped = true;
 
-        if (connectThread != null) {
-            connectThread.cancel();
-            connectThread = null;
+        for (Session session : sessions.values()) {
+            session.cancel();
         }
+        sessions.clear();
+        cancelReconnects();
+        for (String address : deliveries.keySet()) {
+            discardDeliveries(address);
+        }
+
+        if (acceptTask != null) {
+            acceptTask.cancel();
+            acceptTask = null;
+        }
+
+        updateState();
+    }
+
+    // Queues a chat message for every connected peer; the future completes once all of them have it
+    public CompletableFuture<Void> sendMessage(String message) {
+        return broadcast(message.getBytes(StandardCharsets.UTF_8), message, null);
+    }
+
+    public CompletableFuture<Void> sendMessage(String address, String message) {
+        return send(address, message.getBytes(StandardCharsets.UTF_8), message, null);
+    }
 
-        if (connectedThread != null) {
-            connectedThread.cancel();
-            connectedThread = null;
+    // Like sendMessage(), and also reports when every peer has acknowledged the message
+    public Delivery sendTracked(String message) {
+        List<CompletableFuture<Void>> receipts = new ArrayList<>();
+        return tracked(broadcast(message.getBytes(StandardCharsets.UTF_8), message, receipts), receipts);
+    }
+
+    public Delivery sendTracked(String address, String message) {
+        List<CompletableFuture<Void>> receipts = new ArrayList<>();
+        return tracked(send(address, message.getBytes(StandardCharsets.UTF_8), message, receipts), receipts);
+    }
+
+    public CompletableFuture<Void> write(byte[] out) {
+        return broadcast(out, null, null);
+    }
+
+    public CompletableFuture<Void> write(String address, byte[] out) {
+        return send(address, out, null, null);
+    }
+
+    // A failed write may still be acknowledged after a resend, so the receipts alone decide
+    private static Delivery tracked(CompletableFuture<Void> written, List<CompletableFuture<Void>> receipts) {
+        CompletableFuture<Void> acknowledged = receipts.isEmpty()
+                ? written : CompletableFuture.allOf(receipts.toArray(new CompletableFuture<?>[0]));
+        return new Delivery(written, acknowledged);
+    }
+
+    // Adds a receipt for one target to receipts, unless the caller does not track the message
+    private static CompletableFuture<Void> receipt(List<CompletableFuture<Void>> receipts) {
+        if (receipts == null) {
+            return null;
+        }
+        CompletableFuture<Void> receipt = new CompletableFuture<>();
+        receipts.add(receipt);
+        return receipt;
+    }
+
+    private CompletableFuture<Void> broadcast(byte[] payload, String message,
+                                              List<CompletableFuture<Void>> receipts) {
+        Outbox box = outbox;
+        List<CompletableFuture<Void>> writes = new ArrayList<>();
+        byte[] relayed = null;
+        for (Session session : sessions.values()) {
+            ConnectedTask task = session.connectedTask();
+            if (task == null) {
+                continue;
+            }
+            if (box != null && box.hasPending(session.address)) {
+                writes.add(box.enqueue(session.address, payload, receipt(receipts)));
+            } else if (task.peerRelays()) {
+                // One relay frame for all links, so every copy carries the same message id
+                if (relayed == null) {
+                    relayed = meshRelay.originate(payload);
+                }
+                writes.add(task.writeChat(Frame.TYPE_RELAY, relayed, receipt(receipts)));
+            } else {
+                writes.add(task.writeChat(Frame.TYPE_MESSAGE, payload, receipt(receipts)));
+            }
+        }
+        if (box != null) {
+            // Peers whose link dropped get it once they are back
+            for (Reconnect reconnect : reconnects.values()) {
+                if (reconnect.lostAtNanos != 0) {
+                    writes.add(box.enqueue(reconnect.address, payload, receipt(receipts)));
+                }
+            }
+        }
+        if (writes.isEmpty()) {
+            return notConnected();
         }
+        return notifySent(CompletableFuture.allOf(writes.toArray(new CompletableFuture<?>[0])),
+                listener, payload, message);
+    }
 
-        if (acceptThread != null) {
-            acceptThread.cancel();
-            acceptThread = null;
+    private CompletableFuture<Void> send(String address, byte[] payload, String message,
+                                         List<CompletableFuture<Void>> receipts) {
+        Session session = sessions.get(address);
+        ConnectedTask task = session != null ? session.connectedTask() : null;
+        Outbox box = outbox;
+        if (box != null && (task == null || box.hasPending(address))) {
+            // Queued behind anything older, so the peer still sees messages in order
+            return notifySent(box.enqueue(address, payload, receipt(receipts)),
+                    session != null ? session.listener : listener, payload, message);
+        }
+        if (task == null) {
+            return notConnected();
         }
+        return notifySent(task.writeChat(Frame.TYPE_MESSAGE, payload, receipt(receipts)),
+                session.listener, payload, message);
+    }
 
-        setState(STATE_NONE);
+    // Reports the message once, after every target has written it to its socket
+    private CompletableFuture<Void> notifySent(CompletableFuture<Void> written,
+                                               BluetoothConnectionListener target,
+                                               byte[] payload, String message) {
+        return written.thenRun(() -> {
+            String sent = message != null ? message : new String(payload, StandardCharsets.UTF_8);
+            callbackExecutor.execute(() -> {
+                if (target != null) {
+                    target.onMessageSent(sent);
+                }
+            });
+        });
     }
 
-    public void write(byte[] out) {
-        ConnectedThread r;
-        synchronized (this) {
-            if (state != STATE_CONNECTED) return;
-            r = connectedThread;
+    private CompletableFuture<Void> sendFrame(String address, int type, byte[] payload, int offset, int length) {
+        Session session = sessions.get(address);
+        ConnectedTask task = session != null ? session.connectedTask() : null;
+        if (task == null) {
+            return notConnected();
         }
-        r.write(out);
+        return task.writeFrame(type, payload, offset, length);
     }
 
-    @RequiresPermission(Manifest.permission.BLUETOOTH_CONNECT)
-    private void connectionFailed() {
-        handler.post(() -> {
-            if (listener != null) {
-                listener.onConnectionFailed();
+    private static CompletableFuture<Void> notConnected() {
+        CompletableFuture<Void> notConnected = new CompletableFuture<>();
+        notConnected.completeExceptionally(new IOException("Not connected"));
+        return notConnected;
+    }
+
+    private void notifyConnectionFailed(BluetoothConnectionListener target) {
+        callbackExecutor.execute(() -> {
+            if (target != null) {
+                target.onConnectionFailed();
             }
         });
+    }
 
-        // Start the service over to restart listening mode
-        BluetoothService.this.start();
+    @RequiresPermission(Manifest.permission.BLUETOOTH_CONNECT)
+    private void connectionFailed(Session session) {
+        endSession(session);
     }
 
     @RequiresPermission(Manifest.permission.BLUETOOTH_CONNECT)
-    private void connectionLost() {
-        handler.post(() -> {
-            if (listener != null) {
-                listener.onConnectionFailed();
+    private void connectionLost(Session session) {
+        endSession(session);
+    }
+
+    @RequiresPermission(Manifest.permission.BLUETOOTH_CONNECT)
+    private synchronized void endSession(Session session) {
+        if (sessions.get(session.address) != session) {
+            // Already replaced or cancelled
+            return;
+        }
+        sessions.remove(session.address);
+        session.state.moveTo(STATE_NONE);
+        transferManager.onSessionClosed(session.address);
+        if (outbox != null) {
+            outbox.stopDraining(session.address);
+        }
+        session.notifyState();
+
+        Reconnect reconnect = stopped ? null : reconnects.get(session.address);
+        if (reconnect == null) {
+            notifyConnectionFailed(session.listener);
+        } else if (reconnect.lostAtNanos == 0) {
+            // The link just dropped: tell the UI once, then keep redialling quietly
+            reconnect.lostAtNanos = System.nanoTime();
+            reconnect.listener = session.listener;
+            notifyConnectionFailed(session.listener);
+            scheduleReconnect(reconnect);
+        } else {
+            scheduleReconnect(reconnect);
+        }
+
+        // Fall back to listening mode if the accept loop is not running
+        if (!stopped && acceptTask == null) {
+            startAccepting();
+        }
+        updateState();
+    }
+
+    private synchronized void scheduleReconnect(Reconnect reconnect) {
+        long delay = reconnectPolicy != null ? reconnectPolicy.delayMillis(reconnect.attempt) : -1;
+        if (delay < 0) {
+            Log.w(TAG, "Giving up on " + reconnect.address + " after " + reconnect.attempt + " attempts");
+            reconnects.remove(reconnect.address);
+            discardDeliveries(reconnect.address);
+            reconnectGiveUps++;
+            notifyConnectionFailed(reconnect.listener);
+            return;
+        }
+        reconnect.pending = timer.schedule(() -> redial(reconnect), delay, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized void redial(Reconnect reconnect) {
+        if (stopped || reconnects.get(reconnect.address) != reconnect) {
+            return;
+        }
+        reconnect.pending = null;
+        if (sessions.containsKey(reconnect.address)) {
+            // Already on its way back, through the accept loop or a dial of the user's own
+            return;
+        }
+        reconnect.attempt++;
+        reconnectAttempts++;
+        Log.d(TAG, "Redialling " + reconnect.address + ", attempt " + reconnect.attempt);
+        if (dial(reconnect.address, reconnect.listener) == null) {
+            scheduleReconnect(reconnect);
+        }
+    }
+
+    private synchronized void reconnected(Reconnect reconnect) {
+        reconnect.cancel();
+        if (reconnect.lostAtNanos != 0) {
+            long latencyMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - reconnect.lostAtNanos);
+            Log.d(TAG, "Reconnected to " + reconnect.address + " in " + latencyMillis + " ms");
+            reconnectCount++;
+            metrics.reconnects.increment();
+            lastReconnectLatencyMillis = latencyMillis;
+            totalReconnectLatencyMillis += latencyMillis;
+        }
+        reconnect.attempt = 0;
+        reconnect.lostAtNanos = 0;
+    }
+
+    private synchronized void cancelReconnects() {
+        for (Reconnect reconnect : reconnects.values()) {
+            reconnect.cancel();
+        }
+        reconnects.clear();
+    }
+
+    // Fails the receipts of frames the peer will not get to acknowledge
+    private void discardDeliveries(String address) {
+        DeliveryTracker tracker = deliveries.remove(address);
+        if (tracker != null) {
+            tracker.discard(new IOException("Disconnected from " + address));
+        }
+    }
+
+    private static void closeQuietly(TransportSocket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Could not close unwanted socket", e);
+        }
+    }
+
+    private static int readInt(byte[] bytes, int offset) {
+        return ((bytes[offset] & 0xFF) << 24) | ((bytes[offset + 1] & 0xFF) << 16)
+                | ((bytes[offset + 2] & 0xFF) << 8) | (bytes[offset + 3] & 0xFF);
+    }
+
+    // A chat frame written before the peer's HELLO arrived
+    private static class PendingChat {
+        final int type;
+        final byte[] payload;
+        final CompletableFuture<Void> receipt;
+        final CompletableFuture<Void> written = new CompletableFuture<>();
+
+        PendingChat(int type, byte[] payload, CompletableFuture<Void> receipt) {
+            this.type = type;
+            this.payload = payload;
+            this.receipt = receipt;
+        }
+    }
+
+    // A sequenced frame waiting for room in the writer; written is null for resends nobody waits on
+    private static class Backlogged {
+        final DeliveryTracker.Unacked unacked;
+        final CompletableFuture<Void> written;
+
+        Backlogged(DeliveryTracker.Unacked unacked, CompletableFuture<Void> written) {
+            this.unacked = unacked;
+            this.written = written;
+        }
+    }
+
+    // Backoff state of a peer we dialled, lostAtNanos is 0 while its link is up
+    private static class Reconnect {
+        final String address;
+        BluetoothConnectionListener listener;
+        int attempt;
+        volatile long lostAtNanos;
+        ScheduledFuture<?> pending;
+
+        Reconnect(String address) {
+            this.address = address;
+        }
+
+        void cancel() {
+            if (pending != null) {
+                pending.cancel(false);
+                pending = null;
             }
-        });
+        }
+    }
+
+    // One peer: its connection threads, state and listener
+    private class Session {
+        final String address;
+        volatile boolean outgoing;
+        // When the dial that led to this session started, 0 for incoming ones
+        volatile long dialStartedNanos;
+        final ConnectionState state = new ConnectionState(ConnectionState.SESSION_TRANSITIONS);
+        volatile BluetoothConnectionListener listener;
+        volatile ConnectTask connectTask;
+        volatile ConnectedTask connectedTask;
 
-        // Start the service over to restart listening mode
-        BluetoothService.this.start();
+        Session(String address, BluetoothConnectionListener listener) {
+            this.address = address;
+            this.listener = listener;
+        }
+
+        // The task to write through, or null unless connected
+        ConnectedTask connectedTask() {
+            ConnectedTask task = connectedTask;
+            return state.get() == STATE_CONNECTED ? task : null;
+        }
+
+        // Per-session listeners also get the state of their own session
+        void notifyState() {
+            BluetoothConnectionListener sessionListener = listener;
+            if (sessionListener == null || sessionListener == BluetoothService.this.listener) {
+                return;
+            }
+            state.publish(callbackExecutor, sessionListener::onStateChanged);
+        }
+
+        void cancel() {
+            if (connectTask != null) {
+                connectTask.cancel();
+                connectTask = null;
+            }
+            if (connectedTask != null) {
+                connectedTask.cancel();
+                connectedTask = null;
+                transferManager.onSessionClosed(address);
+                if (outbox != null) {
+                    outbox.stopDraining(address);
+                }
+            }
+            state.moveTo(STATE_NONE);
+        }
     }
 
-    // Thread to listen for incoming connections
-    private class AcceptThread extends Thread {
-        private final BluetoothServerSocket mmServerSocket;
+    // Task to listen for incoming connections, kept running while sessions are connected
+    private class AcceptTask extends IoExecutor.Task {
+        private final TransportServerSocket mmServerSocket;
 
         @RequiresPermission(Manifest.permission.BLUETOOTH_CONNECT)
-        public AcceptThread() {
-            BluetoothServerSocket tmp = null;
+        public AcceptTask() {
+            super("AcceptTask");
+            TransportServerSocket tmp = null;
             try {
-                tmp = bluetoothAdapter.listenUsingRfcommWithServiceRecord(APP_NAME, MY_UUID);
+                tmp = transport.listen();
             } catch (IOException e) {
                 Log.e(TAG, "Socket's listen() method failed", e);
             }
             mmServerSocket = tmp;
-            state = STATE_LISTEN;
         }
 
         @RequiresPermission(Manifest.permission.BLUETOOTH_CONNECT)
-        public void run() {
-            Log.d(TAG, "Socket Type: BEGIN mAcceptThread" + this);
-            setName("AcceptThread");
+        @Override
+        protected void execute() {
+            Log.d(TAG, "Socket Type: BEGIN mAcceptTask" + this);
 
-            BluetoothSocket socket = null;
+            TransportSocket socket = null;
 
-            // Listen to the server socket if we're not connected
-            while (state != STATE_CONNECTED) {
+            // Listen to the server socket until cancelled
+            while (mmServerSocket != null) {
                 try {
                     socket = mmServerSocket.accept();
                 } catch (IOException e) {
@@ -239,31 +960,59 @@ public class BluetoothService {
                 }
 
                 if (socket != null) {
+                    admit(socket);
+                }
+            }
+
+            synchronized (BluetoothService.this) {
+                if (acceptTask == this) {
+                    acceptTask = null;
+                    updateState();
+                }
+            }
+            Log.i(TAG, "END mAcceptTask");
+        }
+
+        // The transport may still read from the socket, so that happens on a task of its own
+        @RequiresPermission(Manifest.permission.BLUETOOTH_CONNECT)
+        private void admit(TransportSocket socket) {
+            IoExecutor.Task admission = new IoExecutor.Task("AdmitTask") {
+                @RequiresPermission(Manifest.permission.BLUETOOTH_CONNECT)
+                @Override
+                protected void execute() {
+                    try {
+                        socket.finishAccept();
+                    } catch (IOException e) {
+                        Log.w(TAG, "Dropping accepted socket: " + e);
+                        closeQuietly(socket);
+                        return;
+                    }
                     synchronized (BluetoothService.this) {
-                        switch (state) {
-                            case STATE_LISTEN:
-                            case STATE_CONNECTING:
-                                // Situation normal. Start the connected thread.
-                                connected(socket, socket.getRemoteDevice());
-                                break;
-                            case STATE_NONE:
-                            case STATE_CONNECTED:
-                                // Either not ready or already connected. Terminate new socket.
-                                try {
-                                    socket.close();
-                                } catch (IOException e) {
-                                    Log.e(TAG, "Could not close unwanted socket", e);
-                                }
-                                break;
+                        if (acceptTask != AcceptTask.this || sessions.size() >= MAX_SESSIONS) {
+                            // Either stopped or out of links. Terminate new socket.
+                            closeQuietly(socket);
+                        } else {
+                            connected(socket);
                         }
                     }
                 }
+
+                @Override
+                protected void onCancel() {
+                    closeQuietly(socket);
+                }
+            };
+            if (!ioExecutor.submit(admission)) {
+                closeQuietly(socket);
             }
-            Log.i(TAG, "END mAcceptThread");
         }
 
-        public void cancel() {
+        @Override
+        protected void onCancel() {
             Log.d(TAG, "Socket Type: cancel " + this);
+            if (mmServerSocket == null) {
+                return;
+            }
             try {
                 mmServerSocket.close();
             } catch (IOException e) {
@@ -272,33 +1021,35 @@ public class BluetoothService {
         }
     }
 
-    // Thread to connect to a remote device
-    private class ConnectThread extends Thread {
-        private final BluetoothSocket mmSocket;
-        private final BluetoothDevice mmDevice;
+    // Task to connect to a remote device
+    private class ConnectTask extends IoExecutor.Task {
+        private final Session mmSession;
+        private final TransportSocket mmSocket;
 
-        public ConnectThread(BluetoothDevice device) {
-            mmDevice = device;
-            BluetoothSocket tmp = null;
+        public ConnectTask(Session session) {
+            super("ConnectTask-" + session.address);
+            mmSession = session;
+            TransportSocket tmp = null;
 
             try {
-                tmp = device.createRfcommSocketToServiceRecord(MY_UUID);
+                tmp = transport.createSocket(session.address);
             } catch (IOException e) {
                 Log.e(TAG, "Socket's create() method failed", e);
             }
             mmSocket = tmp;
-            state = STATE_CONNECTING;
         }
 
         @RequiresPermission(allOf = {Manifest.permission.BLUETOOTH_SCAN, Manifest.permission.BLUETOOTH_CONNECT})
-        public void run() {
-            setName("ConnectThread");
-            Log.i(TAG, "BEGIN mConnectThread");
+        @Override
+        protected void execute() {
+            Log.i(TAG, "BEGIN mConnectTask");
 
-            // Always cancel discovery because it will slow down a connection
-            bluetoothAdapter.cancelDiscovery();
+            if (mmSocket == null) {
+                connectionFailed(mmSession);
+                return;
+            }
 
-            // Make a connection to the BluetoothSocket
+            // Make a connection to the socket
             try {
                 mmSocket.connect();
             } catch (IOException e) {
@@ -308,20 +1059,27 @@ public class BluetoothService {
                 } catch (IOException e2) {
                     Log.e(TAG, "unable to close() socket during connection failure", e2);
                 }
-                connectionFailed();
+                if (!isCancelled()) {
+                    connectionFailed(mmSession);
+                }
                 return;
             }
 
-            // Reset the ConnectThread because we're done
+            // Start the connected thread unless the attempt was abandoned meanwhile
             synchronized (BluetoothService.this) {
-                connectThread = null;
+                if (isCancelled() || sessions.get(mmSession.address) != mmSession) {
+                    closeQuietly(mmSocket);
+                    return;
+                }
+                connected(mmSocket, mmSession);
             }
-
-            // Start the connected thread
-            connected(mmSocket, mmDevice);
         }
 
-        public void cancel() {
+        @Override
+        protected void onCancel() {
+            if (mmSocket == null) {
+                return;
+            }
             try {
                 mmSocket.close();
             } catch (IOException e) {
@@ -330,20 +1088,53 @@ public class BluetoothService {
         }
     }
 
-    // Thread to manage connected socket
-    private class ConnectedThread extends Thread {
-        private final BluetoothSocket mmSocket;
+    // Task that reads from a connected socket; writes are drained by a FrameWriter task of their own
+    private class ConnectedTask extends IoExecutor.Task implements FrameDecoder.FrameListener, FrameWriter.Callback {
+        private final Session mmSession;
+        private final TransportSocket mmSocket;
         private final InputStream mmInStream;
-        private final OutputStream mmOutStream;
-        private byte[] mmBuffer;
+        private final FrameWriter mmWriter;
+        private final IoExecutor.Task mmWriterTask;
+        private final FrameDecoder mmDecoder = new FrameDecoder(this);
+        private final FrameCompressor mmCompressor = new FrameCompressor();
+        private final FrameDecompressor mmDecompressor = new FrameDecompressor();
+        private final LinkMonitor mmLink = new LinkMonitor(System.nanoTime());
+        private final long mmHeartbeatNanos = TimeUnit.MILLISECONDS.toNanos(heartbeatIntervalMillis);
+        private final int mmMaxMissedPings = maxMissedPings;
+        // Null when encryption is off on this side
+        private final SecureChannel mmChannel = encryptionEnabled ? new SecureChannel(random) : null;
+        // Reader thread only; set once both HELLOs agreed on encryption
+        private FrameCipher mmDecryptor;
+        private volatile boolean mmEncrypted;
+        private final DeliveryTracker mmDelivery;
+        // Chat frames must reach the writer in sequence order, so numbering and queueing happen under this lock
+        private final Object mmChatLock = new Object();
+        // Chat written before the peer's HELLO said whether it takes sequenced frames, null afterwards
+        private List<PendingChat> mmEarlyChat = new ArrayList<>();
+        private boolean mmPeerAcks;
+        // Sequenced frames waiting for room in the writer, oldest first. While it is not empty,
+        // new chat queues behind it so the peer still gets every number in order.
+        private final ArrayDeque<Backlogged> mmBacklog = new ArrayDeque<>();
+        private int mmBacklogInFlight;
+        private boolean mmBacklogRetryScheduled;
+        private final AtomicInteger mmAcksOwed = new AtomicInteger();
+        private final AtomicBoolean mmAckScheduled = new AtomicBoolean();
+        private volatile boolean mmPeerPongs;
+        private volatile boolean mmPeerRelays;
+        // Mesh node id from the peer's HELLO, 0 if unknown
+        private volatile long mmPeerNode;
+        private volatile ScheduledFuture<?> mmHeartbeat;
 
-        public ConnectedThread(BluetoothSocket socket) {
-            Log.d(TAG, "create ConnectedThread");
+        public ConnectedTask(Session session, TransportSocket socket) {
+            super("ConnectedTask-" + session.address);
+            Log.d(TAG, "create ConnectedTask");
+            mmSession = session;
             mmSocket = socket;
+            mmDelivery = deliveries.computeIfAbsent(session.address, address -> new DeliveryTracker(random.nextLong()));
             InputStream tmpIn = null;
             OutputStream tmpOut = null;
 
-            // Get the BluetoothSocket input and output streams
+            // Get the socket input and output streams
             try {
                 tmpIn = socket.getInputStream();
                 tmpOut = socket.getOutputStream();
@@ -352,54 +1143,506 @@ public class BluetoothService {
             }
 
             mmInStream = tmpIn;
-            mmOutStream = tmpOut;
-            state = STATE_CONNECTED;
+            mmWriter = new FrameWriter(tmpOut, this, mmCompressor);
+
+            // Say hello before anything else so the peer learns what we support.
+            // With encryption on, nothing else leaves until the peer's HELLO settles the keys.
+            byte[] hello = Handshake.encode(Handshake.LOCAL_CAPABILITIES,
+                    mmChannel != null ? mmChannel.getPublicKey() : null, mmDelivery.stream, meshRelay.getNodeId());
+            if (mmChannel != null) {
+                mmWriter.holdForKeys();
+            }
+            mmWriter.enqueue(new FrameWriter.OutboundFrame(Frame.TYPE_HELLO, 0, hello, 0, hello.length, null));
+
+            mmWriterTask = new IoExecutor.Task("WriterTask-" + session.address) {
+                @Override
+                protected void execute() {
+                    mmWriter.run();
+                }
+            };
+        }
+
+        // Submits the reader and the writer, returns false if the pool had no room
+        boolean start() {
+            if (!ioExecutor.submit(mmWriterTask) || !ioExecutor.submit(this)) {
+                return false;
+            }
+            long interval = TimeUnit.NANOSECONDS.toMillis(mmHeartbeatNanos);
+            mmHeartbeat = timer.scheduleWithFixedDelay(this::heartbeat, interval, interval, TimeUnit.MILLISECONDS);
+            return true;
         }
 
         @RequiresPermission(Manifest.permission.BLUETOOTH_CONNECT)
-        public void run() {
-            Log.i(TAG, "BEGIN mConnectedThread");
-            mmBuffer = new byte[1024];
-            int bytes;
+        @Override
+        protected void execute() {
+            Log.i(TAG, "BEGIN mConnectedTask " + mmSession.address);
 
             // Keep listening to the InputStream while connected
-            while (state == STATE_CONNECTED) {
+            while (!isCancelled()) {
                 try {
-                    // Read from the InputStream
-                    bytes = mmInStream.read(mmBuffer);
-
-                    // Send the obtained bytes to the UI Activity
-                    String message = new String(mmBuffer, 0, bytes, StandardCharsets.UTF_8);
-                    handler.post(() -> {
-                        if (listener != null) {
-                            listener.onMessageReceived(message);
-                        }
-                    });
+                    // Read from the InputStream, complete frames are dispatched to onFrame()
+                    int read = mmDecoder.readFrom(mmInStream);
+                    if (read < 0) {
+                        throw new IOException("End of stream");
+                    }
+                    mmLink.onReceived(System.nanoTime(), read);
+                    metrics.bytesIn.add(read);
                 } catch (IOException e) {
+                    if (isCancelled()) {
+                        // Closed on purpose by stop() or a new connection
+                        break;
+                    }
                     Log.e(TAG, "disconnected", e);
-                    connectionLost();
+                    mmWriter.close();
+                    connectionLost(mmSession);
                     break;
                 }
             }
+            stopHeartbeat();
+            failEarlyChat();
+            mmDecompressor.close();
         }
 
-        public void write(byte[] buffer) {
-            try {
-                mmOutStream.write(buffer);
+        // Runs on the timer: pings an idle peer, and gives up on one that stopped answering
+        private void heartbeat() {
+            if (isCancelled()) {
+                return;
+            }
+            long now = System.nanoTime();
+            mmLink.sample(now, mmWriter.getBytesWritten());
+            if (!mmPeerPongs) {
+                return;
+            }
+            int missed = mmLink.getOutstandingPings();
+            if (missed >= mmMaxMissedPings) {
+                Log.w(TAG, mmSession.address + " missed " + missed + " pings, closing the link");
+                stopHeartbeat();
+                closeSocket();
+                return;
+            }
+            if (mmLink.isIdle(now, mmHeartbeatNanos)) {
+                byte[] ping = ByteBuffer.allocate(8).putLong(now).array();
+                mmWriter.enqueue(new FrameWriter.OutboundFrame(Frame.TYPE_PING, 0, ping, 0, ping.length, null));
+                mmLink.onPingSent();
+            }
+        }
+
+        private void stopHeartbeat() {
+            ScheduledFuture<?> heartbeat = mmHeartbeat;
+            if (heartbeat != null) {
+                heartbeat.cancel(false);
+                mmHeartbeat = null;
+            }
+        }
+
+        @Override
+        public void onFrame(int type, int flags, byte[] payload, int offset, int length) throws IOException {
+            metrics.framesIn.increment();
+            if ((flags & Frame.FLAG_ENCRYPTED) != 0) {
+                if (mmDecryptor == null) {
+                    throw new ProtocolException("Encrypted frame before key agreement");
+                }
+                length = mmDecryptor.decrypt(type, flags, payload, offset, length);
+                payload = mmDecryptor.getOutput();
+                offset = 0;
+            } else if (mmDecryptor != null && type != Frame.TYPE_HELLO) {
+                throw new ProtocolException("Plaintext frame on an encrypted link");
+            }
+            if ((flags & Frame.FLAG_COMPRESSED) != 0) {
+                length = mmDecompressor.decompress(payload, offset, length);
+                payload = mmDecompressor.getOutput();
+                offset = 0;
+            } else if (Frame.isCompressible(type)) {
+                mmDecompressor.recordUncompressed(length);
+            }
+            if ((flags & Frame.FLAG_SEQUENCED) != 0) {
+                if (length < Frame.SEQUENCE_SIZE) {
+                    throw new ProtocolException("Truncated sequence number");
+                }
+                boolean fresh = mmDelivery.receive(readInt(payload, offset));
+                offset += Frame.SEQUENCE_SIZE;
+                length -= Frame.SEQUENCE_SIZE;
+                // Copies are acknowledged too, the sender resent them because our ACK got lost
+                owedAck();
+                if (!fresh) {
+                    return;
+                }
+            }
 
-                // Share the sent message back to the UI Activity
-                String message = new String(buffer, StandardCharsets.UTF_8);
-                handler.post(() -> {
-                    if (listener != null) {
-                        listener.onMessageSent(message);
+            switch (type) {
+                case Frame.TYPE_HELLO:
+                    onHello(Handshake.parseCapabilities(payload, offset, length),
+                            Handshake.parsePublicKey(payload, offset, length),
+                            Handshake.parseStream(payload, offset, length),
+                            Handshake.parseNode(payload, offset, length));
+                    break;
+                case Frame.TYPE_ACK:
+                    if (length >= Frame.SEQUENCE_SIZE) {
+                        mmDelivery.acknowledge(readInt(payload, offset));
+                    }
+                    break;
+                case Frame.TYPE_MESSAGE:
+                    onMessage(payload, offset, length);
+                    break;
+                case Frame.TYPE_RELAY:
+                    meshRelay.onRelay(mmSession.address, payload, offset, length);
+                    break;
+                case Frame.TYPE_PING:
+                    // The payload lives in the decoder's buffer, the writer needs its own copy
+                    byte[] pong = Arrays.copyOfRange(payload, offset, offset + length);
+                    mmWriter.enqueue(new FrameWriter.OutboundFrame(Frame.TYPE_PONG, 0, pong, 0, pong.length, null));
+                    break;
+                case Frame.TYPE_PONG:
+                    if (length >= 8) {
+                        mmLink.onPong(System.nanoTime(), ByteBuffer.wrap(payload, offset, 8).getLong());
+                    }
+                    break;
+                case Frame.TYPE_FILE_OFFER:
+                case Frame.TYPE_FILE_RESUME:
+                case Frame.TYPE_FILE_CHUNK:
+                case Frame.TYPE_FILE_ACK:
+                case Frame.TYPE_FILE_CANCEL:
+                    transferManager.onFrame(mmSession.address, type, payload, offset, length);
+                    break;
+                default:
+                    Log.w(TAG, "Ignoring frame of unknown type " + type);
+                    break;
+            }
+        }
+
+        private void onHello(int peerCapabilities, byte[] peerPublicKey, long peerStream, long peerNode)
+                throws ProtocolException {
+            int agreed = peerCapabilities & Handshake.LOCAL_CAPABILITIES;
+            if (mmChannel != null) {
+                if ((agreed & Handshake.CAP_ENCRYPT) != 0 && mmDecryptor == null) {
+                    mmChannel.establish(peerPublicKey);
+                    mmDecryptor = mmChannel.getDecryptor();
+                    mmEncrypted = true;
+                    mmWriter.setEncryptor(mmChannel.getEncryptor());
+                } else if (mmDecryptor == null) {
+                    // The peer does not encrypt, release what waited for keys as plaintext
+                    mmWriter.setEncryptor(null);
+                }
+            }
+            mmCompressor.setEnabled((agreed & Handshake.CAP_DEFLATE) != 0);
+            // Peers without heartbeat support would never answer a ping
+            mmPeerPongs = (agreed & Handshake.CAP_HEARTBEAT) != 0;
+            mmPeerRelays = (agreed & Handshake.CAP_RELAY) != 0;
+            mmPeerNode = mmPeerRelays ? peerNode : 0;
+
+            boolean acks = (agreed & Handshake.CAP_ACK) != 0;
+            if (acks) {
+                mmDelivery.onPeerStream(peerStream);
+            }
+            synchronized (mmChatLock) {
+                if (mmEarlyChat == null) {
+                    return;
+                }
+                mmPeerAcks = acks;
+                if (acks) {
+                    // What the last connection left unacknowledged goes first, under its old numbers
+                    for (DeliveryTracker.Unacked unacked : mmDelivery.unacknowledged()) {
+                        mmBacklog.addLast(new Backlogged(unacked, null));
+                    }
+                }
+                for (PendingChat pending : mmEarlyChat) {
+                    // Behind the backlog too, a burst sent during the handshake would overflow the writer
+                    CompletableFuture<Void> written = acks
+                            ? backlogChat(pending.type, pending.payload, pending.receipt)
+                            : enqueueChat(pending.type, pending.payload, pending.receipt);
+                    written.whenComplete((result, e) -> {
+                        if (e != null) {
+                            pending.written.completeExceptionally(e);
+                        } else {
+                            pending.written.complete(null);
+                        }
+                    });
+                }
+                mmEarlyChat = null;
+                pumpBacklog();
+            }
+        }
+
+        /**
+         * Queues a MESSAGE or RELAY frame. Peers that acknowledge get it
+         * sequenced, and receipt completes once they have confirmed it. The
+         * returned future completes once the frame is written and fails if it
+         * is not; a sequenced frame is still held and resent on the next
+         * link, so for those peers receipt is what tells it arrived. A frame
+         * refused outright fails its receipt as well.
+         */
+        CompletableFuture<Void> writeChat(int type, byte[] payload, CompletableFuture<Void> receipt) {
+            synchronized (mmChatLock) {
+                if (mmEarlyChat != null) {
+                    PendingChat pending = new PendingChat(type, payload, receipt);
+                    mmEarlyChat.add(pending);
+                    return pending.written;
+                }
+                return enqueueChat(type, payload, receipt);
+            }
+        }
+
+        /**
+         * Like writeChat(), for the outbox, which keeps an entry until the
+         * peer has it: the returned future completes once the peer
+         * acknowledged the frame or, if it does not acknowledge, once the
+         * frame is written.
+         */
+        CompletableFuture<Void> deliverChat(int type, byte[] payload, CompletableFuture<Void> receipt) {
+            CompletableFuture<Void> delivered = new CompletableFuture<>();
+            CompletableFuture<Void> acknowledged = new CompletableFuture<>();
+            // A failed write alone decides nothing, a sequenced frame is resent on the next link
+            CompletableFuture<Void> written = writeChat(type, payload, acknowledged);
+            acknowledged.whenComplete((result, e) -> {
+                if (receipt != null) {
+                    if (e != null) {
+                        receipt.completeExceptionally(e);
+                    } else {
+                        receipt.complete(null);
+                    }
+                }
+                if (e instanceof UnsupportedOperationException) {
+                    // The peer does not acknowledge, having written the frame is all there is
+                    written.whenComplete((writeResult, writeError) -> {
+                        if (writeError != null) {
+                            delivered.completeExceptionally(writeError);
+                        } else {
+                            delivered.complete(null);
+                        }
+                    });
+                } else if (e != null) {
+                    delivered.completeExceptionally(e);
+                } else {
+                    delivered.complete(null);
+                }
+            });
+            return delivered;
+        }
+
+        // Caller holds mmChatLock
+        private CompletableFuture<Void> enqueueChat(int type, byte[] payload, CompletableFuture<Void> receipt) {
+            if (!mmPeerAcks) {
+                if (receipt != null) {
+                    receipt.completeExceptionally(new UnsupportedOperationException("Peer does not acknowledge"));
+                }
+                return writeFrame(type, payload, 0, payload.length);
+            }
+            if (!mmBacklog.isEmpty()) {
+                return backlogChat(type, payload, receipt);
+            }
+            DeliveryTracker.Unacked unacked = mmDelivery.register(type, payload, 0, payload.length, receipt);
+            if (unacked == null) {
+                return tooManyUnacked(receipt);
+            }
+            CompletableFuture<Void> written = writeSequenced(unacked);
+            if (written.isCompletedExceptionally()) {
+                // Rejected outright, e.g. a full queue; the caller sees the failure and may try again
+                mmDelivery.withdraw(unacked);
+                if (receipt != null) {
+                    written.whenComplete((result, e) -> receipt.completeExceptionally(e));
+                }
+            }
+            return written;
+        }
+
+        // Sequences a frame and queues it behind the backlog, pumpBacklog() writes it in turn
+        private CompletableFuture<Void> backlogChat(int type, byte[] payload, CompletableFuture<Void> receipt) {
+            DeliveryTracker.Unacked unacked = mmDelivery.register(type, payload, 0, payload.length, receipt);
+            if (unacked == null) {
+                return tooManyUnacked(receipt);
+            }
+            Backlogged queued = new Backlogged(unacked, new CompletableFuture<>());
+            mmBacklog.addLast(queued);
+            return queued.written;
+        }
+
+        // Like a full queue, the caller sees the failure and may try again
+        private CompletableFuture<Void> tooManyUnacked(CompletableFuture<Void> receipt) {
+            IOException cause = new IOException("Too many unacknowledged frames");
+            if (receipt != null) {
+                receipt.completeExceptionally(cause);
+            }
+            CompletableFuture<Void> refused = new CompletableFuture<>();
+            refused.completeExceptionally(cause);
+            return refused;
+        }
+
+        private CompletableFuture<Void> writeSequenced(DeliveryTracker.Unacked unacked) {
+            return mmWriter.enqueue(new FrameWriter.OutboundFrame(unacked.type, Frame.FLAG_SEQUENCED,
+                    unacked.payload, 0, unacked.payload.length, null));
+        }
+
+        /**
+         * Moves backlogged frames into the writer, keeping at most
+         * RESEND_WINDOW of them queued there; each one written lets the next
+         * in. A frame must never be skipped, the peer would refuse the next
+         * number, so a refused frame stays first and is retried shortly.
+         * Caller holds mmChatLock.
+         */
+        private void pumpBacklog() {
+            while (!mmBacklog.isEmpty() && mmBacklogInFlight < RESEND_WINDOW) {
+                Backlogged next = mmBacklog.peekFirst();
+                CompletableFuture<Void> written = writeSequenced(next.unacked);
+                if (written.isCompletedExceptionally()) {
+                    if (mmWriter.isClosed()) {
+                        releaseBacklog();
+                    } else if (!mmBacklogRetryScheduled) {
+                        // The queue is full of other frames
+                        mmBacklogRetryScheduled = true;
+                        timer.schedule(() -> {
+                            synchronized (mmChatLock) {
+                                mmBacklogRetryScheduled = false;
+                                pumpBacklog();
+                            }
+                        }, RESEND_RETRY_MILLIS, TimeUnit.MILLISECONDS);
+                    }
+                    return;
+                }
+                mmBacklog.pollFirst();
+                mmBacklogInFlight++;
+                written.whenComplete((result, e) -> {
+                    if (next.written != null) {
+                        if (e != null) {
+                            next.written.completeExceptionally(e);
+                        } else {
+                            next.written.complete(null);
+                        }
+                    }
+                    synchronized (mmChatLock) {
+                        mmBacklogInFlight--;
+                        if (e != null) {
+                            releaseBacklog();
+                        } else {
+                            pumpBacklog();
+                        }
                     }
                 });
+            }
+        }
+
+        // The link is going down; the frames stay unacknowledged and the next link resends them
+        private void releaseBacklog() {
+            IOException closed = null;
+            Backlogged dropped;
+            while ((dropped = mmBacklog.pollFirst()) != null) {
+                if (dropped.written != null) {
+                    if (closed == null) {
+                        closed = new IOException("Connection closed before the frame was written");
+                    }
+                    dropped.written.completeExceptionally(closed);
+                }
+            }
+        }
+
+        private void failEarlyChat() {
+            List<PendingChat> early;
+            synchronized (mmChatLock) {
+                early = mmEarlyChat;
+                mmEarlyChat = null;
+                releaseBacklog();
+            }
+            if (early != null) {
+                IOException closed = new IOException("Connection closed before the handshake");
+                for (PendingChat pending : early) {
+                    pending.written.completeExceptionally(closed);
+                    // Never sequenced, so no later link will deliver it
+                    if (pending.receipt != null) {
+                        pending.receipt.completeExceptionally(closed);
+                    }
+                }
+            }
+        }
+
+        // One ACK covers everything received so far, so they are sent in batches
+        private void owedAck() {
+            if (mmAcksOwed.incrementAndGet() >= ACK_EVERY) {
+                sendAck();
+            } else if (mmAckScheduled.compareAndSet(false, true)) {
+                timer.schedule(() -> {
+                    mmAckScheduled.set(false);
+                    sendAck();
+                }, ACK_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        private void sendAck() {
+            if (mmAcksOwed.getAndSet(0) == 0 || isCancelled()) {
+                return;
+            }
+            int sequence = mmDelivery.onAckSent();
+            byte[] ack = {(byte) (sequence >>> 24), (byte) (sequence >>> 16), (byte) (sequence >>> 8), (byte) sequence};
+            writeFrame(Frame.TYPE_ACK, ack, 0, ack.length);
+        }
+
+        boolean isEncrypted() {
+            return mmEncrypted;
+        }
+
+        // Whether broadcasts to this peer go out as RELAY frames it passes on
+        boolean peerRelays() {
+            return mmPeerRelays;
+        }
+
+        long peerNode() {
+            return mmPeerNode;
+        }
+
+        private void onMessage(byte[] payload, int offset, int length) {
+            // Send the obtained message to the UI Activity
+            String message = new String(payload, offset, length, StandardCharsets.UTF_8);
+            BluetoothConnectionListener sessionListener = mmSession.listener;
+            if (sessionListener != null) {
+                inboundMessages.offer(sessionListener, mmSession.address, message);
+            }
+        }
+
+        CompressionStats getCompressionStats() {
+            return new CompressionStats(mmCompressor, mmDecompressor);
+        }
+
+        LinkStats getLinkStats() {
+            return mmLink.snapshot(mmWriter.getBytesWritten());
+        }
+
+        CompletableFuture<Void> writeFrame(int type, byte[] payload, int offset, int length) {
+            return mmWriter.enqueue(new FrameWriter.OutboundFrame(type, 0, payload, offset, length, null));
+        }
+
+        @Override
+        public void onFrameWritten(FrameWriter.OutboundFrame frame) {
+            // Completion is reported through the future returned by write()
+            metrics.framesOut.increment();
+            if (frame.type == Frame.TYPE_MESSAGE || frame.type == Frame.TYPE_RELAY) {
+                metrics.sendLatency.record(System.nanoTime() - frame.enqueuedNanos);
+            }
+        }
+
+        @Override
+        public void onBytesWritten(long bytes) {
+            metrics.bytesOut.add(bytes);
+        }
+
+        @Override
+        public void onWriteFailed(IOException e) {
+            metrics.writeErrors.increment();
+            closeSocket();
+        }
+
+        // Closing the socket makes the read loop report the lost connection
+        private void closeSocket() {
+            try {
+                mmSocket.close();
             } catch (IOException e) {
-                Log.e(TAG, "Exception during write", e);
+                Log.e(TAG, "close() of connect socket failed", e);
             }
         }
 
-        public void cancel() {
+        @Override
+        protected void onCancel() {
+            stopHeartbeat();
+            failEarlyChat();
+            mmWriterTask.cancel();
+            mmWriter.close();
             try {
                 mmSocket.close();
             } catch (IOException e) {
@@ -407,4 +1650,4 @@ public class BluetoothService {
             }
         }
     }
-}
\ No newline at end of file
+}
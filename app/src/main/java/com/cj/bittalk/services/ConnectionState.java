@@ -0,0 +1,80 @@
+package com.cj.bittalk.services;
+
+import android.util.Log;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntConsumer;
+
+/**
+ * State of the service or of one session. Reads are lock-free, so the I/O loops
+ * and senders never take the service monitor to look at it; changes are made by
+ * compare-and-set and only along the transitions the table allows. Listeners
+ * hear the latest state once per callback, not every step in between.
+ */
+class ConnectionState {
+    private static final String TAG = "ConnectionState";
+
+    // Allowed targets per state, as bit masks indexed by the STATE_* constants
+    static final int[] SESSION_TRANSITIONS = {
+            bit(BluetoothService.STATE_CONNECTING) | bit(BluetoothService.STATE_CONNECTED),
+            0,
+            bit(BluetoothService.STATE_CONNECTED) | bit(BluetoothService.STATE_NONE),
+            bit(BluetoothService.STATE_NONE),
+    };
+    // The service state is derived from its sessions and the accept loop, so any change is legal
+    static final int[] SERVICE_TRANSITIONS = {~0, ~0, ~0, ~0};
+
+    private final int[] transitions;
+    private final AtomicInteger state = new AtomicInteger(BluetoothService.STATE_NONE);
+    private final AtomicInteger notified = new AtomicInteger(BluetoothService.STATE_NONE);
+    private final AtomicBoolean notifyPending = new AtomicBoolean();
+
+    ConnectionState(int[] transitions) {
+        this.transitions = transitions;
+    }
+
+    private static int bit(int state) {
+        return 1 << state;
+    }
+
+    int get() {
+        return state.get();
+    }
+
+    /** Moves to the given state, or returns false if that is not a legal step from the current one. */
+    boolean moveTo(int target) {
+        while (true) {
+            int current = state.get();
+            if (current == target) {
+                return true;
+            }
+            if ((transitions[current] & bit(target)) == 0) {
+                Log.w(TAG, "Illegal transition " + current + " -> " + target);
+                return false;
+            }
+            if (state.compareAndSet(current, target)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Tells the observer about the current state on the executor, unless a
+     * notification is already on its way; that one reads the state when it runs.
+     */
+    void publish(Executor executor, IntConsumer observer) {
+        if (!notifyPending.compareAndSet(false, true)) {
+            return;
+        }
+        executor.execute(() -> {
+            // Cleared first, so a change from here on posts another notification
+            notifyPending.set(false);
+            int current = state.get();
+            if (notified.getAndSet(current) != current) {
+                observer.accept(current);
+            }
+        });
+    }
+}
@@ -0,0 +1,29 @@
+package com.cj.bittalk.services;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Progress of one outgoing message. written completes once every target has
+ * the message on its socket or in its outbox, acknowledged once every target
+ * peer has confirmed receipt. Peers that predate acknowledgements fail
+ * acknowledged, as does a peer that is disconnected for good. A peer that
+ * acknowledges gets a message whose write failed again on the next link, so
+ * acknowledged may still complete after written failed.
+ */
+public class Delivery {
+    private final CompletableFuture<Void> written;
+    private final CompletableFuture<Void> acknowledged;
+
+    Delivery(CompletableFuture<Void> written, CompletableFuture<Void> acknowledged) {
+        this.written = written;
+        this.acknowledged = acknowledged;
+    }
+
+    public CompletableFuture<Void> written() {
+        return written;
+    }
+
+    public CompletableFuture<Void> acknowledged() {
+        return acknowledged;
+    }
+}
@@ -0,0 +1,25 @@
+package com.cj.bittalk.services;
+
+/**
+ * Snapshot of the acknowledgement counters of one peer. Every ACK covers all
+ * frames up to its sequence, so acksSent is normally far below the number of
+ * messages received.
+ */
+public class DeliveryStats {
+    public final long acknowledged;
+    public final int unacknowledged;
+    public final long retransmitted;
+    public final long duplicatesDropped;
+    public final long acksSent;
+    public final long acksReceived;
+
+    DeliveryStats(long acknowledged, int unacknowledged, long retransmitted, long duplicatesDropped,
+                  long acksSent, long acksReceived) {
+        this.acknowledged = acknowledged;
+        this.unacknowledged = unacknowledged;
+        this.retransmitted = retransmitted;
+        this.duplicatesDropped = duplicatesDropped;
+        this.acksSent = acksSent;
+        this.acksReceived = acksReceived;
+    }
+}
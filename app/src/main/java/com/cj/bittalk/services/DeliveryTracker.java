@@ -0,0 +1,162 @@
+package com.cj.bittalk.services;
+
+import com.cj.bittalk.protocol.Frame;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Sequence state of one peer, kept across reconnects.
+ *
+ * Outgoing chat frames are numbered and held until a cumulative ACK from the
+ * peer covers them, so a new connection resends only what was never
+ * acknowledged. Incoming frames are checked against the last sequence seen on
+ * the peer's current stream, which drops the copies such a resend produces.
+ * A frame that skips a number is refused, as acknowledging past it would
+ * confirm frames that never arrived.
+ *
+ * Every tracker numbers its frames on a stream of its own, so a peer that
+ * still remembers an earlier tracker's numbers starts over instead of taking
+ * the new ones for copies.
+ */
+class DeliveryTracker {
+    static final int MAX_UNACKED = 1024;
+
+    static final class Unacked {
+        final int sequence;
+        final int type;
+        // [sequence:4][body], written as-is on every (re)send
+        final byte[] payload;
+        final CompletableFuture<Void> receipt;
+
+        Unacked(int sequence, int type, byte[] payload, CompletableFuture<Void> receipt) {
+            this.sequence = sequence;
+            this.type = type;
+            this.payload = payload;
+            this.receipt = receipt;
+        }
+    }
+
+    final long stream;
+    private final ArrayDeque<Unacked> unacked = new ArrayDeque<>();
+    private int nextSequence = 1;
+    private long peerStream;
+    private int lastReceived;
+    private long acknowledged;
+    private long retransmitted;
+    private long duplicatesDropped;
+    private long acksSent;
+    private long acksReceived;
+
+    DeliveryTracker(long stream) {
+        this.stream = stream;
+    }
+
+    /**
+     * Numbers a chat frame and holds on to it; receipt, if any, completes on
+     * acknowledgement. Returns null once MAX_UNACKED frames are waiting, every
+     * frame that got a number has to reach the peer.
+     */
+    synchronized Unacked register(int type, byte[] body, int offset, int length, CompletableFuture<Void> receipt) {
+        if (unacked.size() >= MAX_UNACKED) {
+            return null;
+        }
+        int sequence = nextSequence++;
+        byte[] payload = new byte[Frame.SEQUENCE_SIZE + length];
+        payload[0] = (byte) (sequence >>> 24);
+        payload[1] = (byte) (sequence >>> 16);
+        payload[2] = (byte) (sequence >>> 8);
+        payload[3] = (byte) sequence;
+        System.arraycopy(body, offset, payload, Frame.SEQUENCE_SIZE, length);
+        Unacked entry = new Unacked(sequence, type, payload, receipt);
+        unacked.addLast(entry);
+        return entry;
+    }
+
+    // Takes back the newest frame when the writer refused it, its sender will try again
+    synchronized void withdraw(Unacked entry) {
+        if (unacked.peekLast() == entry) {
+            unacked.pollLast();
+            nextSequence--;
+        }
+    }
+
+    // Releases everything up to and including sequence
+    void acknowledge(int sequence) {
+        List<Unacked> released = new ArrayList<>();
+        synchronized (this) {
+            acksReceived++;
+            while (!unacked.isEmpty() && unacked.peekFirst().sequence <= sequence) {
+                released.add(unacked.pollFirst());
+            }
+            acknowledged += released.size();
+        }
+        for (int i = 0; i < released.size(); i++) {
+            CompletableFuture<Void> receipt = released.get(i).receipt;
+            if (receipt != null) {
+                receipt.complete(null);
+            }
+        }
+    }
+
+    // What a new connection has to send again, oldest first
+    synchronized List<Unacked> unacknowledged() {
+        retransmitted += unacked.size();
+        return new ArrayList<>(unacked);
+    }
+
+    // The peer is gone for good, nothing held will be acknowledged
+    void discard(IOException cause) {
+        List<Unacked> dropped;
+        synchronized (this) {
+            dropped = new ArrayList<>(unacked);
+            unacked.clear();
+        }
+        for (int i = 0; i < dropped.size(); i++) {
+            CompletableFuture<Void> receipt = dropped.get(i).receipt;
+            if (receipt != null) {
+                receipt.completeExceptionally(cause);
+            }
+        }
+    }
+
+    // From the peer's HELLO; a new stream means it restarted and numbers from 1 again
+    synchronized void onPeerStream(long stream) {
+        if (stream != peerStream) {
+            peerStream = stream;
+            lastReceived = 0;
+        }
+    }
+
+    /**
+     * False for a copy of a frame that was already delivered. The first frame
+     * on a stream may start anywhere, the sender resends from the oldest one
+     * an earlier tracker on this side had not acknowledged.
+     */
+    synchronized boolean receive(int sequence) throws ProtocolException {
+        if (sequence <= lastReceived) {
+            duplicatesDropped++;
+            return false;
+        }
+        if (lastReceived != 0 && sequence != lastReceived + 1) {
+            throw new ProtocolException("Sequence " + sequence + " skips frames after " + lastReceived);
+        }
+        lastReceived = sequence;
+        return true;
+    }
+
+    // The sequence to put in the next ACK
+    synchronized int onAckSent() {
+        acksSent++;
+        return lastReceived;
+    }
+
+    synchronized DeliveryStats snapshot() {
+        return new DeliveryStats(acknowledged, unacked.size(), retransmitted, duplicatesDropped,
+                acksSent, acksReceived);
+    }
+}
@@ -0,0 +1,311 @@
+package com.cj.bittalk.services;
+
+import android.util.Log;
+
+import com.cj.bittalk.protocol.Frame;
+import com.cj.bittalk.protocol.FrameCipher;
+import com.cj.bittalk.protocol.FrameCompressor;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-connection writer. Any thread may enqueue frames; a single writer thread
+ * drains the bounded queue, packs as many queued frames as fit into one buffer
+ * and hands them to the socket in one write. A batch goes out once it reaches
+ * maxBatchBytes or once no further frame arrives within lingerMillis.
+ *
+ * Frames are queued per priority class (see StreamScheduler): control frames
+ * such as heartbeats and acks first, then chat, then file chunks. The class is
+ * implied by the frame type, so the wire format is unchanged.
+ *
+ * Once keys are agreed every frame but HELLO is encrypted after compression.
+ * While the handshake is still open (see holdForKeys()), HELLO frames go out
+ * and everything else waits in the queue, so nothing leaks in plaintext.
+ */
+public class FrameWriter implements Runnable {
+    private static final String TAG = "FrameWriter";
+
+    public static final int DEFAULT_QUEUE_CAPACITY = 256;
+    public static final int DEFAULT_MAX_BATCH_BYTES = 16 * 1024;
+    public static final long DEFAULT_LINGER_MILLIS = 2;
+
+    public static final int PRIORITY_CONTROL = 0;
+    public static final int PRIORITY_INTERACTIVE = 1;
+    public static final int PRIORITY_BULK = 2;
+
+    public interface Callback {
+        // Called on the writer thread once the frame has been written to the socket
+        void onFrameWritten(OutboundFrame frame);
+
+        // Called on the writer thread when the socket rejects a write
+        void onWriteFailed(IOException e);
+
+        // Called on the writer thread with the bytes flushed since the last call
+        default void onBytesWritten(long bytes) {
+        }
+    }
+
+    public static class OutboundFrame {
+        public final int type;
+        public final int flags;
+        public final byte[] payload;
+        public final int offset;
+        public final int length;
+        public final Object attachment;
+        final CompletableFuture<Void> completion = new CompletableFuture<>();
+        // Set by the scheduler when the frame is queued
+        long enqueuedNanos;
+
+        public OutboundFrame(int type, int flags, byte[] payload, int offset, int length, Object attachment) {
+            this.type = type;
+            this.flags = flags;
+            this.payload = payload;
+            this.offset = offset;
+            this.length = length;
+            this.attachment = attachment;
+        }
+    }
+
+    private final OutputStream out;
+    private final Callback callback;
+    private final FrameCompressor compressor;
+    private final StreamScheduler queue;
+    private final int maxBatchBytes;
+    private final long lingerMillis;
+    private final byte[] batch;
+    private final List<OutboundFrame> inFlight = new ArrayList<>();
+    private volatile boolean closed;
+    private volatile long bytesWritten;
+    // Writer thread only: bytesWritten as of the last onBytesWritten()
+    private long bytesReported;
+    private Thread writerThread;
+    // Guarded by this; handed over by the reader thread once the peer's HELLO arrives
+    private boolean awaitingKeys;
+    private FrameCipher encryptor;
+    // Writer thread only: the encryptor as of the end of the handshake
+    private boolean keysSettled;
+    private FrameCipher cipher;
+
+    public FrameWriter(OutputStream out, Callback callback) {
+        this(out, callback, null);
+    }
+
+    // The compressor, if any, is only used and closed by the writer thread
+    public FrameWriter(OutputStream out, Callback callback, FrameCompressor compressor) {
+        this(out, callback, compressor, DEFAULT_QUEUE_CAPACITY, DEFAULT_MAX_BATCH_BYTES, DEFAULT_LINGER_MILLIS);
+    }
+
+    public FrameWriter(OutputStream out, Callback callback, FrameCompressor compressor,
+                       int queueCapacity, int maxBatchBytes, long lingerMillis) {
+        this.out = out;
+        this.callback = callback;
+        this.compressor = compressor;
+        this.queue = new StreamScheduler(queueCapacity);
+        this.maxBatchBytes = maxBatchBytes;
+        this.lingerMillis = lingerMillis;
+        this.batch = new byte[maxBatchBytes];
+    }
+
+    /**
+     * Queues a frame without blocking. The returned future completes once the
+     * frame has been written, or fails if its class's queue is full or the
+     * writer stops.
+     */
+    public CompletableFuture<Void> enqueue(OutboundFrame frame) {
+        if (frame.length > Frame.MAX_PAYLOAD_LENGTH) {
+            frame.completion.completeExceptionally(
+                    new IllegalArgumentException("Payload too large: " + frame.length));
+        } else if (closed) {
+            frame.completion.completeExceptionally(new IOException("Writer closed"));
+        } else if (!queue.offer(frame)) {
+            frame.completion.completeExceptionally(new IOException("Outbound queue full"));
+        } else if (closed && queue.remove(frame)) {
+            // Lost a race with close(); the writer will not see this frame
+            frame.completion.completeExceptionally(new IOException("Writer closed"));
+        }
+        return frame.completion;
+    }
+
+    // Call before run(): non-HELLO frames wait until setEncryptor() settles the handshake
+    public synchronized void holdForKeys() {
+        awaitingKeys = true;
+    }
+
+    // Null means the peers agreed on plaintext; releases frames held by holdForKeys()
+    public synchronized void setEncryptor(FrameCipher encryptor) {
+        this.encryptor = encryptor;
+        awaitingKeys = false;
+        notifyAll();
+    }
+
+    // True once close() was called or a write failed, enqueue() then refuses everything
+    public boolean isClosed() {
+        return closed;
+    }
+
+    // Frames waiting across all priority classes
+    public int queueDepth() {
+        return queue.size();
+    }
+
+    // One entry per priority class, indexed by PRIORITY_*
+    public List<StreamStats> getStreamStats() {
+        return queue.snapshot();
+    }
+
+    // Header and payload bytes handed to the stream so far, after compression
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    @Override
+    public void run() {
+        synchronized (this) {
+            writerThread = Thread.currentThread();
+        }
+        // Out of the queue but maybe not in inFlight yet when a write fails or close() interrupts
+        OutboundFrame next = null;
+        try {
+            while (!closed) {
+                next = queue.take();
+                int batched = 0;
+                while (next != null) {
+                    if (!keysSettled && next.type != Frame.TYPE_HELLO) {
+                        if (batched > 0) {
+                            batched = flush(batched);
+                        }
+                        cipher = awaitKeys();
+                        keysSettled = true;
+                    }
+                    byte[] payload = next.payload;
+                    int offset = next.offset;
+                    int length = next.length;
+                    int flags = next.flags;
+                    if (compressor != null && Frame.isCompressible(next.type)) {
+                        int compressed = compressor.compress(payload, offset, length);
+                        if (compressed >= 0) {
+                            payload = compressor.getOutput();
+                            offset = 0;
+                            length = compressed;
+                            flags |= Frame.FLAG_COMPRESSED;
+                        }
+                    }
+                    if (cipher != null && next.type != Frame.TYPE_HELLO) {
+                        flags |= Frame.FLAG_ENCRYPTED;
+                        length = cipher.encrypt(next.type, flags, payload, offset, length);
+                        payload = cipher.getOutput();
+                        offset = 0;
+                    }
+
+                    int frameSize = Frame.HEADER_SIZE + length;
+                    if (batched > 0 && batched + frameSize > maxBatchBytes) {
+                        batched = flush(batched);
+                    }
+                    if (frameSize > maxBatchBytes) {
+                        // Too large to coalesce, write it on its own
+                        Frame.writeHeader(batch, 0, next.type, flags, length);
+                        out.write(batch, 0, Frame.HEADER_SIZE);
+                        out.write(payload, offset, length);
+                        bytesWritten += frameSize;
+                        inFlight.add(next);
+                        batched = flush(0);
+                    } else {
+                        Frame.writeHeader(batch, batched, next.type, flags, length);
+                        System.arraycopy(payload, offset, batch, batched + Frame.HEADER_SIZE, length);
+                        batched += frameSize;
+                        inFlight.add(next);
+                    }
+
+                    next = queue.poll();
+                    if (next == null && batched > 0 && lingerMillis > 0) {
+                        next = queue.poll(lingerMillis, TimeUnit.MILLISECONDS);
+                    }
+                }
+                if (batched > 0) {
+                    flush(batched);
+                }
+            }
+        } catch (InterruptedException e) {
+            // close() wakes the writer up this way
+        } catch (IOException e) {
+            Log.e(TAG, "Exception during write", e);
+            closed = true;
+            if (next != null) {
+                next.completion.completeExceptionally(e);
+            }
+            failAll(e);
+            callback.onWriteFailed(e);
+            return;
+        } finally {
+            if (compressor != null) {
+                compressor.close();
+            }
+            // The thread may be pooled, so close() must not interrupt it after this point
+            synchronized (this) {
+                writerThread = null;
+                Thread.interrupted();
+            }
+        }
+        IOException closedCause = new IOException("Writer closed");
+        if (next != null) {
+            next.completion.completeExceptionally(closedCause);
+        }
+        failAll(closedCause);
+    }
+
+    public void close() {
+        closed = true;
+        synchronized (this) {
+            if (writerThread != null) {
+                writerThread.interrupt();
+                return;
+            }
+        }
+        failAll(new IOException("Writer closed"));
+    }
+
+    // Blocks the writer thread until the handshake settles; close() interrupts the wait
+    private synchronized FrameCipher awaitKeys() throws InterruptedException {
+        while (awaitingKeys) {
+            wait();
+        }
+        return encryptor;
+    }
+
+    private int flush(int length) throws IOException {
+        if (length > 0) {
+            out.write(batch, 0, length);
+            bytesWritten += length;
+        }
+        out.flush();
+        if (bytesWritten > bytesReported) {
+            callback.onBytesWritten(bytesWritten - bytesReported);
+            bytesReported = bytesWritten;
+        }
+        long now = System.nanoTime();
+        for (int i = 0; i < inFlight.size(); i++) {
+            OutboundFrame frame = inFlight.get(i);
+            queue.onWritten(frame, now);
+            callback.onFrameWritten(frame);
+            frame.completion.complete(null);
+        }
+        inFlight.clear();
+        return 0;
+    }
+
+    private void failAll(IOException cause) {
+        for (int i = 0; i < inFlight.size(); i++) {
+            inFlight.get(i).completion.completeExceptionally(cause);
+        }
+        inFlight.clear();
+        OutboundFrame frame;
+        while ((frame = queue.poll()) != null) {
+            frame.completion.completeExceptionally(cause);
+        }
+    }
+}
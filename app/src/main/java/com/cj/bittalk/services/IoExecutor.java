@@ -0,0 +1,155 @@
+package com.cj.bittalk.services;
+
+import android.util.Log;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Small bounded pool that runs the blocking accept, connect, read and write
+ * loops of BluetoothService. Threads are reused across reconnects and die off
+ * after a period of inactivity, and every task tracks how long it waited in
+ * the queue and how long it ran.
+ */
+public class IoExecutor {
+    private static final String TAG = "IoExecutor";
+    private static final long KEEP_ALIVE_SECONDS = 30;
+    private static final int QUEUE_CAPACITY = 32;
+
+    private final ThreadPoolExecutor executor;
+    private final AtomicInteger liveTasks = new AtomicInteger();
+    private final AtomicInteger runningTasks = new AtomicInteger();
+    private final AtomicLong completedTasks = new AtomicLong();
+    private final AtomicLong queuedNanos = new AtomicLong();
+    private final AtomicLong runningNanos = new AtomicLong();
+
+    public IoExecutor(String name, int maxThreads) {
+        AtomicInteger threadNumber = new AtomicInteger();
+        ThreadFactory threadFactory = runnable -> {
+            Thread thread = new Thread(runnable, name + "-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+        executor = new ThreadPoolExecutor(maxThreads, maxThreads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(QUEUE_CAPACITY), threadFactory);
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Schedules a task. Returns false if the pool is saturated or shut down, in
+     * which case the task will never run.
+     */
+    public boolean submit(Task task) {
+        task.owner = this;
+        task.submittedAt = System.nanoTime();
+        liveTasks.incrementAndGet();
+        try {
+            executor.execute(task);
+            return true;
+        } catch (RejectedExecutionException e) {
+            Log.e(TAG, "Rejected " + task.name, e);
+            task.state.set(Task.DONE);
+            liveTasks.decrementAndGet();
+            return false;
+        }
+    }
+
+    // Tasks submitted and not yet finished, queued or running
+    public int getLiveTaskCount() {
+        return liveTasks.get();
+    }
+
+    public int getRunningTaskCount() {
+        return runningTasks.get();
+    }
+
+    public long getCompletedTaskCount() {
+        return completedTasks.get();
+    }
+
+    public long getTotalQueuedNanos() {
+        return queuedNanos.get();
+    }
+
+    public long getTotalRunningNanos() {
+        return runningNanos.get();
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * A cancellable unit of blocking work. cancel() keeps a queued task from
+     * starting and calls onCancel() so a running one can unblock itself,
+     * usually by closing its socket.
+     */
+    public abstract static class Task implements Runnable {
+        static final int QUEUED = 0;
+        static final int RUNNING = 1;
+        static final int DONE = 2;
+
+        private final String name;
+        private final AtomicInteger state = new AtomicInteger(QUEUED);
+        private volatile boolean cancelled;
+        private IoExecutor owner;
+        private long submittedAt;
+
+        protected Task(String name) {
+            this.name = name;
+        }
+
+        protected abstract void execute();
+
+        protected void onCancel() {
+        }
+
+        public final boolean isCancelled() {
+            return cancelled;
+        }
+
+        public final void cancel() {
+            cancelled = true;
+            IoExecutor executor = owner;
+            if (executor != null && state.compareAndSet(QUEUED, DONE)) {
+                // Never started, so it will not be counted by run()
+                executor.executor.remove(this);
+                executor.liveTasks.decrementAndGet();
+            }
+            // Release resources acquired up front even if the task never ran
+            onCancel();
+        }
+
+        @Override
+        public final void run() {
+            if (!state.compareAndSet(QUEUED, RUNNING)) {
+                return;
+            }
+            IoExecutor executor = owner;
+            long startedAt = System.nanoTime();
+            executor.queuedNanos.addAndGet(startedAt - submittedAt);
+            executor.runningTasks.incrementAndGet();
+
+            Thread thread = Thread.currentThread();
+            String poolName = thread.getName();
+            thread.setName(name);
+            try {
+                execute();
+            } finally {
+                thread.setName(poolName);
+                // Do not leak an interrupt into the next task on this thread
+                Thread.interrupted();
+                state.set(DONE);
+                executor.runningNanos.addAndGet(System.nanoTime() - startedAt);
+                executor.runningTasks.decrementAndGet();
+                executor.completedTasks.incrementAndGet();
+                executor.liveTasks.decrementAndGet();
+            }
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package com.cj.bittalk.services;
+
+/**
+ * Liveness and link quality of one connection. The reader thread reports
+ * every read and pong, the heartbeat timer decides when to ping and when the
+ * peer has gone quiet for too long.
+ */
+class LinkMonitor {
+    // Same gains as TCP's smoothed RTT and RTP's interarrival jitter
+    private static final double RTT_GAIN = 1.0 / 8;
+    private static final double JITTER_GAIN = 1.0 / 16;
+    private static final double RATE_GAIN = 1.0 / 4;
+
+    private long lastReceivedNanos;
+    private int outstandingPings;
+    private long pingsSent;
+    private long pongsReceived;
+    private double rttMillis;
+    private double jitterMillis;
+    private double lastRttMillis;
+    private long bytesIn;
+    private long lastSampleNanos;
+    private long lastSampleBytesIn;
+    private long lastSampleBytesOut;
+    private double bytesPerSecondIn;
+    private double bytesPerSecondOut;
+
+    LinkMonitor(long nowNanos) {
+        lastReceivedNanos = nowNanos;
+        lastSampleNanos = nowNanos;
+    }
+
+    // Any traffic from the peer proves it is alive
+    synchronized void onReceived(long nowNanos, int bytes) {
+        lastReceivedNanos = nowNanos;
+        outstandingPings = 0;
+        bytesIn += bytes;
+    }
+
+    synchronized void onPong(long nowNanos, long pingSentNanos) {
+        double sample = (nowNanos - pingSentNanos) / 1_000_000.0;
+        if (sample < 0) {
+            return;
+        }
+        if (pongsReceived == 0) {
+            rttMillis = sample;
+        } else {
+            rttMillis += RTT_GAIN * (sample - rttMillis);
+            jitterMillis += JITTER_GAIN * (Math.abs(sample - lastRttMillis) - jitterMillis);
+        }
+        lastRttMillis = sample;
+        pongsReceived++;
+    }
+
+    synchronized boolean isIdle(long nowNanos, long intervalNanos) {
+        return nowNanos - lastReceivedNanos >= intervalNanos;
+    }
+
+    synchronized int getOutstandingPings() {
+        return outstandingPings;
+    }
+
+    synchronized void onPingSent() {
+        outstandingPings++;
+        pingsSent++;
+    }
+
+    // Called once per heartbeat interval to update the transfer rates
+    synchronized void sample(long nowNanos, long bytesOut) {
+        long elapsed = nowNanos - lastSampleNanos;
+        if (elapsed <= 0) {
+            return;
+        }
+        double in = (bytesIn - lastSampleBytesIn) * 1e9 / elapsed;
+        double out = (bytesOut - lastSampleBytesOut) * 1e9 / elapsed;
+        bytesPerSecondIn += RATE_GAIN * (in - bytesPerSecondIn);
+        bytesPerSecondOut += RATE_GAIN * (out - bytesPerSecondOut);
+        lastSampleNanos = nowNanos;
+        lastSampleBytesIn = bytesIn;
+        lastSampleBytesOut = bytesOut;
+    }
+
+    synchronized LinkStats snapshot(long bytesOut) {
+        return new LinkStats(rttMillis, jitterMillis, lastRttMillis, pingsSent, pongsReceived,
+                outstandingPings, bytesIn, bytesOut, (long) bytesPerSecondIn, (long) bytesPerSecondOut);
+    }
+}
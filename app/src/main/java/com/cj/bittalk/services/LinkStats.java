@@ -0,0 +1,38 @@
+package com.cj.bittalk.services;
+
+/**
+ * Snapshot of the heartbeat and traffic counters of one connection. RTT and
+ * jitter are smoothed over the pongs received so far, and the rates over the
+ * last few heartbeat intervals.
+ */
+public class LinkStats {
+    public final double rttMillis;
+    public final double jitterMillis;
+    public final double lastRttMillis;
+    public final long pingsSent;
+    public final long pongsReceived;
+    public final int outstandingPings;
+    public final long bytesIn;
+    public final long bytesOut;
+    public final long bytesPerSecondIn;
+    public final long bytesPerSecondOut;
+
+    LinkStats(double rttMillis, double jitterMillis, double lastRttMillis, long pingsSent, long pongsReceived,
+              int outstandingPings, long bytesIn, long bytesOut, long bytesPerSecondIn, long bytesPerSecondOut) {
+        this.rttMillis = rttMillis;
+        this.jitterMillis = jitterMillis;
+        this.lastRttMillis = lastRttMillis;
+        this.pingsSent = pingsSent;
+        this.pongsReceived = pongsReceived;
+        this.outstandingPings = outstandingPings;
+        this.bytesIn = bytesIn;
+        this.bytesOut = bytesOut;
+        this.bytesPerSecondIn = bytesPerSecondIn;
+        this.bytesPerSecondOut = bytesPerSecondOut;
+    }
+
+    // False until the first pong came back
+    public boolean hasRtt() {
+        return pongsReceived > 0;
+    }
+}
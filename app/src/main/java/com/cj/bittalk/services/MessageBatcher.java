@@ -0,0 +1,102 @@
+package com.cj.bittalk.services;
+
+import com.cj.bittalk.metrics.Histogram;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Collects received messages from the reader threads and hands them to their
+ * listeners in one batch per frame, so a burst of small messages costs one
+ * main-thread wakeup instead of one post per message. A batch holds the
+ * messages of one peer, consecutive runs from different peers go out apart.
+ */
+class MessageBatcher {
+    /** Runs the drain once, on the thread that owns the UI, at the next frame. */
+    interface FrameScheduler {
+        void scheduleFrame(Runnable drain);
+    }
+
+    private static final class Inbound {
+        final BluetoothService.BluetoothConnectionListener listener;
+        final String address;
+        final String message;
+        final long receivedNanos;
+
+        Inbound(BluetoothService.BluetoothConnectionListener listener, String address, String message,
+                long receivedNanos) {
+            this.listener = listener;
+            this.address = address;
+            this.message = message;
+            this.receivedNanos = receivedNanos;
+        }
+    }
+
+    private final FrameScheduler scheduler;
+    private final ConcurrentLinkedQueue<Inbound> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private final Runnable drain = this::drain;
+    // Null when nobody measures; otherwise fed from the drain, with receive times kept in runTimes
+    private final Histogram renderLatency;
+    private long[] runTimes = new long[64];
+
+    MessageBatcher(FrameScheduler scheduler) {
+        this(scheduler, null);
+    }
+
+    MessageBatcher(FrameScheduler scheduler, Histogram renderLatency) {
+        this.scheduler = scheduler;
+        this.renderLatency = renderLatency;
+    }
+
+    // address is the peer the message came from
+    void offer(BluetoothService.BluetoothConnectionListener listener, String address, String message) {
+        pending.offer(new Inbound(listener, address, message, System.nanoTime()));
+        // Only the first message since the last drain asks for a frame
+        if (scheduled.compareAndSet(false, true)) {
+            scheduler.scheduleFrame(drain);
+        }
+    }
+
+    private void drain() {
+        // Cleared before polling, so anything offered from here on schedules the next frame
+        scheduled.set(false);
+
+        BluetoothService.BluetoothConnectionListener runListener = null;
+        String runAddress = null;
+        List<String> run = null;
+        Inbound inbound;
+        while ((inbound = pending.poll()) != null) {
+            if (run != null && (inbound.listener != runListener || !inbound.address.equals(runAddress))) {
+                deliver(runListener, runAddress, run);
+                run = null;
+            }
+            if (run == null) {
+                runListener = inbound.listener;
+                runAddress = inbound.address;
+                run = new ArrayList<>();
+            }
+            if (run.size() == runTimes.length) {
+                runTimes = Arrays.copyOf(runTimes, runTimes.length * 2);
+            }
+            runTimes[run.size()] = inbound.receivedNanos;
+            run.add(inbound.message);
+        }
+        if (run != null) {
+            deliver(runListener, runAddress, run);
+        }
+    }
+
+    private void deliver(BluetoothService.BluetoothConnectionListener listener, String address, List<String> run) {
+        listener.onMessagesReceived(address, run);
+        if (renderLatency != null) {
+            long now = System.nanoTime();
+            for (int i = 0; i < run.size(); i++) {
+                renderLatency.record(now - runTimes[i]);
+            }
+        }
+    }
+}
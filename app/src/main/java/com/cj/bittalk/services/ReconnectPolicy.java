@@ -0,0 +1,47 @@
+package com.cj.bittalk.services;
+
+import java.util.Random;
+
+/**
+ * Jittered exponential backoff for redialling a peer whose link dropped. The
+ * delay window doubles with every failed attempt up to maxDelayMillis, and
+ * each delay is drawn from the upper half of the window so two phones that
+ * lost each other at the same moment do not keep colliding.
+ */
+public class ReconnectPolicy {
+    public static final ReconnectPolicy DEFAULT = new ReconnectPolicy(250, 15_000, 12);
+
+    private final long initialDelayMillis;
+    private final long maxDelayMillis;
+    private final int maxAttempts;
+    private final Random random = new Random();
+
+    public ReconnectPolicy(long initialDelayMillis, long maxDelayMillis, int maxAttempts) {
+        if (initialDelayMillis <= 0 || maxDelayMillis < initialDelayMillis || maxAttempts <= 0) {
+            throw new IllegalArgumentException("Invalid backoff " + initialDelayMillis + ".."
+                    + maxDelayMillis + " x" + maxAttempts);
+        }
+        this.initialDelayMillis = initialDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+        this.maxAttempts = maxAttempts;
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    /** Delay before the given attempt, counting from 0, or -1 once the attempts are used up. */
+    public long delayMillis(int attempt) {
+        if (attempt >= maxAttempts) {
+            return -1;
+        }
+        long window = initialDelayMillis << Math.min(attempt, 20);
+        if (window > maxDelayMillis) {
+            window = maxDelayMillis;
+        }
+        long half = window / 2;
+        synchronized (random) {
+            return half + (long) (random.nextDouble() * (window - half + 1));
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package com.cj.bittalk.services;
+
+/**
+ * Snapshot of the auto-reconnect counters of a BluetoothService. Latency is
+ * measured from the moment a link was lost to the moment it was back up.
+ */
+public class ReconnectStats {
+    public final long attempts;
+    public final long reconnects;
+    public final long giveUps;
+    public final long lastLatencyMillis;
+    public final long totalLatencyMillis;
+
+    ReconnectStats(long attempts, long reconnects, long giveUps, long lastLatencyMillis, long totalLatencyMillis) {
+        this.attempts = attempts;
+        this.reconnects = reconnects;
+        this.giveUps = giveUps;
+        this.lastLatencyMillis = lastLatencyMillis;
+        this.totalLatencyMillis = totalLatencyMillis;
+    }
+
+    public long getAverageLatencyMillis() {
+        return reconnects == 0 ? 0 : totalLatencyMillis / reconnects;
+    }
+}
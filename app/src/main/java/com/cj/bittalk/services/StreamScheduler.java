@@ -0,0 +1,190 @@
+package com.cj.bittalk.services;
+
+import com.cj.bittalk.protocol.Frame;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Outbound queues of one connection, one per priority class. Control frames
+ * always go first and interactive frames before bulk ones, except that every
+ * BULK_SHARE-th pick goes to bulk while both are waiting, so a file transfer
+ * keeps moving under a burst of chat. Bulk frames are bounded by the transfer
+ * chunk size, which bounds how long a typed message can wait behind them.
+ */
+class StreamScheduler {
+    static final int BULK_SHARE = 8;
+
+    private static final String[] NAMES = {"control", "interactive", "bulk"};
+
+    private static final class Stream {
+        final ArrayDeque<FrameWriter.OutboundFrame> frames = new ArrayDeque<>();
+        int maxDepth;
+        long framesWritten;
+        long bytesWritten;
+        long totalLatencyNanos;
+        long maxLatencyNanos;
+    }
+
+    private final int capacity;
+    private final Stream[] streams = new Stream[NAMES.length];
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private int size;
+    // Interactive frames picked in a row while bulk frames were waiting
+    private int interactiveRun;
+
+    // Each class gets capacity frames of its own, so bulk data cannot crowd out control frames
+    StreamScheduler(int capacity) {
+        this.capacity = capacity;
+        for (int i = 0; i < streams.length; i++) {
+            streams[i] = new Stream();
+        }
+    }
+
+    static int priorityOf(int type) {
+        switch (type) {
+            case Frame.TYPE_MESSAGE:
+            case Frame.TYPE_RELAY:
+                return FrameWriter.PRIORITY_INTERACTIVE;
+            case Frame.TYPE_FILE_CHUNK:
+                return FrameWriter.PRIORITY_BULK;
+            default:
+                // Handshake, heartbeat, acknowledgements and the small file transfer control frames
+                return FrameWriter.PRIORITY_CONTROL;
+        }
+    }
+
+    boolean offer(FrameWriter.OutboundFrame frame) {
+        Stream stream = streams[priorityOf(frame.type)];
+        lock.lock();
+        try {
+            if (stream.frames.size() >= capacity) {
+                return false;
+            }
+            frame.enqueuedNanos = System.nanoTime();
+            stream.frames.addLast(frame);
+            stream.maxDepth = Math.max(stream.maxDepth, stream.frames.size());
+            if (size++ == 0) {
+                notEmpty.signal();
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    FrameWriter.OutboundFrame take() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (size == 0) {
+                notEmpty.await();
+            }
+            return next();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    FrameWriter.OutboundFrame poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while (size == 0) {
+                if (nanos <= 0) {
+                    return null;
+                }
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            return next();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    FrameWriter.OutboundFrame poll() {
+        lock.lock();
+        try {
+            return size == 0 ? null : next();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    boolean remove(FrameWriter.OutboundFrame frame) {
+        lock.lock();
+        try {
+            if (streams[priorityOf(frame.type)].frames.remove(frame)) {
+                size--;
+                return true;
+            }
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int size() {
+        lock.lock();
+        try {
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Called by the writer thread once the frame is on the socket
+    void onWritten(FrameWriter.OutboundFrame frame, long nowNanos) {
+        Stream stream = streams[priorityOf(frame.type)];
+        long latency = nowNanos - frame.enqueuedNanos;
+        lock.lock();
+        try {
+            stream.framesWritten++;
+            stream.bytesWritten += frame.length;
+            stream.totalLatencyNanos += latency;
+            stream.maxLatencyNanos = Math.max(stream.maxLatencyNanos, latency);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    List<StreamStats> snapshot() {
+        List<StreamStats> stats = new ArrayList<>(streams.length);
+        lock.lock();
+        try {
+            for (int i = 0; i < streams.length; i++) {
+                Stream stream = streams[i];
+                stats.add(new StreamStats(i, NAMES[i], stream.frames.size(), stream.maxDepth, stream.framesWritten,
+                        stream.bytesWritten, stream.totalLatencyNanos, stream.maxLatencyNanos));
+            }
+        } finally {
+            lock.unlock();
+        }
+        return stats;
+    }
+
+    // Caller holds the lock and size > 0
+    private FrameWriter.OutboundFrame next() {
+        ArrayDeque<FrameWriter.OutboundFrame> control = streams[FrameWriter.PRIORITY_CONTROL].frames;
+        ArrayDeque<FrameWriter.OutboundFrame> interactive = streams[FrameWriter.PRIORITY_INTERACTIVE].frames;
+        ArrayDeque<FrameWriter.OutboundFrame> bulk = streams[FrameWriter.PRIORITY_BULK].frames;
+        FrameWriter.OutboundFrame frame;
+        if (!control.isEmpty()) {
+            frame = control.pollFirst();
+        } else if (!interactive.isEmpty() && (bulk.isEmpty() || interactiveRun < BULK_SHARE - 1)) {
+            frame = interactive.pollFirst();
+            interactiveRun = bulk.isEmpty() ? 0 : interactiveRun + 1;
+        } else if (!bulk.isEmpty()) {
+            frame = bulk.pollFirst();
+            interactiveRun = 0;
+        } else {
+            frame = interactive.pollFirst();
+        }
+        size--;
+        return frame;
+    }
+}
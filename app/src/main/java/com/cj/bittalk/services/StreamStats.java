@@ -0,0 +1,39 @@
+package com.cj.bittalk.services;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Snapshot of one priority class of a connection's writer. Latency runs from
+ * enqueue to the moment the frame was flushed to the socket; bytes are payload
+ * bytes before compression.
+ */
+public class StreamStats {
+    public final int priority;
+    public final String name;
+    public final int queueDepth;
+    public final int maxQueueDepth;
+    public final long framesWritten;
+    public final long bytesWritten;
+    public final long totalLatencyNanos;
+    public final long maxLatencyNanos;
+
+    StreamStats(int priority, String name, int queueDepth, int maxQueueDepth, long framesWritten,
+                long bytesWritten, long totalLatencyNanos, long maxLatencyNanos) {
+        this.priority = priority;
+        this.name = name;
+        this.queueDepth = queueDepth;
+        this.maxQueueDepth = maxQueueDepth;
+        this.framesWritten = framesWritten;
+        this.bytesWritten = bytesWritten;
+        this.totalLatencyNanos = totalLatencyNanos;
+        this.maxLatencyNanos = maxLatencyNanos;
+    }
+
+    public double getAverageLatencyMillis() {
+        return framesWritten == 0 ? 0 : totalLatencyNanos / (double) framesWritten / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    public double getMaxLatencyMillis() {
+        return maxLatencyNanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+    }
+}
@@ -0,0 +1,92 @@
+package com.cj.bittalk.transfer;
+
+import java.io.File;
+
+/**
+ * Progress of one file transfer, in either direction. Updated by
+ * TransferManager and safe to read from any thread.
+ */
+public class FileTransfer {
+    public static final int STATE_PENDING = 0;
+    public static final int STATE_ACTIVE = 1;
+    public static final int STATE_PAUSED = 2;
+    public static final int STATE_COMPLETED = 3;
+    public static final int STATE_FAILED = 4;
+
+    private final long id;
+    private final String peerAddress;
+    private final String name;
+    private final long size;
+    private final boolean incoming;
+
+    volatile int state = STATE_PENDING;
+    volatile long transferredBytes;
+    volatile File file;
+    long lastProgressNanos;
+
+    // Start of the current run, so throughput is not skewed by time spent paused
+    private volatile long runStartNanos;
+    private volatile long runStartBytes;
+
+    FileTransfer(long id, String peerAddress, String name, long size, boolean incoming) {
+        this.id = id;
+        this.peerAddress = peerAddress;
+        this.name = name;
+        this.size = size;
+        this.incoming = incoming;
+    }
+
+    void startRun(long offset) {
+        transferredBytes = offset;
+        runStartBytes = offset;
+        runStartNanos = System.nanoTime();
+        state = STATE_ACTIVE;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public String getPeerAddress() {
+        return peerAddress;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public boolean isIncoming() {
+        return incoming;
+    }
+
+    public int getState() {
+        return state;
+    }
+
+    // Bytes confirmed by the receiver, or written to disk when receiving
+    public long getTransferredBytes() {
+        return transferredBytes;
+    }
+
+    public int getProgressPercent() {
+        return size == 0 ? 100 : (int) (transferredBytes * 100 / size);
+    }
+
+    // Average throughput since the transfer last started or resumed
+    public long getBytesPerSecond() {
+        long elapsed = System.nanoTime() - runStartNanos;
+        if (runStartNanos == 0 || elapsed <= 0) {
+            return 0;
+        }
+        return (transferredBytes - runStartBytes) * 1_000_000_000L / elapsed;
+    }
+
+    // The received file once an incoming transfer has completed
+    public File getFile() {
+        return file;
+    }
+}
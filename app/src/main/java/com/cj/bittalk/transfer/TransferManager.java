@@ -0,0 +1,528 @@
+package com.cj.bittalk.transfer;
+
+import android.util.Log;
+
+import com.cj.bittalk.protocol.Frame;
+import com.cj.bittalk.protocol.TransferFrames;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Streams files over the existing connections in fixed-size chunks.
+ *
+ * The sender keeps at most WINDOW_CHUNKS unacknowledged chunks in flight and
+ * reads them from a FileChannel into a small set of reused buffers. The
+ * receiver writes every chunk straight to a partial file and acknowledges
+ * cumulatively. When a connection drops, transfers to that peer pause, and
+ * when it comes back the sender re-offers them and the receiver answers with
+ * how much of the partial file it already has.
+ */
+public class TransferManager {
+    private static final String TAG = "TransferManager";
+
+    public static final int CHUNK_SIZE = 16 * 1024;
+    public static final int WINDOW_CHUNKS = 8;
+    private static final int ACK_EVERY_CHUNKS = WINDOW_CHUNKS / 2;
+    private static final long PROGRESS_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    // How TransferManager reaches the connections, implemented by BluetoothService
+    public interface FrameSink {
+        CompletableFuture<Void> sendFrame(String address, int type, byte[] payload, int offset, int length);
+
+        boolean isConnected(String address);
+    }
+
+    // Opens the file to send, again on every resume
+    public interface Source {
+        FileChannel open() throws IOException;
+    }
+
+    public interface TransferListener {
+        void onTransferProgress(FileTransfer transfer);
+        void onTransferCompleted(FileTransfer transfer);
+        void onTransferFailed(FileTransfer transfer);
+    }
+
+    private final FrameSink sink;
+    private final Executor callbackExecutor;
+    private final SecureRandom random = new SecureRandom();
+    private final Map<Long, Outgoing> outgoing = new ConcurrentHashMap<>();
+    private final Map<Long, Incoming> incoming = new ConcurrentHashMap<>();
+    private volatile File downloadDirectory;
+    private volatile TransferListener listener;
+
+    public TransferManager(FrameSink sink, Executor callbackExecutor) {
+        this.sink = sink;
+        this.callbackExecutor = callbackExecutor;
+    }
+
+    // Incoming offers are refused until a directory is set
+    public void setDownloadDirectory(File downloadDirectory) {
+        this.downloadDirectory = downloadDirectory;
+    }
+
+    public void setListener(TransferListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Starts sending a file. If the peer is not connected the transfer waits
+     * in the paused state until it is.
+     */
+    public FileTransfer sendFile(String address, String name, long size, Source source) {
+        Outgoing transfer = new Outgoing(new FileTransfer(random.nextLong(), address, name, size, false), source);
+        outgoing.put(transfer.info.getId(), transfer);
+        if (sink.isConnected(address)) {
+            offer(transfer);
+        } else {
+            transfer.info.state = FileTransfer.STATE_PAUSED;
+        }
+        return transfer.info;
+    }
+
+    public void cancel(long id) {
+        Outgoing out = outgoing.get(id);
+        if (out != null) {
+            sink.sendFrame(out.info.getPeerAddress(), Frame.TYPE_FILE_CANCEL, TransferFrames.cancel(id), 0, 8);
+            fail(out);
+        }
+        Incoming in = incoming.get(id);
+        if (in != null) {
+            sink.sendFrame(in.info.getPeerAddress(), Frame.TYPE_FILE_CANCEL, TransferFrames.cancel(id), 0, 8);
+            fail(in);
+        }
+    }
+
+    // Called by the connection's reader thread; the payload is only valid during the call
+    public void onFrame(String address, int type, byte[] payload, int offset, int length) throws ProtocolException {
+        long id = TransferFrames.id(payload, offset, length);
+        switch (type) {
+            case Frame.TYPE_FILE_OFFER:
+                onOffer(address, id, TransferFrames.position(payload, offset, length),
+                        TransferFrames.offerName(payload, offset, length));
+                break;
+            case Frame.TYPE_FILE_RESUME:
+                onResume(id, TransferFrames.position(payload, offset, length));
+                break;
+            case Frame.TYPE_FILE_CHUNK:
+                onChunk(id, TransferFrames.position(payload, offset, length), payload,
+                        offset + TransferFrames.CHUNK_HEADER_SIZE, length - TransferFrames.CHUNK_HEADER_SIZE);
+                break;
+            case Frame.TYPE_FILE_ACK:
+                onAck(id, TransferFrames.position(payload, offset, length));
+                break;
+            case Frame.TYPE_FILE_CANCEL:
+                onCancel(id);
+                break;
+        }
+    }
+
+    // Re-offers transfers to a peer that has just (re)connected
+    public void onSessionOpened(String address) {
+        for (Outgoing transfer : outgoing.values()) {
+            if (transfer.info.getPeerAddress().equals(address) && transfer.info.state == FileTransfer.STATE_PAUSED) {
+                offer(transfer);
+            }
+        }
+    }
+
+    // Pauses all transfers with a peer whose connection has gone away
+    public void onSessionClosed(String address) {
+        for (Outgoing transfer : outgoing.values()) {
+            if (transfer.info.getPeerAddress().equals(address)) {
+                pause(transfer);
+            }
+        }
+        for (Incoming transfer : incoming.values()) {
+            if (transfer.info.getPeerAddress().equals(address)) {
+                synchronized (transfer) {
+                    if (transfer.info.state == FileTransfer.STATE_ACTIVE) {
+                        transfer.info.state = FileTransfer.STATE_PAUSED;
+                        transfer.closeChannel();
+                    }
+                }
+            }
+        }
+    }
+
+    // Sender side
+
+    private void offer(Outgoing transfer) {
+        FileTransfer info = transfer.info;
+        info.state = FileTransfer.STATE_PENDING;
+        byte[] payload = TransferFrames.offer(info.getId(), info.getSize(), info.getName());
+        sink.sendFrame(info.getPeerAddress(), Frame.TYPE_FILE_OFFER, payload, 0, payload.length);
+    }
+
+    private void onResume(long id, long offset) {
+        Outgoing transfer = outgoing.get(id);
+        if (transfer == null) {
+            return;
+        }
+        synchronized (transfer) {
+            if (transfer.info.state != FileTransfer.STATE_PENDING || offset < 0 || offset > transfer.info.getSize()) {
+                return;
+            }
+            try {
+                if (transfer.channel == null) {
+                    transfer.channel = transfer.source.open();
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Could not open " + transfer.info.getName(), e);
+                cancel(id);
+                return;
+            }
+            transfer.nextOffset = offset;
+            transfer.ackedOffset = offset;
+            transfer.info.startRun(offset);
+            pump(transfer);
+        }
+        notifyProgress(transfer.info, true);
+    }
+
+    private void onAck(long id, long confirmed) {
+        Outgoing transfer = outgoing.get(id);
+        if (transfer == null) {
+            return;
+        }
+        boolean completed;
+        synchronized (transfer) {
+            // An empty or already complete file is acknowledged without any chunks
+            if (confirmed <= transfer.ackedOffset && confirmed < transfer.info.getSize()) {
+                return;
+            }
+            transfer.ackedOffset = confirmed;
+            transfer.info.transferredBytes = confirmed;
+            completed = confirmed >= transfer.info.getSize();
+            if (completed) {
+                transfer.info.state = FileTransfer.STATE_COMPLETED;
+                transfer.closeChannel();
+                outgoing.remove(id);
+            } else {
+                pump(transfer);
+            }
+        }
+        if (completed) {
+            notifyListener(transfer.info, FileTransfer.STATE_COMPLETED);
+        } else {
+            notifyProgress(transfer.info, false);
+        }
+    }
+
+    // Fills the window with chunks; called with the transfer's lock held
+    private void pump(Outgoing transfer) {
+        FileTransfer info = transfer.info;
+        while (info.state == FileTransfer.STATE_ACTIVE
+                && transfer.nextOffset < info.getSize()
+                && transfer.nextOffset - transfer.ackedOffset < (long) WINDOW_CHUNKS * CHUNK_SIZE) {
+            byte[] buffer = transfer.takeBuffer();
+            if (buffer == null) {
+                return;
+            }
+
+            long chunkOffset = transfer.nextOffset;
+            int chunkLength = (int) Math.min(CHUNK_SIZE, info.getSize() - chunkOffset);
+            try {
+                ByteBuffer target = ByteBuffer.wrap(buffer, TransferFrames.CHUNK_HEADER_SIZE, chunkLength);
+                while (target.hasRemaining()) {
+                    if (transfer.channel.read(target, chunkOffset + target.position()
+                            - TransferFrames.CHUNK_HEADER_SIZE) < 0) {
+                        throw new IOException("File is shorter than announced");
+                    }
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Could not read " + info.getName(), e);
+                transfer.freeBuffers.push(buffer);
+                cancel(info.getId());
+                return;
+            }
+
+            TransferFrames.putLong(buffer, 0, info.getId());
+            TransferFrames.putLong(buffer, 8, chunkOffset);
+            transfer.nextOffset += chunkLength;
+            sink.sendFrame(info.getPeerAddress(), Frame.TYPE_FILE_CHUNK, buffer, 0,
+                    TransferFrames.CHUNK_HEADER_SIZE + chunkLength)
+                    .whenComplete((ignored, error) -> {
+                        synchronized (transfer) {
+                            transfer.freeBuffers.push(buffer);
+                            if (error != null) {
+                                // The connection went away, wait for the peer to come back
+                                pause(transfer);
+                            } else {
+                                // An ack may have opened the window while every buffer was still being written
+                                pump(transfer);
+                            }
+                        }
+                    });
+        }
+    }
+
+    private void pause(Outgoing transfer) {
+        synchronized (transfer) {
+            int state = transfer.info.state;
+            if (state == FileTransfer.STATE_ACTIVE || state == FileTransfer.STATE_PENDING) {
+                transfer.info.state = FileTransfer.STATE_PAUSED;
+                transfer.closeChannel();
+            }
+        }
+    }
+
+    // Receiver side
+
+    private void onOffer(String address, long id, long size, String name) {
+        File directory = downloadDirectory;
+        if (directory == null || size < 0 || (!directory.isDirectory() && !directory.mkdirs())) {
+            sink.sendFrame(address, Frame.TYPE_FILE_CANCEL, TransferFrames.cancel(id), 0, 8);
+            return;
+        }
+
+        Incoming transfer = incoming.get(id);
+        if (transfer == null) {
+            transfer = new Incoming(new FileTransfer(id, address, sanitize(name), size, true),
+                    new File(directory, Long.toHexString(id) + ".part"));
+            incoming.put(id, transfer);
+        }
+
+        long offset;
+        synchronized (transfer) {
+            try {
+                transfer.closeChannel();
+                transfer.channel = new RandomAccessFile(transfer.partFile, "rw").getChannel();
+                offset = transfer.channel.size();
+                if (offset > size) {
+                    transfer.channel.truncate(0);
+                    offset = 0;
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Could not open " + transfer.partFile, e);
+                sink.sendFrame(address, Frame.TYPE_FILE_CANCEL, TransferFrames.cancel(id), 0, 8);
+                fail(transfer);
+                return;
+            }
+            transfer.info.file = transfer.partFile;
+            transfer.info.startRun(offset);
+            transfer.chunksSinceAck = 0;
+        }
+
+        if (offset == size) {
+            finish(transfer);
+        } else {
+            sink.sendFrame(address, Frame.TYPE_FILE_RESUME, TransferFrames.idAndOffset(id, offset), 0, 16);
+            notifyProgress(transfer.info, true);
+        }
+    }
+
+    private void onChunk(long id, long chunkOffset, byte[] data, int offset, int length) {
+        Incoming transfer = incoming.get(id);
+        if (transfer == null) {
+            return;
+        }
+        boolean done;
+        synchronized (transfer) {
+            FileTransfer info = transfer.info;
+            if (info.state != FileTransfer.STATE_ACTIVE || chunkOffset < info.transferredBytes) {
+                // Stale chunk from before a resume
+                return;
+            }
+            try {
+                if (chunkOffset != info.transferredBytes || chunkOffset + length > info.getSize()) {
+                    throw new IOException("Unexpected chunk at " + chunkOffset);
+                }
+                ByteBuffer source = ByteBuffer.wrap(data, offset, length);
+                while (source.hasRemaining()) {
+                    transfer.channel.write(source, chunkOffset + source.position() - offset);
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Could not write " + transfer.partFile, e);
+                sink.sendFrame(info.getPeerAddress(), Frame.TYPE_FILE_CANCEL, TransferFrames.cancel(id), 0, 8);
+                fail(transfer);
+                return;
+            }
+            info.transferredBytes = chunkOffset + length;
+            done = info.transferredBytes == info.getSize();
+            if (!done && ++transfer.chunksSinceAck >= ACK_EVERY_CHUNKS) {
+                transfer.chunksSinceAck = 0;
+                sink.sendFrame(info.getPeerAddress(), Frame.TYPE_FILE_ACK,
+                        TransferFrames.idAndOffset(id, info.transferredBytes), 0, 16);
+            }
+        }
+
+        if (done) {
+            finish(transfer);
+        } else {
+            notifyProgress(transfer.info, false);
+        }
+    }
+
+    private void finish(Incoming transfer) {
+        FileTransfer info = transfer.info;
+        synchronized (transfer) {
+            transfer.closeChannel();
+            File target = uniqueFile(transfer.partFile.getParentFile(), info.getName());
+            if (!transfer.partFile.renameTo(target)) {
+                Log.e(TAG, "Could not move " + transfer.partFile + " to " + target);
+                target = transfer.partFile;
+            }
+            info.file = target;
+            info.transferredBytes = info.getSize();
+            info.state = FileTransfer.STATE_COMPLETED;
+            incoming.remove(info.getId());
+        }
+        sink.sendFrame(info.getPeerAddress(), Frame.TYPE_FILE_ACK,
+                TransferFrames.idAndOffset(info.getId(), info.getSize()), 0, 16);
+        notifyListener(info, FileTransfer.STATE_COMPLETED);
+    }
+
+    private void onCancel(long id) {
+        Outgoing out = outgoing.get(id);
+        if (out != null) {
+            fail(out);
+        }
+        Incoming in = incoming.get(id);
+        if (in != null) {
+            fail(in);
+        }
+    }
+
+    private void fail(Outgoing transfer) {
+        synchronized (transfer) {
+            transfer.info.state = FileTransfer.STATE_FAILED;
+            transfer.closeChannel();
+        }
+        if (outgoing.remove(transfer.info.getId()) != null) {
+            notifyListener(transfer.info, FileTransfer.STATE_FAILED);
+        }
+    }
+
+    private void fail(Incoming transfer) {
+        synchronized (transfer) {
+            transfer.info.state = FileTransfer.STATE_FAILED;
+            transfer.closeChannel();
+            transfer.partFile.delete();
+        }
+        if (incoming.remove(transfer.info.getId()) != null) {
+            notifyListener(transfer.info, FileTransfer.STATE_FAILED);
+        }
+    }
+
+    private void notifyProgress(FileTransfer info, boolean force) {
+        long now = System.nanoTime();
+        synchronized (info) {
+            if (!force && now - info.lastProgressNanos < PROGRESS_INTERVAL_NANOS) {
+                return;
+            }
+            info.lastProgressNanos = now;
+        }
+        notifyListener(info, FileTransfer.STATE_ACTIVE);
+    }
+
+    private void notifyListener(FileTransfer info, int event) {
+        TransferListener target = listener;
+        if (target == null) {
+            return;
+        }
+        callbackExecutor.execute(() -> {
+            switch (event) {
+                case FileTransfer.STATE_COMPLETED:
+                    target.onTransferCompleted(info);
+                    break;
+                case FileTransfer.STATE_FAILED:
+                    target.onTransferFailed(info);
+                    break;
+                default:
+                    target.onTransferProgress(info);
+                    break;
+            }
+        });
+    }
+
+    // Keeps only the last path segment so a peer cannot write outside the directory
+    static String sanitize(String name) {
+        String base = name.substring(Math.max(name.lastIndexOf('/'), name.lastIndexOf('\\')) + 1);
+        while (base.startsWith(".")) {
+            base = base.substring(1);
+        }
+        return base.isEmpty() ? "attachment" : base;
+    }
+
+    private static File uniqueFile(File directory, String name) {
+        File file = new File(directory, name);
+        int dot = name.lastIndexOf('.');
+        String stem = dot > 0 ? name.substring(0, dot) : name;
+        String extension = dot > 0 ? name.substring(dot) : "";
+        for (int i = 1; file.exists(); i++) {
+            file = new File(directory, stem + " (" + i + ")" + extension);
+        }
+        return file;
+    }
+
+    private static void closeQuietly(FileChannel channel) {
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            Log.e(TAG, "close() of file failed", e);
+        }
+    }
+
+    private static class Outgoing {
+        final FileTransfer info;
+        final Source source;
+        final ArrayDeque<byte[]> freeBuffers = new ArrayDeque<>();
+        int allocatedBuffers;
+        FileChannel channel;
+        long nextOffset;
+        long ackedOffset;
+
+        Outgoing(FileTransfer info, Source source) {
+            this.info = info;
+            this.source = source;
+        }
+
+        // Chunk buffers are reused once the writer is done with them
+        byte[] takeBuffer() {
+            byte[] buffer = freeBuffers.poll();
+            if (buffer == null && allocatedBuffers < WINDOW_CHUNKS) {
+                allocatedBuffers++;
+                buffer = new byte[TransferFrames.CHUNK_HEADER_SIZE + CHUNK_SIZE];
+            }
+            return buffer;
+        }
+
+        void closeChannel() {
+            closeQuietly(channel);
+            channel = null;
+        }
+    }
+
+    private static class Incoming {
+        final FileTransfer info;
+        final File partFile;
+        FileChannel channel;
+        int chunksSinceAck;
+
+        Incoming(FileTransfer info, File partFile) {
+            this.info = info;
+            this.partFile = partFile;
+        }
+
+        void closeChannel() {
+            closeQuietly(channel);
+            channel = null;
+        }
+    }
+}
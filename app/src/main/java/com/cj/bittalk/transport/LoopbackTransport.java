@@ -0,0 +1,150 @@
+package com.cj.bittalk.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.SocketException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * In-process transport over in-memory pipes. Every transport registers under
+ * its own address on a shared Network, and sockets created by one transport
+ * connect to whichever transport is listening under the target address.
+ */
+public class LoopbackTransport implements Transport {
+    private static final int PIPE_CAPACITY = 64 * 1024;
+
+    public static class Network {
+        private final ConcurrentHashMap<String, LoopbackServerSocket> listeners = new ConcurrentHashMap<>();
+    }
+
+    private final Network network;
+    private final String address;
+
+    public LoopbackTransport(Network network, String address) {
+        this.network = network;
+        this.address = address;
+    }
+
+    public String getAddress() {
+        return address;
+    }
+
+    @Override
+    public TransportServerSocket listen() throws IOException {
+        LoopbackServerSocket serverSocket = new LoopbackServerSocket();
+        if (network.listeners.putIfAbsent(address, serverSocket) != null) {
+            throw new IOException("Address already in use: " + address);
+        }
+        return serverSocket;
+    }
+
+    @Override
+    public TransportSocket createSocket(String remoteAddress) {
+        return new LoopbackSocket(remoteAddress);
+    }
+
+    private class LoopbackServerSocket implements TransportServerSocket {
+        private final BlockingQueue<LoopbackSocket> pending = new LinkedBlockingQueue<>();
+        private volatile boolean closed;
+
+        @Override
+        public TransportSocket accept() throws IOException {
+            try {
+                LoopbackSocket socket = pending.take();
+                if (closed) {
+                    // Leave the wake-up marker for any other blocked accept()
+                    pending.offer(socket);
+                    throw new SocketException("Socket closed");
+                }
+                return socket;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SocketException("Interrupted");
+            }
+        }
+
+        boolean offer(LoopbackSocket socket) {
+            return !closed && pending.offer(socket);
+        }
+
+        @Override
+        public void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            network.listeners.remove(address, this);
+            // Wake up a blocked accept()
+            pending.offer(new LoopbackSocket(address));
+        }
+    }
+
+    private class LoopbackSocket implements TransportSocket {
+        private final String remoteAddress;
+        private volatile Pipe inbound;
+        private volatile Pipe outbound;
+        private volatile boolean closed;
+
+        LoopbackSocket(String remoteAddress) {
+            this.remoteAddress = remoteAddress;
+        }
+
+        @Override
+        public void connect() throws IOException {
+            LoopbackServerSocket server = network.listeners.get(remoteAddress);
+            if (closed || server == null) {
+                throw new ConnectException("Connection refused: " + remoteAddress);
+            }
+            Pipe toServer = new Pipe(PIPE_CAPACITY);
+            Pipe toClient = new Pipe(PIPE_CAPACITY);
+
+            // The accepted end sees this transport's address as its remote
+            LoopbackSocket accepted = new LoopbackSocket(address);
+            accepted.inbound = toServer;
+            accepted.outbound = toClient;
+            inbound = toClient;
+            outbound = toServer;
+            if (!server.offer(accepted)) {
+                throw new ConnectException("Connection refused: " + remoteAddress);
+            }
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return connectedPipe(inbound).getInputStream();
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            return connectedPipe(outbound).getOutputStream();
+        }
+
+        private Pipe connectedPipe(Pipe pipe) throws IOException {
+            if (pipe == null) {
+                throw new SocketException("Socket is not connected");
+            }
+            return pipe;
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return remoteAddress;
+        }
+
+        @Override
+        public String getRemoteName() {
+            return remoteAddress;
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+            if (inbound != null) inbound.close();
+            if (outbound != null) outbound.close();
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package com.cj.bittalk.transport;
+
+import android.Manifest;
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothServerSocket;
+import android.bluetooth.BluetoothSocket;
+
+import androidx.annotation.RequiresPermission;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.UUID;
+
+public class RfcommTransport implements Transport {
+    private final BluetoothAdapter bluetoothAdapter;
+    private final String serviceName;
+    private final UUID uuid;
+
+    public RfcommTransport(BluetoothAdapter bluetoothAdapter, String serviceName, UUID uuid) {
+        this.bluetoothAdapter = bluetoothAdapter;
+        this.serviceName = serviceName;
+        this.uuid = uuid;
+    }
+
+    @RequiresPermission(Manifest.permission.BLUETOOTH_CONNECT)
+    @Override
+    public TransportServerSocket listen() throws IOException {
+        BluetoothServerSocket serverSocket = bluetoothAdapter.listenUsingRfcommWithServiceRecord(serviceName, uuid);
+        return new TransportServerSocket() {
+            @Override
+            public TransportSocket accept() throws IOException {
+                return new RfcommSocket(serverSocket.accept());
+            }
+
+            @Override
+            public void close() throws IOException {
+                serverSocket.close();
+            }
+        };
+    }
+
+    @RequiresPermission(Manifest.permission.BLUETOOTH_CONNECT)
+    @Override
+    public TransportSocket createSocket(String address) throws IOException {
+        BluetoothDevice device = bluetoothAdapter.getRemoteDevice(address);
+        return new RfcommSocket(device.createRfcommSocketToServiceRecord(uuid));
+    }
+
+    private class RfcommSocket implements TransportSocket {
+        private final BluetoothSocket socket;
+
+        RfcommSocket(BluetoothSocket socket) {
+            this.socket = socket;
+        }
+
+        @RequiresPermission(allOf = {Manifest.permission.BLUETOOTH_SCAN, Manifest.permission.BLUETOOTH_CONNECT})
+        @Override
+        public void connect() throws IOException {
+            // Always cancel discovery because it will slow down a connection
+            bluetoothAdapter.cancelDiscovery();
+            socket.connect();
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return socket.getInputStream();
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            return socket.getOutputStream();
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return socket.getRemoteDevice().getAddress();
+        }
+
+        @RequiresPermission(Manifest.permission.BLUETOOTH_CONNECT)
+        @Override
+        public String getRemoteName() {
+            String name = socket.getRemoteDevice().getName();
+            return name != null ? name : getRemoteAddress();
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package com.cj.bittalk.transport;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+
+/**
+ * Localhost TCP stand-in for RFCOMM. Addresses are "host:port" strings and
+ * listen() binds the port given at construction (0 picks a free one).
+ *
+ * A dialled socket comes from an ephemeral port, so the dialler first sends
+ * the port it listens on. The accepting side reads it in finishAccept() and
+ * reports that as the remote address, the same one it would dial, and both
+ * ends key the link alike.
+ */
+public class TcpTransport implements Transport {
+    // A dialler that has not sent its listen port by then is dropped
+    private static final int PREAMBLE_TIMEOUT_MILLIS = 5000;
+
+    private final int port;
+    private volatile int boundPort = -1;
+
+    public TcpTransport(int port) {
+        this.port = port;
+    }
+
+    // Address other transports can connect to once listen() has been called
+    public String getLocalAddress() {
+        return "127.0.0.1:" + boundPort;
+    }
+
+    @Override
+    public TransportServerSocket listen() throws IOException {
+        ServerSocket serverSocket = new ServerSocket();
+        serverSocket.setReuseAddress(true);
+        serverSocket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        boundPort = serverSocket.getLocalPort();
+        return new TransportServerSocket() {
+            @Override
+            public TransportSocket accept() throws IOException {
+                return new TcpSocket(serverSocket.accept(), null);
+            }
+
+            @Override
+            public void close() throws IOException {
+                serverSocket.close();
+            }
+        };
+    }
+
+    @Override
+    public TransportSocket createSocket(String address) {
+        return new TcpSocket(new Socket(), address);
+    }
+
+    private class TcpSocket implements TransportSocket {
+        private final Socket socket;
+        // Null for an accepted socket until finishAccept()
+        private volatile String address;
+
+        TcpSocket(Socket socket, String address) {
+            this.socket = socket;
+            this.address = address;
+        }
+
+        @Override
+        public void connect() throws IOException {
+            int separator = address.lastIndexOf(':');
+            String host = address.substring(0, separator);
+            int remotePort = Integer.parseInt(address.substring(separator + 1));
+            socket.connect(new InetSocketAddress(host, remotePort));
+            socket.setTcpNoDelay(true);
+            // -1 until listen() was called
+            socket.getOutputStream().write(ByteBuffer.allocate(4).putInt(boundPort).array());
+        }
+
+        @Override
+        public void finishAccept() throws IOException {
+            socket.setSoTimeout(PREAMBLE_TIMEOUT_MILLIS);
+            int listenPort = new DataInputStream(socket.getInputStream()).readInt();
+            socket.setSoTimeout(0);
+            // A dialler that does not listen is known by the port it came from
+            String host = socket.getInetAddress().getHostAddress();
+            address = host + ":" + (listenPort > 0 ? listenPort : socket.getPort());
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return socket.getInputStream();
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            return socket.getOutputStream();
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return address;
+        }
+
+        @Override
+        public String getRemoteName() {
+            return getRemoteAddress();
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package com.cj.bittalk.transport;
+
+import java.io.IOException;
+
+/**
+ * Abstraction over the link layer used by BluetoothService, so the connection
+ * state machine can run over RFCOMM on a device and over in-memory or TCP
+ * streams in unit tests and benchmarks.
+ */
+public interface Transport {
+
+    // Opens a server socket that accepts incoming connections
+    TransportServerSocket listen() throws IOException;
+
+    // Creates an unconnected socket to the given peer address
+    TransportSocket createSocket(String address) throws IOException;
+}
@@ -0,0 +1,10 @@
+package com.cj.bittalk.transport;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+public interface TransportServerSocket extends Closeable {
+
+    // Blocks until a peer connects; close() from another thread aborts the wait
+    TransportSocket accept() throws IOException;
+}
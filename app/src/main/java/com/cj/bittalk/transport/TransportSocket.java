@@ -0,0 +1,28 @@
+package com.cj.bittalk.transport;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+public interface TransportSocket extends Closeable {
+
+    // Blocks until connected; close() from another thread aborts the attempt
+    void connect() throws IOException;
+
+    InputStream getInputStream() throws IOException;
+
+    OutputStream getOutputStream() throws IOException;
+
+    /**
+     * Called on an accepted socket's own task before getRemoteAddress(), never
+     * on the accept loop. Transports that learn the peer's address from the
+     * stream read it here.
+     */
+    default void finishAccept() throws IOException {
+    }
+
+    String getRemoteAddress();
+
+    String getRemoteName();
+}
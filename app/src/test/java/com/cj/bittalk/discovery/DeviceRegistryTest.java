@@ -0,0 +1,147 @@
+package com.cj.bittalk.discovery;
+
+import com.cj.bittalk.model.Device;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class DeviceRegistryTest {
+    private static final long TTL = 10_000;
+    private static final long INTERVAL = 250;
+
+    private long now = 1_000;
+    // Tasks with the time they are due, run by advance()
+    private final List<Object[]> pending = new ArrayList<>();
+    private final List<List<Device>> published = new ArrayList<>();
+    private DeviceRegistry registry;
+
+    @Before
+    public void setUp() {
+        registry = new DeviceRegistry((task, delay) -> pending.add(new Object[]{now + delay, task}),
+                () -> now, TTL, INTERVAL);
+    }
+
+    private void advance(long millis) {
+        long until = now + millis;
+        while (true) {
+            Object[] next = null;
+            for (Object[] task : pending) {
+                if ((long) task[0] <= until && (next == null || (long) task[0] < (long) next[0])) {
+                    next = task;
+                }
+            }
+            if (next == null) {
+                break;
+            }
+            pending.remove(next);
+            now = Math.max(now, (long) next[0]);
+            ((Runnable) next[1]).run();
+        }
+        now = until;
+    }
+
+    private static Device device(String address, String name) {
+        return new Device(address, name, false, null);
+    }
+
+    private List<Device> last() {
+        return published.get(published.size() - 1);
+    }
+
+    @Test
+    public void repeatedSightingsMergeIntoOneEntry() {
+        registry.onSighted(device("AA:BB:CC:DD:EE:01", "Unknown Device"), -80);
+        registry.onSighted(device("aa:bb:cc:dd:ee:01", "Phone"), -55);
+        registry.onSighted(device("AA:BB:CC:DD:EE:01", "Unknown Device"), Device.RSSI_UNKNOWN);
+
+        assertEquals(1, registry.size());
+        Device merged = registry.getDevices().get(0);
+        assertEquals("Phone", merged.getName());
+        assertEquals(-55, merged.getRssi());
+        assertEquals(now, merged.getLastSeenMillis());
+        assertEquals(device("AA:BB:CC:DD:EE:01", null), merged);
+    }
+
+    @Test
+    public void listenerGetsSnapshotThenCoalescedUpdates() {
+        registry.onSighted(device("AA:BB:CC:DD:EE:01", "One"), -60);
+        registry.setListener(published::add);
+        assertEquals(1, published.size());
+        assertEquals(1, last().size());
+
+        for (int i = 2; i <= 20; i++) {
+            registry.onSighted(device(String.format("AA:BB:CC:DD:EE:%02X", i), "Device " + i), -70);
+        }
+        assertEquals(1, published.size());
+        advance(INTERVAL - 1);
+        assertEquals(1, published.size());
+        advance(1);
+        assertEquals(2, published.size());
+        assertEquals(20, last().size());
+
+        registry.onSighted(device("AA:BB:CC:DD:EE:01", "One"), -40);
+        advance(INTERVAL);
+        assertEquals(3, published.size());
+        assertEquals(-40, last().get(0).getRssi());
+    }
+
+    @Test
+    public void publishedListsAreNotChangedByLaterSightings() {
+        registry.setListener(published::add);
+        registry.onSighted(device("AA:BB:CC:DD:EE:01", "One"), -60);
+        advance(INTERVAL);
+        Device shown = last().get(0);
+
+        registry.onSighted(device("AA:BB:CC:DD:EE:01", "One"), -30);
+        assertEquals(-60, shown.getRssi());
+    }
+
+    @Test
+    public void bondedDevicesComeFirstAndNeverExpire() {
+        registry.onSighted(device("AA:BB:CC:DD:EE:01", "Seen"), -60);
+        registry.onBonded(Collections.singletonList(
+                new Device("AA:BB:CC:DD:EE:02", "Bonded", true, null)));
+        registry.setListener(published::add);
+        assertEquals("Bonded", last().get(0).getName());
+        assertEquals("Seen", last().get(1).getName());
+
+        advance(TTL);
+        assertEquals(2, published.size());
+        assertEquals(1, last().size());
+        assertEquals("Bonded", last().get(0).getName());
+    }
+
+    @Test
+    public void entriesSurviveListenerChangesUntilTheyExpire() {
+        registry.setListener(published::add);
+        registry.onSighted(device("AA:BB:CC:DD:EE:01", "One"), -60);
+        advance(INTERVAL);
+        registry.setListener(null);
+
+        advance(TTL / 2);
+        registry.setListener(published::add);
+        assertEquals(1, last().size());
+        registry.setListener(null);
+
+        advance(TTL);
+        assertEquals(0, registry.getDevices().size());
+    }
+
+    @Test
+    public void lostBondTurnsIntoSighting() {
+        Device bonded = new Device("AA:BB:CC:DD:EE:02", "Bonded", true, null);
+        registry.onBonded(Arrays.asList(bonded));
+        registry.onBonded(Collections.emptyList());
+
+        assertFalse(registry.getDevices().get(0).isPaired());
+        now += TTL;
+        assertEquals(0, registry.getDevices().size());
+    }
+}
@@ -0,0 +1,109 @@
+package com.cj.bittalk.history;
+
+import com.cj.bittalk.model.Message;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class HistoryStoreTest {
+    private static final String PEER = "AA:BB:CC:DD:EE:FF";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private HistoryStore store;
+
+    @After
+    public void tearDown() {
+        if (store != null) {
+            store.close();
+        }
+    }
+
+    private static Message message(int i) {
+        Message message = new Message("message " + i, i % 2 == 0);
+        message.setTimestamp(1000L + i);
+        return message;
+    }
+
+    private void appendAll(int count) throws Exception {
+        for (int i = 0; i < count - 1; i++) {
+            store.append(PEER, message(i));
+        }
+        store.append(PEER, message(count - 1)).get(5, TimeUnit.SECONDS);
+    }
+
+    private static void assertRun(HistoryPage page, long start, int count) {
+        assertEquals(start, page.start);
+        assertEquals(count, page.messages.size());
+        for (int i = 0; i < count; i++) {
+            Message message = page.messages.get(i);
+            assertEquals("message " + (start + i), message.getText());
+            assertEquals((start + i) % 2 == 0, message.isSent());
+            assertEquals(1000L + start + i, message.getTimestamp());
+        }
+    }
+
+    @Test
+    public void readsPagesAcrossSegmentsAndAfterRestart() throws Exception {
+        File directory = folder.newFolder("history");
+        store = new HistoryStore(directory, 1024, 1000, Long.MAX_VALUE);
+        appendAll(500);
+        File[] segments = new File(directory, HistoryPartition.fileName(PEER)).listFiles((dir, name) -> name.endsWith(".log"));
+        assertTrue(segments.length > 10);
+
+        HistoryPage last = store.readLast(PEER, 20).get(5, TimeUnit.SECONDS);
+        assertRun(last, 480, 20);
+        assertEquals(0, last.firstIndex);
+        assertEquals(500, last.endIndex);
+        assertRun(store.readPage(PEER, 95, 70).get(5, TimeUnit.SECONDS), 95, 70);
+        assertRun(store.readBefore(PEER, 10, 20).get(5, TimeUnit.SECONDS), 0, 10);
+        assertFalse(store.readBefore(PEER, 10, 20).get(5, TimeUnit.SECONDS).hasOlder());
+        store.close();
+
+        store = new HistoryStore(directory, 1024, 1000, Long.MAX_VALUE);
+        assertRun(store.readPage(PEER, 333, 100).get(5, TimeUnit.SECONDS), 333, 100);
+        store.append(PEER, message(500)).get(5, TimeUnit.SECONDS);
+        assertRun(store.readLast(PEER, 3).get(5, TimeUnit.SECONDS), 498, 3);
+    }
+
+    @Test
+    public void expiresOldestSegments() throws Exception {
+        store = new HistoryStore(folder.newFolder("history"), 1024, 4, Long.MAX_VALUE);
+        appendAll(500);
+
+        HistoryPage page = store.readPage(PEER, 0, 1000).get(5, TimeUnit.SECONDS);
+        assertTrue(page.firstIndex > 0);
+        assertEquals(500, page.endIndex);
+        assertRun(page, page.firstIndex, (int) (500 - page.firstIndex));
+        assertTrue(page.messages.size() < 200);
+    }
+
+    @Test
+    public void dropsTornRecordOnRestart() throws Exception {
+        File directory = folder.newFolder("history");
+        store = new HistoryStore(directory);
+        appendAll(HistorySegment.INDEX_INTERVAL + 1);
+        store.close();
+
+        // Cut the last record, which is also the second indexed one, in half
+        File log = new File(new File(directory, HistoryPartition.fileName(PEER)), String.format("%020d.log", 0));
+        try (RandomAccessFile file = new RandomAccessFile(log, "rw")) {
+            file.setLength(file.length() - 5);
+        }
+
+        store = new HistoryStore(directory);
+        HistoryPage page = store.readLast(PEER, 100).get(5, TimeUnit.SECONDS);
+        assertRun(page, 0, HistorySegment.INDEX_INTERVAL);
+        store.append(PEER, message(HistorySegment.INDEX_INTERVAL)).get(5, TimeUnit.SECONDS);
+        assertRun(store.readLast(PEER, 100).get(5, TimeUnit.SECONDS), 0, HistorySegment.INDEX_INTERVAL + 1);
+    }
+}
@@ -0,0 +1,156 @@
+package com.cj.bittalk.history;
+
+import com.cj.bittalk.model.Message;
+
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.Assert.*;
+
+public class HistoryWindowTest {
+    private static final int PAGE_SIZE = 10;
+    private static final int MAX_PAGES = 4;
+
+    // Reads complete when run() is called, like a disk thread that has not got to them yet
+    private static class FakeSource implements HistorySource {
+        final List<Message> stored = new ArrayList<>();
+        final Queue<Runnable> pending = new ArrayDeque<>();
+
+        FakeSource(int count) {
+            for (int i = 0; i < count; i++) {
+                stored.add(new Message("message " + i, false));
+            }
+        }
+
+        @Override
+        public CompletableFuture<HistoryPage> readLast(int count) {
+            return readPage(Math.max(0, stored.size() - count), count);
+        }
+
+        @Override
+        public CompletableFuture<HistoryPage> readPage(long from, int count) {
+            CompletableFuture<HistoryPage> page = new CompletableFuture<>();
+            pending.add(() -> {
+                int end = (int) Math.min(stored.size(), from + count);
+                page.complete(new HistoryPage(from, new ArrayList<>(stored.subList((int) from, end)), 0, stored.size()));
+            });
+            return page;
+        }
+
+        @Override
+        public CompletableFuture<Void> append(Message message) {
+            stored.add(message);
+            return CompletableFuture.completedFuture(null);
+        }
+
+        void run() {
+            Runnable read;
+            while ((read = pending.poll()) != null) {
+                read.run();
+            }
+        }
+    }
+
+    private final List<String> events = new ArrayList<>();
+    private final HistoryWindow window = new HistoryWindow(PAGE_SIZE, MAX_PAGES, Runnable::run,
+            new HistoryWindow.Listener() {
+                @Override
+                public void onInserted(int position, int count) {
+                    events.add("inserted " + position + "+" + count);
+                }
+
+                @Override
+                public void onChanged(int position, int count) {
+                    events.add("changed " + position + "+" + count);
+                }
+
+                @Override
+                public void onRemoved(int position, int count) {
+                    events.add("removed " + position + "+" + count);
+                }
+            });
+
+    @Test
+    public void bindsNewestPageThenStoresMessagesAddedMeanwhile() {
+        FakeSource source = new FakeSource(1005);
+        Message welcome = new Message("welcome", false);
+        window.append(welcome);
+        window.bind(source);
+        Message early = new Message("early", true);
+        window.append(early);
+        assertFalse(window.isBound());
+        assertEquals(-2, window.getItemId(1));
+        source.run();
+
+        assertTrue(window.isBound());
+        assertEquals("inserted 0+1005", events.get(2));
+        assertEquals("changed 1005+2", events.get(3));
+        assertEquals(1006, window.getItemId(1006));
+        assertEquals(1007, window.size());
+        assertEquals(1007, source.stored.size());
+        assertSame(welcome, window.get(1005));
+        assertSame(early, window.get(1006));
+        assertEquals(1006, window.indexOf(early));
+        assertEquals("message 1000", window.get(1000).getText());
+        // Read before the welcome row, the rest of its page comes from the source
+        assertEquals("message 995", window.get(995).getText());
+        assertNull(window.get(994));
+        source.run();
+        assertEquals("message 994", window.get(994).getText());
+        assertTrue(events.contains("changed 990+10"));
+    }
+
+    @Test
+    public void keepsOnlyPagesAroundTheViewport() {
+        FakeSource source = new FakeSource(1000);
+        window.bind(source);
+        source.run();
+
+        // Scroll to the top and back down; rows come in as the reads complete
+        for (int position = 999; position >= 0; position--) {
+            if (window.get(position) == null) {
+                source.run();
+            }
+            assertEquals("message " + position, window.get(position).getText());
+            assertTrue(window.getLoadedPageCount() <= MAX_PAGES);
+        }
+        for (int position = 0; position < 1000; position++) {
+            if (window.get(position) == null) {
+                source.run();
+            }
+            assertEquals("message " + position, window.get(position).getText());
+            assertTrue(window.getLoadedPageCount() <= MAX_PAGES);
+        }
+    }
+
+    @Test
+    public void appendsWhileScrolledUpWithoutGrowing() {
+        FakeSource source = new FakeSource(100);
+        window.bind(source);
+        source.run();
+        window.get(0);
+        source.run();
+
+        Message last = null;
+        for (int i = 0; i < 500; i++) {
+            last = new Message("new " + i, true);
+            window.append(last);
+        }
+        assertEquals(600, window.size());
+        assertEquals(600, source.stored.size());
+        assertTrue(window.getLoadedPageCount() <= MAX_PAGES);
+        assertEquals(599, window.indexOf(last));
+        assertEquals("message 0", window.get(0).getText());
+        assertEquals("inserted 599+1", events.get(events.size() - 1));
+
+        window.unbind();
+        assertEquals("removed 0+600", events.get(events.size() - 1));
+        assertEquals(0, window.size());
+        assertEquals(0, window.getLoadedPageCount());
+    }
+}
@@ -0,0 +1,91 @@
+package com.cj.bittalk.history;
+
+import com.cj.bittalk.model.Message;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class SearchIndexTest {
+    private static final String PEER = "AA:BB:CC:DD:EE:FF";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private HistoryStore store;
+
+    @After
+    public void tearDown() {
+        if (store != null) {
+            store.close();
+        }
+    }
+
+    private long[] search(String query) throws Exception {
+        return store.search(PEER, query, 100).get(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void normalizesTokens() {
+        SearchIndex index = new SearchIndex(folder.getRoot(), SearchIndex.COMPACT_THRESHOLD_BYTES);
+        Set<String> tokens = new LinkedHashSet<>();
+        index.tokenize("Meet at the Café, 5pm! café-CAFE", tokens);
+        assertArrayEquals(new String[]{"meet", "at", "the", "cafe", "5pm"}, tokens.toArray());
+    }
+
+    @Test
+    public void findsByPrefixNewestFirstAndAfterRestart() throws Exception {
+        File directory = folder.newFolder("history");
+        store = new HistoryStore(directory);
+        String[] texts = {"Lunch tomorrow?", "Sure, where?", "The ramen place on Main", "Ramen again!", "Main street parking"};
+        for (String text : texts) {
+            store.append(PEER, new Message(text, false));
+        }
+        store.sync().get(5, TimeUnit.SECONDS);
+
+        assertArrayEquals(new long[]{3, 2}, search("ram"));
+        assertArrayEquals(new long[]{2}, search("ramen MAIN"));
+        assertArrayEquals(new long[]{4, 2}, search("main"));
+        assertArrayEquals(new long[0], search("sushi"));
+        assertArrayEquals(new long[0], search("  ?! "));
+        store.close();
+
+        store = new HistoryStore(directory);
+        store.append(PEER, new Message("ramen it is", true));
+        assertArrayEquals(new long[]{5, 3, 2}, search("ramen"));
+    }
+
+    @Test
+    public void compactsIntoSnapshotAndDropsExpiredMessages() throws Exception {
+        File directory = new File(folder.newFolder("history"), "peer");
+        assertTrue(directory.mkdirs());
+        SearchIndex index = new SearchIndex(directory, 1024);
+        for (int i = 0; i < 200; i++) {
+            index.add(i, "message number " + i + (i % 10 == 0 ? " tenth" : ""));
+        }
+        index.flush();
+        assertEquals(20, index.search("tenth", 0, 200, 100).length);
+
+        index.compact(50);
+        assertEquals(0, new File(directory, "search.journal").length());
+        assertTrue(new File(directory, "search.snapshot").exists());
+        index.add(200, "tenth again");
+        index.close();
+
+        SearchIndex reopened = new SearchIndex(directory, 1024);
+        long[] hits = reopened.search("tent", 0, 201, 100);
+        assertEquals(16, hits.length);
+        assertEquals(200, hits[0]);
+        assertEquals(50, hits[hits.length - 1]);
+        assertArrayEquals(new long[]{123}, reopened.search("123", 0, 201, 100));
+        reopened.close();
+    }
+}
@@ -0,0 +1,51 @@
+package com.cj.bittalk.mesh;
+
+import com.cj.bittalk.protocol.RelayFrames;
+
+import org.junit.Test;
+
+import java.net.ProtocolException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class MeshRelayDedupeTest {
+    private final List<String> delivered = new ArrayList<>();
+
+    private final MeshRelay.Links links = new MeshRelay.Links() {
+        @Override
+        public void deliver(long origin, String fromAddress, byte[] message, int offset, int length) {
+            delivered.add(new String(message, offset, length, StandardCharsets.UTF_8));
+        }
+
+        @Override
+        public int forward(byte[] frame, String exceptAddress) {
+            return 0;
+        }
+    };
+
+    private static void receive(MeshRelay relay, long messageId, String text) throws ProtocolException {
+        byte[] body = text.getBytes(StandardCharsets.UTF_8);
+        byte[] frame = RelayFrames.relay(messageId, 99, 1, body, 0, body.length);
+        relay.onRelay("peer", frame, 0, frame.length);
+    }
+
+    @Test
+    public void bloomHitsAloneNeverDropAMessage() throws ProtocolException {
+        // 64 bits and one hash: after a few messages nearly every lookup is a hit
+        MeshRelay relay = new MeshRelay(links, new RotatingBloomFilter(64, 1, 1000), new RecentKeys(2000));
+        for (long id = 0; id < 500; id++) {
+            receive(relay, id, "message " + id);
+        }
+        assertEquals(500, delivered.size());
+        assertEquals(0, relay.getStats().droppedDuplicate);
+
+        for (long id = 0; id < 500; id++) {
+            receive(relay, id, "copy " + id);
+        }
+        assertEquals(500, delivered.size());
+        assertEquals(500, relay.getStats().droppedDuplicate);
+    }
+}
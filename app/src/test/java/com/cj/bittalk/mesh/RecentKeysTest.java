@@ -0,0 +1,56 @@
+package com.cj.bittalk.mesh;
+
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class RecentKeysTest {
+    @Test
+    public void remembersExactlyTheLastCapacityKeys() {
+        RecentKeys keys = new RecentKeys(100);
+        for (long i = 0; i < 250; i++) {
+            keys.add(i, 42);
+        }
+        for (long i = 0; i < 150; i++) {
+            assertFalse(keys.contains(i, 42));
+        }
+        for (long i = 150; i < 250; i++) {
+            assertTrue(keys.contains(i, 42));
+            assertFalse(keys.contains(i, 43));
+        }
+    }
+
+    @Test
+    public void keepsAKeyAddedTwiceUntilItsLastCopyIsOverwritten() {
+        RecentKeys keys = new RecentKeys(3);
+        keys.add(1, 1);
+        keys.add(1, 1);
+        keys.add(2, 2);
+        keys.add(3, 3);
+        assertTrue(keys.contains(1, 1));
+        keys.add(4, 4);
+        assertFalse(keys.contains(1, 1));
+        assertTrue(keys.contains(2, 2));
+    }
+
+    @Test
+    public void matchesTheLastAddsUnderChurn() {
+        // Few distinct keys and a small table, so probe runs collide and get shifted a lot
+        RecentKeys keys = new RecentKeys(37);
+        ArrayDeque<Long> lastAdds = new ArrayDeque<>();
+        Random random = new Random(3);
+        for (int i = 0; i < 100_000; i++) {
+            long key = random.nextInt(80);
+            assertEquals(lastAdds.contains(key), keys.contains(key, ~key));
+            // Added whether or not it is there, as MeshRelay does after a Bloom filter miss
+            lastAdds.addLast(key);
+            if (lastAdds.size() > 37) {
+                lastAdds.pollFirst();
+            }
+            keys.add(key, ~key);
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package com.cj.bittalk.mesh;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class RotatingBloomFilterTest {
+    @Test
+    public void remembersRecentKeysAndForgetsOldOnes() {
+        RotatingBloomFilter filter = new RotatingBloomFilter(1 << 12, 5, 100);
+        for (long i = 0; i < 100; i++) {
+            assertTrue(filter.add(i, 42));
+        }
+        for (long i = 0; i < 100; i++) {
+            assertFalse(filter.add(i, 42));
+        }
+
+        // Two more generations push the first batch out
+        for (long i = 1000; i < 1200; i++) {
+            filter.add(i, 42);
+        }
+        int remembered = 0;
+        for (long i = 0; i < 100; i++) {
+            if (filter.mightContain(i, 42)) {
+                remembered++;
+            }
+        }
+        assertTrue("remembered " + remembered, remembered < 10);
+        assertTrue(filter.mightContain(1199, 42));
+    }
+
+    @Test
+    public void keepsFalsePositivesRare() {
+        RotatingBloomFilter filter = new RotatingBloomFilter(1 << 16, 7, 4096);
+        for (long i = 0; i < 4096; i++) {
+            filter.add(i, 7);
+        }
+        int falsePositives = 0;
+        for (long i = 0; i < 100_000; i++) {
+            if (filter.mightContain(i, 8)) {
+                falsePositives++;
+            }
+        }
+        assertTrue("false positives " + falsePositives, falsePositives < 300);
+    }
+}
@@ -0,0 +1,55 @@
+package com.cj.bittalk.metrics;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class HistogramTest {
+
+    private static long millis(long millis) {
+        return TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+
+    @Test
+    public void sortsSamplesIntoBuckets() {
+        Histogram histogram = new Histogram("test", 1, 10, 100);
+        histogram.record(millis(1));
+        histogram.record(millis(5));
+        histogram.record(millis(7));
+        histogram.record(millis(500));
+        histogram.record(-1);
+
+        HistogramSnapshot snapshot = histogram.snapshot();
+        assertEquals(4, snapshot.getBucketCount());
+        assertEquals(2, snapshot.getBucket(0));
+        assertEquals(2, snapshot.getBucket(1));
+        assertEquals(0, snapshot.getBucket(2));
+        assertEquals(1, snapshot.getBucket(3));
+        assertEquals(5, snapshot.count);
+        assertEquals(500.0, snapshot.getMaxMillis(), 1e-9);
+        assertEquals(102.6, snapshot.getMeanMillis(), 1e-9);
+    }
+
+    @Test
+    public void reportsPercentilesAsBucketBounds() {
+        Histogram histogram = new Histogram("test", 1, 10, 100);
+        for (int i = 0; i < 98; i++) {
+            histogram.record(millis(3));
+        }
+        histogram.record(millis(50));
+        histogram.record(millis(250));
+
+        HistogramSnapshot snapshot = histogram.snapshot();
+        assertEquals(10.0, snapshot.getPercentileMillis(0.5), 1e-9);
+        assertEquals(100.0, snapshot.getPercentileMillis(0.99), 1e-9);
+        assertEquals(250.0, snapshot.getPercentileMillis(1.0), 1e-9);
+        assertEquals(0.0, new Histogram("empty", 1).snapshot().getPercentileMillis(0.5), 1e-9);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsBoundsOutOfOrder() {
+        new Histogram("test", 10, 5);
+    }
+}
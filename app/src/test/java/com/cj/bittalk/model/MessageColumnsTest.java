@@ -0,0 +1,57 @@
+package com.cj.bittalk.model;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+public class MessageColumnsTest {
+
+    @Test
+    public void fillsRowsInAnyOrderAndViewsThem() {
+        MessageColumns rows = new MessageColumns(2, 16);
+        byte[] later = "later üñîçødé".getBytes(StandardCharsets.UTF_8);
+        rows.set(5, 500, true, false, later, 0, later.length, "content://image");
+        Message system = new Message("joined", false);
+        system.setSystemMessage(true);
+        system.setTimestamp(100);
+        rows.set(1, system);
+
+        assertEquals(6, rows.size());
+        assertFalse(rows.has(0));
+        assertTrue(rows.has(1));
+        assertFalse(rows.has(4));
+
+        Message view = rows.view(5);
+        assertTrue(view.isSent());
+        assertFalse(view.isSystemMessage());
+        assertEquals(500, view.getTimestamp());
+        assertEquals("content://image", view.getAttachmentUri());
+        assertEquals("later üñîçødé", view.getText());
+        assertSame(view.getText(), view.getText());
+
+        Message copy = rows.view(1);
+        assertTrue(copy.isSystemMessage());
+        assertEquals("joined", copy.getLayoutText());
+        assertNull(copy.getAttachmentUri());
+
+        MessageColumns other = new MessageColumns(1);
+        other.copy(rows, 5, 0);
+        assertEquals(view.getText(), other.text(0));
+        assertEquals("content://image", other.attachment(0));
+    }
+
+    @Test
+    public void costsLittleMoreThanTheTextPerRow() {
+        int count = 10_000;
+        MessageColumns rows = new MessageColumns(count, count * 30);
+        for (int i = 0; i < count; i++) {
+            byte[] text = String.format("message number %015d", i).getBytes(StandardCharsets.UTF_8);
+            rows.add(i, i % 2 == 0, false, text, 0, text.length, null);
+        }
+        // 30 bytes of text each; a Message with its String and byte[] takes over 100
+        assertTrue(rows.footprintBytes() / count <= 30 + 17);
+        assertEquals(String.format("message number %015d", 1234), rows.view(1234).getText());
+    }
+}
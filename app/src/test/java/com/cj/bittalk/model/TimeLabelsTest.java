@@ -0,0 +1,35 @@
+package com.cj.bittalk.model;
+
+import org.junit.Test;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+import static org.junit.Assert.*;
+
+public class TimeLabelsTest {
+
+    @Test
+    public void matchesFormatterAndReusesLabelWithinMinute() {
+        SimpleDateFormat expected = new SimpleDateFormat("HH:mm", Locale.getDefault());
+        long start = 1_700_000_000_000L;
+        for (long time = start; time < start + 24 * 60 * 60 * 1000L; time += 37 * 1000L) {
+            assertEquals(expected.format(new Date(time)), TimeLabels.format(time));
+        }
+
+        long minute = start - start % 60_000;
+        assertSame(TimeLabels.format(minute), TimeLabels.format(minute + 59_999));
+    }
+
+    @Test
+    public void messageKeepsItsLabelUntilTimestampChanges() {
+        Message message = new Message("hi", false);
+        message.setTimestamp(0);
+        String label = message.getFormattedTime();
+        assertSame(label, message.getFormattedTime());
+        message.setTimestamp(2 * 60 * 60 * 1000L);
+        assertEquals(TimeLabels.format(2 * 60 * 60 * 1000L), message.getFormattedTime());
+        assertEquals("hi", message.getLayoutText());
+    }
+}
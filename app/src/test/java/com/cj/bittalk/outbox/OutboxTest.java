@@ -0,0 +1,181 @@
+package com.cj.bittalk.outbox;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class OutboxTest {
+    private static final String PEER = "AA:BB:CC:DD:EE:FF";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final BlockingQueue<String> delivered = new LinkedBlockingQueue<>();
+    private volatile boolean connected;
+    private volatile int failNext;
+    // While set, sent entries wait in held until the test confirms or fails them, like ACKs
+    private volatile boolean holdConfirmations;
+    private final BlockingQueue<CompletableFuture<Void>> held = new LinkedBlockingQueue<>();
+    private Outbox outbox;
+
+    private final Outbox.Sink sink = (address, payload, receipt) -> {
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        if (!connected || failNext > 0) {
+            failNext--;
+            result.completeExceptionally(new IOException("Not connected"));
+        } else {
+            delivered.add(address + "/" + new String(payload, StandardCharsets.UTF_8));
+            if (holdConfirmations) {
+                held.add(result);
+            } else {
+                result.complete(null);
+            }
+        }
+        return result;
+    };
+
+    @After
+    public void tearDown() {
+        if (outbox != null) {
+            outbox.close();
+        }
+    }
+
+    private static byte[] bytes(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private String next() throws InterruptedException {
+        String value = delivered.poll(5, TimeUnit.SECONDS);
+        assertNotNull("Timed out waiting for delivery", value);
+        return value;
+    }
+
+    private CompletableFuture<Void> nextHeld() throws InterruptedException {
+        CompletableFuture<Void> confirmation = held.poll(5, TimeUnit.SECONDS);
+        assertNotNull("Timed out waiting for a send", confirmation);
+        return confirmation;
+    }
+
+    private void awaitPending(String address, int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (outbox.getPendingCount(address) != count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(count, outbox.getPendingCount(address));
+    }
+
+    private void awaitEmpty(String address) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (outbox.hasPending(address) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertFalse(outbox.hasPending(address));
+    }
+
+    @Test
+    public void drainsInOrderOnceConnectedAndCompacts() throws Exception {
+        File directory = folder.newFolder("outbox");
+        outbox = new Outbox(directory, sink);
+        for (int i = 0; i < 100; i++) {
+            outbox.enqueue(PEER, bytes("m" + i));
+        }
+        outbox.enqueue(PEER, bytes("last")).get(5, TimeUnit.SECONDS);
+        assertEquals(101, outbox.getPendingCount(PEER));
+        assertTrue(delivered.isEmpty());
+
+        connected = true;
+        outbox.startDraining(PEER);
+        for (int i = 0; i < 100; i++) {
+            assertEquals(PEER + "/m" + i, next());
+        }
+        assertEquals(PEER + "/last", next());
+        awaitEmpty(PEER);
+
+        outbox.sync().get(5, TimeUnit.SECONDS);
+        assertEquals(0, new File(directory, OutboxLog.fileName(PEER) + ".log").length());
+    }
+
+    @Test
+    public void survivesRestart() throws Exception {
+        File directory = folder.newFolder("outbox");
+        outbox = new Outbox(directory, sink);
+        outbox.enqueue(PEER, bytes("one"));
+        outbox.enqueue(PEER, bytes("two")).get(5, TimeUnit.SECONDS);
+        outbox.sync().get(5, TimeUnit.SECONDS);
+        outbox.close();
+
+        outbox = new Outbox(directory, sink);
+        connected = true;
+        outbox.startDraining(PEER);
+        assertEquals(PEER + "/one", next());
+        assertEquals(PEER + "/two", next());
+        awaitEmpty(PEER);
+    }
+
+    @Test
+    public void resendsFromLastDeliveredEntryAfterFailure() throws Exception {
+        outbox = new Outbox(folder.newFolder("outbox"), sink);
+        outbox.enqueue(PEER, bytes("a"));
+        outbox.enqueue(PEER, bytes("b")).get(5, TimeUnit.SECONDS);
+
+        connected = true;
+        failNext = 1;
+        outbox.startDraining(PEER);
+        assertEquals(PEER + "/a", next());
+        assertEquals(PEER + "/b", next());
+        awaitEmpty(PEER);
+    }
+
+    @Test
+    public void keepsEntriesUntilTheSinkConfirmsThem() throws Exception {
+        File directory = folder.newFolder("outbox");
+        outbox = new Outbox(directory, sink);
+        outbox.enqueue(PEER, bytes("a"));
+        outbox.enqueue(PEER, bytes("b"));
+        outbox.enqueue(PEER, bytes("c")).get(5, TimeUnit.SECONDS);
+
+        connected = true;
+        holdConfirmations = true;
+        outbox.startDraining(PEER);
+        assertEquals(PEER + "/a", next());
+        assertEquals(PEER + "/b", next());
+        assertEquals(PEER + "/c", next());
+        CompletableFuture<Void> a = nextHeld();
+        CompletableFuture<Void> b = nextHeld();
+        CompletableFuture<Void> c = nextHeld();
+        // Sent is not delivered
+        outbox.sync().get(5, TimeUnit.SECONDS);
+        assertEquals(3, outbox.getPendingCount(PEER));
+
+        a.complete(null);
+        awaitPending(PEER, 2);
+        // Lost with the link, so b goes out again and c behind it
+        b.completeExceptionally(new IOException("Disconnected"));
+        c.completeExceptionally(new IOException("Disconnected"));
+        assertEquals(PEER + "/b", next());
+        assertEquals(PEER + "/c", next());
+        assertNull(delivered.poll(Outbox.RETRY_DELAY_MILLIS + 200, TimeUnit.MILLISECONDS));
+
+        // Never confirmed, so a restart still has them
+        outbox.sync().get(5, TimeUnit.SECONDS);
+        outbox.close();
+        holdConfirmations = false;
+        outbox = new Outbox(directory, sink);
+        outbox.startDraining(PEER);
+        assertEquals(PEER + "/b", next());
+        assertEquals(PEER + "/c", next());
+        awaitEmpty(PEER);
+    }
+}
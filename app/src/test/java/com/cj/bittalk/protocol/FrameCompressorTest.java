@@ -0,0 +1,51 @@
+package com.cj.bittalk.protocol;
+
+import org.junit.Test;
+
+import java.net.ProtocolException;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+public class FrameCompressorTest {
+
+    @Test
+    public void roundTripsRepetitiveText() throws ProtocolException {
+        FrameCompressor compressor = new FrameCompressor();
+        FrameDecompressor decompressor = new FrameDecompressor();
+        compressor.setEnabled(true);
+
+        byte[] text = "are you coming to the meeting later? ".repeat(20).getBytes(StandardCharsets.UTF_8);
+        int compressed = compressor.compress(text, 0, text.length);
+        assertTrue(compressed > 0 && compressed < text.length);
+
+        int inflated = decompressor.decompress(compressor.getOutput(), 0, compressed);
+        assertEquals(new String(text, StandardCharsets.UTF_8),
+                new String(decompressor.getOutput(), 0, inflated, StandardCharsets.UTF_8));
+        assertEquals(text.length, compressor.getRawBytes());
+        assertEquals(compressed, compressor.getWireBytes());
+    }
+
+    @Test
+    public void skipsShortAndIncompressiblePayloads() {
+        FrameCompressor compressor = new FrameCompressor();
+        compressor.setEnabled(true);
+
+        byte[] shortText = "hi".getBytes(StandardCharsets.UTF_8);
+        assertEquals(-1, compressor.compress(shortText, 0, shortText.length));
+
+        byte[] random = new byte[512];
+        new java.util.Random(42).nextBytes(random);
+        assertEquals(-1, compressor.compress(random, 0, random.length));
+
+        assertEquals(0, compressor.getCompressedFrames());
+        assertEquals(compressor.getRawBytes(), compressor.getWireBytes());
+    }
+
+    @Test
+    public void sendsRawUntilEnabled() {
+        FrameCompressor compressor = new FrameCompressor();
+        byte[] text = "z".repeat(1000).getBytes(StandardCharsets.UTF_8);
+        assertEquals(-1, compressor.compress(text, 0, text.length));
+    }
+}
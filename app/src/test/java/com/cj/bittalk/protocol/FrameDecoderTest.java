@@ -0,0 +1,102 @@
+package com.cj.bittalk.protocol;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ProtocolException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class FrameDecoderTest {
+
+    private final List<String> received = new ArrayList<>();
+    private final FrameDecoder.FrameListener collector = (type, flags, payload, offset, length) ->
+            received.add(new String(payload, offset, length, StandardCharsets.UTF_8));
+
+    private static byte[] encode(String... messages) throws IOException {
+        FrameEncoder encoder = new FrameEncoder();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (String message : messages) {
+            byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+            encoder.writeFrame(out, Frame.TYPE_MESSAGE, 0, bytes, 0, bytes.length);
+        }
+        return out.toByteArray();
+    }
+
+    @Test
+    public void decodesSeveralFramesFromOneRead() throws IOException {
+        FrameDecoder decoder = new FrameDecoder(collector);
+        decoder.readFrom(new ByteArrayInputStream(encode("hello", "world", "again")));
+
+        assertEquals(List.of("hello", "world", "again"), received);
+        assertEquals(0, decoder.buffered());
+    }
+
+    @Test
+    public void reassemblesFramesSplitAcrossReads() throws IOException {
+        // A multi-byte character lands on every possible read boundary
+        byte[] wire = encode("héllo wörld ✓", "second");
+        InputStream oneByteAtATime = new InputStream() {
+            private int position;
+
+            @Override
+            public int read() {
+                return position < wire.length ? wire[position++] & 0xFF : -1;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) {
+                if (position >= wire.length) return -1;
+                b[off] = wire[position++];
+                return 1;
+            }
+        };
+
+        FrameDecoder decoder = new FrameDecoder(collector);
+        while (decoder.readFrom(oneByteAtATime) >= 0) {
+            // keep reading
+        }
+
+        assertEquals(List.of("héllo wörld ✓", "second"), received);
+    }
+
+    @Test
+    public void handlesPayloadsLongerThanOldReadBuffer() throws IOException {
+        String longMessage = "x".repeat(5000);
+        new FrameDecoder(collector).feed(encode(longMessage), 0, encode(longMessage).length);
+
+        assertEquals(List.of(longMessage), received);
+    }
+
+    @Test
+    public void decodesFramesThatWrapAroundTheRing() throws IOException {
+        FrameDecoder decoder = new FrameDecoder(collector, 128 * 1024);
+        String big = "y".repeat(50_000);
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            String message = big + i;
+            expected.add(message);
+            // Leave a partial frame behind so positions keep advancing around the ring
+            byte[] wire = encode(message, "tail" + i);
+            int split = wire.length - 3;
+            decoder.feed(wire, 0, split);
+            decoder.feed(wire, split, wire.length - split);
+            expected.add("tail" + i);
+        }
+
+        assertEquals(expected, received);
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void rejectsOversizedFrames() throws IOException {
+        byte[] header = new byte[Frame.HEADER_SIZE];
+        Frame.writeHeader(header, 0, Frame.TYPE_MESSAGE, 0, Frame.MAX_WIRE_PAYLOAD_LENGTH + 1);
+        new FrameDecoder(collector).feed(header, 0, header.length);
+    }
+}
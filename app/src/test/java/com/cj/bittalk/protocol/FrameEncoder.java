@@ -0,0 +1,24 @@
+package com.cj.bittalk.protocol;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes frames to a stream with a single write() per frame, for tests that
+ * play the peer's side of a link by hand. Connections send through
+ * FrameWriter. The staging buffer is reused, so an encoder must only be used
+ * by one thread at a time.
+ */
+public class FrameEncoder {
+    private final byte[] buffer = new byte[Frame.HEADER_SIZE + Frame.MAX_PAYLOAD_LENGTH];
+
+    public void writeFrame(OutputStream out, int type, int flags, byte[] payload, int offset, int length)
+            throws IOException {
+        if (length > Frame.MAX_PAYLOAD_LENGTH) {
+            throw new IllegalArgumentException("Payload too large: " + length);
+        }
+        Frame.writeHeader(buffer, 0, type, flags, length);
+        System.arraycopy(payload, offset, buffer, Frame.HEADER_SIZE, length);
+        out.write(buffer, 0, Frame.HEADER_SIZE + length);
+    }
+}
@@ -0,0 +1,143 @@
+package com.cj.bittalk.protocol;
+
+import org.junit.Test;
+
+import java.net.ProtocolException;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+
+import static org.junit.Assert.*;
+
+public class SecureChannelTest {
+
+    private static byte[] hex(String s) {
+        byte[] out = new byte[s.length() / 2];
+        for (int i = 0; i < out.length; i++) {
+            out[i] = (byte) Integer.parseInt(s.substring(2 * i, 2 * i + 2), 16);
+        }
+        return out;
+    }
+
+    // RFC 7748 section 5.2
+    @Test
+    public void matchesRfc7748ScalarMultVectors() {
+        assertArrayEquals(hex("c3da55379de9c6908e94ea4df28d084f32eccf03491c71f754b4075577a28552"),
+                X25519.scalarMult(hex("a546e36bf0527c9d3b16154b82465edd62144c0ac1fc5a18506a2244ba449ac4"),
+                        hex("e6db6867583030db3594c1a424b15f7c726624ec26b3353b10a903a6d0ab1c4c")));
+        // The top bit of this u-coordinate is set and must be masked off
+        assertArrayEquals(hex("95cbde9476e8907d7aade45cb4b873f88b595a68799fa152e6f8f7647aac7957"),
+                X25519.scalarMult(hex("4b66e9d4d1b4673c5ad22691957d6af5c11b6421e0ea01d42ca4169e7918ba0d"),
+                        hex("e5210f12786811d3f4b7959d0538ae2c31dbe7106fc03c3efc4cd549c715a493")));
+    }
+
+    // RFC 7748 section 5.2, iterated: k = X25519(k, u), u = old k, both starting at the base point.
+    // The 1,000,000 iteration vector is left out, it would take the BigInteger ladder too long.
+    @Test
+    public void matchesRfc7748IteratedVectors() {
+        byte[] k = new byte[X25519.KEY_SIZE];
+        k[0] = 9;
+        byte[] u = k.clone();
+        for (int i = 1; i <= 1000; i++) {
+            byte[] result = X25519.scalarMult(k, u);
+            u = k;
+            k = result;
+            if (i == 1) {
+                assertArrayEquals(hex("422c8e7a6227d7bca1350b3e2bb7279f7897b87bb6854b783c60e80311ae3079"), k);
+            }
+        }
+        assertArrayEquals(hex("684cf59ba83309552800ef566f2f4d3c1c3887c49360e3875f2eb94d99532c51"), k);
+    }
+
+    // RFC 7748 section 6.1
+    @Test
+    public void matchesRfc7748DiffieHellmanVectors() {
+
+        byte[] alicePrivate = hex("77076d0a7318a57d3c16c17251b26645df4c2f87ebc0992ab177fba51db92c2a");
+        byte[] bobPrivate = hex("5dab087e624a8a4b79e17f8b83800ee66f3bb1292618b6fd1c2f8b27ff88e0eb");
+        byte[] alicePublic = X25519.publicKey(alicePrivate);
+        assertArrayEquals(hex("8520f0098930a754748b7ddcb43ef75a0dbf3a0d26381af4eba4a98eaa9b4e6a"), alicePublic);
+        byte[] bobPublic = X25519.publicKey(bobPrivate);
+        assertArrayEquals(hex("de9edb7d7b7dc1b4d35b61c2ece435373f8343c85b78674dadfc7e146f882b4f"), bobPublic);
+
+        byte[] shared = hex("4a5d9d5ba4ce2de1728e3bf480350f25e07e21c947d19e3376f09b3c1e161742");
+        assertArrayEquals(shared, X25519.sharedSecret(alicePrivate, bobPublic));
+        assertArrayEquals(shared, X25519.sharedSecret(bobPrivate, alicePublic));
+    }
+
+    @Test
+    public void bothEndsDeriveMatchingDirectionKeys() throws ProtocolException {
+        SecureRandom random = new SecureRandom();
+        SecureChannel a = new SecureChannel(random);
+        SecureChannel b = new SecureChannel(random);
+        a.establish(b.getPublicKey());
+        b.establish(a.getPublicKey());
+
+        for (String text : new String[] {"hello", "", "second frame"}) {
+            byte[] plain = text.getBytes(StandardCharsets.UTF_8);
+            int sealed = a.getEncryptor().encrypt(Frame.TYPE_MESSAGE, Frame.FLAG_ENCRYPTED, plain, 0, plain.length);
+            assertEquals(plain.length + FrameCipher.TAG_SIZE, sealed);
+            int opened = b.getDecryptor().decrypt(Frame.TYPE_MESSAGE, Frame.FLAG_ENCRYPTED, a.getEncryptor().getOutput(), 0, sealed);
+            assertEquals(text, new String(b.getDecryptor().getOutput(), 0, opened, StandardCharsets.UTF_8));
+        }
+
+        // The other direction has its own key, so B's first frame is not A's first frame
+        byte[] plain = "hello".getBytes(StandardCharsets.UTF_8);
+        int sealed = b.getEncryptor().encrypt(Frame.TYPE_MESSAGE, Frame.FLAG_ENCRYPTED, plain, 0, plain.length);
+        int opened = a.getDecryptor().decrypt(Frame.TYPE_MESSAGE, Frame.FLAG_ENCRYPTED, b.getEncryptor().getOutput(), 0, sealed);
+        assertEquals("hello", new String(a.getDecryptor().getOutput(), 0, opened, StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void rejectsTamperedOrRetypedFrames() throws ProtocolException {
+        SecureRandom random = new SecureRandom();
+        SecureChannel a = new SecureChannel(random);
+        SecureChannel b = new SecureChannel(random);
+        a.establish(b.getPublicKey());
+        b.establish(a.getPublicKey());
+
+        byte[] plain = "meet at noon".getBytes(StandardCharsets.UTF_8);
+        int sealed = a.getEncryptor().encrypt(Frame.TYPE_MESSAGE, Frame.FLAG_ENCRYPTED, plain, 0, plain.length);
+        byte[] wire = a.getEncryptor().getOutput().clone();
+        wire[3] ^= 1;
+        try {
+            b.getDecryptor().decrypt(Frame.TYPE_MESSAGE, Frame.FLAG_ENCRYPTED, wire, 0, sealed);
+            fail("Tampered frame was accepted");
+        } catch (ProtocolException expected) {
+        }
+
+        SecureChannel c = new SecureChannel(random);
+        SecureChannel d = new SecureChannel(random);
+        c.establish(d.getPublicKey());
+        d.establish(c.getPublicKey());
+        sealed = c.getEncryptor().encrypt(Frame.TYPE_MESSAGE, Frame.FLAG_ENCRYPTED, plain, 0, plain.length);
+        try {
+            d.getDecryptor().decrypt(Frame.TYPE_RELAY, Frame.FLAG_ENCRYPTED, c.getEncryptor().getOutput(), 0, sealed);
+            fail("Frame type is not authenticated");
+        } catch (ProtocolException expected) {
+        }
+    }
+
+    @Test
+    public void rejectsFramesWithAlteredFlags() throws ProtocolException {
+        SecureRandom random = new SecureRandom();
+        SecureChannel a = new SecureChannel(random);
+        SecureChannel b = new SecureChannel(random);
+        a.establish(b.getPublicKey());
+        b.establish(a.getPublicKey());
+
+        byte[] plain = "meet at noon".getBytes(StandardCharsets.UTF_8);
+        int sealed = a.getEncryptor().encrypt(Frame.TYPE_MESSAGE, Frame.FLAG_ENCRYPTED, plain, 0, plain.length);
+        try {
+            // Flipped on the way, the receiver would inflate the plaintext
+            b.getDecryptor().decrypt(Frame.TYPE_MESSAGE, Frame.FLAG_ENCRYPTED | Frame.FLAG_COMPRESSED,
+                    a.getEncryptor().getOutput(), 0, sealed);
+            fail("Frame flags are not authenticated");
+        } catch (ProtocolException expected) {
+        }
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void rejectsLowOrderPeerKey() throws ProtocolException {
+        new SecureChannel(new SecureRandom()).establish(new byte[X25519.KEY_SIZE]);
+    }
+}
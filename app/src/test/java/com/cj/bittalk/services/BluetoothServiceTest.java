@@ -0,0 +1,621 @@
+package com.cj.bittalk.services;
+
+import com.cj.bittalk.metrics.MetricsSnapshot;
+import com.cj.bittalk.protocol.CompressionStats;
+import com.cj.bittalk.protocol.Frame;
+import com.cj.bittalk.protocol.FrameCipher;
+import com.cj.bittalk.protocol.FrameDecoder;
+import com.cj.bittalk.protocol.FrameEncoder;
+import com.cj.bittalk.protocol.Handshake;
+import com.cj.bittalk.protocol.SecureChannel;
+import com.cj.bittalk.transport.LoopbackTransport;
+import com.cj.bittalk.transport.TcpTransport;
+import com.cj.bittalk.transport.Transport;
+import com.cj.bittalk.transport.TransportServerSocket;
+import com.cj.bittalk.transport.TransportSocket;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static com.cj.bittalk.services.RecordingListener.await;
+import static org.junit.Assert.*;
+
+public class BluetoothServiceTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private BluetoothService server;
+    private BluetoothService client;
+
+    @After
+    public void tearDown() {
+        if (client != null) client.stop();
+        if (server != null) server.stop();
+    }
+
+    private void exchangeMessages(Transport serverTransport, Transport clientTransport, String serverAddress)
+            throws InterruptedException {
+        RecordingListener serverEvents = new RecordingListener();
+        RecordingListener clientEvents = new RecordingListener();
+        server = new BluetoothService(serverTransport, Runnable::run, serverEvents);
+        client = new BluetoothService(clientTransport, Runnable::run, clientEvents);
+
+        server.start();
+        serverEvents.awaitState(BluetoothService.STATE_LISTEN);
+
+        client.connect(serverAddress);
+        clientEvents.awaitState(BluetoothService.STATE_CONNECTED);
+        serverEvents.awaitState(BluetoothService.STATE_CONNECTED);
+        assertEquals(serverAddress, await(clientEvents.connectedDevices));
+
+        client.write("ping".getBytes(StandardCharsets.UTF_8));
+        assertEquals("ping", await(clientEvents.sent));
+        assertEquals("ping", await(serverEvents.received));
+
+        server.write("pong".getBytes(StandardCharsets.UTF_8));
+        assertEquals("pong", await(clientEvents.received));
+
+        MetricsSnapshot metrics = client.snapshotMetrics();
+        assertEquals(1, metrics.connectTime.count);
+        assertEquals(1, metrics.sendLatency.count);
+        assertTrue(metrics.framesOut >= 2);
+        assertTrue(metrics.framesIn >= 2);
+        assertTrue(metrics.bytesOut > 0 && metrics.bytesIn > 0);
+        assertEquals(0, metrics.writeErrors);
+
+        // Closing one end drops the other back to listening
+        client.stop();
+        await(serverEvents.failures);
+        serverEvents.awaitState(BluetoothService.STATE_LISTEN);
+    }
+
+    @Test
+    public void connectsAndExchangesMessagesOverLoopback() throws InterruptedException {
+        LoopbackTransport.Network network = new LoopbackTransport.Network();
+        exchangeMessages(new LoopbackTransport(network, "server"),
+                new LoopbackTransport(network, "client"), "server");
+    }
+
+    @Test
+    public void connectsAndExchangesMessagesOverTcp() throws Exception {
+        int port;
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        exchangeMessages(new TcpTransport(port), new TcpTransport(0), "127.0.0.1:" + port);
+    }
+
+    @Test
+    public void tcpPeersKnowEachOtherByTheirListenAddresses() throws Exception {
+        TcpTransport serverTransport = new TcpTransport(0);
+        TcpTransport clientTransport = new TcpTransport(0);
+        RecordingListener serverEvents = new RecordingListener();
+        RecordingListener clientEvents = new RecordingListener();
+        server = new BluetoothService(serverTransport, Runnable::run, serverEvents);
+        client = new BluetoothService(clientTransport, Runnable::run, clientEvents);
+        server.start();
+        client.start();
+        serverEvents.awaitState(BluetoothService.STATE_LISTEN);
+        clientEvents.awaitState(BluetoothService.STATE_LISTEN);
+
+        client.connect(serverTransport.getLocalAddress());
+        serverEvents.awaitState(BluetoothService.STATE_CONNECTED);
+        assertEquals(List.of(clientTransport.getLocalAddress()), server.getConnectedAddresses());
+
+        // Dialling back finds the link the client opened instead of starting a second one
+        server.connect(clientTransport.getLocalAddress());
+        server.sendMessage(clientTransport.getLocalAddress(), "back").get(5, TimeUnit.SECONDS);
+        assertEquals("back", await(clientEvents.received));
+        assertEquals(1, server.getConnectedAddresses().size());
+        assertEquals(1, client.getConnectedAddresses().size());
+    }
+
+    @Test
+    public void silentTcpDiallerDoesNotHoldUpOtherPeers() throws Exception {
+        TcpTransport serverTransport = new TcpTransport(0);
+        TcpTransport clientTransport = new TcpTransport(0);
+        RecordingListener serverEvents = new RecordingListener();
+        RecordingListener clientEvents = new RecordingListener();
+        server = new BluetoothService(serverTransport, Runnable::run, serverEvents);
+        client = new BluetoothService(clientTransport, Runnable::run, clientEvents);
+        server.start();
+        client.start();
+        serverEvents.awaitState(BluetoothService.STATE_LISTEN);
+        clientEvents.awaitState(BluetoothService.STATE_LISTEN);
+
+        String serverAddress = serverTransport.getLocalAddress();
+        int serverPort = Integer.parseInt(serverAddress.substring(serverAddress.lastIndexOf(':') + 1));
+        try (Socket silent = new Socket(InetAddress.getLoopbackAddress(), serverPort)) {
+            long start = System.nanoTime();
+            client.connect(serverAddress);
+            serverEvents.awaitState(BluetoothService.STATE_CONNECTED);
+            // Well inside the preamble timeout the silent socket would otherwise have run out
+            assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(3));
+            assertEquals(List.of(clientTransport.getLocalAddress()), server.getConnectedAddresses());
+        }
+    }
+
+    @Test
+    public void keepsAcceptingWhileConnectedToSeveralPeers() throws InterruptedException {
+        LoopbackTransport.Network network = new LoopbackTransport.Network();
+        RecordingListener serverEvents = new RecordingListener();
+        server = new BluetoothService(new LoopbackTransport(network, "hub"), Runnable::run, serverEvents);
+        server.start();
+        serverEvents.awaitState(BluetoothService.STATE_LISTEN);
+
+        List<BluetoothService> peers = new ArrayList<>();
+        List<RecordingListener> peerEvents = new ArrayList<>();
+        try {
+            for (int i = 0; i < 3; i++) {
+                RecordingListener events = new RecordingListener();
+                BluetoothService peer = new BluetoothService(
+                        new LoopbackTransport(network, "peer" + i), Runnable::run, events);
+                peer.connect("hub");
+                events.awaitState(BluetoothService.STATE_CONNECTED);
+                peers.add(peer);
+                peerEvents.add(events);
+            }
+            while (server.getConnectedAddresses().size() < 3) {
+                Thread.sleep(10);
+            }
+            // RELAY frames only go to ends whose HELLO said they relay
+            for (int i = 0; i < peers.size(); i++) {
+                while (!peers.get(i).getCompressionStats("hub").enabled
+                        || !server.getCompressionStats("peer" + i).enabled) {
+                    Thread.sleep(5);
+                }
+            }
+            assertEquals(BluetoothService.STATE_CONNECTED, server.getState());
+
+            // Each session can have its own listener
+            RecordingListener peer1Events = new RecordingListener();
+            server.setSessionListener("peer1", peer1Events);
+            peers.get(1).sendMessage("only from peer1");
+            assertEquals("only from peer1", await(peer1Events.received));
+            // The hub relays the broadcast on to its other peers
+            assertEquals("only from peer1", await(peerEvents.get(0).received));
+            assertEquals("only from peer1", await(peerEvents.get(2).received));
+
+            server.sendMessage("to everyone");
+            for (RecordingListener events : peerEvents) {
+                assertEquals("to everyone", await(events.received));
+            }
+            assertEquals("to everyone", await(serverEvents.sent));
+
+            server.sendMessage("peer2", "just you");
+            assertEquals("just you", await(peerEvents.get(2).received));
+
+            // Dropping one peer leaves the others connected
+            peers.get(0).stop();
+            while (server.getConnectedAddresses().contains("peer0")) {
+                Thread.sleep(10);
+            }
+            assertEquals(Set.of("peer1", "peer2"), new HashSet<>(server.getConnectedAddresses()));
+            assertEquals(BluetoothService.STATE_CONNECTED, server.getState());
+        } finally {
+            for (BluetoothService peer : peers) {
+                peer.stop();
+            }
+        }
+    }
+
+    @Test
+    public void negotiatesCompressionAtConnect() throws InterruptedException {
+        LoopbackTransport.Network network = new LoopbackTransport.Network();
+        RecordingListener serverEvents = new RecordingListener();
+        RecordingListener clientEvents = new RecordingListener();
+        server = new BluetoothService(new LoopbackTransport(network, "server"), Runnable::run, serverEvents);
+        client = new BluetoothService(new LoopbackTransport(network, "client"), Runnable::run, clientEvents);
+        server.start();
+        serverEvents.awaitState(BluetoothService.STATE_LISTEN);
+        client.connect("server");
+        clientEvents.awaitState(BluetoothService.STATE_CONNECTED);
+
+        // Both ends advertise deflate, so once the HELLOs cross compression is on
+        String longMessage = "see you at the station at eight, ".repeat(30);
+        while (!client.getCompressionStats("server").enabled) {
+            Thread.sleep(5);
+        }
+        client.sendMessage(longMessage);
+        assertEquals(longMessage, await(serverEvents.received));
+
+        CompressionStats sent = client.getCompressionStats("server");
+        assertTrue(sent.wireBytesOut < sent.rawBytesOut);
+        assertEquals(1, sent.compressedFramesOut);
+        CompressionStats received = server.getCompressionStats("client");
+        assertEquals(sent.wireBytesOut, received.wireBytesIn);
+        assertEquals(sent.rawBytesOut, received.rawBytesIn);
+    }
+
+    @Test
+    public void reportsFailureWhenNobodyIsListening() throws InterruptedException {
+        RecordingListener events = new RecordingListener();
+        client = new BluetoothService(new LoopbackTransport(new LoopbackTransport.Network(), "client"),
+                Runnable::run, events);
+
+        client.connect("nobody");
+        await(events.failures);
+        events.awaitState(BluetoothService.STATE_LISTEN);
+    }
+
+    @Test
+    public void redialsPeerAfterLinkDrops() throws InterruptedException {
+        LoopbackTransport.Network network = new LoopbackTransport.Network();
+        RecordingListener serverEvents = new RecordingListener();
+        RecordingListener clientEvents = new RecordingListener();
+        server = new BluetoothService(new LoopbackTransport(network, "server"), Runnable::run, serverEvents);
+        client = new BluetoothService(new LoopbackTransport(network, "client"), Runnable::run, clientEvents);
+        client.setReconnectPolicy(new ReconnectPolicy(10, 50, 5));
+
+        server.start();
+        serverEvents.awaitState(BluetoothService.STATE_LISTEN);
+        client.connect("server");
+        clientEvents.awaitState(BluetoothService.STATE_CONNECTED);
+        assertEquals("server", await(clientEvents.connectedDevices));
+
+        // The server side drops the link, the client dials back on its own
+        server.disconnect("client");
+        await(clientEvents.failures);
+        clientEvents.awaitState(BluetoothService.STATE_CONNECTING);
+        clientEvents.awaitState(BluetoothService.STATE_CONNECTED);
+        assertEquals("server", await(clientEvents.connectedDevices));
+
+        client.write("back".getBytes(StandardCharsets.UTF_8));
+        assertEquals("back", await(serverEvents.received));
+        ReconnectStats stats = client.getReconnectStats();
+        assertEquals(1, stats.reconnects);
+        assertTrue(stats.attempts >= 1);
+        assertEquals(0, stats.giveUps);
+    }
+
+    @Test
+    public void givesUpRedialingAfterMaxAttempts() throws InterruptedException {
+        LoopbackTransport.Network network = new LoopbackTransport.Network();
+        RecordingListener serverEvents = new RecordingListener();
+        RecordingListener clientEvents = new RecordingListener();
+        server = new BluetoothService(new LoopbackTransport(network, "server"), Runnable::run, serverEvents);
+        client = new BluetoothService(new LoopbackTransport(network, "client"), Runnable::run, clientEvents);
+        client.setReconnectPolicy(new ReconnectPolicy(5, 20, 3));
+
+        server.start();
+        serverEvents.awaitState(BluetoothService.STATE_LISTEN);
+        client.connect("server");
+        clientEvents.awaitState(BluetoothService.STATE_CONNECTED);
+
+        server.stop();
+        await(clientEvents.failures);
+        await(clientEvents.failures);
+        clientEvents.awaitState(BluetoothService.STATE_LISTEN);
+
+        ReconnectStats stats = client.getReconnectStats();
+        assertEquals(3, stats.attempts);
+        assertEquals(0, stats.reconnects);
+        assertEquals(1, stats.giveUps);
+    }
+
+    @Test
+    public void measuresRoundTripTimeWithHeartbeats() throws InterruptedException {
+        LoopbackTransport.Network network = new LoopbackTransport.Network();
+        RecordingListener serverEvents = new RecordingListener();
+        RecordingListener clientEvents = new RecordingListener();
+        server = new BluetoothService(new LoopbackTransport(network, "server"), Runnable::run, serverEvents);
+        client = new BluetoothService(new LoopbackTransport(network, "client"), Runnable::run, clientEvents);
+        client.setHeartbeat(20, 3);
+
+        server.start();
+        serverEvents.awaitState(BluetoothService.STATE_LISTEN);
+        client.connect("server");
+        clientEvents.awaitState(BluetoothService.STATE_CONNECTED);
+
+        long deadline = System.currentTimeMillis() + 5000;
+        LinkStats stats = client.getLinkStats("server");
+        while (stats.pongsReceived < 3 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+            stats = client.getLinkStats("server");
+        }
+        assertTrue(stats.hasRtt());
+        assertTrue(stats.rttMillis >= 0);
+        assertTrue(stats.bytesOut > 0);
+        assertTrue(stats.bytesIn > 0);
+        assertEquals(BluetoothService.STATE_CONNECTED, client.getState("server"));
+    }
+
+    @Test
+    public void declaresSilentPeerDead() throws Exception {
+        LoopbackTransport.Network network = new LoopbackTransport.Network();
+        TransportServerSocket mute = new LoopbackTransport(network, "mute").listen();
+        RecordingListener clientEvents = new RecordingListener();
+        client = new BluetoothService(new LoopbackTransport(network, "client"), Runnable::run, clientEvents);
+        client.setHeartbeat(20, 2);
+        client.setReconnectPolicy(null);
+
+        client.connect("mute");
+        TransportSocket peer = mute.accept();
+        // Says hello with heartbeat support, then never reads or writes again
+        byte[] hello = Handshake.encode(Handshake.CAP_HEARTBEAT);
+        new FrameEncoder().writeFrame(peer.getOutputStream(), Frame.TYPE_HELLO, 0, hello, 0, hello.length);
+        clientEvents.awaitState(BluetoothService.STATE_CONNECTED);
+
+        await(clientEvents.failures);
+        clientEvents.awaitState(BluetoothService.STATE_LISTEN);
+        peer.close();
+        mute.close();
+    }
+
+    @Test
+    public void queuesMessagesForDroppedPeerUntilItIsBack() throws Exception {
+        LoopbackTransport.Network network = new LoopbackTransport.Network();
+        RecordingListener serverEvents = new RecordingListener();
+        RecordingListener clientEvents = new RecordingListener();
+        server = new BluetoothService(new LoopbackTransport(network, "server"), Runnable::run, serverEvents);
+        client = new BluetoothService(new LoopbackTransport(network, "client"), Runnable::run, clientEvents);
+        client.setOutboxDirectory(folder.newFolder("outbox"));
+        client.setReconnectPolicy(new ReconnectPolicy(300, 300, 5));
+
+        server.start();
+        serverEvents.awaitState(BluetoothService.STATE_LISTEN);
+        client.connect("server");
+        clientEvents.awaitState(BluetoothService.STATE_CONNECTED);
+
+        server.disconnect("client");
+        clientEvents.awaitState(BluetoothService.STATE_CONNECTING);
+        client.sendMessage("first").get(5, TimeUnit.SECONDS);
+        client.sendMessage("server", "second").get(5, TimeUnit.SECONDS);
+        assertEquals(2, client.getOutbox().getPendingCount("server"));
+
+        clientEvents.awaitState(BluetoothService.STATE_CONNECTED);
+        assertEquals("first", await(serverEvents.received));
+        assertEquals("second", await(serverEvents.received));
+        client.sendMessage("third");
+        assertEquals("third", await(serverEvents.received));
+    }
+
+    @Test
+    public void keepsOutboxEntriesUntilThePeerAcknowledgesThem() throws Exception {
+        LoopbackTransport.Network network = new LoopbackTransport.Network();
+        TransportServerSocket listener = new LoopbackTransport(network, "server").listen();
+        RecordingListener clientEvents = new RecordingListener();
+        client = new BluetoothService(new LoopbackTransport(network, "client"), Runnable::run, clientEvents);
+        client.setEncryptionEnabled(false);
+        client.setReconnectPolicy(null);
+        client.setOutboxDirectory(folder.newFolder("outbox"));
+        client.getOutbox().enqueue("server", "queued".getBytes(StandardCharsets.UTF_8)).get(5, TimeUnit.SECONDS);
+
+        client.connect("server");
+        TransportSocket peer = listener.accept();
+        FrameEncoder encoder = new FrameEncoder();
+        byte[] hello = Handshake.encode(Handshake.CAP_ACK, null, 5);
+        encoder.writeFrame(peer.getOutputStream(), Frame.TYPE_HELLO, 0, hello, 0, hello.length);
+        List<Integer> types = new ArrayList<>();
+        FrameDecoder decoder = new FrameDecoder((type, flags, payload, offset, length) -> types.add(type));
+        while (!types.contains(Frame.TYPE_MESSAGE)) {
+            decoder.readFrom(peer.getInputStream());
+        }
+
+        // Written, but a crash now must not lose it
+        Thread.sleep(100);
+        assertEquals(1, client.getOutbox().getPendingCount("server"));
+
+        byte[] ack = {0, 0, 0, 1};
+        encoder.writeFrame(peer.getOutputStream(), Frame.TYPE_ACK, 0, ack, 0, ack.length);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (client.getOutbox().getPendingCount("server") > 0) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+        peer.close();
+        listener.close();
+    }
+
+    @Test
+    public void encryptsEverythingAfterTheHello() throws Exception {
+        LoopbackTransport.Network network = new LoopbackTransport.Network();
+        TransportServerSocket listener = new LoopbackTransport(network, "peer").listen();
+        RecordingListener clientEvents = new RecordingListener();
+        client = new BluetoothService(new LoopbackTransport(network, "client"), Runnable::run, clientEvents);
+        client.setReconnectPolicy(null);
+
+        client.connect("peer");
+        TransportSocket peer = listener.accept();
+        clientEvents.awaitState(BluetoothService.STATE_CONNECTED);
+        // Written before the keys exist, so it has to wait for them
+        CompletableFuture<Void> sent = client.sendMessage("peer", "meet me at the north gate");
+
+        List<byte[]> frames = new ArrayList<>();
+        FrameDecoder decoder = new FrameDecoder((type, flags, payload, offset, length) -> {
+            byte[] frame = new byte[2 + length];
+            frame[0] = (byte) type;
+            frame[1] = (byte) flags;
+            System.arraycopy(payload, offset, frame, 2, length);
+            frames.add(frame);
+        });
+        InputStream in = peer.getInputStream();
+        while (frames.isEmpty()) {
+            decoder.readFrom(in);
+        }
+        byte[] hello = frames.remove(0);
+        assertEquals(Frame.TYPE_HELLO, hello[0]);
+        byte[] clientKey = Handshake.parsePublicKey(hello, 2, hello.length - 2);
+        assertNotNull(clientKey);
+        assertFalse(sent.isDone());
+
+        SecureChannel channel = new SecureChannel(new SecureRandom());
+        channel.establish(clientKey);
+        byte[] reply = Handshake.encode(Handshake.CAP_ENCRYPT, channel.getPublicKey());
+        new FrameEncoder().writeFrame(peer.getOutputStream(), Frame.TYPE_HELLO, 0, reply, 0, reply.length);
+
+        while (frames.isEmpty()) {
+            decoder.readFrom(in);
+        }
+        byte[] message = frames.remove(0);
+        assertEquals(Frame.TYPE_MESSAGE, message[0]);
+        assertEquals(Frame.FLAG_ENCRYPTED, message[1]);
+        FrameCipher decryptor = channel.getDecryptor();
+        int length = decryptor.decrypt(Frame.TYPE_MESSAGE, message[1], message, 2, message.length - 2);
+        assertEquals("meet me at the north gate",
+                new String(decryptor.getOutput(), 0, length, StandardCharsets.UTF_8));
+        sent.get(5, TimeUnit.SECONDS);
+        assertTrue(client.isEncrypted("peer"));
+
+        peer.close();
+        listener.close();
+    }
+
+    @Test
+    public void acknowledgesDeliveredMessagesInBatches() throws Exception {
+        LoopbackTransport.Network network = new LoopbackTransport.Network();
+        RecordingListener serverEvents = new RecordingListener();
+        RecordingListener clientEvents = new RecordingListener();
+        server = new BluetoothService(new LoopbackTransport(network, "server"), Runnable::run, serverEvents);
+        client = new BluetoothService(new LoopbackTransport(network, "client"), Runnable::run, clientEvents);
+        server.start();
+        serverEvents.awaitState(BluetoothService.STATE_LISTEN);
+        client.connect("server");
+        clientEvents.awaitState(BluetoothService.STATE_CONNECTED);
+
+        List<Delivery> deliveries = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            deliveries.add(client.sendTracked("server", "message " + i));
+        }
+        for (int i = 0; i < 100; i++) {
+            assertEquals("message " + i, await(serverEvents.received));
+        }
+        for (Delivery delivery : deliveries) {
+            delivery.acknowledged().get(5, TimeUnit.SECONDS);
+        }
+
+        DeliveryStats sent = client.getDeliveryStats("server");
+        assertEquals(100, sent.acknowledged);
+        assertEquals(0, sent.unacknowledged);
+        DeliveryStats received = server.getDeliveryStats("client");
+        assertTrue(received.acksSent >= 1);
+        assertTrue("ACKs were not batched: " + received.acksSent, received.acksSent < 100 / 4);
+        assertEquals(received.acksSent, sent.acksReceived);
+    }
+
+    @Test
+    public void resendsMoreThanTheWriterHoldsWithoutGaps() throws Exception {
+        LoopbackTransport.Network network = new LoopbackTransport.Network();
+        TransportServerSocket listener = new LoopbackTransport(network, "server").listen();
+        RecordingListener clientEvents = new RecordingListener();
+        client = new BluetoothService(new LoopbackTransport(network, "client"), Runnable::run, clientEvents);
+        client.setEncryptionEnabled(false);
+        client.setReconnectPolicy(new ReconnectPolicy(20, 100, 50));
+
+        // A peer that takes sequenced frames but never acknowledges them
+        client.connect("server");
+        TransportSocket silent = listener.accept();
+        byte[] hello = Handshake.encode(Handshake.CAP_ACK, null, 5);
+        new FrameEncoder().writeFrame(silent.getOutputStream(), Frame.TYPE_HELLO, 0, hello, 0, hello.length);
+        Thread reader = new Thread(() -> {
+            FrameDecoder decoder = new FrameDecoder((type, flags, payload, offset, length) -> {
+            });
+            try {
+                while (decoder.readFrom(silent.getInputStream()) >= 0) {
+                    // Discard
+                }
+            } catch (Exception e) {
+                // Closed below
+            }
+        });
+        reader.start();
+
+        int count = 3 * FrameWriter.DEFAULT_QUEUE_CAPACITY;
+        for (int i = 0; i < count; i++) {
+            while (client.sendMessage("server", "message " + i).isCompletedExceptionally()) {
+                Thread.sleep(1);
+            }
+        }
+        long deadline = System.currentTimeMillis() + 5000;
+        while (client.getDeliveryStats("server").unacknowledged < count) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+        silent.close();
+        listener.close();
+        reader.join(5000);
+
+        // The redial reaches a real peer, which must get every message exactly once and in order
+        RecordingListener serverEvents = new RecordingListener();
+        server = new BluetoothService(new LoopbackTransport(network, "server"), Runnable::run, serverEvents);
+        server.start();
+        for (int i = 0; i < count; i++) {
+            assertEquals("message " + i, await(serverEvents.received));
+        }
+        deadline = System.currentTimeMillis() + 5000;
+        while (client.getDeliveryStats("server").acknowledged < count) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+        assertEquals(0, client.getDeliveryStats("server").unacknowledged);
+        assertNull(serverEvents.received.poll(100, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void reportsFailedWritesButStillDeliversOnTheNextLink() throws Exception {
+        LoopbackTransport.Network network = new LoopbackTransport.Network();
+        TransportServerSocket listener = new LoopbackTransport(network, "server").listen();
+        RecordingListener clientEvents = new RecordingListener();
+        client = new BluetoothService(new LoopbackTransport(network, "client"), Runnable::run, clientEvents);
+        client.setEncryptionEnabled(false);
+        client.setReconnectPolicy(new ReconnectPolicy(20, 100, 50));
+
+        client.connect("server");
+        TransportSocket stuck = listener.accept();
+        byte[] hello = Handshake.encode(Handshake.CAP_ACK, null, 5);
+        new FrameEncoder().writeFrame(stuck.getOutputStream(), Frame.TYPE_HELLO, 0, hello, 0, hello.length);
+        clientEvents.awaitState(BluetoothService.STATE_CONNECTED);
+
+        // The peer never reads, so the writer blocks once the pipe is full and the rest dies with the link
+        char[] padding = new char[2000];
+        Arrays.fill(padding, 'x');
+        int count = 64;
+        List<Delivery> deliveries = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            deliveries.add(client.sendTracked("server", i + new String(padding)));
+        }
+        long deadline = System.currentTimeMillis() + 5000;
+        while (client.getDeliveryStats("server").unacknowledged < count) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+        stuck.close();
+        listener.close();
+        int failed = 0;
+        for (Delivery delivery : deliveries) {
+            try {
+                delivery.written().get(5, TimeUnit.SECONDS);
+            } catch (ExecutionException e) {
+                failed++;
+            }
+        }
+        assertTrue(failed > 0);
+
+        RecordingListener serverEvents = new RecordingListener();
+        server = new BluetoothService(new LoopbackTransport(network, "server"), Runnable::run, serverEvents);
+        server.start();
+        for (int i = 0; i < count; i++) {
+            assertEquals(i + new String(padding), await(serverEvents.received));
+        }
+        for (Delivery delivery : deliveries) {
+            delivery.acknowledged().get(5, TimeUnit.SECONDS);
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package com.cj.bittalk.services;
+
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+
+import static org.junit.Assert.*;
+
+public class ConnectionStateTest {
+
+    @Test
+    public void acceptsOnlyLegalSessionTransitions() {
+        ConnectionState state = new ConnectionState(ConnectionState.SESSION_TRANSITIONS);
+        assertFalse(state.moveTo(BluetoothService.STATE_LISTEN));
+        assertTrue(state.moveTo(BluetoothService.STATE_CONNECTING));
+        assertTrue(state.moveTo(BluetoothService.STATE_CONNECTED));
+        assertFalse(state.moveTo(BluetoothService.STATE_CONNECTING));
+        assertEquals(BluetoothService.STATE_CONNECTED, state.get());
+        assertTrue(state.moveTo(BluetoothService.STATE_NONE));
+        assertTrue(state.moveTo(BluetoothService.STATE_CONNECTED));
+    }
+
+    @Test
+    public void coalescesNotificationsToTheLatestState() {
+        ConnectionState state = new ConnectionState(ConnectionState.SERVICE_TRANSITIONS);
+        Queue<Runnable> posted = new ArrayDeque<>();
+        List<Integer> notified = new ArrayList<>();
+
+        state.moveTo(BluetoothService.STATE_LISTEN);
+        state.publish(posted::add, notified::add);
+        state.moveTo(BluetoothService.STATE_CONNECTING);
+        state.publish(posted::add, notified::add);
+        state.moveTo(BluetoothService.STATE_CONNECTED);
+        state.publish(posted::add, notified::add);
+        assertEquals(1, posted.size());
+        posted.poll().run();
+        assertEquals(1, notified.size());
+        assertEquals(BluetoothService.STATE_CONNECTED, (int) notified.get(0));
+
+        // Back where the listener last saw it, so there is nothing to report
+        state.moveTo(BluetoothService.STATE_LISTEN);
+        state.publish(posted::add, notified::add);
+        state.moveTo(BluetoothService.STATE_CONNECTED);
+        posted.poll().run();
+        assertEquals(1, notified.size());
+    }
+}
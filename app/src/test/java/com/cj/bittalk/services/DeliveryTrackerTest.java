@@ -0,0 +1,110 @@
+package com.cj.bittalk.services;
+
+import com.cj.bittalk.protocol.Frame;
+
+import org.junit.Test;
+
+import java.net.ProtocolException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.Assert.*;
+
+public class DeliveryTrackerTest {
+
+    private static DeliveryTracker.Unacked register(DeliveryTracker tracker, String text,
+                                                    CompletableFuture<Void> receipt) {
+        byte[] body = text.getBytes(StandardCharsets.UTF_8);
+        return tracker.register(Frame.TYPE_MESSAGE, body, 0, body.length, receipt);
+    }
+
+    @Test
+    public void cumulativeAckReleasesEverythingUpToIt() {
+        DeliveryTracker tracker = new DeliveryTracker(1);
+        CompletableFuture<Void> first = new CompletableFuture<>();
+        CompletableFuture<Void> second = new CompletableFuture<>();
+        CompletableFuture<Void> third = new CompletableFuture<>();
+        register(tracker, "one", first);
+        register(tracker, "two", second);
+        DeliveryTracker.Unacked last = register(tracker, "three", third);
+        assertEquals(3, last.sequence);
+        assertEquals(0, last.payload[0] | last.payload[1] | last.payload[2]);
+        assertEquals(3, last.payload[3]);
+
+        tracker.acknowledge(2);
+        assertTrue(first.isDone() && second.isDone());
+        assertFalse(third.isDone());
+
+        // A new connection resends only the gap
+        List<DeliveryTracker.Unacked> resend = tracker.unacknowledged();
+        assertEquals(1, resend.size());
+        assertSame(last, resend.get(0));
+        DeliveryStats stats = tracker.snapshot();
+        assertEquals(2, stats.acknowledged);
+        assertEquals(1, stats.unacknowledged);
+        assertEquals(1, stats.retransmitted);
+    }
+
+    @Test
+    public void withdrawnFrameGivesBackItsNumber() {
+        DeliveryTracker tracker = new DeliveryTracker(1);
+        register(tracker, "kept", null);
+        DeliveryTracker.Unacked refused = register(tracker, "refused", null);
+        tracker.withdraw(refused);
+        assertEquals(2, register(tracker, "retry", null).sequence);
+        assertEquals(2, tracker.unacknowledged().size());
+    }
+
+    @Test
+    public void dropsCopiesUntilThePeerRestarts() throws ProtocolException {
+        DeliveryTracker tracker = new DeliveryTracker(1);
+        tracker.onPeerStream(42);
+        assertTrue(tracker.receive(1));
+        assertTrue(tracker.receive(2));
+        assertFalse(tracker.receive(2));
+        assertFalse(tracker.receive(1));
+
+        // Same stream after a reconnect: still copies
+        tracker.onPeerStream(42);
+        assertFalse(tracker.receive(2));
+        assertTrue(tracker.receive(3));
+        assertEquals(3, tracker.onAckSent());
+
+        // A restarted peer numbers from 1 again
+        tracker.onPeerStream(7);
+        assertTrue(tracker.receive(1));
+        assertEquals(3, tracker.snapshot().duplicatesDropped);
+    }
+
+    @Test
+    public void refusesFramesThatSkipANumber() throws ProtocolException {
+        DeliveryTracker tracker = new DeliveryTracker(1);
+        tracker.onPeerStream(42);
+        // A stream may be picked up anywhere, e.g. after this side forgot the peer
+        assertTrue(tracker.receive(5));
+        assertTrue(tracker.receive(6));
+        try {
+            tracker.receive(8);
+            fail("Accepted a gap");
+        } catch (ProtocolException expected) {
+        }
+        assertEquals(6, tracker.onAckSent());
+    }
+
+    @Test
+    public void refusesNewFramesOnceTheWindowIsFull() {
+        DeliveryTracker tracker = new DeliveryTracker(1);
+        CompletableFuture<Void> first = new CompletableFuture<>();
+        register(tracker, "first", first);
+        for (int i = 1; i < DeliveryTracker.MAX_UNACKED; i++) {
+            assertNotNull(register(tracker, "message " + i, null));
+        }
+        assertNull(register(tracker, "one too many", null));
+        // Nothing was given up to make room
+        assertFalse(first.isDone());
+
+        tracker.acknowledge(1);
+        assertEquals(DeliveryTracker.MAX_UNACKED + 1, register(tracker, "room again", null).sequence);
+    }
+}
@@ -0,0 +1,150 @@
+package com.cj.bittalk.services;
+
+import com.cj.bittalk.protocol.Frame;
+import com.cj.bittalk.protocol.FrameDecoder;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class FrameWriterTest {
+
+    private static class CountingStream extends ByteArrayOutputStream {
+        int writes;
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) {
+            writes++;
+            super.write(b, off, len);
+        }
+    }
+
+    private final List<Object> written = new CopyOnWriteArrayList<>();
+    private final FrameWriter.Callback callback = new FrameWriter.Callback() {
+        @Override
+        public void onFrameWritten(FrameWriter.OutboundFrame frame) {
+            written.add(frame.attachment);
+        }
+
+        @Override
+        public void onWriteFailed(IOException e) {
+        }
+    };
+
+    private static FrameWriter.OutboundFrame message(String text) {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        return new FrameWriter.OutboundFrame(Frame.TYPE_MESSAGE, 0, bytes, 0, bytes.length, text);
+    }
+
+    private static FrameWriter.OutboundFrame chunk(String name) {
+        byte[] bytes = new byte[4096];
+        return new FrameWriter.OutboundFrame(Frame.TYPE_FILE_CHUNK, 0, bytes, 0, bytes.length, name);
+    }
+
+    @Test
+    public void coalescesQueuedFramesIntoOneWrite() throws Exception {
+        CountingStream out = new CountingStream();
+        FrameWriter writer = new FrameWriter(out, callback);
+        List<CompletableFuture<Void>> completions = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            completions.add(writer.enqueue(message("message " + i)));
+        }
+
+        Thread thread = new Thread(writer);
+        thread.start();
+        for (CompletableFuture<Void> completion : completions) {
+            completion.get(5, TimeUnit.SECONDS);
+        }
+        writer.close();
+        thread.join();
+
+        assertEquals(1, out.writes);
+        assertEquals(50, written.size());
+
+        List<String> decoded = new ArrayList<>();
+        new FrameDecoder((type, flags, payload, offset, length) ->
+                decoded.add(new String(payload, offset, length, StandardCharsets.UTF_8)))
+                .feed(out.toByteArray(), 0, out.size());
+        assertEquals(written, decoded);
+    }
+
+    @Test
+    public void failsFastWhenQueueIsFull() {
+        FrameWriter writer = new FrameWriter(new ByteArrayOutputStream(), callback, null, 1, 1024, 0);
+        assertFalse(writer.enqueue(message("first")).isCompletedExceptionally());
+        assertTrue(writer.enqueue(message("second")).isCompletedExceptionally());
+    }
+
+    @Test
+    public void failsPendingFramesOnClose() throws InterruptedException {
+        FrameWriter writer = new FrameWriter(new ByteArrayOutputStream(), callback);
+        CompletableFuture<Void> pending = writer.enqueue(message("never written"));
+        writer.close();
+
+        try {
+            pending.get();
+            fail("Expected the pending frame to fail");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+        assertTrue(written.isEmpty());
+    }
+
+    @Test
+    public void schedulesChatAheadOfQueuedBulkFrames() throws Exception {
+        FrameWriter writer = new FrameWriter(new ByteArrayOutputStream(), callback, null, 64, 1024, 0);
+        for (int i = 0; i < 20; i++) {
+            writer.enqueue(chunk("chunk " + i));
+        }
+        List<CompletableFuture<Void>> completions = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            completions.add(writer.enqueue(message("message " + i)));
+        }
+        byte[] ping = new byte[8];
+        completions.add(writer.enqueue(new FrameWriter.OutboundFrame(Frame.TYPE_PING, 0, ping, 0, ping.length, "ping")));
+        assertEquals(31, writer.queueDepth());
+
+        Thread thread = new Thread(writer);
+        thread.start();
+        for (CompletableFuture<Void> completion : completions) {
+            completion.get(5, TimeUnit.SECONDS);
+        }
+
+        // Control first, then chat with one bulk frame let through per BULK_SHARE picks
+        assertEquals("ping", written.get(0));
+        for (int i = 0; i < StreamScheduler.BULK_SHARE - 1; i++) {
+            assertEquals("message " + i, written.get(1 + i));
+        }
+        assertEquals("chunk 0", written.get(StreamScheduler.BULK_SHARE));
+        assertEquals("message 7", written.get(StreamScheduler.BULK_SHARE + 1));
+        assertEquals("message 9", written.get(StreamScheduler.BULK_SHARE + 3));
+
+        List<StreamStats> stats = writer.getStreamStats();
+        assertEquals(1, stats.get(FrameWriter.PRIORITY_CONTROL).framesWritten);
+        assertEquals(10, stats.get(FrameWriter.PRIORITY_INTERACTIVE).framesWritten);
+        assertEquals(20, stats.get(FrameWriter.PRIORITY_BULK).maxQueueDepth);
+        assertTrue(stats.get(FrameWriter.PRIORITY_INTERACTIVE).getMaxLatencyMillis() > 0);
+        writer.close();
+        thread.join();
+    }
+
+    @Test
+    public void boundsEachPriorityClassSeparately() {
+        FrameWriter writer = new FrameWriter(new ByteArrayOutputStream(), callback, null, 2, 1024, 0);
+        writer.enqueue(chunk("first"));
+        writer.enqueue(chunk("second"));
+        assertTrue(writer.enqueue(chunk("third")).isCompletedExceptionally());
+        assertFalse(writer.enqueue(message("chat")).isCompletedExceptionally());
+        assertEquals(2, writer.getStreamStats().get(FrameWriter.PRIORITY_BULK).queueDepth);
+    }
+}
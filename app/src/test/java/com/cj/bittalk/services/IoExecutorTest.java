@@ -0,0 +1,91 @@
+package com.cj.bittalk.services;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+public class IoExecutorTest {
+    private final IoExecutor executor = new IoExecutor("test-io", 1);
+
+    @After
+    public void tearDown() {
+        executor.shutdown();
+    }
+
+    private static class BlockingTask extends IoExecutor.Task {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicBoolean ran = new AtomicBoolean();
+        final AtomicBoolean cancelCalled = new AtomicBoolean();
+
+        BlockingTask(String name) {
+            super(name);
+        }
+
+        @Override
+        protected void execute() {
+            ran.set(true);
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        protected void onCancel() {
+            cancelCalled.set(true);
+            release.countDown();
+        }
+    }
+
+    @Test
+    public void cancelledTaskInQueueNeverRuns() throws InterruptedException {
+        BlockingTask running = new BlockingTask("running");
+        BlockingTask queued = new BlockingTask("queued");
+        assertTrue(executor.submit(running));
+        assertTrue(running.started.await(5, TimeUnit.SECONDS));
+        assertTrue(executor.submit(queued));
+        assertEquals(2, executor.getLiveTaskCount());
+        assertEquals(1, executor.getRunningTaskCount());
+
+        queued.cancel();
+        assertTrue(queued.cancelCalled.get());
+        assertEquals(1, executor.getLiveTaskCount());
+
+        running.cancel();
+        while (executor.getLiveTaskCount() > 0) {
+            Thread.sleep(5);
+        }
+        assertFalse(queued.ran.get());
+        assertEquals(1, executor.getCompletedTaskCount());
+    }
+
+    @Test
+    public void tracksQueuedAndRunningTime() throws InterruptedException {
+        BlockingTask first = new BlockingTask("first");
+        BlockingTask second = new BlockingTask("second");
+        executor.submit(first);
+        executor.submit(second);
+        assertTrue(first.started.await(5, TimeUnit.SECONDS));
+
+        Thread.sleep(20);
+        first.release.countDown();
+        assertTrue(second.started.await(5, TimeUnit.SECONDS));
+        second.release.countDown();
+        while (executor.getCompletedTaskCount() < 2) {
+            Thread.sleep(5);
+        }
+
+        // The second task waited behind the first for at least the sleep above
+        assertTrue(executor.getTotalQueuedNanos() >= TimeUnit.MILLISECONDS.toNanos(20));
+        assertTrue(executor.getTotalRunningNanos() >= TimeUnit.MILLISECONDS.toNanos(20));
+        assertEquals(0, executor.getLiveTaskCount());
+    }
+}
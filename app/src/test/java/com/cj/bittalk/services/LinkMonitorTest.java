@@ -0,0 +1,38 @@
+package com.cj.bittalk.services;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class LinkMonitorTest {
+    private static final long MS = 1_000_000L;
+
+    @Test
+    public void smoothsRttAndTracksJitter() {
+        LinkMonitor monitor = new LinkMonitor(0);
+        monitor.onPong(100 * MS, 60 * MS);
+        LinkStats first = monitor.snapshot(0);
+        assertEquals(40, first.rttMillis, 0.001);
+        assertEquals(0, first.jitterMillis, 0.001);
+
+        monitor.onPong(300 * MS, 200 * MS);
+        LinkStats second = monitor.snapshot(0);
+        assertEquals(100, second.lastRttMillis, 0.001);
+        assertEquals(40 + (100 - 40) / 8.0, second.rttMillis, 0.001);
+        assertEquals(60 / 16.0, second.jitterMillis, 0.001);
+    }
+
+    @Test
+    public void trafficClearsOutstandingPings() {
+        LinkMonitor monitor = new LinkMonitor(0);
+        assertTrue(monitor.isIdle(10 * MS, 10 * MS));
+        monitor.onPingSent();
+        monitor.onPingSent();
+        assertEquals(2, monitor.getOutstandingPings());
+
+        monitor.onReceived(15 * MS, 12);
+        assertEquals(0, monitor.getOutstandingPings());
+        assertFalse(monitor.isIdle(20 * MS, 10 * MS));
+        assertEquals(12, monitor.snapshot(0).bytesIn);
+    }
+}
@@ -0,0 +1,133 @@
+package com.cj.bittalk.services;
+
+import com.cj.bittalk.mesh.MeshRelay;
+import com.cj.bittalk.mesh.RelayStats;
+import com.cj.bittalk.transport.LoopbackTransport;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static com.cj.bittalk.services.RecordingListener.await;
+import static org.junit.Assert.*;
+
+public class MeshRelayTest {
+    private final LoopbackTransport.Network network = new LoopbackTransport.Network();
+    private final List<BluetoothService> nodes = new ArrayList<>();
+    private final List<RecordingListener> events = new ArrayList<>();
+
+    @After
+    public void tearDown() {
+        for (BluetoothService node : nodes) {
+            node.stop();
+        }
+    }
+
+    private void addNodes(int count) throws InterruptedException {
+        for (int i = 0; i < count; i++) {
+            RecordingListener listener = new RecordingListener();
+            BluetoothService node = new BluetoothService(
+                    new LoopbackTransport(network, "n" + i), Runnable::run, listener);
+            node.start();
+            listener.awaitState(BluetoothService.STATE_LISTEN);
+            nodes.add(node);
+            events.add(listener);
+        }
+    }
+
+    private void link(int from, int to) throws InterruptedException {
+        nodes.get(from).connect("n" + to);
+        awaitHandshake(nodes.get(from), "n" + to);
+        awaitHandshake(nodes.get(to), "n" + from);
+    }
+
+    // Compression is switched on by the peer's HELLO, which also tells whether it relays
+    private static void awaitHandshake(BluetoothService node, String address) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (System.currentTimeMillis() < deadline) {
+            if (node.getCompressionStats(address) != null && node.getCompressionStats(address).enabled) {
+                return;
+            }
+            Thread.sleep(5);
+        }
+        fail("No handshake with " + address);
+    }
+
+    private RelayStats stats(int node) {
+        return nodes.get(node).getMeshRelay().getStats();
+    }
+
+    @Test
+    public void floodsAlongTenNodeLine() throws InterruptedException {
+        addNodes(10);
+        for (int i = 0; i < 9; i++) {
+            link(i, i + 1);
+        }
+
+        nodes.get(0).getMeshRelay().setTtl(16);
+        nodes.get(0).sendMessage("hello");
+        for (int i = 1; i < 10; i++) {
+            assertEquals("hello", await(events.get(i).received));
+        }
+        assertEquals(1, stats(0).originated);
+        for (int i = 1; i < 9; i++) {
+            assertEquals(1, stats(i).forwarded);
+            assertEquals(0, stats(i).droppedDuplicate);
+        }
+        assertEquals(0, stats(9).forwarded);
+        assertEquals(1, stats(9).delivered);
+
+        // The default budget of 8 hops ends at n1
+        nodes.get(9).sendMessage("back");
+        for (int i = 8; i >= 1; i--) {
+            assertEquals("back", await(events.get(i).received));
+        }
+        assertEquals(1, stats(1).droppedTtl);
+        assertNull(events.get(0).received.poll(200, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void deliversRelayedMessagesFromTheNodeThatWroteThem() throws InterruptedException {
+        addNodes(3);
+        link(0, 1);
+        link(1, 2);
+
+        nodes.get(1).sendMessage("from the middle");
+        assertEquals("from the middle", await(events.get(2).received));
+        assertEquals("n1", await(events.get(2).senders));
+
+        // n0 has no link to n2, n1 only passes its message on
+        nodes.get(0).sendMessage("from the end");
+        assertEquals("from the end", await(events.get(2).received));
+        assertEquals(MeshRelay.nodeAddress(nodes.get(0).getMeshRelay().getNodeId()), await(events.get(2).senders));
+        assertEquals("from the end", await(events.get(1).received));
+        assertEquals("n0", await(events.get(1).senders));
+    }
+
+    @Test
+    public void dropsCopiesThatComeAroundALoop() throws InterruptedException {
+        addNodes(3);
+        link(0, 1);
+        link(1, 2);
+        link(2, 0);
+
+        nodes.get(0).sendMessage("once");
+        assertEquals("once", await(events.get(1).received));
+        assertEquals("once", await(events.get(2).received));
+
+        // Four copies go out for two deliveries, the other two are recognised
+        long deadline = System.currentTimeMillis() + 5000;
+        long duplicates = 0;
+        while (duplicates < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+            duplicates = stats(0).droppedDuplicate + stats(1).droppedDuplicate + stats(2).droppedDuplicate;
+        }
+        assertEquals(2, duplicates);
+        assertNull(events.get(1).received.poll(100, TimeUnit.MILLISECONDS));
+        assertNull(events.get(2).received.poll(100, TimeUnit.MILLISECONDS));
+        assertNull(events.get(0).received.poll(100, TimeUnit.MILLISECONDS));
+    }
+}
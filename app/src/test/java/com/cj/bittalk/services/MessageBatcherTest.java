@@ -0,0 +1,107 @@
+package com.cj.bittalk.services;
+
+import com.cj.bittalk.metrics.Histogram;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class MessageBatcherTest {
+    private final List<Runnable> frames = new ArrayList<>();
+
+    private static class BatchListener extends RecordingListener {
+        final List<List<String>> batches = new ArrayList<>();
+        final List<String> senders = new ArrayList<>();
+
+        @Override
+        public void onMessagesReceived(String address, List<String> messages) {
+            senders.add(address);
+            super.onMessagesReceived(address, messages);
+        }
+
+        @Override
+        public void onMessagesReceived(List<String> messages) {
+            batches.add(new ArrayList<>(messages));
+        }
+    }
+
+    private void runFrame() {
+        List<Runnable> due = new ArrayList<>(frames);
+        frames.clear();
+        for (Runnable frame : due) {
+            frame.run();
+        }
+    }
+
+    @Test
+    public void burstIsDeliveredAsOneBatchPerFrame() {
+        MessageBatcher batcher = new MessageBatcher(frames::add);
+        BatchListener listener = new BatchListener();
+
+        for (int i = 0; i < 200; i++) {
+            batcher.offer(listener, "peer", "m" + i);
+        }
+        assertEquals(1, frames.size());
+
+        runFrame();
+        assertEquals(1, listener.batches.size());
+        assertEquals(200, listener.batches.get(0).size());
+        assertEquals("m0", listener.batches.get(0).get(0));
+        assertEquals("m199", listener.batches.get(0).get(199));
+
+        batcher.offer(listener, "peer", "later");
+        assertEquals(1, frames.size());
+        runFrame();
+        assertEquals(2, listener.batches.size());
+    }
+
+    @Test
+    public void keepsOrderAcrossListeners() {
+        MessageBatcher batcher = new MessageBatcher(frames::add);
+        BatchListener first = new BatchListener();
+        BatchListener second = new BatchListener();
+
+        batcher.offer(first, "peer", "a");
+        batcher.offer(first, "peer", "b");
+        batcher.offer(second, "peer", "c");
+        batcher.offer(first, "peer", "d");
+        runFrame();
+
+        assertEquals(2, first.batches.size());
+        assertEquals(List.of("a", "b"), first.batches.get(0));
+        assertEquals(List.of("d"), first.batches.get(1));
+        assertEquals(List.of(List.of("c")), second.batches);
+    }
+
+    @Test
+    public void splitsBatchesBySender() {
+        MessageBatcher batcher = new MessageBatcher(frames::add);
+        BatchListener listener = new BatchListener();
+
+        batcher.offer(listener, "a", "1");
+        batcher.offer(listener, "a", "2");
+        batcher.offer(listener, "b", "3");
+        batcher.offer(listener, "a", "4");
+        runFrame();
+
+        assertEquals(List.of("a", "b", "a"), listener.senders);
+        assertEquals(List.of(List.of("1", "2"), List.of("3"), List.of("4")), listener.batches);
+    }
+
+    @Test
+    public void recordsReceiveToRenderLatencyPerMessage() {
+        Histogram latency = new Histogram("render", 1, 10, 100);
+        MessageBatcher batcher = new MessageBatcher(frames::add, latency);
+        BatchListener listener = new BatchListener();
+
+        for (int i = 0; i < 100; i++) {
+            batcher.offer(listener, "peer", "m" + i);
+        }
+        runFrame();
+
+        assertEquals(100, latency.snapshot().count);
+    }
+}
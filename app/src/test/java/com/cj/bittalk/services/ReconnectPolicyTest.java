@@ -0,0 +1,21 @@
+package com.cj.bittalk.services;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ReconnectPolicyTest {
+    @Test
+    public void delaysGrowWithinJitterWindowUpToCap() {
+        ReconnectPolicy policy = new ReconnectPolicy(100, 1000, 6);
+        long[] windows = {100, 200, 400, 800, 1000, 1000};
+        for (int round = 0; round < 50; round++) {
+            for (int attempt = 0; attempt < windows.length; attempt++) {
+                long delay = policy.delayMillis(attempt);
+                assertTrue(delay >= windows[attempt] / 2);
+                assertTrue(delay <= windows[attempt]);
+            }
+        }
+        assertEquals(-1, policy.delayMillis(6));
+    }
+}
@@ -0,0 +1,66 @@
+package com.cj.bittalk.services;
+
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Listener for tests that records every callback so it can be awaited.
+ */
+class RecordingListener implements BluetoothService.BluetoothConnectionListener {
+    final BlockingQueue<Integer> states = new LinkedBlockingQueue<>();
+    final BlockingQueue<String> received = new LinkedBlockingQueue<>();
+    // Address of the peer each received message is from
+    final BlockingQueue<String> senders = new LinkedBlockingQueue<>();
+    final BlockingQueue<String> sent = new LinkedBlockingQueue<>();
+    final BlockingQueue<String> connectedDevices = new LinkedBlockingQueue<>();
+    final BlockingQueue<Boolean> failures = new LinkedBlockingQueue<>();
+
+    @Override
+    public void onStateChanged(int state) {
+        states.add(state);
+    }
+
+    @Override
+    public void onMessageReceived(String message) {
+        received.add(message);
+    }
+
+    @Override
+    public void onMessagesReceived(String address, List<String> messages) {
+        for (int i = 0; i < messages.size(); i++) {
+            senders.add(address);
+        }
+        BluetoothService.BluetoothConnectionListener.super.onMessagesReceived(address, messages);
+    }
+
+    @Override
+    public void onMessageSent(String message) {
+        sent.add(message);
+    }
+
+    @Override
+    public void onConnectionFailed() {
+        failures.add(true);
+    }
+
+    @Override
+    public void onDeviceConnected(String deviceName) {
+        connectedDevices.add(deviceName);
+    }
+
+    static <T> T await(BlockingQueue<T> queue) throws InterruptedException {
+        T value = queue.poll(5, TimeUnit.SECONDS);
+        if (value == null) {
+            throw new AssertionError("Timed out waiting for callback");
+        }
+        return value;
+    }
+
+    void awaitState(int expected) throws InterruptedException {
+        while (await(states) != expected) {
+            // skip intermediate states
+        }
+    }
+}
@@ -0,0 +1,211 @@
+package com.cj.bittalk.transfer;
+
+import com.cj.bittalk.protocol.Frame;
+import com.cj.bittalk.protocol.TransferFrames;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.Assert.*;
+
+public class TransferManagerTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    // Frames are queued instead of delivered, so the test decides when and whether they arrive
+    private static class QueuedSink implements TransferManager.FrameSink {
+        final ArrayDeque<int[]> types = new ArrayDeque<>();
+        final ArrayDeque<byte[]> payloads = new ArrayDeque<>();
+        // Completed by the test once holdWrites is set, like a writer that lags behind
+        final List<CompletableFuture<Void>> heldWrites = new ArrayList<>();
+        boolean connected = true;
+        boolean holdWrites;
+
+        @Override
+        public CompletableFuture<Void> sendFrame(String address, int type, byte[] payload, int offset, int length) {
+            CompletableFuture<Void> result = new CompletableFuture<>();
+            if (!connected) {
+                result.completeExceptionally(new IOException("Not connected"));
+                return result;
+            }
+            types.add(new int[] {type});
+            payloads.add(Arrays.copyOfRange(payload, offset, offset + length));
+            if (holdWrites) {
+                heldWrites.add(result);
+            } else {
+                result.complete(null);
+            }
+            return result;
+        }
+
+        @Override
+        public boolean isConnected(String address) {
+            return connected;
+        }
+    }
+
+    private final QueuedSink senderSink = new QueuedSink();
+    private final QueuedSink receiverSink = new QueuedSink();
+    private final List<FileTransfer> completed = new ArrayList<>();
+    private TransferManager sender;
+    private TransferManager receiver;
+    private File source;
+    private byte[] content;
+
+    @Before
+    public void setUp() throws IOException {
+        TransferManager.TransferListener recorder = new TransferManager.TransferListener() {
+            @Override
+            public void onTransferProgress(FileTransfer transfer) {
+            }
+
+            @Override
+            public void onTransferCompleted(FileTransfer transfer) {
+                completed.add(transfer);
+            }
+
+            @Override
+            public void onTransferFailed(FileTransfer transfer) {
+                fail("Transfer failed: " + transfer.getName());
+            }
+        };
+        sender = new TransferManager(senderSink, Runnable::run);
+        receiver = new TransferManager(receiverSink, Runnable::run);
+        sender.setListener(recorder);
+        receiver.setListener(recorder);
+        receiver.setDownloadDirectory(folder.newFolder("downloads"));
+
+        content = new byte[10 * TransferManager.CHUNK_SIZE + 123];
+        new Random(7).nextBytes(content);
+        source = folder.newFile("photo.jpg");
+        Files.write(source.toPath(), content);
+    }
+
+    private TransferManager.Source source() {
+        return () -> new FileInputStream(source).getChannel();
+    }
+
+    // Delivers one queued frame in each direction, returns false once both sides are idle
+    private boolean step(List<long[]> resumes, int[] chunksDelivered) throws ProtocolException {
+        boolean moved = false;
+        if (!senderSink.payloads.isEmpty()) {
+            int type = senderSink.types.poll()[0];
+            byte[] payload = senderSink.payloads.poll();
+            if (type == Frame.TYPE_FILE_CHUNK) {
+                chunksDelivered[0]++;
+            }
+            receiver.onFrame("sender", type, payload, 0, payload.length);
+            moved = true;
+        }
+        if (!receiverSink.payloads.isEmpty()) {
+            int type = receiverSink.types.poll()[0];
+            byte[] payload = receiverSink.payloads.poll();
+            if (type == Frame.TYPE_FILE_RESUME) {
+                resumes.add(new long[] {TransferFrames.position(payload, 0, payload.length)});
+            }
+            sender.onFrame("receiver", type, payload, 0, payload.length);
+            moved = true;
+        }
+        return moved;
+    }
+
+    @Test
+    public void transfersFileInChunks() throws Exception {
+        List<long[]> resumes = new ArrayList<>();
+        int[] chunks = {0};
+        sender.sendFile("receiver", "photo.jpg", content.length, source());
+        while (step(resumes, chunks)) {
+            // keep going
+        }
+
+        assertEquals(2, completed.size());
+        FileTransfer received = completed.get(0).isIncoming() ? completed.get(0) : completed.get(1);
+        assertEquals("photo.jpg", received.getFile().getName());
+        assertArrayEquals(content, Files.readAllBytes(received.getFile().toPath()));
+        assertEquals(11, chunks[0]);
+        assertEquals(0, resumes.get(0)[0]);
+    }
+
+    @Test
+    public void keepsSendingWhenAcksArriveBeforeTheWritesComplete() throws Exception {
+        List<long[]> resumes = new ArrayList<>();
+        int[] chunks = {0};
+        senderSink.holdWrites = true;
+        FileTransfer transfer = sender.sendFile("receiver", "photo.jpg", content.length, source());
+
+        while (!senderSink.heldWrites.isEmpty()) {
+            while (step(resumes, chunks)) {
+                // Every buffer is still with the writer when the acks come in
+            }
+            List<CompletableFuture<Void>> written = new ArrayList<>(senderSink.heldWrites);
+            senderSink.heldWrites.clear();
+            for (CompletableFuture<Void> write : written) {
+                write.complete(null);
+            }
+        }
+        while (step(resumes, chunks)) {
+            // keep going
+        }
+
+        assertEquals(FileTransfer.STATE_COMPLETED, transfer.getState());
+        assertEquals(11, chunks[0]);
+    }
+
+    @Test
+    public void resumesFromLastConfirmedOffsetAfterConnectionLoss() throws Exception {
+        List<long[]> resumes = new ArrayList<>();
+        int[] chunks = {0};
+        FileTransfer transfer = sender.sendFile("receiver", "photo.jpg", content.length, source());
+
+        while (chunks[0] < 5) {
+            assertTrue(step(resumes, chunks));
+        }
+
+        // The link drops with frames still in flight
+        senderSink.connected = false;
+        receiverSink.connected = false;
+        senderSink.types.clear();
+        senderSink.payloads.clear();
+        receiverSink.types.clear();
+        receiverSink.payloads.clear();
+        sender.onSessionClosed("receiver");
+        receiver.onSessionClosed("sender");
+        assertEquals(FileTransfer.STATE_PAUSED, transfer.getState());
+
+        senderSink.connected = true;
+        receiverSink.connected = true;
+        sender.onSessionOpened("receiver");
+        int chunksBeforeResume = chunks[0];
+        while (step(resumes, chunks)) {
+            // keep going
+        }
+
+        assertEquals(2, resumes.size());
+        assertEquals(5L * TransferManager.CHUNK_SIZE, resumes.get(1)[0]);
+        assertEquals(6, chunks[0] - chunksBeforeResume);
+        assertEquals(FileTransfer.STATE_COMPLETED, transfer.getState());
+        FileTransfer received = completed.get(0).isIncoming() ? completed.get(0) : completed.get(1);
+        assertArrayEquals(content, Files.readAllBytes(received.getFile().toPath()));
+    }
+
+    @Test
+    public void keepsReceivedFilesInsideDownloadDirectory() {
+        assertEquals("passwd", TransferManager.sanitize("../../etc/passwd"));
+        assertEquals("bashrc", TransferManager.sanitize(".bashrc"));
+        assertEquals("attachment", TransferManager.sanitize("dir/"));
+    }
+}
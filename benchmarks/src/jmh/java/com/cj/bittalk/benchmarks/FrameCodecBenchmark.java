@@ -0,0 +1,118 @@
+package com.cj.bittalk.benchmarks;
+
+import com.cj.bittalk.protocol.Frame;
+import com.cj.bittalk.protocol.FrameCompressor;
+import com.cj.bittalk.protocol.FrameDecoder;
+import com.cj.bittalk.services.FrameWriter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Chat frames on their way out through FrameWriter, and back in through the
+ * decoder and compressor, without any socket I/O.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class FrameCodecBenchmark {
+    private static final int FRAMES = 64;
+
+    @Param({"64", "1024", "16384"})
+    public int payloadSize;
+
+    private byte[] payload;
+    private FrameWriter writer;
+    private Thread writerThread;
+    private byte[] encoded;
+    private FrameDecoder decoder;
+    private Blackhole blackhole;
+    private FrameCompressor compressor;
+
+    @Setup
+    public void setUp(Blackhole blackhole) throws IOException {
+        this.blackhole = blackhole;
+        // Chat-like text, so compression has something to find
+        StringBuilder text = new StringBuilder();
+        while (text.length() < payloadSize) {
+            text.append("See you at the station at half past six? ");
+        }
+        payload = text.substring(0, payloadSize).getBytes(StandardCharsets.UTF_8);
+
+        encoded = new byte[FRAMES * (Frame.HEADER_SIZE + payload.length)];
+        for (int i = 0, offset = 0; i < FRAMES; i++, offset += Frame.HEADER_SIZE + payload.length) {
+            Frame.writeHeader(encoded, offset, Frame.TYPE_MESSAGE, 0, payload.length);
+            System.arraycopy(payload, 0, encoded, offset + Frame.HEADER_SIZE, payload.length);
+        }
+        decoder = new FrameDecoder((type, flags, bytes, offset, length) -> this.blackhole.consume(length));
+        compressor = new FrameCompressor();
+        compressor.setEnabled(true);
+
+        // Set up as a connection does once deflate was agreed, the writer owns its compressor
+        FrameCompressor writerCompressor = new FrameCompressor();
+        writerCompressor.setEnabled(true);
+        writer = new FrameWriter(OutputStream.nullOutputStream(), new FrameWriter.Callback() {
+            @Override
+            public void onFrameWritten(FrameWriter.OutboundFrame frame) {
+            }
+
+            @Override
+            public void onWriteFailed(IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }, writerCompressor, FrameWriter.DEFAULT_QUEUE_CAPACITY, FrameWriter.DEFAULT_MAX_BATCH_BYTES, 0);
+        writerThread = new Thread(writer, "bench-writer");
+        writerThread.start();
+    }
+
+    @TearDown
+    public void tearDown() throws InterruptedException {
+        compressor.close();
+        writer.close();
+        writerThread.join();
+    }
+
+    /**
+     * The send path of a connection: enqueue() here, then compression,
+     * framing and batching on the writer thread. Linger is off, it only adds
+     * waiting for more frames, not work.
+     */
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public void write() throws InterruptedException, ExecutionException {
+        CompletableFuture<Void> last = null;
+        for (int i = 0; i < FRAMES; i++) {
+            last = writer.enqueue(new FrameWriter.OutboundFrame(
+                    Frame.TYPE_MESSAGE, 0, payload, 0, payload.length, null));
+        }
+        // Frames of one class are written in order, so the last one finishing means all are done
+        last.get();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public void decode() throws IOException {
+        decoder.feed(encoded, 0, encoded.length);
+    }
+
+    @Benchmark
+    public int compress() {
+        return compressor.compress(payload, 0, payload.length);
+    }
+}
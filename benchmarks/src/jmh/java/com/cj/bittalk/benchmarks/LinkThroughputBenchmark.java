@@ -0,0 +1,131 @@
+package com.cj.bittalk.benchmarks;
+
+import com.cj.bittalk.services.BluetoothService;
+import com.cj.bittalk.transport.LoopbackTransport;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Two BluetoothService instances connected over in-memory pipes. Each operation
+ * is one message from client to server, from write() until the server's
+ * listener has it, so framing, batching, compression, encryption and the
+ * acknowledgements are all on the clock. The encrypted parameter compares
+ * AES-GCM against plaintext on the same link.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class LinkThroughputBenchmark {
+    private static final int BATCH = 64;
+
+    @Param({"64", "4096"})
+    public int payloadSize;
+
+    @Param({"false", "true"})
+    public boolean encrypted;
+
+    private final Semaphore received = new Semaphore(0);
+    private BluetoothService server;
+    private BluetoothService client;
+    private byte[] payload;
+
+    private class Listener implements BluetoothService.BluetoothConnectionListener {
+        @Override
+        public void onStateChanged(int state) {
+        }
+
+        @Override
+        public void onMessageReceived(String message) {
+            received.release();
+        }
+
+        @Override
+        public void onMessagesReceived(List<String> messages) {
+            received.release(messages.size());
+        }
+
+        @Override
+        public void onMessageSent(String message) {
+        }
+
+        @Override
+        public void onConnectionFailed() {
+        }
+
+        @Override
+        public void onDeviceConnected(String deviceName) {
+        }
+    }
+
+    @Setup
+    public void setUp() throws InterruptedException {
+        LoopbackTransport.Network network = new LoopbackTransport.Network();
+        server = new BluetoothService(new LoopbackTransport(network, "server"), Runnable::run, new Listener());
+        client = new BluetoothService(new LoopbackTransport(network, "client"), Runnable::run, new Listener());
+        server.setEncryptionEnabled(encrypted);
+        client.setEncryptionEnabled(encrypted);
+        server.start();
+        client.connect("server");
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (client.getState("server") != BluetoothService.STATE_CONNECTED) {
+            if (System.nanoTime() > deadline) {
+                throw new IllegalStateException("Loopback connection did not come up");
+            }
+            Thread.sleep(5);
+        }
+
+        // Random bytes do not deflate, so the compressor's bail-out is measured rather than its win
+        payload = new byte[payloadSize];
+        new Random(7).nextBytes(payload);
+    }
+
+    @TearDown
+    public void tearDown() {
+        client.stop();
+        server.stop();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void sendAndReceive() throws InterruptedException {
+        for (int i = 0; i < BATCH; i++) {
+            while (client.write("server", payload).isCompletedExceptionally()) {
+                // Writer queue is full, let it drain
+                Thread.yield();
+            }
+        }
+        awaitBatch();
+    }
+
+    // write() without an address: the same link, but every message goes out as a mesh RELAY frame
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void broadcastAndReceive() throws InterruptedException {
+        for (int i = 0; i < BATCH; i++) {
+            while (client.write(payload).isCompletedExceptionally()) {
+                Thread.yield();
+            }
+        }
+        awaitBatch();
+    }
+
+    private void awaitBatch() throws InterruptedException {
+        if (!received.tryAcquire(BATCH, 10, TimeUnit.SECONDS)) {
+            throw new IllegalStateException("Messages lost on the loopback link");
+        }
+    }
+}
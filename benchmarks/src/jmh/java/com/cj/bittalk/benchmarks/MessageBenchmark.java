@@ -0,0 +1,113 @@
+package com.cj.bittalk.benchmarks;
+
+import com.cj.bittalk.history.HistoryPage;
+import com.cj.bittalk.history.HistorySource;
+import com.cj.bittalk.history.HistoryWindow;
+import com.cj.bittalk.model.Message;
+import com.cj.bittalk.model.TimeLabels;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The model side of the chat list: the time label of a bound row, and the
+ * HistoryWindow operations MessageAdapter performs on append and on status
+ * updates, over an in-memory history that answers reads right away.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class MessageBenchmark {
+    private static final int BURST = 16;
+
+    @Param({"100", "10000"})
+    public int history;
+
+    private final List<Message> messages = new ArrayList<>();
+    private final List<Message> burst = new ArrayList<>();
+    private HistoryWindow window;
+    private Message newest;
+    private Message oldest;
+
+    @Setup
+    public void setUp() {
+        for (int i = 0; i < history; i++) {
+            messages.add(new Message("message " + i, i % 2 == 0));
+        }
+        for (int i = 0; i < BURST; i++) {
+            burst.add(new Message("burst " + i, false));
+        }
+        window = new HistoryWindow(50, 6, Runnable::run, new HistoryWindow.Listener() {
+            @Override
+            public void onInserted(int position, int count) {
+            }
+
+            @Override
+            public void onChanged(int position, int count) {
+            }
+
+            @Override
+            public void onRemoved(int position, int count) {
+            }
+        });
+        window.bind(new HistorySource() {
+            @Override
+            public CompletableFuture<HistoryPage> readLast(int count) {
+                return readPage(Math.max(0, messages.size() - count), count);
+            }
+
+            @Override
+            public CompletableFuture<HistoryPage> readPage(long from, int count) {
+                int end = (int) Math.min(messages.size(), from + count);
+                return CompletableFuture.completedFuture(new HistoryPage(from,
+                        new ArrayList<>(messages.subList((int) from, end)), 0, messages.size()));
+            }
+
+            @Override
+            public CompletableFuture<Void> append(Message message) {
+                // Bursts are not kept, the window must not depend on them being read back
+                return CompletableFuture.completedFuture(null);
+            }
+        });
+        // Scrolled to the top once, so the oldest page was read and evicted again
+        window.get(0);
+        newest = window.get(history - 1);
+        oldest = messages.get(0);
+    }
+
+    // The label of a freshly received message, a cache hit once its minute was formatted
+    @Benchmark
+    public String formattedTime() {
+        return TimeLabels.format(newest.getTimestamp());
+    }
+
+    // addMessages(): one received burst; older pages are evicted as the window grows
+    @Benchmark
+    public int appendBurst() {
+        window.appendAll(burst);
+        return window.size();
+    }
+
+    // updateMessage() for a status change of the message just sent
+    @Benchmark
+    public int updateNewest() {
+        return window.indexOf(newest);
+    }
+
+    // updateMessage() for a late acknowledgement of the first message, evicted in long chats
+    @Benchmark
+    public int updateOldest() {
+        return window.indexOf(oldest);
+    }
+}
@@ -0,0 +1,47 @@
+package com.cj.bittalk.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The String to UTF-8 conversions every chat message goes through: getBytes()
+ * in sendMessage() and new String() in the connection's onMessage().
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class Utf8Benchmark {
+
+    @Param({"ascii", "mixed"})
+    public String text;
+
+    private String message;
+    private byte[] bytes;
+
+    @Setup
+    public void setUp() {
+        message = "ascii".equals(text)
+                ? "Running ten minutes late, grab us a table by the window please"
+                : "Gr\u00fc\u00dfe aus K\u00f6ln \uD83D\uDE00 \u2014 \u4eca\u665a\u89c1, \u00e0 bient\u00f4t \uD83D\uDC4B";
+        bytes = message.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public byte[] encode() {
+        return message.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public String decode() {
+        return new String(bytes, 0, bytes.length, StandardCharsets.UTF_8);
+    }
+}
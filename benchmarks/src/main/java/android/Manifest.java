@@ -0,0 +1,8 @@
+package android;
+
+public final class Manifest {
+    public static final class permission {
+        public static final String BLUETOOTH_CONNECT = "android.permission.BLUETOOTH_CONNECT";
+        public static final String BLUETOOTH_SCAN = "android.permission.BLUETOOTH_SCAN";
+    }
+}
@@ -0,0 +1,22 @@
+package android.bluetooth;
+
+import java.io.IOException;
+import java.util.UUID;
+
+public final class BluetoothAdapter {
+    public static BluetoothAdapter getDefaultAdapter() {
+        return null;
+    }
+
+    public BluetoothServerSocket listenUsingRfcommWithServiceRecord(String name, UUID uuid) throws IOException {
+        throw new IOException("No Bluetooth on the JVM");
+    }
+
+    public BluetoothDevice getRemoteDevice(String address) {
+        return new BluetoothDevice(address);
+    }
+
+    public boolean cancelDiscovery() {
+        return false;
+    }
+}
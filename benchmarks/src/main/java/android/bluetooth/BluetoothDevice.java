@@ -0,0 +1,24 @@
+package android.bluetooth;
+
+import java.io.IOException;
+import java.util.UUID;
+
+public final class BluetoothDevice {
+    private final String address;
+
+    BluetoothDevice(String address) {
+        this.address = address;
+    }
+
+    public String getAddress() {
+        return address;
+    }
+
+    public String getName() {
+        return null;
+    }
+
+    public BluetoothSocket createRfcommSocketToServiceRecord(UUID uuid) throws IOException {
+        throw new IOException("No Bluetooth on the JVM");
+    }
+}
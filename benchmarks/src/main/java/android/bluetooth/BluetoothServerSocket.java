@@ -0,0 +1,17 @@
+package android.bluetooth;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+public final class BluetoothServerSocket implements Closeable {
+    private BluetoothServerSocket() {
+    }
+
+    public BluetoothSocket accept() throws IOException {
+        throw new IOException("No Bluetooth on the JVM");
+    }
+
+    @Override
+    public void close() {
+    }
+}
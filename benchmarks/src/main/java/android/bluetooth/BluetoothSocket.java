@@ -0,0 +1,31 @@
+package android.bluetooth;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+public final class BluetoothSocket implements Closeable {
+    private BluetoothSocket() {
+    }
+
+    public void connect() throws IOException {
+        throw new IOException("No Bluetooth on the JVM");
+    }
+
+    public InputStream getInputStream() throws IOException {
+        throw new IOException("No Bluetooth on the JVM");
+    }
+
+    public OutputStream getOutputStream() throws IOException {
+        throw new IOException("No Bluetooth on the JVM");
+    }
+
+    public BluetoothDevice getRemoteDevice() {
+        return null;
+    }
+
+    @Override
+    public void close() {
+    }
+}